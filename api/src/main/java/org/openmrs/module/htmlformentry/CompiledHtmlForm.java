@@ -0,0 +1,71 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.Map;
+
+import org.w3c.dom.Document;
+
+/**
+ * The patient-independent result of processing an HtmlForm's xml: comments stripped, macros
+ * applied, repeats exploded and translations parsed. Instances are shared between form entry
+ * sessions (see {@link HtmlFormEntryService#getCompiledHtmlForm(HtmlForm)}), so the compiled
+ * document is never handed out directly; each session works on its own copy from
+ * {@link #newDocument()}.
+ */
+public class CompiledHtmlForm {
+
+	private Integer htmlFormId;
+
+	private Long dateChanged;
+
+	private Document document;
+
+	private Translator translator;
+
+	public CompiledHtmlForm(Document document, Translator translator) {
+		this.document = document;
+		this.translator = translator;
+	}
+
+	/**
+	 * @return a copy of the compiled document, which the caller is free to modify
+	 */
+	public Document newDocument() {
+		// DOM implementations aren't safe for concurrent reads, so copies are made one at a time
+		synchronized (document) {
+			return (Document) document.cloneNode(true);
+		}
+	}
+
+	/**
+	 * Adds the translations defined by this form to the given translator
+	 */
+	public void copyTranslationsTo(Translator target) {
+		for (Map.Entry<String, Map<String, String>> localeEntry : translator.getTranslations().entrySet()) {
+			for (Map.Entry<String, String> codeEntry : localeEntry.getValue().entrySet()) {
+				target.addTranslation(localeEntry.getKey(), codeEntry.getKey(), codeEntry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return the id of the HtmlForm this was compiled from, or null if it has not been saved
+	 */
+	public Integer getHtmlFormId() {
+		return htmlFormId;
+	}
+
+	public void setHtmlFormId(Integer htmlFormId) {
+		this.htmlFormId = htmlFormId;
+	}
+
+	/**
+	 * @return the dateChanged (in milliseconds) of the HtmlForm this was compiled from
+	 */
+	public Long getDateChanged() {
+		return dateChanged;
+	}
+
+	public void setDateChanged(Long dateChanged) {
+		this.dateChanged = dateChanged;
+	}
+}
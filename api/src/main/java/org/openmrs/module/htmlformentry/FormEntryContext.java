@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -66,6 +67,7 @@ public class FormEntryContext {
     private Map<Concept, List<Obs>> existingObs;
     private Map<Concept, List<Order>> existingOrders;
     private Map<Obs, Set<Obs>> existingObsInGroups;
+    private Map<String, Set<Obs>> existingObsGroupsByPath; // the keys of existingObsInGroups, by their obs group path
     
     private Stack<Concept> currentObsGroupConcepts = new Stack<Concept>();
     private List<Obs> currentObsGroupMembers;
@@ -180,6 +182,17 @@ public class FormEntryContext {
         return getFieldName(errorWidgets.get(widget));
     }
     
+    /**
+     * Like {@link #getErrorFieldId(Widget)} but returns null if the widget has no error widget
+     * (instead of throwing an exception).
+     * @param widget
+     * @return
+     */
+    public String getErrorFieldIdIfRegistered(Widget widget) {
+        ErrorWidget errorWidget = errorWidgets.get(widget);
+        return errorWidget == null ? null : getFieldNameIfRegistered(errorWidget);
+    }
+    
     /**
      * Gets the fields ids for all currently registered error widgets
      * 
@@ -331,6 +344,7 @@ public class FormEntryContext {
 		}
 		guessingInd = false;
 		existingObsInGroups = new LinkedHashMap<Obs, Set<Obs>>();
+		existingObsGroupsByPath = new HashMap<String, Set<Obs>>();
 		if (encounter != null)
 			setupExistingObsInGroups(encounter.getObsAtTopLevel(false));
 	}
@@ -345,9 +359,35 @@ public class FormEntryContext {
         for (Obs parent : oSet)       
             if (parent.isObsGrouping()){
                 existingObsInGroups.put(parent, parent.getGroupMembers());
+                String path = ObsGroupComponent.getObsGroupPath(parent);
+                Set<Obs> atPath = existingObsGroupsByPath.get(path);
+                if (atPath == null) {
+                    atPath = new LinkedHashSet<Obs>();
+                    existingObsGroupsByPath.put(path, atPath);
+                }
+                atPath.add(parent);
                 setupExistingObsInGroups(parent.getGroupMembers());
             }    
     }
+    
+    /**
+     * @return the existing obs groups at the given obs group path that haven't been matched yet, in
+     *         the order they were set up
+     */
+    private Set<Obs> getExistingObsGroupsAtPath(String path) {
+        Set<Obs> ret = existingObsGroupsByPath == null ? null : existingObsGroupsByPath.get(path);
+        return ret == null ? Collections.<Obs> emptySet() : ret;
+    }
+    
+    /**
+     * Removes a matched obs group from existingObsInGroups and its index
+     */
+    private void removeExistingObsGroup(Obs group) {
+        existingObsInGroups.remove(group);
+        Set<Obs> atPath = existingObsGroupsByPath.get(ObsGroupComponent.getObsGroupPath(group));
+        if (atPath != null)
+            atPath.remove(group);
+    }
             
      /**
       * Removes an Obs or ObsGroup of the relevant Concept from existingObs, and returns it. Use this version
@@ -530,19 +570,13 @@ public class FormEntryContext {
     }
 
     public Obs getNextUnmatchedObsGroup(String path) {
-        Obs ret = null;
-    	int unmatchedContenterCount = 0;
-        for (Map.Entry<Obs, Set<Obs>> e : existingObsInGroups.entrySet() ) {
-    		if (path.equals(ObsGroupComponent.getObsGroupPath(e.getKey()))) {
-    			if (ret == null) ret = e.getKey();
-    			unmatchedContenterCount++;
-    		}
-    	}
-        if (ret != null){
-        	if (unmatchedContenterCount > 1) {
+        Set<Obs> contenders = getExistingObsGroupsAtPath(path);
+        if (!contenders.isEmpty()){
+            Obs ret = contenders.iterator().next();
+        	if (contenders.size() > 1) {
                 guessingInd = true;
             }
-            existingObsInGroups.remove(ret);
+            removeExistingObsGroup(ret);
             existingObs.remove(ret);
             return ret;
         }
@@ -566,26 +600,19 @@ public class FormEntryContext {
      * @return the first matching {@see ObsGroup}
      */
    public Obs findBestMatchingObsGroup(List<ObsGroupComponent> questionsAndAnswers, String xmlObsGroupConcept, String path) {
-        Set<Obs> contenders = new HashSet<Obs>();
-        // first all obsGroups matching parentObs.concept at the right obsGroup hierarchy level in the encounter are 
-        // saved as contenders
-        for (Map.Entry<Obs, Set<Obs>> e : existingObsInGroups.entrySet() ) {
-
-            log.debug("Comparing obsVal " + ObsGroupComponent.getObsGroupPath(e.getKey()) + " to xmlval " + path);
-
-            if (path.equals(ObsGroupComponent.getObsGroupPath(e.getKey())) ) {
-                contenders.add(e.getKey());
-            }
-         }
+        // all obsGroups matching parentObs.concept at the right obsGroup hierarchy level in the encounter are
+        // contenders
+        Set<Obs> contenders = getExistingObsGroupsAtPath(path);
 
         Obs ret = null;
         
         if (contenders.size() > 0){
             List<Obs> rankTable = new ArrayList<Obs>();
             int topRanking = 0;
+            Map<Integer, List<ObsGroupComponent>> componentsByQuestion = ObsGroupComponent.indexByQuestion(questionsAndAnswers);
             
             for (Obs parentObs : contenders){
-                int rank = ObsGroupComponent.supportingRank(questionsAndAnswers, parentObs, existingObsInGroups.get(parentObs));
+                int rank = ObsGroupComponent.supportingRank(componentsByQuestion, existingObsInGroups.get(parentObs));
 
                 if (rank > 0) {
                     if (rank > topRanking) {
@@ -612,7 +639,7 @@ public class FormEntryContext {
         }
         
         if (ret != null){
-            existingObsInGroups.remove(ret);
+            removeExistingObsGroup(ret);
             existingObs.remove(ret);
             return ret;
         }
@@ -2,10 +2,6 @@ package org.openmrs.module.htmlformentry;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
-import org.apache.velocity.runtime.RuntimeConstants;
-import org.apache.velocity.runtime.log.CommonsLogLogChute;
 import org.openmrs.Concept;
 import org.openmrs.Encounter;
 import org.openmrs.Form;
@@ -18,24 +14,30 @@ import org.openmrs.PatientProgram;
 import org.openmrs.Person;
 import org.openmrs.PersonAttribute;
 import org.openmrs.Relationship;
-import org.openmrs.api.ObsService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
-import org.openmrs.module.htmlformentry.property.ExitFromCareProperty;
+import org.openmrs.module.htmlformentry.metrics.FormEntryMetrics.Category;
+import org.openmrs.module.htmlformentry.metrics.HtmlFormEntryMetrics;
+import org.openmrs.module.htmlformentry.metrics.StageTimer;
+import org.openmrs.module.htmlformentry.velocity.HtmlFormEntryVelocity;
+import org.openmrs.module.htmlformentry.velocity.LazyVelocityContext;
 import org.openmrs.module.htmlformentry.widget.AutocompleteWidget;
 import org.openmrs.module.htmlformentry.widget.ConceptSearchAutocompleteWidget;
 import org.openmrs.module.htmlformentry.widget.Widget;
-import org.openmrs.util.OpenmrsUtil;
 import org.springframework.util.StringUtils;
 import org.springframework.web.util.JavaScriptUtils;
+import org.w3c.dom.Document;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This represents the multi-request transaction that begins the moment a user clicks on a form to
@@ -100,9 +102,7 @@ public class FormEntrySession {
 
     private String htmlToDisplay;
 
-    private VelocityEngine velocityEngine;
-
-    private VelocityContext velocityContext;
+    private LazyVelocityContext velocityContext;
 
     private boolean voidEncounter = false;
     
@@ -121,85 +121,105 @@ public class FormEntrySession {
         context.setDefaultLocation(defaultLocation);
         this.patient = patient;
         context.setupExistingData(patient);
-        velocityEngine = new VelocityEngine();
-
-        // This code pattern is copied to HtmlFormEntryServiceImpl. Any bugfixes should be copied too.
-        // #1953 - Velocity errors in HTML form entry
-        velocityEngine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
-                "org.apache.velocity.runtime.log.CommonsLogLogChute");
-        velocityEngine.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME, "htmlformentry_velocity");
-
-        try {
-            velocityEngine.init();
-        } catch (Exception e) {
-            log.error("Error initializing Velocity engine", e);
-        }
-        velocityContext = new VelocityContext();
+        velocityContext = new LazyVelocityContext();
         velocityContext.put("locale", Context.getLocale());
         velocityContext.put("patient", patient);
         velocityContext.put("fn", new VelocityFunctions(this));
         velocityContext.put("user", Context.getAuthenticatedUser());
 
-        {
-            Map<String, List<String>> identifiers = new HashMap<String, List<String>>();
-            if (patient != null) {
-                for (PatientIdentifier id : patient.getActiveIdentifiers()) {
-                    String idType = id.getIdentifierType().getName();
-                    List<String> list = identifiers.get(idType);
-                    if (list == null) {
-                        list = new ArrayList<String>();
-                        identifiers.put(idType, list);
-                    }
-                    list.add(id.getIdentifier());
-                }
+        // the following entries are only computed if a form actually refers to them
+        velocityContext.putLazy("patientIdentifiers", new LazyVelocityContext.LazyValue() {
+            public Object getValue() {
+                return getPatientIdentifiersByType();
             }
-            velocityContext.put("patientIdentifiers", identifiers);
-        }
-
-        {
-            Map<String, Object> attributes = new HashMap<String, Object>();
-            if (patient != null) {
-                for (PersonAttribute att : patient.getActiveAttributes()) {
-                    String attName = att.getAttributeType().getName();
-                    if (att.getValue() != null) {
-                        attributes.put(attName.replaceAll("'", ""), att.getHydratedObject());
-                    }
-                }
+        });
+        velocityContext.putLazy("personAttributes", new LazyVelocityContext.LazyValue() {
+            public Object getValue() {
+                return getPersonAttributesByType();
             }
-            velocityContext.put("personAttributes", attributes);
-        }
+        });
 
         // the relationship query only makes sense in the context of saved patients, so only call it if this patient
         // has already been persisted (i.e., assigned an id and uuid)
         if (patient != null && patient.getId() != null && patient.getUuid() != null
                 && !("testing-html-form-entry".equals(patient.getUuid()))) {
-            List<Relationship> rels = Context.getPersonService().getRelationshipsByPerson(patient);
-            // TODO put this is core in relationship service
-            Map<String, List<Person>> relMap = new HashMap<String, List<Person>>();
-            for (Relationship rel : rels) {
-                if (rel.getPersonA().getPersonId().equals(patient.getPersonId())) {
-                    List<Person> list = relMap.get(rel.getRelationshipType().getbIsToA());
-                    if (list == null) {
-                        list = new ArrayList<Person>();
-                        relMap.put(rel.getRelationshipType().getbIsToA(), list);
-                    }
-                    list.add(rel.getPersonB());
-                } else {
-                    List<Person> list = relMap.get(rel.getRelationshipType().getaIsToB());
-                    if (list == null) {
-                        list = new ArrayList<Person>();
-                        relMap.put(rel.getRelationshipType().getaIsToB(), list);
-                    }
-                    list.add(rel.getPersonA());
+            velocityContext.putLazy("relationshipList", new LazyVelocityContext.LazyValue() {
+                public Object getValue() {
+                    return Context.getPersonService().getRelationshipsByPerson(FormEntrySession.this.patient);
                 }
-            }
-            velocityContext.put("relationshipList", rels);
-            velocityContext.put("relationshipMap", relMap);
+            });
+            velocityContext.putLazy("relationshipMap", new LazyVelocityContext.LazyValue() {
+                @SuppressWarnings("unchecked")
+                public Object getValue() {
+                    return getRelationshipMap((List<Relationship>) velocityContext.get("relationshipList"));
+                }
+            });
         }
 
         htmlGenerator = new HtmlFormEntryGenerator();
     }
 
+    /**
+     * @return the active identifiers of the patient, keyed by identifier type name
+     */
+    private Map<String, List<String>> getPatientIdentifiersByType() {
+        Map<String, List<String>> identifiers = new HashMap<String, List<String>>();
+        if (patient != null) {
+            for (PatientIdentifier id : patient.getActiveIdentifiers()) {
+                String idType = id.getIdentifierType().getName();
+                List<String> list = identifiers.get(idType);
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    identifiers.put(idType, list);
+                }
+                list.add(id.getIdentifier());
+            }
+        }
+        return identifiers;
+    }
+
+    /**
+     * @return the hydrated values of the patient's active attributes, keyed by attribute type name
+     */
+    private Map<String, Object> getPersonAttributesByType() {
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        if (patient != null) {
+            for (PersonAttribute att : patient.getActiveAttributes()) {
+                String attName = att.getAttributeType().getName();
+                if (att.getValue() != null) {
+                    attributes.put(attName.replaceAll("'", ""), att.getHydratedObject());
+                }
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * @return the people related to the patient, keyed by the name of their side of the relationship
+     */
+    private Map<String, List<Person>> getRelationshipMap(List<Relationship> rels) {
+        // TODO put this is core in relationship service
+        Map<String, List<Person>> relMap = new HashMap<String, List<Person>>();
+        for (Relationship rel : rels) {
+            if (rel.getPersonA().getPersonId().equals(patient.getPersonId())) {
+                List<Person> list = relMap.get(rel.getRelationshipType().getbIsToA());
+                if (list == null) {
+                    list = new ArrayList<Person>();
+                    relMap.put(rel.getRelationshipType().getbIsToA(), list);
+                }
+                list.add(rel.getPersonB());
+            } else {
+                List<Person> list = relMap.get(rel.getRelationshipType().getaIsToB());
+                if (list == null) {
+                    list = new ArrayList<Person>();
+                    relMap.put(rel.getRelationshipType().getaIsToB(), list);
+                }
+                list.add(rel.getPersonA());
+            }
+        }
+        return relMap;
+    }
+
     /**
      * Private constructor that creates a new Form Entry Session for the specified Patient in the
      * specified {@Mode}
@@ -256,7 +276,7 @@ public class FormEntrySession {
         if (form.getEncounterType() != null)
             form.getEncounterType().getName();
 
-        htmlToDisplay = createForm(htmlForm.getXmlData());
+        htmlToDisplay = createForm(htmlForm);
     }
 
     /**
@@ -277,7 +297,7 @@ public class FormEntrySession {
         HtmlForm temp = HtmlFormEntryUtil.getService().getHtmlFormByForm(form);
         this.formModifiedTimestamp = (temp.getDateChanged() == null ? temp.getDateCreated() : temp.getDateChanged())
                 .getTime();
-        htmlToDisplay = createForm(temp.getXmlData());
+        htmlToDisplay = createForm(temp);
     }
 
     /**
@@ -328,7 +348,32 @@ public class FormEntrySession {
 
         submissionController = new FormSubmissionController();
         context.setupExistingData(encounter);
-        this.htmlToDisplay = createForm(htmlForm.getXmlData());
+        this.htmlToDisplay = createForm(htmlForm);
+    }
+
+    /**
+     * Creates a session that only works out which elements a form has for an existing encounter. The
+     * form is processed in ENTER mode, so the encounter's obs and orders are neither matched nor
+     * displayed, but the encounter is available to includeIf/excludeIf tests as $encounter, as it is
+     * in a VIEW-mode session for it.
+     *
+     * @param encounter
+     * @param htmlForm
+     * @throws Exception
+     * @see org.openmrs.module.htmlformentry.matching.HtmlFormEncounterMatcher
+     */
+    FormEntrySession(Encounter encounter, HtmlForm htmlForm) throws Exception {
+        this(encounter.getPatient(), Mode.ENTER, null);
+        this.htmlForm = htmlForm;
+        if (htmlForm.getId() != null)
+            this.formModifiedTimestamp = (htmlForm.getDateChanged() == null ? htmlForm.getDateCreated() : htmlForm
+                    .getDateChanged()).getTime();
+        form = htmlForm.getForm();
+        velocityContext.put("form", form);
+        velocityContext.put("encounter", encounter);
+
+        submissionController = new FormSubmissionController();
+        this.htmlToDisplay = createForm(htmlForm);
     }
 
     /*
@@ -353,8 +398,10 @@ public class FormEntrySession {
      */
     public String evaluateVelocityExpression(String velocityExpression) {
         StringWriter writer = new StringWriter();
+        long started = System.nanoTime();
         try {
-            velocityEngine.evaluate(velocityContext, writer, FormEntrySession.class.getName(), velocityExpression);
+            HtmlFormEntryVelocity.evaluate(velocityContext, writer, velocityExpression);
+            HtmlFormEntryMetrics.getMetrics().record(Category.STAGE, "velocity", System.nanoTime() - started);
             return writer.toString();
         } catch (CannotBePreviewedException ex) {
             return "Cannot be previewed";
@@ -382,27 +429,86 @@ public class FormEntrySession {
      * @should return correct xml with a compound expression in an includeIf tag
      */
     public String createForm(String xml) throws Exception {
+        return createForm(htmlGenerator.compile(xml), xml);
+    }
+
+    /**
+     * Creates the HTML for a saved HTML Form, reusing the cached patient-independent processing of
+     * its xml (see {@link HtmlFormEntryService#getCompiledHtmlForm(HtmlForm)})
+     *
+     * @param htmlForm the form we wish to create
+     * @return
+     * @throws Exception
+     */
+    private String createForm(HtmlForm htmlForm) throws Exception {
+        if (htmlForm.getId() == null)
+            return createForm(htmlForm.getXmlData());
+        return createForm(HtmlFormEntryUtil.getService().getCompiledHtmlForm(htmlForm), htmlForm.getXmlData());
+    }
+
+    /**
+     * Creates the HTML for a HTML Form from its compiled document, or by processing the xml as text
+     * if the form could not be compiled (compiled is null).
+     * <p/>
+     * The text path evaluates includeIf/excludeIf/restrictByRole before macros, repeats and
+     * translations, while a compiled form has already had those applied and only evaluates its
+     * conditionals here. Both give the same output: conditional tests are never substituted into,
+     * and {@link HtmlFormEntryGenerator#compile(String)} refuses forms where a conditional surrounds
+     * macros or translations or the template or renders of a repeat, which are the only places where
+     * the order makes a difference.
+     *
+     * @should give the same output for a compiled form as for its text
+     */
+    String createForm(CompiledHtmlForm compiled, String xml) throws Exception {
         if (htmlForm != null) {
             context.getSchema().setName(htmlForm.getName());
             context.setUnmatchedMode(false);
         }
-        xml = htmlGenerator.stripComments(xml);
-        xml = htmlGenerator.applyIncludes(this, xml);
-        xml = htmlGenerator.applyExcludes(this, xml);
-        xml = htmlGenerator.applyRoleRestrictions(xml);
-        xml = htmlGenerator.applyMacros(xml);
-        xml = htmlGenerator.applyTemplates(xml);
-        xml = htmlGenerator.applyTranslations(xml, context);
-        xml = htmlGenerator.applyTags(this, xml);
+
+        StageTimer timer = HtmlFormEntryMetrics.startTimer(Category.STAGE);
+        Document doc;
+        if (compiled != null) {
+            doc = compiled.newDocument();
+            compiled.copyTranslationsTo(context.getTranslator());
+            timer.lap("copyCompiled");
+            htmlGenerator.applyConditionals(this, doc);
+            timer.lap("conditionals");
+        } else {
+            // these stages work on the raw text, since includeIf/excludeIf tests need not be well-formed xml
+            xml = htmlGenerator.stripComments(xml);
+            timer.lap("stripComments");
+            xml = htmlGenerator.applyIncludes(this, xml);
+            timer.lap("includes");
+            xml = htmlGenerator.applyExcludes(this, xml);
+            timer.lap("excludes");
+            xml = htmlGenerator.applyRoleRestrictions(xml);
+            timer.lap("roleRestrictions");
+
+            // from here on the form is parsed once, modified in place, and serialized once by applyTags
+            doc = HtmlFormEntryUtil.stringToDocument(xml);
+            timer.lap("parse");
+            htmlGenerator.applyMacros(doc);
+            timer.lap("macros");
+            htmlGenerator.applyTemplates(doc);
+            timer.lap("templates");
+            htmlGenerator.applyTranslations(doc, context);
+            timer.lap("translations");
+        }
+        TagOutputWriter output = htmlGenerator.applyTagsToWriter(this, doc);
+        timer.lap("tags");
 
         if (context.hasUnmatchedObsGroupEntities() && (context.getMode() == Mode.EDIT || context.getMode() == Mode.VIEW)) {
             if (context.getUnmatchedObsGroupEntities().size() > 1 && context.getExistingObsInGroupsCount() > 0)
                 context.setGuessingInd(true);
             context.setUnmatchedMode(true);
-            xml = htmlGenerator.applyUnmatchedTags(this, xml);
+            xml = htmlGenerator.applyUnmatchedTags(this, output);
+            timer.lap("unmatchedTags");
+        } else {
+            xml = output.toString();
         }
 
         xml = htmlGenerator.wrapInDiv(xml);
+        timer.lap("wrapInDiv");
         return xml;
     }
 
@@ -441,13 +547,16 @@ public class FormEntrySession {
     /**
      * Applies all the actions associated with a form submission--that is, create/update any
      * Persons, Encounters, and Obs in the database as necessary, and enroll Patient in any programs
-     * as needed
+     * as needed. The changes are saved in a single transaction by
+     * {@link HtmlFormEntryService#applyActions(FormEntrySession)}.
      * <p/>
      * TODO: This requires that...
      *
      * @throws BadFormDesignException
      */
     public void applyActions() throws BadFormDesignException {
+        StageTimer timer = HtmlFormEntryMetrics.startTimer(Category.APPLY_ACTIONS);
+
         // if any encounter to be created by this form is missing a required field, throw an error
         // (If there's a widget but it was left blank, that would have been caught earlier--this
         // is for when there was no widget in the first place.)
@@ -502,22 +611,8 @@ public class FormEntrySession {
             }
         }
 
-        // propagate encounterDatetime to PatientPrograms where necessary
-        if (submissionActions.getPatientProgramsToCreate() != null) {
-            for (PatientProgram pp : submissionActions.getPatientProgramsToCreate()) {
-                if (pp.getDateEnrolled() == null)
-                    pp.setDateEnrolled(encounter.getEncounterDatetime());
-            }
-        }
-
-        if (submissionActions.getPatientProgramsToComplete() != null) {
-            for (PatientProgram pp : submissionActions.getPatientProgramsToComplete()) {
-                if (pp.getDateCompleted() == null)
-                    pp.setDateCompleted(encounter.getEncounterDatetime());
-            }
-        }
-
-        // TODO wrap this in a transaction
+        // if any patient to be created by this form is missing a required field, throw an error before
+        // anything is saved
         if (submissionActions.getPersonsToCreate() != null) {
             for (Person p : submissionActions.getPersonsToCreate()) {
                 if (p instanceof Patient) {
@@ -531,180 +626,26 @@ public class FormEntrySession {
                                 "Please check the design of your form to make sure the following fields are mandatory to create a patient: <br/><b>&lt;personName/&gt;</b>, <b>&lt;birthDateOrAge/&gt;</b>, <b>&lt;gender/&gt;</b>, <b>&lt;identifierType/&gt;</b>, <b>&lt;identifier/&gt;</b>, and <b>&lt;identifierLocation/&gt;</b>");
                     }
                 }
-                Context.getPersonService().savePerson(p);
-            }
-        }
-        if (submissionActions.getEncountersToCreate() != null) {
-            for (Encounter e : submissionActions.getEncountersToCreate()) {
-                if (form != null) {
-                    e.setForm(form);
-                    if (form.getEncounterType() != null)
-                        e.setEncounterType(form.getEncounterType());
-                }
-                Context.getEncounterService().saveEncounter(e);
-            }
-        }
-
-        //deal with relationships
-        if (submissionActions.getRelationshipsToCreate() != null) {
-            for (Relationship r : submissionActions.getRelationshipsToCreate()) {
-                if (log.isDebugEnabled()) {
-                    log.debug("creating relationships" + r.getRelationshipType().getDescription());
-                }
-                Context.getPersonService().saveRelationship(r);
-            }
-        }
-
-        if (submissionActions.getRelationshipsToVoid() != null) {
-            for (Relationship r : submissionActions.getRelationshipsToVoid()) {
-                if (log.isDebugEnabled()) {
-                    log.debug("voiding relationships" + r.getId());
-                }
-                Context.getPersonService().voidRelationship(r, "htmlformentry");
-            }
-        }
-
-        if (submissionActions.getRelationshipsToEdit() != null) {
-            for (Relationship r : submissionActions.getRelationshipsToCreate()) {
-                if (log.isDebugEnabled()) {
-                    log.debug("editing relationships" + r.getId());
-                }
-                Context.getPersonService().saveRelationship(r);
             }
         }
 
-        // program enrollments are trickier since we need to make sure the patient isn't already enrolled
-        // 1. if the patient is already enrolled on the given date, just skip this
-        // 2. if the patient is enrolled *after* the given date, shift the existing enrollment to start earlier. (TODO decide if this is right)
-        // 3. otherwise just enroll them as requested
+        // propagate encounterDatetime to PatientPrograms where necessary
         if (submissionActions.getPatientProgramsToCreate() != null) {
-            for (PatientProgram toCreate : submissionActions.getPatientProgramsToCreate()) {
-                boolean skip = false;
-                PatientProgram earliestAfter = null;
-                List<PatientProgram> already = Context.getProgramWorkflowService().getPatientPrograms(toCreate.getPatient(),
-                        toCreate.getProgram(), null, null, null, null, false);
-                for (PatientProgram pp : already) {
-                    if (pp.getActive(toCreate.getDateEnrolled())) {
-                        skip = true;
-                        break;
-                    }
-                    // if the existing one starts after toCreate
-                    if (OpenmrsUtil.compare(pp.getDateEnrolled(), toCreate.getDateEnrolled()) > 0) {
-                        if (earliestAfter == null
-                                || OpenmrsUtil.compare(pp.getDateEnrolled(), earliestAfter.getDateEnrolled()) < 0) {
-                            earliestAfter = pp;
-                        }
-                    }
-                }
-                if (skip) {
-                    continue;
-                }
-                if (earliestAfter != null) {
-                    // edit this enrollment to move its start date earlier
-                    earliestAfter.setDateEnrolled(toCreate.getDateEnrolled());
-                    Context.getProgramWorkflowService().savePatientProgram(earliestAfter);
-                } else {
-                    // just enroll as requested
-                    Context.getProgramWorkflowService().savePatientProgram(toCreate);
-                }
+            for (PatientProgram pp : submissionActions.getPatientProgramsToCreate()) {
+                if (pp.getDateEnrolled() == null)
+                    pp.setDateEnrolled(encounter.getEncounterDatetime());
             }
         }
 
-        //complete any necessary programs
         if (submissionActions.getPatientProgramsToComplete() != null) {
-            for (PatientProgram toComplete : submissionActions.getPatientProgramsToComplete()) {
-                Context.getProgramWorkflowService().savePatientProgram(toComplete);
-            }
-        }
-
-        if (submissionActions.getPatientProgramsToUpdate() != null) {
-            for (PatientProgram patientProgram : submissionActions.getPatientProgramsToUpdate()) {
-                Context.getProgramWorkflowService().savePatientProgram(patientProgram);
-            }
-        }
-
-        ObsService obsService = Context.getObsService();
-        
-        if (submissionActions.getObsToVoid() != null) {
-            for (Obs o : submissionActions.getObsToVoid()) {
-                if (log.isDebugEnabled())
-                    log.debug("voiding obs: " + o.getObsId());
-                obsService.voidObs(o, "htmlformentry");
-                // if o was in a group and it has no obs left, void the group
-                if (noObsLeftInGroup(o.getObsGroup())) {
-                    obsService.voidObs(o.getObsGroup(), "htmlformentry");
-                }
-            }
-        }
-
-        // If we're in EDIT mode, we have to save the encounter so that any new obs are created.
-        // This feels a bit like a hack, but actually it's a good thing to update the encounter's dateChanged in this case. (PS- turns out there's no dateChanged on encounter up to 1.5.)
-        // If there is no encounter (impossible at the time of writing this comment) we save the obs manually
-        if (context.getMode() == Mode.EDIT) {
-            if (encounter != null) {
-                if (voidEncounter) {
-                    try {
-                        HtmlFormEntryUtil.voidEncounter(encounter, htmlForm, "voided via htmlformentry form submission");
-                    } catch (Exception ex) {
-                        throw new RuntimeException("Unable to void encounter.", ex);
-                    }
-                }
-                Context.getEncounterService().saveEncounter(encounter);
-            } else if (submissionActions.getObsToCreate() != null) {
-                // this may not work right due to savehandlers (similar error to HTML-135) but this branch is
-                // unreachable until html forms are allowed to edit data without an encounter
-                for (Obs o : submissionActions.getObsToCreate())
-                    obsService.saveObs(o, null);
-            }
-        }
-
-        /*
-           ObsService obsService = Context.getObsService();
-           This should propagate from above
-          if (submissionActions.getObsToCreate() != null) {
-              for (Obs o : submissionActions.getObsToCreate())
-                  Context.getObsService().saveObs(o, null);
-          }
-          */
-
-        // save the patient
-        // TODO: we are having some issues here when updating a Patient and an Encounter via an HTML form due recently discovered problems with the way
-        // we are using Hibernate.  We rely on Spring AOP saveHandlers and the save methods themselves to set some key parameters like date created--and
-        // sometimes a flush can be called before these methods are called. This should be resolved once we move save handling out of Spring AOP and
-        // into a Hibernate Interceptor (which happens in 1.9)
-        if (patient != null && submissionActions.getPatientUpdateRequired()) {
-            Context.getPersonService().savePerson(patient);
-        }
-
-        // exit the patient from care or process patient's death
-        if (submissionActions.getExitFromCareProperty() != null) {
-            ExitFromCareProperty exitFromCareProperty =
-                    submissionActions.getExitFromCareProperty();
-            if (exitFromCareProperty.getCauseOfDeathConcept() != null) {
-                Context.getPatientService().processDeath(this.getPatient(), exitFromCareProperty.getDateOfExit(),
-                        exitFromCareProperty.getCauseOfDeathConcept(), exitFromCareProperty.getOtherReason());
-            } else {
-                Context.getPatientService().exitFromCare(this.getPatient(), exitFromCareProperty.getDateOfExit(), exitFromCareProperty.getReasonExitConcept());
+            for (PatientProgram pp : submissionActions.getPatientProgramsToComplete()) {
+                if (pp.getDateCompleted() == null)
+                    pp.setDateCompleted(encounter.getEncounterDatetime());
             }
-
         }
+        timer.lap("prepare");
 
-    }
-
-    /**
-     * Returns true if group is an obs group that has no unvoided members.
-     *
-     * @param group
-     * @return
-     */
-    private boolean noObsLeftInGroup(Obs group) {
-        if (group == null)
-            return false;
-        for (Obs member : group.getGroupMembers()) {
-            if (!member.isVoided())
-                return false;
-        }
-        return true;
+        HtmlFormEntryUtil.getService().applyActions(this);
     }
 
     /**
@@ -870,6 +811,35 @@ public class FormEntrySession {
         return sb.toString();
     }
 
+    /**
+     * Validates some of the fields of a submission without re-rendering the form (see
+     * {@link FormSubmissionController#validateFields(FormEntryContext, HttpServletRequest, Collection)}).
+     * The errors are keyed by error div, as in {@link #getLastSubmissionErrorJavascript()}.
+     * 
+     * @param submission the submission to validate, which may hold only some of the form's fields
+     * @param fieldNames the field names of the widgets to validate
+     * @return the id of the error div of each of the given widgets, mapped to its errors separated by
+     *         commas, or to an empty string if it has none
+     */
+    public Map<String, String> validateFields(HttpServletRequest submission, Collection<String> fieldNames) {
+        Map<String, String> ret = new LinkedHashMap<String, String>();
+        for (String fieldName : fieldNames) {
+            Widget widget = context.getWidgetByFieldName(fieldName);
+            String errorFieldId = widget == null ? null : context.getErrorFieldIdIfRegistered(widget);
+            if (errorFieldId != null)
+                ret.put(errorFieldId, "");
+        }
+        for (FormSubmissionError error : submissionController.validateFields(context, submission, fieldNames)) {
+            String errorFieldId = error.getSourceWidget() != null ? context.getErrorFieldIdIfRegistered(error
+                    .getSourceWidget()) : error.getId();
+            if (errorFieldId == null)
+                continue;
+            String soFar = ret.get(errorFieldId);
+            ret.put(errorFieldId, StringUtils.hasText(soFar) ? soFar + ", " + error.getError() : error.getError());
+        }
+        return ret;
+    }
+
     /**
      * @return a fragment of javascript that tells the getValue and setValue methods how to work
      */
@@ -902,6 +872,13 @@ public class FormEntrySession {
         return form;
     }
 
+    /**
+     * Returns the HtmlForm associated with the session
+     */
+    public HtmlForm getHtmlForm() {
+        return htmlForm;
+    }
+
     /**
      * Returns the id of the HtmlForm associated with the session
      */
@@ -956,6 +933,14 @@ public class FormEntrySession {
         return encounterModifiedTimestamp;
     }
 
+    /**
+     * Returns the lazily-computed velocity context entries (e.g. personAttributes, relationshipMap)
+     * that this session has actually needed so far
+     */
+    public Set<String> getMaterializedVelocityContextEntries() {
+        return velocityContext.getMaterializedKeys();
+    }
+
     /**
      * Calculates the date an encounter was last modified by checking the creation and voided times
      * of all Obs and Orders associated with the Encounter
@@ -1000,6 +985,10 @@ public class FormEntrySession {
         return false;
     }
 
+    public boolean isVoidEncounter() {
+        return voidEncounter;
+    }
+
     public void setVoidEncounter(boolean voidEncounter) {
         this.voidEncounter = voidEncounter;
     }
@@ -2,12 +2,19 @@ package org.openmrs.module.htmlformentry;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
 import org.openmrs.module.htmlformentry.action.RepeatControllerAction;
+import org.openmrs.module.htmlformentry.metrics.FormEntryMetrics.Category;
+import org.openmrs.module.htmlformentry.metrics.HtmlFormEntryMetrics;
+import org.openmrs.module.htmlformentry.metrics.StageTimer;
+import org.openmrs.module.htmlformentry.widget.Widget;
 
 /**
  * Encapsulates how to validate and submit a form.
@@ -65,6 +72,7 @@ public class FormSubmissionController {
      * @return list of all validation errors
      */
     public List<FormSubmissionError> validateSubmission(FormEntryContext context, HttpServletRequest submission) {
+        StageTimer timer = HtmlFormEntryMetrics.startTimer(Category.STAGE);
         lastSubmission = submission;
         lastSubmissionErrors = new ArrayList<FormSubmissionError>();
         for (FormSubmissionControllerAction element : actions) {
@@ -73,9 +81,54 @@ public class FormSubmissionController {
                 lastSubmissionErrors.addAll(errs);
             }
         }
+        timer.lap("validateSubmission");
         return lastSubmissionErrors;
     }
     
+    /**
+     * Validates some of the fields of a form submission, e.g. the widget a user has just filled in or
+     * the widgets of one section of a long form, so that their errors can be shown without submitting
+     * and re-rendering the whole form.
+     * <p/>
+     * An action doesn't say which widgets it reads, so every action still validates the submission,
+     * but only the errors of the given widgets (or of their error widgets) are returned. Unlike
+     * {@link #validateSubmission(FormEntryContext, HttpServletRequest)}, this doesn't change the last
+     * submission or its errors.
+     * 
+     * @param context the Form Entry Context
+     * @param submission the submission to validate, which may hold only some of the form's fields
+     * @param fieldNames the field names of the widgets to validate
+     * @return the validation errors of those widgets
+     */
+    public List<FormSubmissionError> validateFields(FormEntryContext context, HttpServletRequest submission,
+                                                    Collection<String> fieldNames) {
+        StageTimer timer = HtmlFormEntryMetrics.startTimer(Category.STAGE);
+        Set<String> requested = new HashSet<String>(fieldNames);
+        Set<String> wanted = new HashSet<String>(requested);
+        for (Map.Entry<Widget, String> e : context.getFieldNames().entrySet()) {
+            if (requested.contains(e.getValue())) {
+                String errorFieldId = context.getErrorFieldIdIfRegistered(e.getKey());
+                if (errorFieldId != null)
+                    wanted.add(errorFieldId);
+            }
+        }
+        
+        List<FormSubmissionError> ret = new ArrayList<FormSubmissionError>();
+        for (FormSubmissionControllerAction element : actions) {
+            Collection<FormSubmissionError> errs = element.validateSubmission(context, submission);
+            if (errs != null) {
+                for (FormSubmissionError err : errs) {
+                    String fieldName = err.getSourceWidget() != null ? context.getFieldNameIfRegistered(err.getSourceWidget())
+                            : err.getId();
+                    if (fieldName != null && wanted.contains(fieldName))
+                        ret.add(err);
+                }
+            }
+        }
+        timer.lap("validateFields");
+        return ret;
+    }
+    
     /**
      * Processes a form submission, given a Form Entry Session.
      * <p/>
@@ -85,10 +138,12 @@ public class FormSubmissionController {
      * @param submission
      */
     public void handleFormSubmission(FormEntrySession session, HttpServletRequest submission) {
+        StageTimer timer = HtmlFormEntryMetrics.startTimer(Category.STAGE);
         lastSubmission = submission;
         for (FormSubmissionControllerAction element : actions) {
             element.handleSubmission(session, submission);
         }
+        timer.lap("handleSubmission");
     }
     
     /**
@@ -15,7 +15,15 @@ package org.openmrs.module.htmlformentry;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.Activator;
+import org.openmrs.module.htmlformentry.cache.ConceptSearchIndexes;
+import org.openmrs.module.htmlformentry.cache.LocationCatalog;
+import org.openmrs.module.htmlformentry.cache.MetadataChangeAdvice;
+import org.openmrs.module.htmlformentry.cache.MetadataResolutionCache;
+import org.openmrs.module.htmlformentry.cache.PersonStubDirectory;
+import org.openmrs.module.htmlformentry.metrics.HtmlFormEntryMetrics;
+import org.openmrs.module.htmlformentry.velocity.HtmlFormEntryVelocity;
 
 /**
  * Contains the logic that is run every time HTML Form Entry module
@@ -24,25 +32,64 @@ import org.openmrs.module.Activator;
 public class HtmlFormEntryActivator implements Activator {
 
 	private Log log = LogFactory.getLog(this.getClass());
+	
+	// config.xml can't advise the ProviderService, which only exists from OpenMRS 1.9
+	private MetadataChangeAdvice providerServiceAdvice;
 
 	/**
-	 * Logs that module has been started
+	 * Logs that module has been started, and sets up the shared velocity engine, metadata cache,
+	 * location catalog, person directory and (if enabled) metrics
 	 * 
 	 * @see org.openmrs.module.Activator#startup()
 	 */
 	@Override
     public void startup() {
 		log.info("Starting HTML Form Entry Module");
+		HtmlFormEntryVelocity.initialize();
+		MetadataResolutionCache.getInstance().setEnabled(true);
+		LocationCatalog.getInstance().setEnabled(true);
+		PersonStubDirectory.getInstance().setEnabled(true);
+		try {
+			Class<?> providerService = Context.loadClass(MetadataChangeAdvice.PROVIDER_SERVICE);
+			providerServiceAdvice = new MetadataChangeAdvice();
+			Context.addAdvice(providerService, providerServiceAdvice);
+		}
+		catch (ClassNotFoundException ex) {
+			// before OpenMRS 1.9
+		}
+		try {
+			if (HtmlFormEntryGlobalProperties.METRICS_ENABLED())
+				HtmlFormEntryMetrics.startInMemoryMetrics();
+		}
+		catch (Exception ex) {
+			log.warn("Unable to start html form entry metrics", ex);
+		}
 	}
 	
 	/**
-	 * Logs that module has been stopped
+	 * Logs that module has been stopped, and releases the shared velocity engine, metadata cache,
+	 * location catalog, person directory and metrics
 	 * 
 	 *  @see org.openmrs.module.Activator#shutdown()
 	 */
 	@Override
     public void shutdown() {
 		log.info("Shutting down HTML Form Entry Module");
+		HtmlFormEntryVelocity.shutdown();
+		MetadataResolutionCache.getInstance().setEnabled(false);
+		ConceptSearchIndexes.getInstance().clear();
+		LocationCatalog.getInstance().setEnabled(false);
+		PersonStubDirectory.getInstance().setEnabled(false);
+		if (providerServiceAdvice != null) {
+			try {
+				Context.removeAdvice(Context.loadClass(MetadataChangeAdvice.PROVIDER_SERVICE), providerServiceAdvice);
+			}
+			catch (ClassNotFoundException ex) {
+				// can't happen, since it was found at startup
+			}
+			providerServiceAdvice = null;
+		}
+		HtmlFormEntryMetrics.stopMetrics();
 	}
 	
 }
@@ -2,9 +2,16 @@ package org.openmrs.module.htmlformentry;
 
 import java.io.ByteArrayInputStream;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
 
-import org.apache.xerces.dom.AttributeMap;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
 import org.openmrs.Role;
 import org.openmrs.User;
 import org.apache.commons.lang.StringUtils;
@@ -15,14 +22,21 @@ import org.openmrs.module.htmlformentry.handler.AttributeDescriptor;
 import org.openmrs.module.htmlformentry.handler.IteratingTagHandler;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
 import org.openmrs.module.htmlformentry.matching.ObsGroupEntity;
+import org.openmrs.module.htmlformentry.metrics.FormEntryMetrics.Category;
+import org.openmrs.module.htmlformentry.metrics.HtmlFormEntryMetrics;
+import org.openmrs.module.htmlformentry.metrics.StageTimer;
 import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -37,6 +51,20 @@ import java.util.regex.Pattern;
  */
 public class HtmlFormEntryGenerator implements TagHandler {
 
+    private static final Set<String> CONDITIONAL_TAGS = new HashSet<String>(Arrays.asList("includeIf", "excludeIf",
+            "restrictByRole"));
+
+    private static final Pattern CONDITIONAL_TAG_PATTERN = Pattern.compile("<(includeIf|excludeIf|restrictByRole)\\b");
+
+    // the placeholder ObsGroupTagHandler prints for an obs group that can't be matched on the first pass
+    private static final Pattern UNMATCHED_PLACEHOLDER_PATTERN = Pattern.compile("<unmatched id=\"(\\d+)\" />");
+
+    /**
+     * Tags whose contents are consumed while a form is being preprocessed (see {@link #compile(String)})
+     */
+    private static final Set<String> PREPROCESSED_TAGS = new HashSet<String>(Arrays.asList("macros", "translations",
+            "code", "variant"));
+
     /**
      * Takes an XML string, finds the {@code <macros></macros>} section in it, and applies those
      * substitutions
@@ -63,6 +91,7 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * </htmlform>
      * }
      * </pre>
+     * This is a compatibility adapter around {@link #applyMacros(Document)}
      *
      * @param xml the xml string to process for macros
      * @return the xml string with after macro substitution
@@ -70,12 +99,30 @@ public class HtmlFormEntryGenerator implements TagHandler {
      */
     public String applyMacros(String xml) throws Exception {
         Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+
+        // if there are no macros defined, we just return the original xml unchanged
+        if (HtmlFormEntryUtil.findChild(HtmlFormEntryUtil.findChild(doc, "htmlform"), "macros") == null)
+            return xml;
+
+        applyMacros(doc);
+        return HtmlFormEntryUtil.documentToString(doc);
+    }
+
+    /**
+     * Finds the {@code <macros></macros>} section in a parsed form, removes it, and applies those
+     * substitutions to the text and attribute values of the document in place
+     *
+     * @param doc the parsed form document
+     * @throws Exception
+     * @see #applyMacros(String)
+     */
+    public void applyMacros(Document doc) throws Exception {
         Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
         Node macrosNode = HtmlFormEntryUtil.findChild(content, "macros");
 
-        // if there are no macros defined, we just return the original xml unchanged
+        // if there are no macros defined, we leave the document unchanged
         if (macrosNode == null)
-            return xml;
+            return;
 
         // otherwise get its contents
         Properties macros = new Properties();
@@ -88,17 +135,26 @@ public class HtmlFormEntryGenerator implements TagHandler {
         // now remove the macros node
         content.removeChild(macrosNode);
 
-        // switch back to String mode from the document so we can use string utilities to substitute
-        xml = HtmlFormEntryUtil.documentToString(doc);
-
-        // substitute any macros we found
+        Map<String, String> replacements = new LinkedHashMap<String, String>();
+        boolean containsMarkup = false;
         for (Object temp : macros.keySet()) {
             String key = (String) temp;
             String value = macros.getProperty(key, "");
-            xml = xml.replace("$" + key, value);
+            replacements.put("$" + key, value);
+            if (value.indexOf('<') >= 0 || value.indexOf('&') >= 0)
+                containsMarkup = true;
         }
 
-        return xml;
+        if (containsMarkup) {
+            // macros that expand to markup have to be substituted in the serialized form so that they are parsed
+            String xml = HtmlFormEntryUtil.documentToString(doc);
+            for (Map.Entry<String, String> e : replacements.entrySet()) {
+                xml = xml.replace(e.getKey(), e.getValue());
+            }
+            replaceContent(doc, HtmlFormEntryUtil.stringToDocument(xml));
+        } else {
+            substituteInTree(content, replacements, canSubstituteInOneScan(replacements));
+        }
     }
 
     /**
@@ -117,6 +173,7 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * </htmlform>
      * }
      * </pre>
+     * This is a compatibility adapter around {@link #applyTranslations(Document, FormEntryContext)}
      *
      * @param xml the xml string to process for translations
      * @return the xml string after translation substitutions have been made
@@ -124,12 +181,43 @@ public class HtmlFormEntryGenerator implements TagHandler {
      */
     public String applyTranslations(String xml, FormEntryContext context) throws Exception {
         Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+
+        // if there are no translations defined, we just return the original xml unchanged
+        if (HtmlFormEntryUtil.findChild(HtmlFormEntryUtil.findChild(doc, "htmlform"), "translations") == null)
+            return xml;
+
+        applyTranslations(doc, context);
+        return HtmlFormEntryUtil.documentToString(doc);
+    }
+
+    /**
+     * Finds the {@code <translations></translations>} section in a parsed form, registers its codes
+     * with the context's {@link Translator} and removes it from the document
+     *
+     * @param doc the parsed form document
+     * @param context the context whose translator should receive the translations
+     * @throws Exception
+     * @see #applyTranslations(String, FormEntryContext)
+     */
+    public void applyTranslations(Document doc, FormEntryContext context) throws Exception {
+        applyTranslations(doc, context.getTranslator());
+    }
+
+    /**
+     * Finds the {@code <translations></translations>} section in a parsed form, registers its codes
+     * with the given translator and removes it from the document
+     *
+     * @param doc the parsed form document
+     * @param translator the translator that should receive the translations
+     * @throws Exception
+     */
+    public void applyTranslations(Document doc, Translator translator) throws Exception {
         Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
         Node transNode = HtmlFormEntryUtil.findChild(content, "translations");
 
-        // if there are no translations defined, we just return the original xml unchanged
+        // if there are no translations defined, we leave the document unchanged
         if (transNode == null) {
-            return xml;
+            return;
         }
 
         String defaultLocaleStr = HtmlFormEntryUtil.getNodeAttribute(transNode, "defaultLocale", "en");
@@ -151,18 +239,14 @@ public class HtmlFormEntryGenerator implements TagHandler {
                         if (valueStr == null) {
                             throw new IllegalArgumentException("All variants must specify a value");
                         }
-                        context.getTranslator().addTranslation(localeStr, codeName, valueStr);
+                        translator.addTranslation(localeStr, codeName, valueStr);
                     }
                 }
             }
         }
 
-        // now remove the macros node
+        // now remove the translations node
         content.removeChild(transNode);
-
-        // switch back to String mode from the document so we can use string utilities to substitute
-        xml = HtmlFormEntryUtil.documentToString(doc);
-        return xml;
     }
 
     /**
@@ -229,125 +313,244 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * }
      *
      * </pre>
+     * This is a compatibility adapter around {@link #applyTemplates(Document)}
      *
      * @param xml the xml string to process for repeat sections
      * @return the xml string after repeat substitutions have been made
      * @throws Exception
      */
     public String applyTemplates(String xml) throws Exception {
+        if (!xml.contains("<repeat"))
+            return xml;
+
         Document doc = HtmlFormEntryUtil.stringToDocument(xml);
-        Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
+        applyTemplates(doc);
+        return HtmlFormEntryUtil.documentToString(doc);
+    }
 
-        // We are doing this as follows since I can't seem to get the XML node cloning to work right.
-        // We can refactor later as needed if we can get it to work properly, or replace the xml library
-        // First we need to parse the document to get the node attributes for repeating elements
-        List<List<Map<String, String>>> renderMaps = new ArrayList<List<Map<String, String>>>();
-
-        // The value entries defined with the <repeat> tag will be stored in the hashmap below
-        Map<Integer, String> idLabelPairs = new HashMap<Integer, String>();
-
-        loadElementsForEachRepeatElement(content, idLabelPairs);
-        loadRenderElementsForEachRepeatElement(content, renderMaps);
-
-        // Now we are just going to use String replacements to explode the repeat tags properly
-        Iterator<List<Map<String, String>>> renderMapIter = renderMaps.iterator();
-        int idLabelpairIndex = 0;
-        while (xml.contains("<repeat")) {
-            int startIndex = xml.indexOf("<repeat");
-            int endIndex = xml.indexOf("</repeat>") + 9;
-            String xmlToReplace = xml.substring(startIndex, endIndex);
-            if (xmlToReplace.contains("with=")) {
-                int repeatWithEndIndex = xmlToReplace.indexOf("]\">");
-                int xmlToReplaceEndIndex = xmlToReplace.indexOf("</repeat>");
-                String elementTagsToReplace = xmlToReplace.substring(repeatWithEndIndex + 3, xmlToReplaceEndIndex);
-                StringBuilder sb = new StringBuilder();
-
-                if (idLabelpairIndex < idLabelPairs.size()) {
-                    Map<Integer, String[]> result = processForRepeatElements(idLabelPairs.get(idLabelpairIndex));
-                    int listVal = 0; //keeps track of the index of list element while iterating
-                    String currentTag = elementTagsToReplace;
-                    for (Map.Entry<Integer, String[]> entry : result.entrySet()) {
-                        String[] vals = entry.getValue();
-                        for (int j = 0; j < entry.getValue().length; j = j + entry.getKey()) {
-                            for (int n = 0; n < entry.getKey(); n++) {
-                                currentTag = currentTag.replace("{" + n + "}", vals[listVal]);
-                                listVal++;
-                            }
-                            sb.append(currentTag);
-                            currentTag = elementTagsToReplace;
+    /**
+     * Explodes each {@code <repeat></repeat>} section of a parsed form in place, in document order.
+     * Both the {@code <template>/<render>} and the {@code with=""} forms are supported.
+     *
+     * @param doc the parsed form document
+     * @throws Exception
+     * @see #applyTemplates(String)
+     */
+    public void applyTemplates(Document doc) throws Exception {
+        Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
+        if (content == null)
+            return;
+
+        List<Node> repeatNodes = new ArrayList<Node>();
+        loadRepeatElements(content, repeatNodes);
+
+        for (Node repeatNode : repeatNodes) {
+            String with = HtmlFormEntryUtil.getNodeAttribute(repeatNode, "with", null);
+            if (with != null) {
+                List<Map<String, String>> renders = new ArrayList<Map<String, String>>();
+                Map<Integer, String[]> result = processForRepeatElements(with.trim());
+                for (Map.Entry<Integer, String[]> entry : result.entrySet()) {
+                    String[] vals = entry.getValue();
+                    int n = entry.getKey();
+                    for (int j = 0; j + n <= vals.length; j = j + n) {
+                        Map<String, String> replacements = new LinkedHashMap<String, String>();
+                        for (int k = 0; k < n; k++) {
+                            replacements.put("{" + k + "}", vals[j + k]);
                         }
+                        renders.add(replacements);
                     }
-
                 }
-                idLabelpairIndex++;
-                xml = xml.substring(0, startIndex) + sb + xml.substring(endIndex);
+                insertCopiesBefore(repeatNode, repeatNode, renders);
             } else {
-                String template = xmlToReplace.substring(xmlToReplace.indexOf("<template>") + 10,
-                        xmlToReplace.indexOf("</template>"));
-                StringBuilder replacement = new StringBuilder();
-                for (Map<String, String> replacements : renderMapIter.next()) {
-                    String curr = template;
-                    for (String key : replacements.keySet()) {
-                        curr = curr.replace("{" + key + "}", replacements.get(key));
+                Node templateNode = HtmlFormEntryUtil.findChild(repeatNode, "template");
+                if (templateNode == null) {
+                    throw new IllegalArgumentException("All <repeat> elements must contain a child <template> element.");
+                }
+                List<Map<String, String>> renders = new ArrayList<Map<String, String>>();
+                NodeList renderNodes = repeatNode.getChildNodes();
+                for (int j = 0; j < renderNodes.getLength(); j++) {
+                    Node renderNode = renderNodes.item(j);
+                    if (renderNode.getNodeName().equalsIgnoreCase("render")) {
+                        Map<String, String> replacements = new LinkedHashMap<String, String>();
+                        for (Map.Entry<String, String> att : HtmlFormEntryUtil.getNodeAttributes(renderNode).entrySet()) {
+                            replacements.put("{" + att.getKey() + "}", att.getValue());
+                        }
+                        renders.add(replacements);
                     }
-                    replacement.append(curr);
                 }
-                xml = xml.substring(0, startIndex) + replacement + xml.substring(endIndex);
+                insertCopiesBefore(templateNode, repeatNode, renders);
             }
-
+            repeatNode.getParentNode().removeChild(repeatNode);
         }
-
-        return xml;
     }
 
-    private void loadRenderElementsForEachRepeatElement(Node node, List<List<Map<String, String>>> renderMaps)
-            throws Exception {
-
+    /**
+     * Collects all the {@code <repeat>} elements under node in document order (nested repeats are
+     * not supported, so we don't descend into a repeat)
+     */
+    private void loadRepeatElements(Node node, List<Node> repeatNodes) {
         NodeList list = node.getChildNodes();
         for (int i = 0; i < list.getLength(); i++) {
             Node n = list.item(i);
-            if (n.getNodeName().equalsIgnoreCase("repeat") && !n.hasAttributes()) {
-                Node templateNode = HtmlFormEntryUtil.findChild(n, "template");
-                if (templateNode == null) {
-                    throw new IllegalArgumentException("All <repeat> elements must contain a child <template> element.");
-                }
-                List<Map<String, String>> l = new ArrayList<Map<String, String>>();
-                NodeList repeatNodes = n.getChildNodes();
-                for (int j = 0; j < repeatNodes.getLength(); j++) {
-                    Node renderNode = repeatNodes.item(j);
-                    if (renderNode.getNodeName().equalsIgnoreCase("render")) {
-                        l.add(HtmlFormEntryUtil.getNodeAttributes(renderNode));
-                    }
-                }
-                renderMaps.add(l);
+            if (n.getNodeName().equalsIgnoreCase("repeat")) {
+                repeatNodes.add(n);
             } else {
-                loadRenderElementsForEachRepeatElement(n, renderMaps);
+                loadRepeatElements(n, repeatNodes);
             }
         }
     }
 
-    private void loadElementsForEachRepeatElement(Node content, Map<Integer, String> idLabelPairs) {
+    /**
+     * For each of the given sets of placeholder substitutions, inserts a copy of each child of source
+     * before the target node, applying those substitutions to the copies
+     */
+    private void insertCopiesBefore(Node source, Node target, List<Map<String, String>> renders) throws Exception {
+        Node parent = target.getParentNode();
+        if (containsMarkup(renders)) {
+            // values that hold markup have to be substituted in the serialized template so that they are parsed
+            String template = childrenToString(source);
+            StringBuilder xml = new StringBuilder("<htmlform>");
+            for (Map<String, String> replacements : renders) {
+                xml.append(substituteInTurn(template, replacements));
+            }
+            xml.append("</htmlform>");
+            Node copies = HtmlFormEntryUtil.findChild(HtmlFormEntryUtil.stringToDocument(xml.toString()), "htmlform");
+            Document doc = target.getOwnerDocument();
+            for (Node child = copies.getFirstChild(); child != null; child = child.getNextSibling()) {
+                parent.insertBefore(doc.importNode(child, true), target);
+            }
+            return;
+        }
 
-        int n = 0;
-        NodeList nodeList = content.getChildNodes();
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Node node = nodeList.item(i);
-            if (node.getNodeName().equalsIgnoreCase("repeat") && node.hasAttributes()) {
-                AttributeMap attributMap = (AttributeMap) node.getAttributes();
-                for (int j = 0; j < attributMap.getLength(); j++) {
-                    Node attNode = attributMap.item(j);
-                    if (attNode.getNodeName().equalsIgnoreCase("with")) {
-                        String val = attNode.getNodeValue().trim();
-                        idLabelPairs.put(n, val);
-                        n++;
-                    }
+        NodeList children = source.getChildNodes();
+        for (Map<String, String> replacements : renders) {
+            boolean inOneScan = canSubstituteInOneScan(replacements);
+            for (int i = 0; i < children.getLength(); i++) {
+                Node copy = children.item(i).cloneNode(true);
+                substituteInTree(copy, replacements, inOneScan);
+                parent.insertBefore(copy, target);
+            }
+        }
+    }
+
+    private static boolean containsMarkup(List<Map<String, String>> renders) {
+        for (Map<String, String> replacements : renders) {
+            for (String value : replacements.values()) {
+                if (value != null && (value.indexOf('<') >= 0 || value.indexOf('&') >= 0))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the children of node serialized as xml, without indenting them
+     */
+    private static String childrenToString(Node node) throws Exception {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.setOutputProperty(OutputKeys.INDENT, "no");
+        StringWriter sw = new StringWriter();
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            transformer.transform(new DOMSource(children.item(i)), new StreamResult(sw));
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Applies string substitutions to the text, CDATA and attribute values of a node and all its
+     * descendants
+     */
+    private void substituteInTree(Node node, Map<String, String> replacements, boolean inOneScan) {
+        if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+            node.setNodeValue(substitute(node.getNodeValue(), replacements, inOneScan));
+            return;
+        }
+        // the tests of includeIf/excludeIf/restrictByRole are always evaluated exactly as written
+        NamedNodeMap attrs = node.getAttributes();
+        if (attrs != null && !isConditional(node)) {
+            for (int i = 0; i < attrs.getLength(); i++) {
+                Node attr = attrs.item(i);
+                attr.setNodeValue(substitute(attr.getNodeValue(), replacements, inOneScan));
+            }
+        }
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            substituteInTree(children.item(i), replacements, inOneScan);
+        }
+    }
+
+    /**
+     * Each key is a name in braces, so occurrences of keys in a value never overlap, and replacing
+     * them all in one scan usually gives the same result as replacing each key in turn. It can't be
+     * done when a replacement has a brace in it, and so could form or break another key.
+     */
+    private static boolean canSubstituteInOneScan(Map<String, String> replacements) {
+        for (Map.Entry<String, String> e : replacements.entrySet()) {
+            String key = e.getKey();
+            if (key.length() < 2 || key.charAt(0) != '{' || key.indexOf('{', 1) >= 0 || key.indexOf('}') != key.length() - 1)
+                return false;
+            String value = e.getValue();
+            if (value == null || value.indexOf('{') >= 0 || value.indexOf('}') >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static String substitute(String value, Map<String, String> replacements, boolean inOneScan) {
+        if (value == null)
+            return null;
+        if (!inOneScan)
+            return substituteInTurn(value, replacements);
+        if (value.indexOf('{') < 0)
+            return value;
+
+        StringBuilder sb = null;
+        int copied = 0;
+        int open = -1;
+        // whether there is an unclosed brace before the open one
+        boolean nested = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '{') {
+                nested = open >= 0;
+                open = i;
+            } else if (c == '}' && open >= 0) {
+                // a key runs from the last opening brace to the first closing brace after it
+                String replacement = replacements.get(value.substring(open, i + 1));
+                if (replacement != null) {
+                    // replacing keys in turn could join an unclosed brace and a later closing one into a new key
+                    if (nested)
+                        return substituteInTurn(value, replacements);
+                    if (sb == null)
+                        sb = new StringBuilder(value.length() + 16);
+                    sb.append(value, copied, open).append(replacement);
+                    copied = i + 1;
                 }
-            } else {
-                loadElementsForEachRepeatElement(node, idLabelPairs);
+                open = -1;
+                nested = false;
             }
         }
+        if (sb == null)
+            return value;
+        return sb.append(value, copied, value.length()).toString();
+    }
 
+    private static String substituteInTurn(String value, Map<String, String> replacements) {
+        for (Map.Entry<String, String> e : replacements.entrySet()) {
+            value = value.replace(e.getKey(), e.getValue());
+        }
+        return value;
+    }
 
+    /**
+     * Replaces the {@code <htmlform>} element of doc with the one from replacement
+     */
+    private void replaceContent(Document doc, Document replacement) {
+        Node oldContent = HtmlFormEntryUtil.findChild(doc, "htmlform");
+        Node newContent = doc.importNode(HtmlFormEntryUtil.findChild(replacement, "htmlform"), true);
+        doc.replaceChild(newContent, oldContent);
     }
 
     /**
@@ -372,16 +575,237 @@ public class HtmlFormEntryGenerator implements TagHandler {
         return valsOfSingleRepeatWithBlock;
     }
 
-    public String applyUnmatchedTags(FormEntrySession session, String xml) throws Exception {
+    /**
+     * Runs the patient-independent stages of form generation on an xml string: strips comments,
+     * applies macros, explodes repeats and parses translations. The result can be shared by any
+     * number of form entry sessions, which then only need to run {@link #applyConditionals} and
+     * {@link #applyTags} on their own copy of the document.
+     * <p/>
+     * Forms that use {@code <includeIf>}, {@code <excludeIf>} or {@code <restrictByRole>} around
+     * macros, translations or the parts of a {@code <repeat>} can't be compiled this way, since
+     * those conditions have to be evaluated before the form is preprocessed. Neither can forms that
+     * only parse once those conditions have been applied to their text.
+     *
+     * @param xml the xml string of the form
+     * @return the compiled form, or null if this form has to be processed as text
+     * @throws Exception
+     * @should compile a form with includeIf and excludeIf tests that are not valid xml
+     * @should return null if a conditional tag wraps the render tags of a repeat
+     * @should return null if the form only parses once conditionals are applied
+     */
+    public CompiledHtmlForm compile(String xml) throws Exception {
+        StageTimer timer = HtmlFormEntryMetrics.startTimer(Category.STAGE);
+        xml = stripComments(xml);
+        timer.lap("stripComments");
+        Document doc;
+        try {
+            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+                new InputSource(new StringReader(escapeConditionalTests(xml))));
+        }
+        catch (SAXException ex) {
+            // the form may only be well-formed once its includeIf/excludeIf blocks have been applied to the text
+            return null;
+        }
+        timer.lap("parse");
+        if (!canCompile(HtmlFormEntryUtil.findChild(doc, "htmlform"), false))
+            return null;
+
+        applyMacros(doc);
+        timer.lap("macros");
+        applyTemplates(doc);
+        timer.lap("templates");
+        Translator translator = new Translator();
+        applyTranslations(doc, translator);
+        timer.lap("translations");
+        return new CompiledHtmlForm(doc, translator);
+    }
+
+    /**
+     * The tests of includeIf/excludeIf/restrictByRole tags are taken verbatim from the form, and may
+     * contain characters such as {@code &&} and {@code <=} that aren't allowed in xml attributes.
+     * This escapes those characters so that the form can be parsed, and the parsed attribute value
+     * is exactly what was written.
+     *
+     * @param xml
+     * @return the xml with conditional tests escaped
+     */
+    protected static String escapeConditionalTests(String xml) {
+        Matcher matcher = CONDITIONAL_TAG_PATTERN.matcher(xml);
+        if (!matcher.find())
+            return xml;
+
+        StringBuilder sb = new StringBuilder(xml.length() + 32);
+        int copied = 0;
+        int pos = 0;
+        while (matcher.find(pos)) {
+            sb.append(xml, copied, matcher.end());
+            char quote = 0;
+            int i = matcher.end();
+            for (; i < xml.length(); i++) {
+                char c = xml.charAt(i);
+                if (quote == 0) {
+                    if (c == '>')
+                        break;
+                    if (c == '"' || c == '\'')
+                        quote = c;
+                    sb.append(c);
+                } else if (c == quote) {
+                    quote = 0;
+                    sb.append(c);
+                } else if (c == '&') {
+                    sb.append("&amp;");
+                } else if (c == '<') {
+                    sb.append("&lt;");
+                } else {
+                    sb.append(c);
+                }
+            }
+            copied = i;
+            pos = i;
+        }
+        sb.append(xml, copied, xml.length());
+        return sb.toString();
+    }
+
+    /**
+     * A form can be compiled unless a conditional tag surrounds a macros or translations section, or
+     * sits directly inside one of those sections or inside a template-style repeat (i.e. around its
+     * template or render tags)
+     */
+    private boolean canCompile(Node node, boolean insideConditional) {
+        if (node == null)
+            return true;
+        NodeList list = node.getChildNodes();
+        for (int i = 0; i < list.getLength(); i++) {
+            Node n = list.item(i);
+            String name = n.getNodeName();
+            if (insideConditional && ("macros".equals(name) || "translations".equals(name)))
+                return false;
+            if (isConditional(n)) {
+                String parentName = node.getNodeName();
+                if (PREPROCESSED_TAGS.contains(parentName)
+                        || ("repeat".equals(parentName) && node.getAttributes().getNamedItem("with") == null))
+                    return false;
+            }
+            if (!canCompile(n, insideConditional || isConditional(n)))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isConditional(Node node) {
+        return CONDITIONAL_TAGS.contains(node.getNodeName());
+    }
+
+    /**
+     * Evaluates the {@code <includeIf>}, {@code <excludeIf>} and {@code <restrictByRole>} tags of a
+     * parsed form, in place. The contents of a tag whose test passes are kept, and the tag itself is
+     * removed; otherwise the tag is removed along with its contents.
+     *
+     * @param session the current form entry session
+     * @param doc the parsed form document (with conditional tests escaped, see {@link #compile(String)})
+     * @throws BadFormDesignException
+     * @should keep the contents of includeIf tags whose test passes
+     * @should remove excludeIf tags whose test passes
+     */
+    public void applyConditionals(FormEntrySession session, Document doc) throws BadFormDesignException {
+        applyConditionalsHelper(session, HtmlFormEntryUtil.findChild(doc, "htmlform"));
+    }
+
+    private void applyConditionalsHelper(FormEntrySession session, Node node) throws BadFormDesignException {
+        if (node == null)
+            return;
+        Node child = node.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (isConditional(child)) {
+                if (evaluateConditional(session, child)) {
+                    applyConditionalsHelper(session, child);
+                    while (child.getFirstChild() != null) {
+                        node.insertBefore(child.getFirstChild(), child);
+                    }
+                }
+                node.removeChild(child);
+            } else {
+                applyConditionalsHelper(session, child);
+            }
+            child = next;
+        }
+    }
+
+    /**
+     * @return whether the contents of a conditional tag should be kept
+     */
+    private boolean evaluateConditional(FormEntrySession session, Node node) throws BadFormDesignException {
+        String name = node.getNodeName();
+        if ("restrictByRole".equals(name)) {
+            return processRoleRestrictionLogic(getTestAttribute(node, "include", "exclude"));
+        }
+        boolean result = processIncludeLogic(session, getTestAttribute(node, "logicTest", "velocityTest"));
+        return "includeIf".equals(name) ? result : !result;
+    }
+
+    /**
+     * Rebuilds the first of the given attributes that a conditional tag has, in the form that the
+     * text-based processIncludeLogic and processRoleRestrictionLogic methods expect
+     */
+    private String getTestAttribute(Node node, String... attributeNames) {
+        for (String attributeName : attributeNames) {
+            String value = HtmlFormEntryUtil.getNodeAttribute(node, attributeName, null);
+            if (value != null)
+                return attributeName + "=\"" + value + "\"";
+        }
+        return "";
+    }
+
+    /**
+     * Renders the obs groups that couldn't be matched to existing obs groups the first time around
+     * (see {@link FormEntryContext#getUnmatchedObsGroupEntities()}), and puts each in place of the
+     * placeholder it printed, in a single pass over the html.
+     *
+     * @param session the current form entry session context, in unmatched mode
+     * @param output the writer the form's html was printed to by
+     *            {@link #applyTagsToWriter(FormEntrySession, Document)}
+     * @return the html with the unmatched obs groups filled in
+     * @throws Exception
+     */
+    public String applyUnmatchedTags(FormEntrySession session, TagOutputWriter output) throws Exception {
         List<ObsGroupEntity> obsGroupEntities = session.getContext().getUnmatchedObsGroupEntities();
 
+        // the placeholder of each entity has the entity's index as its id
+        List<String> contents = new ArrayList<String>(obsGroupEntities.size());
         for (ObsGroupEntity obsGroupEntity : obsGroupEntities) {
-            StringWriter out = new StringWriter();
-            applyTagsHelper(session, new PrintWriter(out), null, obsGroupEntity.getNode(), null);
-            xml = xml.replaceAll("<unmatched id=\"" + obsGroupEntity.getId() + "\" />", out.toString());
+            TagOutputWriter out = new TagOutputWriter();
+            applyTagsHelper(session, out, null, obsGroupEntity.getNode(), null);
+            contents.add(out.toString());
         }
 
-        return xml;
+        return output.replacePlaceholders(contents);
+    }
+
+    /**
+     * Like {@link #applyUnmatchedTags(FormEntrySession, TagOutputWriter)}, for html that has already
+     * been turned into a string, which has to be searched for the placeholders
+     *
+     * @param session the current form entry session context, in unmatched mode
+     * @param xml the form's html, as printed by {@link #applyTags(FormEntrySession, Document)}
+     * @return the html with the unmatched obs groups filled in
+     * @throws Exception
+     * @deprecated use {@link #applyUnmatchedTags(FormEntrySession, TagOutputWriter)} with the writer
+     *             from {@link #applyTagsToWriter(FormEntrySession, Document)}
+     */
+    @Deprecated
+    public String applyUnmatchedTags(FormEntrySession session, String xml) throws Exception {
+        TagOutputWriter output = new TagOutputWriter();
+        Matcher matcher = UNMATCHED_PLACEHOLDER_PATTERN.matcher(xml);
+        int copied = 0;
+        while (matcher.find()) {
+            output.write(xml, copied, matcher.start() - copied);
+            output.printPlaceholder(Integer.parseInt(matcher.group(1)), matcher.group());
+            copied = matcher.end();
+        }
+        output.write(xml, copied, xml.length() - copied);
+        return applyUnmatchedTags(session, output);
     }
 
     /**
@@ -396,11 +820,38 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * @throws Exception
      */
     public String applyTags(FormEntrySession session, String xml) throws Exception {
-        Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+        return applyTags(session, HtmlFormEntryUtil.stringToDocument(xml));
+    }
+
+    /**
+     * Applies all the HTML Form Entry tags in a parsed form document. This is the final stage of
+     * form generation, and is the only place the processed form is serialized.
+     *
+     * @param session the current form entry session context
+     * @param doc     the parsed form document
+     * @return the html after tag processing
+     * @throws Exception
+     * @see #applyTags(FormEntrySession, String)
+     */
+    public String applyTags(FormEntrySession session, Document doc) throws Exception {
+        return applyTagsToWriter(session, doc).toString();
+    }
+
+    /**
+     * Like {@link #applyTags(FormEntrySession, Document)}, but returns the writer the html was printed
+     * to, which knows where the placeholders of unmatched obs groups are (see
+     * {@link #applyUnmatchedTags(FormEntrySession, TagOutputWriter)})
+     *
+     * @param session the current form entry session context
+     * @param doc     the parsed form document
+     * @return the writer holding the html after tag processing
+     * @throws Exception
+     */
+    public TagOutputWriter applyTagsToWriter(FormEntrySession session, Document doc) throws Exception {
         Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
-        StringWriter out = new StringWriter();
-        applyTagsHelper(session, new PrintWriter(out), null, content, null);
-        return out.toString();
+        TagOutputWriter out = new TagOutputWriter();
+        applyTagsHelper(session, out, null, content, null);
+        return out;
     }
 
     private void applyTagsHelper(FormEntrySession session, PrintWriter out, Node parent, Node node,
@@ -426,7 +877,9 @@ public class HtmlFormEntryGenerator implements TagHandler {
             handler = this; // do default actions
 
         try {
+            long started = System.nanoTime();
             boolean handleContents = handler.doStartTag(session, out, parent, node);
+            long inStartTag = System.nanoTime() - started;
 
             // Unless the handler told us to skip them, then iterate over any children
             if (handleContents) {
@@ -448,7 +901,11 @@ public class HtmlFormEntryGenerator implements TagHandler {
                 }
             }
 
+            started = System.nanoTime();
             handler.doEndTag(session, out, parent, node);
+            if (handler != this)
+                HtmlFormEntryMetrics.getMetrics().record(Category.TAG, node.getNodeName(),
+                        inStartTag + System.nanoTime() - started);
         } catch (BadFormDesignException e) {
             out.print("<div class=\"error\">" + handler + " reported an error in the design of the form. Consult your administrator.<br/><pre>");
             e.printStackTrace(out);
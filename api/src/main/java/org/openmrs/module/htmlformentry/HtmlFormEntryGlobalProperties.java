@@ -23,6 +23,33 @@ public class HtmlFormEntryGlobalProperties {
 	}
 	
 
+	/**
+	 * @return whether or not to keep timings of form rendering and submission (see HtmlFormEntryMetrics)
+	 */
+	public static final Boolean METRICS_ENABLED () {
+		String propertyValue = Context.getAdministrationService().getGlobalProperty("htmlformentry.metricsEnabled");
+		return "true".equalsIgnoreCase(propertyValue);
+	}
+	
+
+	/**
+	 * @return the number of threads that a parallel html form export uses (see ParallelHtmlFormExport),
+	 * or null if the property is not set to a positive number
+	 */
+	public static final Integer EXPORT_WORKERS () {
+		return getPositiveInteger("htmlformentry.export.workers");
+	}
+	
+
+	/**
+	 * @return the number of encounters in each chunk of a parallel html form export, or null if the
+	 * property is not set to a positive number
+	 */
+	public static final Integer EXPORT_CHUNK_SIZE () {
+		return getPositiveInteger("htmlformentry.export.chunkSize");
+	}
+	
+
 	/**
 	 * @return whether or not the html form flowsheet module has been started 
 	 */
@@ -35,4 +62,15 @@ public class HtmlFormEntryGlobalProperties {
 			return false;
 		}
 	} 	
+
+	private static Integer getPositiveInteger(String property) {
+		String propertyValue = Context.getAdministrationService().getGlobalProperty(property);
+		try {
+			Integer value = Integer.valueOf(propertyValue.trim());
+			return value > 0 ? value : null;
+		}
+		catch (Exception ex) {
+			return null;
+		}
+	}
 }
@@ -1,13 +1,20 @@
 package org.openmrs.module.htmlformentry;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import org.openmrs.Encounter;
 import org.openmrs.Form;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.Person;
+import org.openmrs.Program;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.htmlformentry.bulk.BulkSubmissionError;
+import org.openmrs.module.htmlformentry.bulk.HtmlFormBulkSubmitter;
+import org.openmrs.module.htmlformentry.cohort.IdSet;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
 import org.springframework.transaction.annotation.Transactional;
@@ -62,6 +69,22 @@ public interface HtmlFormEntryService extends OpenmrsService {
     @Transactional
     public void purgeHtmlForm(HtmlForm form);
     
+    /**
+     * Returns the patient-independent processing of the given form's xml (see
+     * {@link HtmlFormEntryGenerator#compile(String)}). Saved forms are served from a bounded cache
+     * keyed by the form's id and dateChanged, which is invalidated when the form is saved or purged.
+     * 
+     * @param form the HTML Form to compile
+     * @return the compiled form, or null if the form has to be processed as text
+     */
+    @Transactional(readOnly=true)
+    public CompiledHtmlForm getCompiledHtmlForm(HtmlForm form);
+    
+    /**
+     * @return the size, maximum size, and hit, miss and eviction counts of the compiled form cache
+     */
+    public Map<String, Long> getCompiledHtmlFormCacheStatistics();
+    
     /**
      * Add a tag name and handler to the Service
      * 
@@ -134,6 +157,39 @@ public interface HtmlFormEntryService extends OpenmrsService {
 	 */
     public OpenmrsObject getItemByName(Class<? extends OpenmrsMetadata> type, String name);
     
+    /**
+     * Like {@link #getItemByUuid(Class, String)} for several uuids at once, with a query for each
+     * few hundred of them
+     * 
+     * @param type
+     * @param uuids
+     * @return the objects found, by the uuid they were asked for with
+     */
+    @Transactional(readOnly=true)
+    public Map<String, OpenmrsObject> getItemsByUuid(Class<? extends OpenmrsObject> type, Collection<String> uuids);
+    
+    /**
+     * Like {@link #getItemById(Class, Integer)} for several ids at once, with a query for each few
+     * hundred of them
+     * 
+     * @param type
+     * @param ids
+     * @return the objects found, by id
+     */
+    @Transactional(readOnly=true)
+    public Map<Integer, OpenmrsObject> getItemsById(Class<? extends OpenmrsObject> type, Collection<Integer> ids);
+    
+    /**
+     * Like {@link #getItemByName(Class, String)} for several names at once, with a query for each
+     * few hundred of them. As there, a name that more than one object has isn't found.
+     * 
+     * @param type
+     * @param names
+     * @return the objects found, by the name they were asked for with
+     */
+    @Transactional(readOnly=true)
+    public Map<String, OpenmrsObject> getItemsByName(Class<? extends OpenmrsMetadata> type, Collection<String> names);
+    
     /**
 	 * 
 	 * Returns a list of Person ids of people having a given attribute type (passed in using the person_attribute_id).
@@ -147,6 +203,29 @@ public interface HtmlFormEntryService extends OpenmrsService {
 	@Transactional(readOnly=true)
 	public List<Integer> getPersonIdsHavingAttributes(String attribute, String attributeValue);
 	
+	/**
+	 * Like {@link #getPersonIdsHavingAttributes(String, String)}, but streams the ids into a compact set
+	 * rather than returning a list of them, so that the people matching several attributes and
+	 * programs can be found with {@link IdSet#and(IdSet)}.
+	 * 
+	 * @param attribute the name of the person_attribute
+	 * @param attributeValue optional value to match against the person attribute
+	 * @return the ids of the people having the attribute
+	 */
+	@Transactional(readOnly=true)
+	public IdSet getPersonIdSetHavingAttribute(String attribute, String attributeValue);
+	
+	/**
+	 * Returns the ids of the patients who have ever been enrolled in a program, the same patients as
+	 * {@link org.openmrs.api.PatientSetService#getPatientsInProgram(Program, java.util.Date, java.util.Date)}
+	 * with no dates, streamed into a compact set rather than loaded as a cohort.
+	 * 
+	 * @param program
+	 * @return the ids of the patients in the program
+	 */
+	@Transactional(readOnly=true)
+	public IdSet getPatientIdSetInProgram(Program program);
+	
 	/**
 	 * 
 	 * Returns a list of Person stubs for people matching the attributes and programs parameters passed in.
@@ -160,5 +239,94 @@ public interface HtmlFormEntryService extends OpenmrsService {
 	 * @param personsToExclude optional list of persons to exclude from the results list
 	 * @return a List<Integer>
 	 */
+	@Transactional(readOnly=true)
 	public List<PersonStub> getPeopleAsPersonStubs(List<String> attributeIds, List<String> attributeValues, List<String> programIds, List<Person> personsToExclude);
+	
+	/**
+	 * Like {@link #getPeopleAsPersonStubs(List, List, List, List)}, but one page at a time. The stubs are
+	 * sorted by family name, given name and middle name, and are fetched with a single query rather
+	 * than by loading each person.
+	 * 
+	 * @param attributeIds the optional list of Person_attribute_id for the given person attribute
+	 * @param attributeValues the list of optional values to match against the person attribute
+	 * @param programIds the optional list of programIds 
+	 * @param personsToExclude optional list of persons to exclude from the results list
+	 * @param firstResult optional index of the first stub to return
+	 * @param maxResults optional maximum number of stubs to return
+	 * @return a List<PersonStub>
+	 */
+	@Transactional(readOnly=true)
+	public List<PersonStub> getPeopleAsPersonStubs(List<String> attributeIds, List<String> attributeValues, List<String> programIds, List<Person> personsToExclude, Integer firstResult, Integer maxResults);
+	
+	/**
+	 * Returns the non-voided encounters entered with the given form, ordered by encounter id, one
+	 * page at a time. Pass the id of the last encounter of the previous page as afterEncounterId to
+	 * get the next page.
+	 * 
+	 * @param form
+	 * @param fromDate optional earliest encounter date
+	 * @param toDate optional latest encounter date
+	 * @param afterEncounterId only encounters with a greater id are returned, if not null
+	 * @param maxResults the page size
+	 * @return a List<Encounter>
+	 */
+	@Transactional(readOnly=true)
+	public List<Encounter> getEncountersForForm(Form form, Date fromDate, Date toDate, Integer afterEncounterId, int maxResults);
+	
+	/**
+	 * Like {@link #getEncountersForForm(Form, Date, Date, Integer, int)} but only returns the ids of
+	 * the encounters, which is much cheaper when splitting up an export
+	 * 
+	 * @param form
+	 * @param fromDate optional earliest encounter date
+	 * @param toDate optional latest encounter date
+	 * @param afterEncounterId only encounter ids greater than this are returned, if not null
+	 * @param maxResults the page size
+	 * @return a List<Integer> of encounter ids, in ascending order
+	 */
+	@Transactional(readOnly=true)
+	public List<Integer> getEncounterIdsForForm(Form form, Date fromDate, Date toDate, Integer afterEncounterId, int maxResults);
+	
+	/**
+	 * Checks whether a patient already has a (non-voided) encounter at exactly the given time from
+	 * the form that an html form belongs to, without loading the patient's encounters
+	 * 
+	 * @param patientId
+	 * @param htmlFormId
+	 * @param encounterDatetime
+	 * @return true if there is such an encounter, false if not or if there is no such html form
+	 * @should return true if the patient has an encounter of the form at the given datetime
+	 * @should return false if the encounter is at a different datetime
+	 */
+	@Transactional(readOnly=true)
+	public boolean hasEncounterForHtmlForm(Integer patientId, Integer htmlFormId, Date encounterDatetime);
+	
+	/**
+	 * Saves everything that a submitted form entry session creates, edits and voids, in a single
+	 * transaction, and flushes the hibernate session once at the end. Program enrollments of the
+	 * patients involved are fetched once up front, so that nothing is flushed part way through.
+	 * This is called by {@link FormEntrySession#applyActions()} once the submission has been checked
+	 * and prepared; use that instead.
+	 * 
+	 * @param session a session that has handled a submission
+	 */
+	@Transactional
+	public void applyActions(FormEntrySession session);
+	
+	/**
+	 * Submits the given form once for each row, in a single transaction, without rendering it in a
+	 * browser. Each row holds the submitted value of each field, keyed by the field names that the
+	 * {@link FormEntryContext} assigns (e.g. "w3"), plus the id of the patient under
+	 * {@link HtmlFormBulkSubmitter#PATIENT_ID} unless the form creates the patient. Rows that fail
+	 * validation are reported and skipped; an error while saving a row rolls back the whole batch.
+	 * The hibernate session is flushed and cleared afterwards. Use {@link HtmlFormBulkSubmitter} to
+	 * submit any number of rows in batches.
+	 * 
+	 * @param form
+	 * @param rows
+	 * @param firstRowNumber the number to report errors in the first row against
+	 * @return the errors of the rows that were not submitted, at most one per row
+	 */
+	@Transactional
+	public List<BulkSubmissionError> submitInBulk(HtmlForm form, List<Map<String, String>> rows, int firstRowNumber);
 }
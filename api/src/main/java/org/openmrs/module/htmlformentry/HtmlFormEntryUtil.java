@@ -2,22 +2,14 @@ package org.openmrs.module.htmlformentry;
 
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.parsers.DocumentBuilder;
@@ -55,11 +47,9 @@ import org.openmrs.ProgramWorkflow;
 import org.openmrs.ProgramWorkflowState;
 import org.openmrs.User;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
-import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
-import org.openmrs.module.htmlformentry.action.ObsGroupAction;
-import org.openmrs.module.htmlformentry.element.DrugOrderSubmissionElement;
-import org.openmrs.module.htmlformentry.element.ObsSubmissionElement;
+import org.openmrs.module.htmlformentry.cache.MetadataResolutionCache;
+import org.openmrs.module.htmlformentry.cache.MetadataResolutionCache.Resolution;
+import org.openmrs.module.htmlformentry.matching.HtmlFormEncounterMatcher;
 import org.openmrs.obs.ComplexData;
 import org.openmrs.propertyeditor.ConceptEditor;
 import org.openmrs.propertyeditor.EncounterTypeEditor;
@@ -408,6 +398,21 @@ public class HtmlFormEntryUtil {
 	 * @should find a concept by its mapping with a space in between
 	 */
 	public static Concept getConcept(String id) {
+		Resolution cached = MetadataResolutionCache.getInstance().get(Concept.class, id);
+		if (cached != null) {
+			if (cached.getId() == null)
+				return null;
+			Concept ret = Context.getConceptService().getConcept(cached.getId());
+			if (ret != null)
+				return ret;
+		}
+		Concept ret = lookupConcept(id);
+		MetadataResolutionCache.getInstance().put(Concept.class, id, ret == null ? null : ret.getId(),
+		    ret == null ? null : ret.getConceptId());
+		return ret;
+	}
+	
+	private static Concept lookupConcept(String id) {
 		Concept cpt = null;
 		
 		if (id != null) {
@@ -484,6 +489,24 @@ public class HtmlFormEntryUtil {
 	 * @should return null otherwise
 	 */
 	public static Location getLocation(String id) {
+		// these depend on the current properties, so are resolved each time
+		if (id != null && (id.startsWith("GlobalProperty:") || id.startsWith("UserProperty:")))
+			return lookupLocation(id);
+		
+		Resolution cached = MetadataResolutionCache.getInstance().get(Location.class, id);
+		if (cached != null) {
+			if (cached.getId() == null)
+				return null;
+			Location ret = Context.getLocationService().getLocation(cached.getId());
+			if (ret != null)
+				return ret;
+		}
+		Location ret = lookupLocation(id);
+		MetadataResolutionCache.getInstance().put(Location.class, id, ret == null ? null : ret.getId());
+		return ret;
+	}
+	
+	private static Location lookupLocation(String id) {
 		
 		Location location = null;
 		
@@ -570,6 +593,20 @@ public class HtmlFormEntryUtil {
 	 * @should return null otherwise
 	 */
 	public static Program getProgram(String id) {
+		Resolution cached = MetadataResolutionCache.getInstance().get(Program.class, id);
+		if (cached != null) {
+			if (cached.getId() == null)
+				return null;
+			Program ret = Context.getProgramWorkflowService().getProgram(cached.getId());
+			if (ret != null)
+				return ret;
+		}
+		Program ret = lookupProgram(id);
+		MetadataResolutionCache.getInstance().put(Program.class, id, ret == null ? null : ret.getId());
+		return ret;
+	}
+	
+	private static Program lookupProgram(String id) {
 		
 		Program program = null;
 		
@@ -685,6 +722,20 @@ public class HtmlFormEntryUtil {
 	 * @should return null otherwise
 	 */
 	public static PatientIdentifierType getPatientIdentifierType(String id) {
+		Resolution cached = MetadataResolutionCache.getInstance().get(PatientIdentifierType.class, id);
+		if (cached != null) {
+			if (cached.getId() == null)
+				return null;
+			PatientIdentifierType ret = Context.getPatientService().getPatientIdentifierType(cached.getId());
+			if (ret != null)
+				return ret;
+		}
+		PatientIdentifierType ret = lookupPatientIdentifierType(id);
+		MetadataResolutionCache.getInstance().put(PatientIdentifierType.class, id, ret == null ? null : ret.getId());
+		return ret;
+	}
+	
+	private static PatientIdentifierType lookupPatientIdentifierType(String id) {
 		PatientIdentifierType identifierType = null;
 		
 		if (id != null) {
@@ -724,6 +775,23 @@ public class HtmlFormEntryUtil {
 	 */
 	@SuppressWarnings("deprecation")
 	public static ProgramWorkflow getWorkflow(String identifier) {
+		Resolution cached = MetadataResolutionCache.getInstance().get(ProgramWorkflow.class, identifier);
+		if (cached != null) {
+			if (cached.getId() == null)
+				return null;
+			ProgramWorkflow ret = Context.getProgramWorkflowService().getWorkflow(cached.getId());
+			if (ret != null)
+				return ret;
+		}
+		ProgramWorkflow ret = lookupWorkflow(identifier);
+		// a workflow may have been found by a mapping of its concept
+		MetadataResolutionCache.getInstance().put(ProgramWorkflow.class, identifier, ret == null ? null : ret.getId(),
+		    ret == null || ret.getConcept() == null ? null : ret.getConcept().getConceptId());
+		return ret;
+	}
+	
+	@SuppressWarnings("deprecation")
+	private static ProgramWorkflow lookupWorkflow(String identifier) {
 		ProgramWorkflow workflow = null;
 		
 		if (identifier != null) {
@@ -866,6 +934,22 @@ public class HtmlFormEntryUtil {
 	 */
 	@SuppressWarnings("deprecation")
 	public static ProgramWorkflowState getState(String identifier) {
+		Resolution cached = MetadataResolutionCache.getInstance().get(ProgramWorkflowState.class, identifier);
+		if (cached != null) {
+			if (cached.getId() == null)
+				return null;
+			ProgramWorkflowState ret = Context.getProgramWorkflowService().getState(cached.getId());
+			if (ret != null)
+				return ret;
+		}
+		ProgramWorkflowState ret = lookupState(identifier);
+		MetadataResolutionCache.getInstance().put(ProgramWorkflowState.class, identifier, ret == null ? null : ret.getId(),
+		    ret == null || ret.getConcept() == null ? null : ret.getConcept().getConceptId());
+		return ret;
+	}
+	
+	@SuppressWarnings("deprecation")
+	private static ProgramWorkflowState lookupState(String identifier) {
 		ProgramWorkflowState state = null;
 		
 		if (identifier != null) {
@@ -938,80 +1022,59 @@ public class HtmlFormEntryUtil {
 		}
 	}
 	
+	/**
+	 * Works out the elements a form has for an existing encounter, with its includeIf/excludeIf tests
+	 * evaluated for that encounter and its patient, as they are in a VIEW-mode FormEntrySession for it,
+	 * but without matching or rendering the encounter's data
+	 * 
+	 * @param e
+	 * @param htmlform
+	 * @return a matcher for the form's elements for the encounter
+	 */
+	public static HtmlFormEncounterMatcher getEncounterMatcher(Encounter e, HtmlForm htmlform) throws Exception {
+		return new HtmlFormEncounterMatcher(new FormEntrySession(e, htmlform));
+	}
+	
 	/**
 	 * Utility method that sets all matched obs and orders to voided, and voids encounter if all obs
 	 * and orders in encounter are voided. Does not call save, just updates the voided fields on all
-	 * objects in encounter Uses a 'dummy' FormEntrySession to use htmlformentry schema matching
-	 * mechanism, and then examines the leftover Obs, Orders from the FormEntrySession constructor
+	 * objects in encounter. The form's elements are worked out once, without the encounter's data but
+	 * with $encounter available to includeIf/excludeIf tests, and an {@link HtmlFormEncounterMatcher}
+	 * works out which obs and orders a VIEW-mode FormEntrySession for the encounter would match, so
+	 * the encounter is neither copied nor rendered.
 	 * 
-	 * @param session
+	 * @param e
+	 * @param htmlform
+	 * @param voidReason
 	 */
 	public static void voidEncounterByHtmlFormSchema(Encounter e, HtmlForm htmlform, String voidReason) throws Exception {
 		if (e != null && htmlform != null) {
 			if (voidReason == null)
 				voidReason = "htmlformentry";
 			boolean shouldVoidEncounter = true;
-			Map<Obs, Obs> replacementObs = new HashMap<Obs, Obs>();//new, then source
-			Map<Order, Order> replacementOrders = new HashMap<Order, Order>();//new, then source
-			Encounter eTmp = returnEncounterCopy(e, replacementObs, replacementOrders);
-			FormEntrySession session = new FormEntrySession(eTmp.getPatient(), eTmp, Mode.VIEW, htmlform);
-			List<FormSubmissionControllerAction> actions = session.getSubmissionController().getActions();
-			Set<Obs> matchedObs = new HashSet<Obs>();
-			Set<Order> matchedOrders = new HashSet<Order>();
-			for (FormSubmissionControllerAction lfca : actions) {
-				if (lfca instanceof ObsSubmissionElement) {
-					ObsSubmissionElement ose = (ObsSubmissionElement) lfca;
-					if (ose.getExistingObs() != null) {
-						matchedObs.add(ose.getExistingObs());
-					}
-				}
-				if (lfca instanceof ObsGroupAction) {
-					ObsGroupAction oga = (ObsGroupAction) lfca;
-					if (oga.getExistingGroup() != null) {
-						matchedObs.add(oga.getExistingGroup());
-					}
-				}
-				if (lfca instanceof DrugOrderSubmissionElement) {
-					DrugOrderSubmissionElement dse = (DrugOrderSubmissionElement) lfca;
-					if (dse.getExistingOrder() != null) {
-						matchedOrders.add(dse.getExistingOrder());
-					}
-				}
-			}
+			HtmlFormEncounterMatcher.Match match = getEncounterMatcher(e, htmlform).match(e);
 			
 			for (Obs o : e.getAllObs(false)) { //ignore voided obs
-				boolean matched = false;
-				for (Obs oMatched : matchedObs) {
-					if (replacementObs.get(oMatched) != null && replacementObs.get(oMatched).equals(o)) {
-						o.setVoided(true);
-						o.setVoidedBy(Context.getAuthenticatedUser());
-						o.setVoidReason(voidReason);
-						o.setDateVoided(new Date());
-						matched = true;
-						break;
-					}
-				}
-				if (!matched)
+				if (match.getMatchedObs().contains(o)) {
+					o.setVoided(true);
+					o.setVoidedBy(Context.getAuthenticatedUser());
+					o.setVoidReason(voidReason);
+					o.setDateVoided(new Date());
+				} else {
 					shouldVoidEncounter = false;
+				}
 			}
 			
 			for (Order o : e.getOrders()) {
 				if (!o.isVoided()) { //ignore voided orders
-					boolean matched = false;
-					for (Order oMatched : matchedOrders) {
-						//Order.equals only checks Id value
-						if (replacementOrders.get(oMatched) != null && replacementOrders.get(oMatched).equals(o)
-						        && !o.isVoided()) {
-							o.setVoided(true);
-							o.setVoidedBy(Context.getAuthenticatedUser());
-							o.setVoidReason(voidReason);
-							o.setDateVoided(new Date());
-							matched = true;
-							break;
-						}
-					}
-					if (!matched)
+					if (match.getMatchedOrders().contains(o)) {
+						o.setVoided(true);
+						o.setVoidedBy(Context.getAuthenticatedUser());
+						o.setVoidReason(voidReason);
+						o.setDateVoided(new Date());
+					} else {
 						shouldVoidEncounter = false;
+					}
 				}
 			}
 			
@@ -1021,193 +1084,6 @@ public class HtmlFormEntryUtil {
 				e.setVoidReason(voidReason);
 				e.setDateVoided(new Date());
 			}
-			eTmp = null;
-		}
-	}
-	
-	/**
-	 * Method that returns a copy of an Encounter. Includes copies of all Obs tree structures and
-	 * Orders.
-	 * 
-	 * @param source
-	 * @param replacementObs
-	 * @param replacementOrders
-	 * @return
-	 * @throws Exception
-	 */
-	private static Encounter returnEncounterCopy(Encounter source, Map<Obs, Obs> replacementObs,
-	                                             Map<Order, Order> replacementOrders) throws Exception {
-		if (source != null) {
-			Encounter encNew = (Encounter) returnCopy(source);
-			
-			//note: we can do this because we're not going to manipulate anything about these obs or orders, and this copy won't be persisted...
-			
-			Set<Obs> newObs = new HashSet<Obs>();
-			for (Obs o : source.getAllObs(true)) {
-				Obs oNew = returnObsCopy(o, replacementObs);
-				newObs.add(oNew);
-			}
-			encNew.setObs(newObs);
-			
-			Set<Order> newOrders = new HashSet<Order>();
-			for (Order o : source.getOrders()) {
-				Order oNew = (Order) returnOrderCopy(o, replacementOrders);
-				newOrders.add(oNew);
-			}
-			encNew.setOrders(newOrders);
-			return encNew;
-		}
-		return null;
-	}
-	
-	/**
-	 * Returns a copy of an Obs. Recurses through GroupMembers to return copies of those also, so
-	 * the whole Obs tree is a copy.
-	 * 
-	 * @param obsToCopy
-	 * @param replacements
-	 * @return
-	 * @throws Exception
-	 */
-	private static Obs returnObsCopy(Obs obsToCopy, Map<Obs, Obs> replacements) throws Exception {
-		Obs newObs = (Obs) returnCopy(obsToCopy);
-		
-		if (obsToCopy.isObsGrouping()) {
-			newObs.setGroupMembers(null);
-			for (Obs oinner : obsToCopy.getGroupMembers()) {
-				Obs oinnerNew = returnObsCopy(oinner, replacements);
-				newObs.addGroupMember(oinnerNew);
-			}
-		}
-		
-		replacements.put(newObs, obsToCopy);
-		return newObs;
-	}
-	
-	/**
-	 * Utility to return a copy of an Order. Uses reflection so that this code will support any
-	 * subclassing of Order, such as DrugOrder
-	 * 
-	 * @param source
-	 * @param replacementOrders
-	 * @return A copy of an Order
-	 * @throws Exception
-	 */
-	private static Object returnOrderCopy(Order source, Map<Order, Order> replacementOrders) throws Exception {
-		Object ret = returnCopy(source);
-		replacementOrders.put((Order) ret, (Order) source);
-		return ret;
-	}
-	
-	/**
-	 * Utility to return a copy of an Object. Copies all properties that are referencese by getters
-	 * and setters and *are not* collection
-	 * 
-	 * @param source
-	 * @param replacements
-	 * @return A copy of an object
-	 * @throws Exception
-	 */
-	private static Object returnCopy(Object source) throws Exception {
-		Class<? extends Object> clazz = source.getClass();
-		Object ret = clazz.newInstance();
-		Set<String> fieldNames = new HashSet<String>();
-		List<Field> fields = new ArrayList<Field>();
-		addSuperclassFields(fields, clazz);
-		for (Field f : fields) {
-			fieldNames.add(f.getName());
-		}
-		for (String root : fieldNames) {
-			for (Method getter : clazz.getMethods()) {
-				if (getter.getName().toUpperCase().equals("GET" + root.toUpperCase())
-				        && getter.getParameterTypes().length == 0) {
-					Method setter = getSetter(clazz, getter, "SET" + root.toUpperCase());
-					//NOTE: Collection properties are not copied
-					if (setter != null && methodsSupportSameArgs(getter, setter)
-					        && !(getter.getReturnType().isInstance(Collection.class))) {
-						Object o = getter.invoke(source, Collections.EMPTY_LIST.toArray());
-						if (o != null) {
-							setter.invoke(ret, o);
-						}
-					}
-				}
-			}
-		}
-		return ret;
-	}
-	
-	/**
-	 * The Encounter.setProvider() contains the different overloaded methods and this filters the
-	 * correct setter from those
-	 * 
-	 * @param clazz
-	 * @param getter
-	 * @param methodname
-	 * @return
-	 */
-	private static Method getSetter(Class<? extends Object> clazz, Method getter, String methodname) {
-		
-		List<Method> setterMethods = getMethodCaseInsensitive(clazz, methodname);
-		if (setterMethods != null && !setterMethods.isEmpty()) {
-			if (setterMethods.size() == 1) {
-				return setterMethods.get(0);
-			} else if (setterMethods.size() > 1) {
-				for (Method m : setterMethods) {
-					Class<?>[] parameters = m.getParameterTypes();
-					for (Class<?> parameter : parameters) {
-						if (getter.getReturnType().equals(parameter)) {
-							return m;
-						}
-					}
-				}
-			}
-		}
-		return null;
-	}
-	
-	/**
-	 * Performs a case insensitive search on a class for a method by name.
-	 * 
-	 * @param clazz
-	 * @param methodName
-	 * @return the found Method
-	 */
-	private static List<Method> getMethodCaseInsensitive(Class<? extends Object> clazz, String methodName) {
-		
-		List<Method> methodList = new ArrayList<Method>();
-		for (Method m : clazz.getMethods()) {
-			if (m.getName().toUpperCase().equals(methodName.toUpperCase())) {
-				methodList.add(m);
-				
-			}
-		}
-		return methodList;
-	}
-	
-	/**
-	 * compares getter return types to setter parameter types
-	 * 
-	 * @param getter
-	 * @param setter
-	 * @return true if getter return types are the same as setter parameter types. Else false.
-	 */
-	private static boolean methodsSupportSameArgs(Method getter, Method setter) {
-		if (getter != null && setter != null && setter.getParameterTypes() != null && setter.getParameterTypes().length == 1
-		        && getter.getReturnType() != null && getter.getReturnType().equals(setter.getParameterTypes()[0]))
-			return true;
-		return false;
-	}
-	
-	/**
-	 * recurses through all superclasses of a class and adds the fields from that superclass
-	 * 
-	 * @param fields
-	 * @param clazz
-	 */
-	private static void addSuperclassFields(List<Field> fields, Class<? extends Object> clazz) {
-		fields.addAll(Arrays.asList(clazz.getDeclaredFields()));
-		if (clazz.getSuperclass() != null) {
-			addSuperclassFields(fields, clazz.getSuperclass());
 		}
 	}
 	
@@ -1411,6 +1287,20 @@ public class HtmlFormEntryUtil {
 	 * @should return null otherwise
 	 */
 	public static EncounterType getEncounterType(String id) {
+		Resolution cached = MetadataResolutionCache.getInstance().get(EncounterType.class, id);
+		if (cached != null) {
+			if (cached.getId() == null)
+				return null;
+			EncounterType ret = Context.getEncounterService().getEncounterType(cached.getId());
+			if (ret != null)
+				return ret;
+		}
+		EncounterType ret = lookupEncounterType(id);
+		MetadataResolutionCache.getInstance().put(EncounterType.class, id, ret == null ? null : ret.getId());
+		return ret;
+	}
+	
+	private static EncounterType lookupEncounterType(String id) {
 		
 		EncounterType encounterType = null;
 		
@@ -1,6 +1,9 @@
 package org.openmrs.module.htmlformentry;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -29,8 +32,10 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.handler.AttributeDescriptor;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
 import org.openmrs.module.htmlformentry.substitution.HtmlFormSubstitutionUtils;
+import org.openmrs.module.htmlformentry.substitution.Substituter;
 import org.openmrs.order.DrugSuggestion;
 import org.openmrs.order.RegimenSuggestion;
+import org.w3c.dom.Document;
 
 /**
  * HtmlFormExporter intended to be used by the Metadata sharing module. The clone includes a
@@ -74,11 +79,10 @@ public class HtmlFormExporter {
 		return copy;
 	}
 	
-	@SuppressWarnings("unchecked")
 	private void calculateDependencies() {
 		Set<OpenmrsObject> dependencies = new HashSet<OpenmrsObject>();
 		
-		Set<Class<?>> classesNotToExport = getClassesNotToExport();
+		final Set<Class<?>> classesNotToExport = getClassesNotToExport();
 
 		// we to resolve any macros or repeat/renders first, but we *don't* want these changes to
 		// be applied to the form we are exporting so we copy the xml into a new string first
@@ -88,134 +92,135 @@ public class HtmlFormExporter {
 		HtmlFormEntryGenerator generator = new HtmlFormEntryGenerator();
 		
 		try {
-			xml = generator.applyMacros(xml);
-			xml = generator.applyTemplates(xml);
+			Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+			generator.applyMacros(doc);
+			generator.applyTemplates(doc);
+			xml = HtmlFormEntryUtil.documentToString(doc);
 		}
 		catch (Exception e) {
 			throw new APIException("Unable to process macros and templates when processing form to make it shareable", e);
 		}
 		
-		// now we need to loop through the attributes to find what dependencies we need to look for
-		// fetch the tag handlers so we can gain access to the attribute descriptors
-		Map<String, TagHandler> tagHandlers = Context.getService(HtmlFormEntryService.class).getHandlers();
+		// now we need to loop through the attributes defined in the attribute descriptors of the registered handlers,
+		// and collect the values referencing each class, so that each class can be looked up all at once
+		final Map<Class<?>, Set<String>> referencesByClass = new LinkedHashMap<Class<?>, Set<String>>();
+		HtmlFormSubstitutionUtils.substituteAttributeValues(xml, new Substituter() {
+			
+			@Override
+			public String substitute(String value, Class<?> clazz, Map<OpenmrsObject, OpenmrsObject> substitutionMap) {
+				if (!classesNotToExport.contains(clazz)) {
+					if (!referencesByClass.containsKey(clazz)) {
+						referencesByClass.put(clazz, new LinkedHashSet<String>());
+					}
+					referencesByClass.get(clazz).add(value);
+				}
+				return value;
+			}
+		}, null);
 		
-		// loop through all the attribute descriptors for the registered handlers
-		for (String tagName : tagHandlers.keySet()) {
-			log.debug("Handling dependencies for tag " + tagName);
-
-			if (tagHandlers.get(tagName).getAttributeDescriptors() != null) {
-				for (AttributeDescriptor attributeDescriptor : tagHandlers.get(tagName).getAttributeDescriptors()) {
-					if (attributeDescriptor.getClazz() != null && !classesNotToExport.contains(attributeDescriptor.getClazz())) {
-
-						// build the attribute string we are searching for
-						// pattern matches <tagName .* attribute="[anything]"; group(1) is set to [anything]
-						// to break down the regex in detail, ?: simply means that we don't want include this grouping in the groups that we backreference;
-						// the grouping itself is an "or", that matches either "\\s" (a single whitespace character) or
-						// "\\s[^>]*\\s" (a single whitespace character plus 0 to n characters of any type but a >, followed by another single whitespace character)
-						String pattern = "<" + tagName + "(?:\\s|\\s[^>]*\\s)" + attributeDescriptor.getName() + "=\"(.*?)\"";
-						log.debug("dependency substitution pattern: " + pattern);
-						
-						// now search through and find all matches
-						Matcher matcher = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE).matcher(xml);
-						while (matcher.find()) {
-							// split the matched result group into the various ids
-							String[] ids = matcher.group(1).split(",");
-							
-							for (String id : ids) {
-								// if this id matches a uuid pattern, try to fetch the object by uuid
-								if (HtmlFormEntryUtil.isValidUuidFormat(id) && OpenmrsObject.class.isAssignableFrom(attributeDescriptor.getClazz())) {
-									OpenmrsObject object = Context.getService(HtmlFormEntryService.class).getItemByUuid(
-									    (Class<? extends OpenmrsObject>) attributeDescriptor.getClazz(), id);
-									if (object != null) {
-										//special handling of Form -- if passed a Form, see if it can be passed along as  HtmlForm
-										if (Form.class.equals(attributeDescriptor.getClazz())) {
-											Form form = (Form) object;
-											HtmlForm htmlForm = Context.getService(HtmlFormEntryService.class).getHtmlFormByForm(form);
-											if (htmlForm != null){
-												dependencies.add(htmlForm);
-												continue;
-											}
-										}
-										dependencies.add(object);
-										continue;
-									}
-								}
-								
-								// if we haven't found anything by uuid, try by name
-								if (OpenmrsMetadata.class.isAssignableFrom(attributeDescriptor.getClazz())) {
-									OpenmrsObject object = Context.getService(HtmlFormEntryService.class).getItemByName(
-									    (Class<? extends OpenmrsMetadata>) attributeDescriptor.getClazz(), id);
-									if (object != null) {
-										dependencies.add(object);
-										continue;
-									}
-								}
-								// finally, handle any special cases
-								// if it's a concept, we also need to handle concepts referenced by map
-								if (Concept.class.equals(attributeDescriptor.getClazz())) {
-									Concept concept = HtmlFormEntryUtil.getConcept(id);
-									if (concept != null) {
-										dependencies.add(concept);
-										continue;
-									}
-								}
-								// need to handle the special case where a program "name" is considered the "name" of the underlying concept
-								if (Program.class.equals(attributeDescriptor.getClazz())) {
-									Program program = HtmlFormEntryUtil.getProgram(id);
-									if (program != null) {
-										dependencies.add(program);
-										continue;
-									}
-								}
-								// need to handle the special case where a program workflow is specified by a concept map pointing to it's underlying concept
-								// note that we shouldn't have to handle program workflow states because they should always be picked up when sharing the overriding program and/or program workflow
-								if (ProgramWorkflow.class.equals(attributeDescriptor.getClazz())) {
-									ProgramWorkflow workflow = HtmlFormEntryUtil.getWorkflow(id);
-									if (workflow != null) {
-										dependencies.add(workflow);
-									}
-								}
-								// need to special case of the name of a role
-								if (Role.class.equals(attributeDescriptor.getClazz())) {
-									Role role = Context.getUserService().getRole(id);
-									if (role != null) {
-										dependencies.add(role);
-										continue;
-									}
-								}
-								//RelationshipType from the relationship tag, in case of lookup by name (which may or may not be implemented yet...)
-								if (RelationshipType.class.equals(attributeDescriptor.getClazz())) {
-									RelationshipType relationshipType = Context.getPersonService().getRelationshipTypeByName(id);
-									if (relationshipType != null) {
-										dependencies.add(relationshipType);
-										continue;
-									}
-								}
-								//RegimenSuggestion -- see global property 'dashboard.regimen.standardRegimens'
-								if (RegimenSuggestion.class.equals(attributeDescriptor.getClazz())){
-									List<RegimenSuggestion> stRegimens = Context.getOrderService().getStandardRegimens();
-									if (stRegimens != null){
-										ConceptService cs = Context.getConceptService();
-										for (RegimenSuggestion rs : stRegimens){
-											if (rs.getCodeName().equals(id) && rs.getDrugComponents() != null){
-												for (DrugSuggestion ds : rs.getDrugComponents()){
-													Drug drug = cs.getDrugByNameOrId(ds.getDrugId());
-													if (drug == null)
-														 drug = cs.getDrugByUuid(ds.getDrugId());
-													if (drug != null)
-														dependencies.add(drug);
-												}
-											}
-										}
-									}
-								}
-							}
+		for (Map.Entry<Class<?>, Set<String>> references : referencesByClass.entrySet()) {
+			log.debug("Handling dependencies for " + references.getKey());
+			addDependencies(references.getKey(), references.getValue(), dependencies);
+		}
+		formToExport.setDependencies(dependencies);
+	}
+	
+	/**
+	 * Looks up the objects of one class referenced in the form, first all the ones referenced by uuid and then all
+	 * the ones referenced by name, and then any others one by one
+	 */
+	@SuppressWarnings("unchecked")
+	private void addDependencies(Class<?> clazz, Set<String> ids, Set<OpenmrsObject> dependencies) {
+		HtmlFormEntryService service = Context.getService(HtmlFormEntryService.class);
+		Set<String> unresolvedIds = new LinkedHashSet<String>(ids);
+		
+		// if an id matches a uuid pattern, try to fetch the object by uuid
+		if (OpenmrsObject.class.isAssignableFrom(clazz)) {
+			List<String> uuids = new ArrayList<String>();
+			for (String id : ids) {
+				if (HtmlFormEntryUtil.isValidUuidFormat(id)) {
+					uuids.add(id);
+				}
+			}
+			if (!uuids.isEmpty()) {
+				Map<String, OpenmrsObject> found = service.getItemsByUuid((Class<? extends OpenmrsObject>) clazz, uuids);
+				for (Map.Entry<String, OpenmrsObject> object : found.entrySet()) {
+					//special handling of Form -- if passed a Form, see if it can be passed along as  HtmlForm
+					HtmlForm htmlForm = null;
+					if (Form.class.equals(clazz)) {
+						htmlForm = service.getHtmlFormByForm((Form) object.getValue());
+					}
+					dependencies.add(htmlForm != null ? htmlForm : object.getValue());
+					unresolvedIds.remove(object.getKey());
+				}
+			}
+		}
+		
+		// if we haven't found anything by uuid, try by name
+		if (OpenmrsMetadata.class.isAssignableFrom(clazz) && !unresolvedIds.isEmpty()) {
+			Map<String, OpenmrsObject> found = service.getItemsByName((Class<? extends OpenmrsMetadata>) clazz, unresolvedIds);
+			dependencies.addAll(found.values());
+			unresolvedIds.removeAll(found.keySet());
+		}
+		
+		// finally, handle any special cases
+		List<RegimenSuggestion> stRegimens = null;
+		if (RegimenSuggestion.class.equals(clazz)) {
+			stRegimens = Context.getOrderService().getStandardRegimens();
+		}
+		for (String id : unresolvedIds) {
+			// if it's a concept, we also need to handle concepts referenced by map
+			if (Concept.class.equals(clazz)) {
+				Concept concept = HtmlFormEntryUtil.getConcept(id);
+				if (concept != null) {
+					dependencies.add(concept);
+				}
+			}
+			// need to handle the special case where a program "name" is considered the "name" of the underlying concept
+			else if (Program.class.equals(clazz)) {
+				Program program = HtmlFormEntryUtil.getProgram(id);
+				if (program != null) {
+					dependencies.add(program);
+				}
+			}
+			// need to handle the special case where a program workflow is specified by a concept map pointing to it's underlying concept
+			// note that we shouldn't have to handle program workflow states because they should always be picked up when sharing the overriding program and/or program workflow
+			else if (ProgramWorkflow.class.equals(clazz)) {
+				ProgramWorkflow workflow = HtmlFormEntryUtil.getWorkflow(id);
+				if (workflow != null) {
+					dependencies.add(workflow);
+				}
+			}
+			// need to special case of the name of a role
+			else if (Role.class.equals(clazz)) {
+				Role role = Context.getUserService().getRole(id);
+				if (role != null) {
+					dependencies.add(role);
+				}
+			}
+			//RelationshipType from the relationship tag, in case of lookup by name (which may or may not be implemented yet...)
+			else if (RelationshipType.class.equals(clazz)) {
+				RelationshipType relationshipType = Context.getPersonService().getRelationshipTypeByName(id);
+				if (relationshipType != null) {
+					dependencies.add(relationshipType);
+				}
+			}
+			//RegimenSuggestion -- see global property 'dashboard.regimen.standardRegimens'
+			else if (RegimenSuggestion.class.equals(clazz) && stRegimens != null) {
+				ConceptService cs = Context.getConceptService();
+				for (RegimenSuggestion rs : stRegimens){
+					if (rs.getCodeName().equals(id) && rs.getDrugComponents() != null){
+						for (DrugSuggestion ds : rs.getDrugComponents()){
+							Drug drug = cs.getDrugByNameOrId(ds.getDrugId());
+							if (drug == null)
+								 drug = cs.getDrugByUuid(ds.getDrugId());
+							if (drug != null)
+								dependencies.add(drug);
 						}
 					}
 				}
 			}
 		}
-		formToExport.setDependencies(dependencies);
 	}
 	
 	/**
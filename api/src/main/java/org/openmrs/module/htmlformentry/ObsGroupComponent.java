@@ -89,17 +89,56 @@ public class ObsGroupComponent {
 	}
 
 	public static int supportingRank(List<ObsGroupComponent> obsGroupComponents, Obs parentObs, Set<Obs> obsSet) {
+		return supportingRank(indexByQuestion(obsGroupComponents), obsSet);
+	}
+
+	/**
+	 * Indexes the components of an obsgroup tag by the concept id of their question, keeping them in
+	 * their original order, for {@link #supportingRank(Map, Set)}
+	 * 
+	 * @param obsGroupComponents
+	 * @return
+	 */
+	public static Map<Integer, List<ObsGroupComponent>> indexByQuestion(List<ObsGroupComponent> obsGroupComponents) {
+		Map<Integer, List<ObsGroupComponent>> ret = new HashMap<Integer, List<ObsGroupComponent>>();
+		for (ObsGroupComponent obsGroupComponent : obsGroupComponents) {
+			if (obsGroupComponent.getQuestion() == null)
+				continue;
+			Integer questionId = obsGroupComponent.getQuestion().getConceptId();
+			List<ObsGroupComponent> list = ret.get(questionId);
+			if (list == null) {
+				list = new ArrayList<ObsGroupComponent>();
+				ret.put(questionId, list);
+			}
+			list.add(obsGroupComponent);
+		}
+		return ret;
+	}
+
+	/**
+	 * Ranks how well the members of an existing obs group support an obsgroup tag, only comparing each
+	 * member to the components that ask its question
+	 * 
+	 * @param componentsByQuestion the components of the tag, from {@link #indexByQuestion(List)}
+	 * @param obsSet the members of the existing obs group
+	 * @return the rank, which is 0 or less if the obs group doesn't match the tag
+	 */
+	public static int supportingRank(Map<Integer, List<ObsGroupComponent>> componentsByQuestion, Set<Obs> obsSet) {
 		int rank = 0;
 
 		for (Obs obs : obsSet) {
-			Set<Integer> obsGroupComponentMatchLog = new HashSet<Integer>();
+			List<ObsGroupComponent> obsGroupComponents = componentsByQuestion.get(obs.getConcept().getConceptId());
+			if (obsGroupComponents == null)
+				continue;
+
+			// whether an earlier component with this question has matched this obs
+			boolean questionMatched = false;
 
 			for (ObsGroupComponent obsGroupComponent : obsGroupComponents) {
-				boolean questionMatches = obsGroupComponent.getQuestion().getConceptId().equals(obs.getConcept().getConceptId());
 				boolean answerMatches = obsGroupComponent.getAnswer() == null ||(obs.getValueCoded() != null && obsGroupComponent.getAnswer().getConceptId().equals(obs.getValueCoded().getConceptId()));
 
-				if (questionMatches && !answerMatches) {					
-					if (!obsGroupComponentMatchLog.contains(obsGroupComponent.getQuestion().getConceptId())) {
+				if (!answerMatches) {
+					if (!questionMatched) {
 						if (obs.getValueCoded() == null || obs.getValueCoded().getConceptId() == null) {
 							return 0;
 						} else {
@@ -113,12 +152,12 @@ public class ObsGroupComponent {
 							}
 						}
 					}
-				} else if (questionMatches && answerMatches) {
+				} else {
 					if (obsGroupComponent.getAnswer() != null) {
 						// add extra weight to this matching...
 						rank++;
 					}
-					obsGroupComponentMatchLog.add(obsGroupComponent.getQuestion().getConceptId());
+					questionMatched = true;
 					rank++;
 				}
 			}
@@ -0,0 +1,98 @@
+package org.openmrs.module.htmlformentry;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The writer that tag handlers print a form's html to. Besides the html, it remembers where in it
+ * placeholders were printed, such as the {@code <unmatched id="..." />} tags printed for obs groups
+ * that can't be matched until the rest of the form has been, so that once their contents are known
+ * they can all be replaced in a single pass.
+ */
+public class TagOutputWriter extends PrintWriter {
+
+    private final StringWriter buffer;
+
+    // the start and end in the buffer, and the id, of each placeholder, in the order they were printed
+    private int[] starts = new int[8];
+
+    private int[] ends = new int[8];
+
+    private int[] ids = new int[8];
+
+    private int placeholderCount = 0;
+
+    public TagOutputWriter() {
+        this(new StringWriter());
+    }
+
+    private TagOutputWriter(StringWriter buffer) {
+        super(buffer);
+        this.buffer = buffer;
+    }
+
+    /**
+     * Prints a placeholder, to be replaced by {@link #replacePlaceholders(List)}
+     *
+     * @param id the placeholder's index in the list of contents that will replace it
+     * @param text what to print in the meantime
+     */
+    public void printPlaceholder(int id, String text) {
+        int start = buffer.getBuffer().length();
+        print(text);
+        if (placeholderCount == starts.length) {
+            starts = Arrays.copyOf(starts, placeholderCount * 2);
+            ends = Arrays.copyOf(ends, placeholderCount * 2);
+            ids = Arrays.copyOf(ids, placeholderCount * 2);
+        }
+        starts[placeholderCount] = start;
+        ends[placeholderCount] = buffer.getBuffer().length();
+        ids[placeholderCount] = id;
+        placeholderCount++;
+    }
+
+    public int getPlaceholderCount() {
+        return placeholderCount;
+    }
+
+    /**
+     * @param contents the contents of each placeholder, by id; placeholders whose id is past the end
+     *            of the list, or whose contents are null, are left as they are
+     * @return what has been written, with the placeholders replaced by their contents
+     */
+    public String replacePlaceholders(List<String> contents) {
+        StringBuffer html = buffer.getBuffer();
+        int length = html.length();
+        for (int i = 0; i < placeholderCount; i++) {
+            String content = getContent(contents, ids[i]);
+            if (content != null)
+                length += content.length() - (ends[i] - starts[i]);
+        }
+
+        StringBuilder sb = new StringBuilder(length);
+        int copied = 0;
+        for (int i = 0; i < placeholderCount; i++) {
+            String content = getContent(contents, ids[i]);
+            if (content != null) {
+                sb.append(html, copied, starts[i]).append(content);
+                copied = ends[i];
+            }
+        }
+        sb.append(html, copied, html.length());
+        return sb.toString();
+    }
+
+    private static String getContent(List<String> contents, int id) {
+        return id >= 0 && id < contents.size() ? contents.get(id) : null;
+    }
+
+    /**
+     * @return what has been written, with any placeholders as they were printed
+     */
+    @Override
+    public String toString() {
+        return buffer.toString();
+    }
+}
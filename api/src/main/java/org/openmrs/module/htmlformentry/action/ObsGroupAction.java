@@ -10,6 +10,7 @@ import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.FormSubmissionError;
 import org.openmrs.module.htmlformentry.InvalidActionException;
+import org.openmrs.module.htmlformentry.matching.ObsGroupEntity;
 import org.openmrs.module.htmlformentry.schema.ObsGroup;
 
 /**
@@ -43,6 +44,7 @@ public class ObsGroupAction implements FormSubmissionControllerAction {
     private Obs existingGroup;
     private boolean start;
     private ObsGroup obsGroupSchemaObject;
+    private ObsGroupEntity obsGroupEntity;
     
     private ObsGroupAction(Concept groupingConcept, Obs existingGroup, ObsGroup ogSchemaObj, boolean start) {
         this.groupingConcept = groupingConcept;
@@ -97,6 +99,18 @@ public class ObsGroupAction implements FormSubmissionControllerAction {
     public void setObsGroupSchemaObject(ObsGroup obsGroupSchemaObject) {
     	this.obsGroupSchemaObject = obsGroupSchemaObject;
     }
+
+    /**
+     * @return what is needed to match this group against the obs groups of an existing encounter
+     *         (only set on start actions)
+     */
+    public ObsGroupEntity getObsGroupEntity() {
+    	return obsGroupEntity;
+    }
+
+    public void setObsGroupEntity(ObsGroupEntity obsGroupEntity) {
+    	this.obsGroupEntity = obsGroupEntity;
+    }
     
     
 
@@ -0,0 +1,33 @@
+package org.openmrs.module.htmlformentry.bulk;
+
+/**
+ * Why a row of a bulk submission was not saved
+ */
+public class BulkSubmissionError {
+
+	private int rowNumber;
+
+	private String message;
+
+	/**
+	 * @param rowNumber the number of the row (counting data rows from 1)
+	 * @param message
+	 */
+	public BulkSubmissionError(int rowNumber, String message) {
+		this.rowNumber = rowNumber;
+		this.message = message;
+	}
+
+	public int getRowNumber() {
+		return rowNumber;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return "Row " + rowNumber + ": " + message;
+	}
+}
@@ -0,0 +1,268 @@
+package org.openmrs.module.htmlformentry.bulk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the rows of a bulk submission, each of which is a map from field name (e.g. "w3", or
+ * {@link HtmlFormBulkSubmitter#PATIENT_ID} for the patient) to value. Rows are read lazily, so
+ * that files of any size can be submitted.
+ */
+public class BulkSubmissionReader {
+
+	private BulkSubmissionReader() {
+	}
+
+	/**
+	 * Reads comma-separated values, whose first line holds the field names. Values may be quoted with
+	 * double quotes (doubling any quotes inside them), and empty values are left out of their row.
+	 */
+	public static Iterator<Map<String, String>> readCsv(Reader in) throws IOException {
+		final BufferedReader reader = new BufferedReader(in);
+		final List<String> header = readCsvRecord(reader);
+		if (header == null)
+			throw new IllegalArgumentException("The csv has no header line");
+
+		return new RowIterator() {
+
+			@Override
+			protected Map<String, String> readRow() throws IOException {
+				List<String> record = readCsvRecord(reader);
+				if (record == null)
+					return null;
+				if (record.size() > header.size())
+					throw new IllegalArgumentException("A csv line has more values than the header: " + record);
+				Map<String, String> row = new LinkedHashMap<String, String>();
+				for (int i = 0; i < record.size(); i++) {
+					if (record.get(i).length() > 0)
+						row.put(header.get(i).trim(), record.get(i));
+				}
+				return row;
+			}
+		};
+	}
+
+	/**
+	 * Reads one flat json object per line, e.g. {"patientId": 7, "w1": "2012-05-01", "w3": "2"}. Blank
+	 * lines are skipped, and null values are left out of their row.
+	 */
+	public static Iterator<Map<String, String>> readJsonLines(Reader in) {
+		final BufferedReader reader = new BufferedReader(in);
+		return new RowIterator() {
+
+			@Override
+			protected Map<String, String> readRow() throws IOException {
+				String line;
+				do {
+					line = reader.readLine();
+					if (line == null)
+						return null;
+				} while (line.trim().length() == 0);
+				return new FlatJsonParser(line).parseObject();
+			}
+		};
+	}
+
+	/**
+	 * @return the values of the next csv record, or null at the end of the input
+	 */
+	private static List<String> readCsvRecord(BufferedReader reader) throws IOException {
+		String line = reader.readLine();
+		if (line == null)
+			return null;
+
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		int i = 0;
+		while (true) {
+			if (i == line.length()) {
+				if (!quoted)
+					break;
+				// a quoted value with a line break in it
+				line = reader.readLine();
+				if (line == null)
+					throw new IllegalArgumentException("The csv ends inside a quoted value");
+				value.append('\n');
+				i = 0;
+				continue;
+			}
+			char c = line.charAt(i++);
+			if (quoted) {
+				if (c != '"')
+					value.append(c);
+				else if (i < line.length() && line.charAt(i) == '"')
+					value.append(line.charAt(i++));
+				else
+					quoted = false;
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values;
+	}
+
+	/**
+	 * Reads rows one ahead of the caller
+	 */
+	private static abstract class RowIterator implements Iterator<Map<String, String>> {
+
+		private Map<String, String> next;
+
+		private boolean done = false;
+
+		/**
+		 * @return the next row, or null if there are no more
+		 */
+		protected abstract Map<String, String> readRow() throws IOException;
+
+		public boolean hasNext() {
+			if (next == null && !done) {
+				try {
+					next = readRow();
+				}
+				catch (IOException ex) {
+					throw new IllegalStateException("Unable to read the next row", ex);
+				}
+				done = next == null;
+			}
+			return next != null;
+		}
+
+		public Map<String, String> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Map<String, String> ret = next;
+			next = null;
+			return ret;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Parses a json object whose values are all strings, numbers, booleans or null
+	 */
+	private static class FlatJsonParser {
+
+		private final String json;
+
+		private int pos = 0;
+
+		FlatJsonParser(String json) {
+			this.json = json;
+		}
+
+		Map<String, String> parseObject() {
+			Map<String, String> ret = new LinkedHashMap<String, String>();
+			expect('{');
+			if (peek() == '}') {
+				pos++;
+				return ret;
+			}
+			while (true) {
+				String key = parseString();
+				expect(':');
+				String value = parseValue();
+				if (value != null)
+					ret.put(key, value);
+				char c = next();
+				if (c == '}')
+					return ret;
+				if (c != ',')
+					throw error("Expected , or }");
+			}
+		}
+
+		private String parseValue() {
+			char c = peek();
+			if (c == '"')
+				return parseString();
+			int start = pos;
+			while (pos < json.length() && ",} \t".indexOf(json.charAt(pos)) < 0)
+				pos++;
+			String literal = json.substring(start, pos);
+			if (literal.length() == 0 || c == '{' || c == '[')
+				throw error("Expected a string, number, boolean or null");
+			return "null".equals(literal) ? null : literal;
+		}
+
+		private String parseString() {
+			expect('"');
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				if (pos >= json.length())
+					throw error("Unterminated string");
+				char c = json.charAt(pos++);
+				if (c == '"')
+					return sb.toString();
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				char escaped = json.charAt(pos++);
+				switch (escaped) {
+					case 'n':
+						sb.append('\n');
+						break;
+					case 't':
+						sb.append('\t');
+						break;
+					case 'r':
+						sb.append('\r');
+						break;
+					case 'b':
+						sb.append('\b');
+						break;
+					case 'f':
+						sb.append('\f');
+						break;
+					case 'u':
+						sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+						pos += 4;
+						break;
+					default:
+						sb.append(escaped);
+				}
+			}
+		}
+
+		private void expect(char expected) {
+			if (next() != expected)
+				throw error("Expected " + expected);
+		}
+
+		private char next() {
+			char c = peek();
+			pos++;
+			return c;
+		}
+
+		private char peek() {
+			while (pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+				pos++;
+			if (pos >= json.length())
+				throw error("Unexpected end of line");
+			return json.charAt(pos);
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at character " + pos + " of " + json);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package org.openmrs.module.htmlformentry.bulk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a bulk submission: how many rows were read and saved, and the errors of the rows
+ * that weren't saved
+ */
+public class BulkSubmissionReport {
+
+	private int rowsRead = 0;
+
+	private int rowsSubmitted = 0;
+
+	private List<BulkSubmissionError> errors = new ArrayList<BulkSubmissionError>();
+
+	public int getRowsRead() {
+		return rowsRead;
+	}
+
+	public int getRowsSubmitted() {
+		return rowsSubmitted;
+	}
+
+	public List<BulkSubmissionError> getErrors() {
+		return Collections.unmodifiableList(errors);
+	}
+
+	void addRowsRead(int count) {
+		rowsRead += count;
+	}
+
+	void addRowsSubmitted(int count) {
+		rowsSubmitted += count;
+	}
+
+	void addErrors(List<BulkSubmissionError> errors) {
+		this.errors.addAll(errors);
+	}
+
+	@Override
+	public String toString() {
+		return rowsSubmitted + " of " + rowsRead + " rows submitted, " + errors.size() + " errors";
+	}
+}
@@ -0,0 +1,103 @@
+package org.openmrs.module.htmlformentry.bulk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+
+/**
+ * Submits a form many times without a browser, e.g. to back-enter paper forms. Rows (see
+ * {@link BulkSubmissionReader}) are submitted in batches of {@link #getBatchSize()}, each in its own
+ * transaction, with the hibernate session flushed and cleared between batches. If saving any row of
+ * a batch fails, the batch is rolled back and its rows are submitted again one at a time, so that
+ * only the failing rows end up in the report.
+ * <p/>
+ * This must be used by an authenticated user, outside of any transaction.
+ *
+ * @see HtmlFormEntryService#submitInBulk(HtmlForm, List, int)
+ */
+public class HtmlFormBulkSubmitter {
+
+	/**
+	 * The column holding the id of the patient that a row is entered for
+	 */
+	public static final String PATIENT_ID = "patientId";
+
+	private static Log log = LogFactory.getLog(HtmlFormBulkSubmitter.class);
+
+	private int batchSize = 100;
+
+	public HtmlFormBulkSubmitter() {
+	}
+
+	public HtmlFormBulkSubmitter(int batchSize) {
+		setBatchSize(batchSize);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param form the form to submit
+	 * @param rows the values of each submission
+	 * @return how many rows were submitted, and why the others weren't
+	 */
+	public BulkSubmissionReport submit(HtmlForm form, Iterator<Map<String, String>> rows) {
+		HtmlFormEntryService service = Context.getService(HtmlFormEntryService.class);
+		BulkSubmissionReport report = new BulkSubmissionReport();
+		List<Map<String, String>> batch = new ArrayList<Map<String, String>>(batchSize);
+		while (rows.hasNext()) {
+			batch.add(rows.next());
+			if (batch.size() == batchSize || !rows.hasNext()) {
+				submitBatch(service, form, batch, report.getRowsRead() + 1, report);
+				batch.clear();
+			}
+		}
+		return report;
+	}
+
+	private void submitBatch(HtmlFormEntryService service, HtmlForm form, List<Map<String, String>> batch,
+	        int firstRowNumber, BulkSubmissionReport report) {
+		report.addRowsRead(batch.size());
+		try {
+			List<BulkSubmissionError> errors = service.submitInBulk(form, batch, firstRowNumber);
+			report.addRowsSubmitted(batch.size() - errors.size());
+			report.addErrors(errors);
+			return;
+		}
+		catch (RuntimeException ex) {
+			log.debug("Batch starting at row " + firstRowNumber + " failed, submitting its rows one at a time", ex);
+			Context.clearSession();
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			int rowNumber = firstRowNumber + i;
+			try {
+				List<BulkSubmissionError> errors = service.submitInBulk(form, Collections.singletonList(batch.get(i)),
+				    rowNumber);
+				report.addRowsSubmitted(1 - errors.size());
+				report.addErrors(errors);
+			}
+			catch (RuntimeException ex) {
+				log.debug("Row " + rowNumber + " failed", ex);
+				Context.clearSession();
+				String message = ex.getMessage() == null ? ex.toString() : ex.getMessage();
+				report.addErrors(Collections.singletonList(new BulkSubmissionError(rowNumber, message)));
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package org.openmrs.module.htmlformentry.bulk;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Stands in for the http request of a form submission when a form is submitted without a browser.
+ * Only the parameter methods are supported, which is all that widgets and submission elements read.
+ */
+public class SubmissionRequest {
+
+	private SubmissionRequest() {
+	}
+
+	/**
+	 * @param values the submitted value of each field, keyed by field name (e.g. "w3")
+	 * @return a request with those parameters
+	 */
+	public static HttpServletRequest forValues(Map<String, String> values) {
+		final Map<String, String[]> parameters = new HashMap<String, String[]>();
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			if (e.getValue() != null)
+				parameters.put(e.getKey(), new String[] { e.getValue() });
+		}
+
+		return (HttpServletRequest) Proxy.newProxyInstance(SubmissionRequest.class.getClassLoader(),
+		    new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+
+			    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				    String name = method.getName();
+				    if ("getParameter".equals(name)) {
+					    String[] value = parameters.get(args[0]);
+					    return value == null ? null : value[0];
+				    } else if ("getParameterValues".equals(name)) {
+					    return parameters.get(args[0]);
+				    } else if ("getParameterMap".equals(name)) {
+					    return Collections.unmodifiableMap(parameters);
+				    } else if ("getParameterNames".equals(name)) {
+					    return Collections.enumeration(parameters.keySet());
+				    } else if ("getAttribute".equals(name) || "getSession".equals(name)) {
+					    return null;
+				    } else if ("toString".equals(name)) {
+					    return "SubmissionRequest" + parameters.keySet();
+				    } else if ("hashCode".equals(name)) {
+					    return System.identityHashCode(proxy);
+				    } else if ("equals".equals(name)) {
+					    return proxy == args[0];
+				    }
+				    throw new UnsupportedOperationException(name + " is not available when submitting without a browser");
+			    }
+		    });
+	}
+}
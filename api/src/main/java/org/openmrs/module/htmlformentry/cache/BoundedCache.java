@@ -0,0 +1,128 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A simple thread-safe, size-bounded cache that evicts the least-recently-used entry once it is full.
+ * Keeps hit, miss and eviction counts so that the cache can be sized from real usage.
+ */
+public class BoundedCache<K, V> {
+
+	private final Map<K, V> entries;
+
+	private int maxSize;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	private long evictions = 0;
+
+	/**
+	 * @param maxSize the maximum number of entries to hold before evicting
+	 */
+	public BoundedCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > BoundedCache.this.maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached value for key, or null if there is none (which counts as a miss)
+	 */
+	public synchronized V get(K key) {
+		V value = entries.get(key);
+		if (value == null)
+			misses++;
+		else
+			hits++;
+		return value;
+	}
+
+	public synchronized void put(K key, V value) {
+		if (maxSize > 0)
+			entries.put(key, value);
+	}
+
+	public synchronized V remove(K key) {
+		return entries.remove(key);
+	}
+
+	/**
+	 * @return a snapshot of the keys currently in the cache
+	 */
+	public synchronized Set<K> keySet() {
+		return new HashSet<K>(entries.keySet());
+	}
+
+	/**
+	 * @return a snapshot of the entries currently in the cache (which doesn't count as using them)
+	 */
+	public synchronized Map<K, V> getEntries() {
+		return new HashMap<K, V>(entries);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Changes the maximum size of the cache, evicting least-recently-used entries if necessary
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		while (entries.size() > Math.max(maxSize, 0)) {
+			K eldest = entries.keySet().iterator().next();
+			entries.remove(eldest);
+			evictions++;
+		}
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * @return the current size, maximum size, and hit, miss and eviction counts of this cache
+	 */
+	public synchronized Map<String, Long> getStatistics() {
+		Map<String, Long> ret = new LinkedHashMap<String, Long>();
+		ret.put("size", (long) entries.size());
+		ret.put("maxSize", (long) maxSize);
+		ret.put("hits", hits);
+		ret.put("misses", misses);
+		ret.put("evictions", evictions);
+		return ret;
+	}
+}
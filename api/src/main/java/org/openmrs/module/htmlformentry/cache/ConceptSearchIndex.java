@@ -0,0 +1,262 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+
+/**
+ * An in-memory index of the names, in one locale, of the concepts that a concept search autocomplete
+ * may offer (see {@link ConceptSearchIndexes}). A concept matches a search if one of its names has a
+ * word starting with each word of the search, as with ConceptService.getConceptWords. Searches may
+ * run while concepts are being re-indexed.
+ */
+public class ConceptSearchIndex {
+
+	private final Locale locale;
+
+	// the entries for each word of each name, keyed by "WORD\0conceptId\0n"
+	private final ConcurrentSkipListMap<String, Entry> words = new ConcurrentSkipListMap<String, Entry>();
+
+	// the keys in words of each concept, so that it can be re-indexed
+	private final Map<Integer, List<String>> keysByConcept = new HashMap<Integer, List<String>>();
+
+	/**
+	 * @param locale the locale of the names to index
+	 * @param concepts the concepts to index
+	 */
+	public ConceptSearchIndex(Locale locale, Collection<Concept> concepts) {
+		this.locale = locale;
+		for (Concept concept : concepts)
+			index(concept);
+	}
+
+	public Locale getLocale() {
+		return locale;
+	}
+
+	/**
+	 * @return the number of concepts indexed
+	 */
+	public synchronized int size() {
+		return keysByConcept.size();
+	}
+
+	/**
+	 * @return whether the given concept is in the index
+	 */
+	public synchronized boolean contains(Integer conceptId) {
+		return keysByConcept.containsKey(conceptId);
+	}
+
+	/**
+	 * Indexes the current names of a concept, replacing any it was indexed with before. Retired
+	 * concepts are removed instead.
+	 */
+	public synchronized void index(Concept concept) {
+		remove(concept.getConceptId());
+		if (concept.isRetired())
+			return;
+
+		List<String> keys = new ArrayList<String>();
+		String display = displayName(concept);
+		int n = 0;
+		for (ConceptName name : concept.getNames()) {
+			if (!isInLanguage(name))
+				continue;
+			// show the name that matched if it's the one the concept is known by, otherwise the usual one
+			String value = name.isPreferred() || name.getName().equalsIgnoreCase(display) ? name.getName() : display;
+			Entry entry = new Entry(concept.getConceptId(), value, name.getName().length(), splitWords(name.getName()));
+			for (String word : entry.words) {
+				String key = word + '\0' + concept.getConceptId() + '\0' + n;
+				words.put(key, entry);
+				keys.add(key);
+			}
+			++n;
+		}
+		keysByConcept.put(concept.getConceptId(), keys);
+	}
+
+	/**
+	 * @return the name a concept is known by in this index's language, whatever the locale of the user
+	 *         who happens to cause the indexing: its preferred name there, or otherwise its first name
+	 *         there (only names in this language are indexed, so there always is one)
+	 */
+	private String displayName(Concept concept) {
+		String ret = null;
+		for (ConceptName name : concept.getNames()) {
+			if (!isInLanguage(name))
+				continue;
+			if (name.isPreferred())
+				return name.getName();
+			if (ret == null)
+				ret = name.getName();
+		}
+		return ret;
+	}
+
+	private boolean isInLanguage(ConceptName name) {
+		return !name.isVoided() && name.getLocale() != null && name.getLocale().getLanguage().equals(locale.getLanguage());
+	}
+
+	/**
+	 * Removes a concept from the index
+	 */
+	public synchronized void remove(Integer conceptId) {
+		List<String> keys = keysByConcept.remove(conceptId);
+		if (keys != null) {
+			for (String key : keys)
+				words.remove(key);
+		}
+	}
+
+	/**
+	 * @param phrase what the user has typed so far
+	 * @param limit the most results to return
+	 * @return the matching concepts, with the name to show for each, best matches (names starting
+	 *         with the phrase, then shorter names) first
+	 */
+	public List<Result> search(String phrase, int limit) {
+		String[] searchWords = splitWords(phrase);
+		if (searchWords.length == 0)
+			return Collections.emptyList();
+
+		// look up the longest word, since it narrows things down the most
+		String lookup = searchWords[0];
+		for (String word : searchWords) {
+			if (word.length() > lookup.length())
+				lookup = word;
+		}
+
+		Map<Integer, Entry> best = new LinkedHashMap<Integer, Entry>();
+		SortedMap<String, Entry> candidates = words.subMap(lookup, lookup + Character.MAX_VALUE);
+		for (Entry entry : candidates.values()) {
+			if (!entry.matches(searchWords))
+				continue;
+			Entry previous = best.get(entry.conceptId);
+			if (previous == null || ENTRY_ORDER.compare(entry, previous, searchWords[0]) < 0)
+				best.put(entry.conceptId, entry);
+		}
+
+		final String first = searchWords[0];
+		List<Entry> sorted = new ArrayList<Entry>(best.values());
+		Collections.sort(sorted, new Comparator<Entry>() {
+
+			public int compare(Entry left, Entry right) {
+				return ENTRY_ORDER.compare(left, right, first);
+			}
+		});
+
+		List<Result> ret = new ArrayList<Result>(Math.min(limit, sorted.size()));
+		for (Entry entry : sorted) {
+			if (ret.size() >= limit)
+				break;
+			ret.add(new Result(entry.conceptId, entry.value));
+		}
+		return ret;
+	}
+
+	private String[] splitWords(String phrase) {
+		if (phrase == null)
+			return new String[0];
+		List<String> ret = new ArrayList<String>();
+		for (String word : phrase.toUpperCase(locale).split("[^\\p{L}\\p{N}]+")) {
+			if (word.length() > 0)
+				ret.add(word);
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	private static final EntryOrder ENTRY_ORDER = new EntryOrder();
+
+	/**
+	 * Names whose first word starts with the first search word come first, then shorter names
+	 */
+	private static class EntryOrder {
+
+		int compare(Entry left, Entry right, String firstSearchWord) {
+			boolean l = left.words[0].startsWith(firstSearchWord);
+			boolean r = right.words[0].startsWith(firstSearchWord);
+			if (l != r)
+				return l ? -1 : 1;
+			if (left.nameLength != right.nameLength)
+				return left.nameLength < right.nameLength ? -1 : 1;
+			return left.value.compareToIgnoreCase(right.value);
+		}
+	}
+
+	/**
+	 * One name of a concept
+	 */
+	private static class Entry {
+
+		private final Integer conceptId;
+
+		private final String value;
+
+		private final int nameLength;
+
+		private final String[] words;
+
+		Entry(Integer conceptId, String value, int nameLength, String[] words) {
+			this.conceptId = conceptId;
+			this.value = value;
+			this.nameLength = nameLength;
+			this.words = words;
+		}
+
+		/**
+		 * @return whether each search word starts one of the words of this name
+		 */
+		boolean matches(String[] searchWords) {
+			for (String searchWord : searchWords) {
+				boolean found = false;
+				for (String word : words) {
+					if (word.startsWith(searchWord)) {
+						found = true;
+						break;
+					}
+				}
+				if (!found)
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A concept that matched a search
+	 */
+	public static class Result {
+
+		private final Integer conceptId;
+
+		private final String name;
+
+		public Result(Integer conceptId, String name) {
+			this.conceptId = conceptId;
+			this.name = name;
+		}
+
+		public Integer getConceptId() {
+			return conceptId;
+		}
+
+		/**
+		 * @return the name to show for the concept
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+}
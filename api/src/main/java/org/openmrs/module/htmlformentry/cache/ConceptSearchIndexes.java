@@ -0,0 +1,159 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.Concept;
+import org.openmrs.ConceptClass;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.widget.ConceptSearchAutocompleteWidget;
+
+/**
+ * Holds a {@link ConceptSearchIndex} for each locale and each distinct list of answer concept ids
+ * or answer concept class names that a {@link ConceptSearchAutocompleteWidget} searches within.
+ * Indexes are built the first time they are searched, and kept up to date as concepts are saved,
+ * retired and purged (see {@link MetadataChangeAdvice}).
+ */
+public class ConceptSearchIndexes {
+
+	public static final int DEFAULT_MAX_SIZE = 100;
+
+	private static final ConceptSearchIndexes instance = new ConceptSearchIndexes(DEFAULT_MAX_SIZE);
+
+	private final BoundedCache<String, Entry> indexes;
+
+	public ConceptSearchIndexes(int maxSize) {
+		this.indexes = new BoundedCache<String, Entry>(maxSize);
+	}
+
+	/**
+	 * @return the indexes used by the concept search page
+	 */
+	public static ConceptSearchIndexes getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Gets the index of the concepts that may be offered, building it if necessary. The lists are
+	 * passed as they appear in the widget's html, so that they are only parsed when an index is built.
+	 *
+	 * @param locale
+	 * @param answerIds comma-separated concept ids, or null or "null" if answerClasses is given
+	 * @param answerClasses comma-separated concept class names, used if there are no answerIds
+	 * @return the index
+	 * @throws IllegalArgumentException if neither list has anything in it
+	 */
+	public ConceptSearchIndex getIndex(Locale locale, String answerIds, String answerClasses) {
+		boolean byIds = isSet(answerIds);
+		if (!byIds && !isSet(answerClasses))
+			throw new IllegalArgumentException("answerconceptids set and answerclasses are both empty.");
+
+		String key = locale + (byIds ? "|ids:" + answerIds : "|classes:" + answerClasses);
+		Entry entry = indexes.get(key);
+		if (entry == null) {
+			entry = byIds ? buildByIds(locale, answerIds) : buildByClasses(locale, answerClasses);
+			indexes.put(key, entry);
+		}
+		return entry.index;
+	}
+
+	/**
+	 * Re-indexes the given concept in every index that it belongs in, or removes it from them if it
+	 * has been retired
+	 */
+	public void conceptSaved(Concept concept) {
+		if (concept == null || concept.getConceptId() == null)
+			return;
+		String className = concept.getConceptClass() == null ? null : concept.getConceptClass().getName();
+		for (Entry entry : getEntries()) {
+			boolean belongs = entry.conceptIds != null ? entry.conceptIds.contains(concept.getConceptId())
+			        : entry.classNames.contains(className);
+			if (belongs)
+				entry.index.index(concept);
+			else
+				entry.index.remove(concept.getConceptId());
+		}
+	}
+
+	/**
+	 * Removes the given concept from every index
+	 */
+	public void conceptPurged(Integer conceptId) {
+		for (Entry entry : getEntries())
+			entry.index.remove(conceptId);
+	}
+
+	public void clear() {
+		indexes.clear();
+	}
+
+	public int size() {
+		return indexes.size();
+	}
+
+	private List<Entry> getEntries() {
+		List<Entry> ret = new ArrayList<Entry>();
+		for (String key : indexes.keySet()) {
+			Entry entry = indexes.get(key);
+			if (entry != null)
+				ret.add(entry);
+		}
+		return ret;
+	}
+
+	private Entry buildByIds(Locale locale, String answerIds) {
+		ConceptService cs = Context.getConceptService();
+		Set<Integer> ids = new HashSet<Integer>();
+		List<Concept> concepts = new ArrayList<Concept>();
+		for (String id : StringUtils.split(answerIds, ",")) {
+			Integer conceptId = Integer.valueOf(id.trim());
+			Concept concept = cs.getConcept(conceptId);
+			ids.add(conceptId);
+			if (concept != null)
+				concepts.add(concept);
+		}
+		return new Entry(new ConceptSearchIndex(locale, concepts), ids, null);
+	}
+
+	private Entry buildByClasses(Locale locale, String answerClasses) {
+		ConceptService cs = Context.getConceptService();
+		Set<String> names = new LinkedHashSet<String>();
+		Set<Concept> concepts = new LinkedHashSet<Concept>();
+		for (String name : StringUtils.split(answerClasses, ",")) {
+			ConceptClass conceptClass = cs.getConceptClassByName(name);
+			names.add(name);
+			if (conceptClass != null)
+				concepts.addAll(cs.getConceptsByClass(conceptClass));
+		}
+		return new Entry(new ConceptSearchIndex(locale, concepts), null, names);
+	}
+
+	private static boolean isSet(String list) {
+		return StringUtils.isNotBlank(list) && !"null".equals(list);
+	}
+
+	/**
+	 * An index, and which concepts belong in it
+	 */
+	private static class Entry {
+
+		private final ConceptSearchIndex index;
+
+		private final Set<Integer> conceptIds;
+
+		private final Set<String> classNames;
+
+		Entry(ConceptSearchIndex index, Set<Integer> conceptIds, Set<String> classNames) {
+			this.index = index;
+			this.conceptIds = conceptIds == null ? null : Collections.unmodifiableSet(conceptIds);
+			this.classNames = classNames == null ? null : Collections.unmodifiableSet(classNames);
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryActivator;
+import org.openmrs.module.htmlformentry.widget.Option;
+import org.springframework.web.util.HtmlUtils;
+import org.springframework.web.util.JavaScriptUtils;
+
+/**
+ * The locations that location dropdowns and autocompletes offer, fetched once and sorted by name
+ * once for each locale they're shown in. For each sorted list it also keeps the escaped
+ * {@code <option>} tags and the autocomplete javascript, so that a widget only has to mark the
+ * selected location.
+ * <p/>
+ * Everything is dropped when a location is saved, retired or purged (see
+ * {@link MetadataChangeAdvice}). Locations are only kept while the module is running (see
+ * {@link HtmlFormEntryActivator}); otherwise they are fetched every time.
+ */
+public class LocationCatalog {
+
+	private static final LocationCatalog instance = new LocationCatalog();
+
+	private final Map<Boolean, Listing> listings = new ConcurrentHashMap<Boolean, Listing>();
+
+	// bumped on every invalidation, so that locations fetched while one changed aren't kept
+	private final AtomicLong generation = new AtomicLong();
+
+	private volatile boolean enabled = false;
+
+	/**
+	 * @return the catalog used by the form elements and widgets
+	 */
+	public static LocationCatalog getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		invalidate();
+	}
+
+	/**
+	 * @param includeRetired whether to include retired locations
+	 * @param locale the locale to sort names in
+	 * @return the locations, sorted by name
+	 */
+	public SortedLocations getLocations(boolean includeRetired, Locale locale) {
+		Listing listing = enabled ? listings.get(includeRetired) : null;
+		if (listing == null) {
+			long before = generation.get();
+			listing = new Listing(Context.getLocationService().getAllLocations(includeRetired));
+			if (enabled && generation.get() == before)
+				listings.put(includeRetired, listing);
+		}
+		return listing.sortedFor(locale);
+	}
+
+	/**
+	 * Forgets all locations
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		listings.clear();
+	}
+
+	/**
+	 * The ids and names of all (or all non-retired) locations
+	 */
+	private static class Listing {
+
+		private final int[] ids;
+
+		private final String[] names;
+
+		private final Map<Locale, SortedLocations> sorted = new ConcurrentHashMap<Locale, SortedLocations>();
+
+		Listing(List<Location> locations) {
+			ids = new int[locations.size()];
+			names = new String[locations.size()];
+			for (int i = 0; i < ids.length; ++i) {
+				ids[i] = locations.get(i).getLocationId();
+				names[i] = locations.get(i).getName();
+			}
+		}
+
+		SortedLocations sortedFor(Locale locale) {
+			if (locale == null)
+				locale = Locale.getDefault();
+			SortedLocations ret = sorted.get(locale);
+			if (ret == null) {
+				ret = new SortedLocations(locale, this);
+				sorted.put(locale, ret);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * The locations of a listing in name order for one locale
+	 */
+	public static class SortedLocations {
+
+		private final Comparator<String> nameOrder;
+
+		private final int[] ids;
+
+		private final String[] names;
+
+		private final int[] sortedIds;
+
+		private volatile String optionsHtml;
+
+		private volatile String autocompleteScript;
+
+		private volatile String autocompleteSource;
+
+		SortedLocations(Locale locale, Listing listing) {
+			final Collator collator = Collator.getInstance(locale);
+			collator.setStrength(Collator.SECONDARY);
+			nameOrder = new Comparator<String>() {
+
+				public int compare(String left, String right) {
+					return collator.compare(left == null ? "" : left, right == null ? "" : right);
+				}
+			};
+
+			final String[] listingNames = listing.names;
+			Integer[] order = new Integer[listing.ids.length];
+			for (int i = 0; i < order.length; ++i)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				public int compare(Integer left, Integer right) {
+					return nameOrder.compare(listingNames[left], listingNames[right]);
+				}
+			});
+			ids = new int[order.length];
+			names = new String[order.length];
+			for (int i = 0; i < order.length; ++i) {
+				ids[i] = listing.ids[order[i]];
+				names[i] = listingNames[order[i]];
+			}
+			sortedIds = ids.clone();
+			Arrays.sort(sortedIds);
+		}
+
+		public int size() {
+			return ids.length;
+		}
+
+		public boolean contains(Integer locationId) {
+			return locationId != null && Arrays.binarySearch(sortedIds, locationId) >= 0;
+		}
+
+		/**
+		 * @param selectedValue the id (as a string) of the location to mark as selected, if any
+		 * @return a new option for each location, in order
+		 */
+		public List<Option> getOptions(String selectedValue) {
+			List<Option> ret = new ArrayList<Option>(ids.length + 1);
+			for (int i = 0; i < ids.length; ++i) {
+				String value = String.valueOf(ids[i]);
+				ret.add(new Option(names[i], value, value.equals(selectedValue)));
+			}
+			return ret;
+		}
+
+		/**
+		 * Like {@link #getOptions(String)}, but also offers the selected location, in its place, if
+		 * it isn't one of these (e.g. because it has been retired)
+		 *
+		 * @param selected the location to mark as selected, or null
+		 * @return a new option for each location, in order
+		 */
+		public List<Option> getOptions(Location selected) {
+			if (selected == null || selected.getLocationId() == null)
+				return getOptions((String) null);
+			List<Option> ret = getOptions(selected.getLocationId().toString());
+			if (!contains(selected.getLocationId())) {
+				int i = 0;
+				while (i < ret.size() && nameOrder.compare(ret.get(i).getLabel(), selected.getName()) <= 0)
+					++i;
+				ret.add(i, new Option(selected.getName(), selected.getLocationId().toString(), true));
+			}
+			return ret;
+		}
+
+		/**
+		 * @return an escaped {@code <option>} tag for each location, in order, each on a new line, with
+		 *         none selected
+		 */
+		public String getOptionsHtml() {
+			String ret = optionsHtml;
+			if (ret == null) {
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < ids.length; ++i)
+					sb.append("\n<option value=\"" + ids[i] + "\">").append(HtmlUtils.htmlEscape(names[i])).append("</option>");
+				ret = sb.toString();
+				optionsHtml = ret;
+			}
+			return ret;
+		}
+
+		/**
+		 * @return javascript statements, each on a new line, that map each location's name to its id
+		 *         in a locationNameIdMap object
+		 */
+		public String getAutocompleteScript() {
+			String ret = autocompleteScript;
+			if (ret == null) {
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < ids.length; ++i)
+					sb.append("\nlocationNameIdMap[\"" + JavaScriptUtils.javaScriptEscape(names[i]) + "\"] = " + ids[i] + ";");
+				ret = sb.toString();
+				autocompleteScript = ret;
+			}
+			return ret;
+		}
+
+		/**
+		 * @return the escaped names of the locations, in order, quoted and separated by commas, to use
+		 *         as the contents of a javascript array
+		 */
+		public String getAutocompleteSource() {
+			String ret = autocompleteSource;
+			if (ret == null) {
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < ids.length; ++i) {
+					if (i > 0)
+						sb.append(",");
+					sb.append("\"").append(JavaScriptUtils.javaScriptEscape(names[i])).append("\"");
+				}
+				ret = sb.toString();
+				autocompleteSource = ret;
+			}
+			return ret;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.lang.reflect.Method;
+import java.util.regex.Pattern;
+
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.PersonService;
+import org.openmrs.api.ProgramWorkflowService;
+import org.openmrs.api.UserService;
+import org.openmrs.module.htmlformentry.HtmlFormEntryActivator;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Advice on the core metadata services that drops entries from the {@link MetadataResolutionCache}
+ * whenever metadata they could refer to is created, changed, retired or purged, keeps the
+ * {@link ConceptSearchIndexes} up to date as concepts change, and empties the
+ * {@link LocationCatalog} when locations change and the {@link PersonStubDirectory} when users,
+ * roles, providers or people's names change. It is added to the ProviderService by
+ * {@link HtmlFormEntryActivator} where there is one (OpenMRS 1.9+).
+ */
+public class MetadataChangeAdvice implements AfterReturningAdvice {
+
+	public static final String PROVIDER_SERVICE = "org.openmrs.api.ProviderService";
+
+	private static final Pattern MODIFYING_METHOD = Pattern
+	        .compile("^(save|create|update|retire|unretire|purge|delete|void|unvoid).*", Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern PURGING_METHOD = Pattern.compile("^(purge|delete).*", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * @see org.springframework.aop.AfterReturningAdvice#afterReturning(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[], java.lang.Object)
+	 */
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		String name = method.getName();
+		if (!MODIFYING_METHOD.matcher(name).matches())
+			return;
+
+		MetadataResolutionCache cache = MetadataResolutionCache.getInstance();
+		Class<?> service = method.getDeclaringClass();
+		if (ConceptService.class.isAssignableFrom(service)) {
+			if (args != null && args.length > 0 && args[0] instanceof Concept) {
+				Concept concept = (Concept) args[0];
+				// workflows and states can be referred to by a mapping of their concept
+				cache.invalidateConcept(concept.getConceptId());
+				if (PURGING_METHOD.matcher(name).matches())
+					ConceptSearchIndexes.getInstance().conceptPurged(concept.getConceptId());
+				else
+					ConceptSearchIndexes.getInstance().conceptSaved(concept);
+			} else {
+				// e.g. a renamed concept source changes what every mapping of it refers to
+				cache.invalidate(Concept.class);
+				cache.invalidate(ProgramWorkflow.class);
+				cache.invalidate(ProgramWorkflowState.class);
+			}
+		} else if (ProgramWorkflowService.class.isAssignableFrom(service) && !name.contains("PatientProgram")) {
+			cache.invalidate(Program.class);
+			cache.invalidate(ProgramWorkflow.class);
+			cache.invalidate(ProgramWorkflowState.class);
+		} else if (LocationService.class.isAssignableFrom(service)) {
+			cache.invalidate(Location.class);
+			LocationCatalog.getInstance().invalidate();
+		} else if (PatientService.class.isAssignableFrom(service) && name.contains("IdentifierType")) {
+			cache.invalidate(PatientIdentifierType.class);
+		} else if (EncounterService.class.isAssignableFrom(service) && name.contains("EncounterType")) {
+			cache.invalidate(EncounterType.class);
+		} else if (UserService.class.isAssignableFrom(service)) {
+			PersonStubDirectory.getInstance().invalidate();
+		} else if (PersonService.class.isAssignableFrom(service)
+		        && (name.endsWith("Person") || name.endsWith("PersonName"))) {
+			PersonStubDirectory.getInstance().invalidate();
+		} else if (PROVIDER_SERVICE.equals(service.getName())) {
+			PersonStubDirectory.getInstance().invalidate();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.Map;
+
+import org.openmrs.Concept;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.module.htmlformentry.HtmlFormEntryActivator;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+
+/**
+ * Remembers which metadata item a raw identifier from a form (an id, uuid, name or concept mapping
+ * like "CIEL:5089") resolved to, so that {@link HtmlFormEntryUtil#getConcept(String)} and friends can
+ * fetch it by primary key instead of repeating the id/mapping/uuid/name queries on every render.
+ * Identifiers that resolve to nothing are remembered too, but only for a short time, so that
+ * metadata created in the meantime is picked up.
+ * <p/>
+ * Entries are dropped by type when metadata of that type is saved, retired or purged, except that
+ * saving a concept only drops what refers to that concept (see {@link MetadataChangeAdvice}). The cache is only enabled while the module is running (see
+ * {@link HtmlFormEntryActivator}).
+ */
+public class MetadataResolutionCache {
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	public static final long DEFAULT_NEGATIVE_TTL = 60 * 1000;
+
+	private static final MetadataResolutionCache instance = new MetadataResolutionCache(DEFAULT_MAX_SIZE,
+	        DEFAULT_NEGATIVE_TTL);
+
+	private final BoundedCache<String, Resolution> cache;
+
+	private long negativeTtl;
+
+	private volatile boolean enabled = false;
+
+	public MetadataResolutionCache(int maxSize, long negativeTtl) {
+		this.cache = new BoundedCache<String, Resolution>(maxSize);
+		this.negativeTtl = negativeTtl;
+	}
+
+	/**
+	 * @return the cache used by {@link HtmlFormEntryUtil}
+	 */
+	public static MetadataResolutionCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return what identifier was last resolved to for the given type, or null if that isn't known
+	 *         (because it was never resolved, was invalidated, or was a miss that has expired)
+	 */
+	public Resolution get(Class<?> type, String identifier) {
+		if (!enabled || identifier == null)
+			return null;
+		String key = getKey(type, identifier);
+		Resolution resolution = cache.get(key);
+		if (resolution != null && resolution.isExpired()) {
+			cache.remove(key);
+			return null;
+		}
+		return resolution;
+	}
+
+	/**
+	 * Records that identifier resolved to the item of the given type with the given id, or to
+	 * nothing if id is null
+	 */
+	public void put(Class<?> type, String identifier, Integer id) {
+		put(type, identifier, id, null);
+	}
+
+	/**
+	 * Records that identifier resolved to the item of the given type with the given id, or to
+	 * nothing if id is null, and that the item is (or belongs to) the given concept, so that the entry
+	 * can be dropped when that concept changes (see {@link #invalidateConcept(Integer)})
+	 */
+	public void put(Class<?> type, String identifier, Integer id, Integer conceptId) {
+		if (!enabled || identifier == null)
+			return;
+		long expires = id == null ? System.currentTimeMillis() + negativeTtl : Long.MAX_VALUE;
+		cache.put(getKey(type, identifier), new Resolution(id, conceptId, expires));
+	}
+
+	/**
+	 * Forgets everything that was resolved for the given type
+	 */
+	public void invalidate(Class<?> type) {
+		String prefix = type.getName() + "|";
+		for (String key : cache.keySet()) {
+			if (key.startsWith(prefix))
+				cache.remove(key);
+		}
+	}
+
+	/**
+	 * Forgets what was resolved to a concept, or to a workflow or state of that concept, along with the
+	 * concepts, workflows and states that identifiers didn't resolve to, since the concept may match
+	 * those identifiers now
+	 */
+	public void invalidateConcept(Integer conceptId) {
+		if (conceptId == null) {
+			invalidate(Concept.class);
+			invalidate(ProgramWorkflow.class);
+			invalidate(ProgramWorkflowState.class);
+			return;
+		}
+		String[] prefixes = { getKey(Concept.class, ""), getKey(ProgramWorkflow.class, ""),
+		        getKey(ProgramWorkflowState.class, "") };
+		for (Map.Entry<String, Resolution> entry : cache.getEntries().entrySet()) {
+			Resolution resolution = entry.getValue();
+			if (conceptId.equals(resolution.conceptId)) {
+				cache.remove(entry.getKey());
+			} else if (resolution.id == null) {
+				for (String prefix : prefixes) {
+					if (entry.getKey().startsWith(prefix))
+						cache.remove(entry.getKey());
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled)
+			cache.clear();
+	}
+
+	public void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+	}
+
+	/**
+	 * @return the size and hit, miss and eviction counts of the cache
+	 */
+	public Map<String, Long> getStatistics() {
+		return cache.getStatistics();
+	}
+
+	private String getKey(Class<?> type, String identifier) {
+		return type.getName() + "|" + identifier;
+	}
+
+	/**
+	 * The result of resolving an identifier: the id of the item it refers to, or null if it didn't
+	 * refer to anything
+	 */
+	public static class Resolution {
+
+		private final Integer id;
+
+		private final Integer conceptId;
+
+		private final long expires;
+
+		private Resolution(Integer id, Integer conceptId, long expires) {
+			this.id = id;
+			this.conceptId = conceptId;
+			this.expires = expires;
+		}
+
+		public Integer getId() {
+			return id;
+		}
+
+		private boolean isExpired() {
+			return System.currentTimeMillis() > expires;
+		}
+	}
+}
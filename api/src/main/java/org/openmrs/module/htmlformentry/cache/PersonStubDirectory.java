@@ -0,0 +1,285 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.lang.reflect.Method;
+import java.text.Collator;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.beanutils.PropertyUtils;
+import org.openmrs.Person;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryActivator;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.htmlformentry.element.PersonStub;
+
+/**
+ * The users (optionally those with one role) and providers that person dropdowns such as
+ * encounterProvider and person-valued obs offer. Each listing is fetched once and kept as a few
+ * parallel arrays rather than as objects, and is sorted (by family name, then given name) once for
+ * each locale it's shown in. The {@code <option>} tags of each sorted listing are also kept, so
+ * that a dropdown with no default can be rendered with a single append.
+ * <p/>
+ * Everything is dropped when users, roles, providers or people are saved, retired or purged (see
+ * {@link MetadataChangeAdvice}). Listings are only kept while the module is running (see
+ * {@link HtmlFormEntryActivator}); otherwise they are fetched every time.
+ */
+public class PersonStubDirectory {
+
+	private static final String ALL_USERS = "users";
+
+	private static final String USERS_WITH_ROLE = "role:";
+
+	private static final String PROVIDERS = "providers";
+
+	private static final PersonStubDirectory instance = new PersonStubDirectory();
+
+	private final Map<String, Listing> listings = new ConcurrentHashMap<String, Listing>();
+
+	// bumped on every invalidation, so that a listing fetched while something changed isn't kept
+	private final AtomicLong generation = new AtomicLong();
+
+	private volatile boolean enabled = false;
+
+	/**
+	 * @return the directory used by the form elements
+	 */
+	public static PersonStubDirectory getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		invalidate();
+	}
+
+	/**
+	 * @param roleName the role the users must have, or null for all users
+	 * @param locale the locale to sort names in
+	 * @return person stubs for the non-retired users with the given role
+	 */
+	public PersonStubList getUsers(String roleName, Locale locale) {
+		return getListing(roleName == null ? ALL_USERS : USERS_WITH_ROLE + roleName).sortedFor(locale);
+	}
+
+	/**
+	 * Only call this on OpenMRS 1.9 and later, which have providers
+	 *
+	 * @param locale the locale to sort names in
+	 * @return person stubs for all providers that are attached to persons
+	 */
+	public PersonStubList getProviders(Locale locale) {
+		return getListing(PROVIDERS).sortedFor(locale);
+	}
+
+	/**
+	 * Only call this on OpenMRS 1.9 and later, which have providers
+	 *
+	 * @return whether a provider is attached to the given person
+	 */
+	public boolean isProvider(Integer personId) {
+		return personId != null && Arrays.binarySearch(getListing(PROVIDERS).sortedIds, personId) >= 0;
+	}
+
+	/**
+	 * Forgets every listing
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		listings.clear();
+	}
+
+	private Listing getListing(String key) {
+		Listing listing = enabled ? listings.get(key) : null;
+		if (listing == null) {
+			long before = generation.get();
+			listing = new Listing(fetch(key));
+			if (enabled && generation.get() == before)
+				listings.put(key, listing);
+		}
+		return listing;
+	}
+
+	private List<PersonStub> fetch(String key) {
+		HtmlFormEntryService service = Context.getService(HtmlFormEntryService.class);
+		if (ALL_USERS.equals(key))
+			return service.getUsersAsPersonStubs(null);
+		if (key.startsWith(USERS_WITH_ROLE))
+			return service.getUsersAsPersonStubs(key.substring(USERS_WITH_ROLE.length()));
+		return fetchProviders();
+	}
+
+	/**
+	 * Providers were introduced in OpenMRS 1.9, so they're fetched by reflection
+	 */
+	private List<PersonStub> fetchProviders() {
+		try {
+			Object providerService = Context.getService(Context.loadClass("org.openmrs.api.ProviderService"));
+			Method getProvidersMethod = providerService.getClass().getMethod("getAllProviders");
+			@SuppressWarnings("rawtypes")
+			List allProviders = (List) getProvidersMethod.invoke(providerService);
+			List<PersonStub> ret = new ArrayList<PersonStub>();
+			for (Object provider : allProviders) {
+				Person person = (Person) PropertyUtils.getProperty(provider, "person");
+				if (person != null)
+					ret.add(new PersonStub(person));
+			}
+			return ret;
+		}
+		catch (Exception ex) {
+			throw new RuntimeException("Programming error in HTML Form Entry module. This method should be safe!", ex);
+		}
+	}
+
+	/**
+	 * The people in one listing, as parallel arrays
+	 */
+	private static class Listing {
+
+		private final int[] ids;
+
+		private final String[] givenNames;
+
+		private final String[] middleNames;
+
+		private final String[] familyNames;
+
+		private final String[] familyNames2;
+
+		private final int[] sortedIds;
+
+		private final Map<Locale, PersonStubList> sorted = new ConcurrentHashMap<Locale, PersonStubList>();
+
+		Listing(List<PersonStub> stubs) {
+			// a user with several roles or names comes back once for each, but is only offered once
+			Map<Integer, PersonStub> unique = new LinkedHashMap<Integer, PersonStub>();
+			for (PersonStub stub : stubs) {
+				if (stub.getId() != null && !unique.containsKey(stub.getId()))
+					unique.put(stub.getId(), stub);
+			}
+			int n = unique.size();
+			ids = new int[n];
+			givenNames = new String[n];
+			middleNames = new String[n];
+			familyNames = new String[n];
+			familyNames2 = new String[n];
+			int i = 0;
+			for (PersonStub stub : unique.values()) {
+				ids[i] = stub.getId();
+				givenNames[i] = stub.getGivenName();
+				middleNames[i] = stub.getMiddleName();
+				familyNames[i] = stub.getFamilyName();
+				familyNames2[i] = stub.getFamilyName2();
+				++i;
+			}
+			sortedIds = ids.clone();
+			Arrays.sort(sortedIds);
+		}
+
+		PersonStubList sortedFor(Locale locale) {
+			if (locale == null)
+				locale = Locale.getDefault();
+			PersonStubList ret = sorted.get(locale);
+			if (ret == null) {
+				ret = new PersonStubList(this, sortOrder(locale));
+				sorted.put(locale, ret);
+			}
+			return ret;
+		}
+
+		private int[] sortOrder(Locale locale) {
+			final Collator collator = Collator.getInstance(locale);
+			collator.setStrength(Collator.SECONDARY);
+			Integer[] order = new Integer[ids.length];
+			for (int i = 0; i < order.length; ++i)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				public int compare(Integer left, Integer right) {
+					int ret = compareNames(collator, familyNames[left], familyNames[right]);
+					if (ret == 0)
+						ret = compareNames(collator, givenNames[left], givenNames[right]);
+					if (ret == 0)
+						ret = compareNames(collator, middleNames[left], middleNames[right]);
+					if (ret == 0)
+						ret = ids[left] < ids[right] ? -1 : (ids[left] == ids[right] ? 0 : 1);
+					return ret;
+				}
+			});
+			int[] ret = new int[order.length];
+			for (int i = 0; i < order.length; ++i)
+				ret[i] = order[i];
+			return ret;
+		}
+
+		private static int compareNames(Collator collator, String left, String right) {
+			if (left == null)
+				return right == null ? 0 : -1;
+			if (right == null)
+				return 1;
+			return collator.compare(left, right);
+		}
+	}
+
+	/**
+	 * A read-only view of a listing in the order for one locale. Each element is a new
+	 * {@link PersonStub}.
+	 */
+	public static class PersonStubList extends AbstractList<PersonStub> implements RandomAccess {
+
+		private final Listing listing;
+
+		private final int[] order;
+
+		private volatile String optionsHtml;
+
+		PersonStubList(Listing listing, int[] order) {
+			this.listing = listing;
+			this.order = order;
+		}
+
+		@Override
+		public PersonStub get(int index) {
+			int i = order[index];
+			PersonStub ret = new PersonStub(listing.ids[i]);
+			ret.setGivenName(listing.givenNames[i]);
+			ret.setMiddleName(listing.middleNames[i]);
+			ret.setFamilyName(listing.familyNames[i]);
+			ret.setFamilyName2(listing.familyNames2[i]);
+			return ret;
+		}
+
+		@Override
+		public int size() {
+			return order.length;
+		}
+
+		/**
+		 * @return an {@code <option>} tag for each person, in order, each on a new line, with none
+		 *         selected
+		 */
+		public String getOptionsHtml() {
+			String ret = optionsHtml;
+			if (ret == null) {
+				StringBuilder sb = new StringBuilder();
+				for (PersonStub p : this)
+					sb.append("\n<option value=\"" + p.getId() + "\">").append(p.getDisplayValue()).append("</option>");
+				ret = sb.toString();
+				optionsHtml = ret;
+			}
+			return ret;
+		}
+	}
+}
@@ -0,0 +1,415 @@
+package org.openmrs.module.htmlformentry.cohort;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A compressed set of non-negative ids, such as the people with an attribute or the patients in a
+ * program. Ids are kept in chunks of 65536 by their high 16 bits; a chunk with few ids is a sorted
+ * array of their low 16 bits, and a chunk with many is a bitmap, so that a set of a few hundred
+ * thousand ids takes a few hundred kilobytes rather than tens of megabytes of boxed Integers.
+ * <p/>
+ * {@link #and(IdSet)}, {@link #or(IdSet)} and {@link #andNot(IdSet)} work chunk by chunk and return
+ * new sets. Iteration is in ascending order.
+ */
+public class IdSet extends AbstractSet<Integer> {
+
+	// a chunk with more ids than this is kept as a bitmap, which then takes less space
+	private static final int MAX_ARRAY_SIZE = 4096;
+
+	private static final int BITMAP_WORDS = 65536 / 64;
+
+	// the high 16 bits of the ids in each chunk, ascending
+	private char[] keys = new char[4];
+
+	private Chunk[] chunks = new Chunk[4];
+
+	private int chunkCount = 0;
+
+	private int size = 0;
+
+	public IdSet() {
+	}
+
+	/**
+	 * @param ids
+	 * @return a set of the given ids, ignoring nulls
+	 */
+	public static IdSet of(Iterable<Integer> ids) {
+		IdSet ret = new IdSet();
+		for (Integer id : ids) {
+			if (id != null)
+				ret.add(id.intValue());
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds an id. This is quickest when ids are added in ascending order.
+	 *
+	 * @param id a non-negative id
+	 * @return whether the id wasn't already in the set
+	 */
+	public boolean add(int id) {
+		if (id < 0)
+			throw new IllegalArgumentException("Ids must not be negative: " + id);
+		char key = (char) (id >>> 16);
+		int i = chunkCount > 0 && keys[chunkCount - 1] == key ? chunkCount - 1 : indexOf(key);
+		if (i < 0) {
+			i = -i - 1;
+			insertChunk(i, key, new Chunk());
+		}
+		Chunk chunk = chunks[i];
+		if (!chunk.add((char) id))
+			return false;
+		size++;
+		return true;
+	}
+
+	@Override
+	public boolean add(Integer id) {
+		return add(id.intValue());
+	}
+
+	public boolean contains(int id) {
+		if (id < 0)
+			return false;
+		int i = indexOf((char) (id >>> 16));
+		return i >= 0 && chunks[i].contains((char) id);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Integer && contains(((Integer) o).intValue());
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return a new set of the ids in both this set and the other one
+	 */
+	public IdSet and(IdSet other) {
+		IdSet ret = new IdSet();
+		int i = 0, j = 0;
+		while (i < chunkCount && j < other.chunkCount) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				ret.appendChunk(keys[i], chunks[i].and(other.chunks[j]));
+				i++;
+				j++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return a new set of the ids in either this set or the other one
+	 */
+	public IdSet or(IdSet other) {
+		IdSet ret = new IdSet();
+		int i = 0, j = 0;
+		while (i < chunkCount || j < other.chunkCount) {
+			if (j == other.chunkCount || (i < chunkCount && keys[i] < other.keys[j])) {
+				ret.appendChunk(keys[i], chunks[i].copy());
+				i++;
+			} else if (i == chunkCount || keys[i] > other.keys[j]) {
+				ret.appendChunk(other.keys[j], other.chunks[j].copy());
+				j++;
+			} else {
+				ret.appendChunk(keys[i], chunks[i].or(other.chunks[j]));
+				i++;
+				j++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return a new set of the ids in this set that aren't in the other one
+	 */
+	public IdSet andNot(IdSet other) {
+		IdSet ret = new IdSet();
+		int j = 0;
+		for (int i = 0; i < chunkCount; i++) {
+			while (j < other.chunkCount && other.keys[j] < keys[i])
+				j++;
+			if (j < other.chunkCount && other.keys[j] == keys[i])
+				ret.appendChunk(keys[i], chunks[i].andNot(other.chunks[j]));
+			else
+				ret.appendChunk(keys[i], chunks[i].copy());
+		}
+		return ret;
+	}
+
+	@Override
+	public Iterator<Integer> iterator() {
+		return new Iterator<Integer>() {
+
+			private int chunk = 0;
+
+			// the next low 16 bits to look from in the current chunk
+			private int from = 0;
+
+			private int next = advance();
+
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			public Integer next() {
+				if (next < 0)
+					throw new NoSuchElementException();
+				int ret = next;
+				next = advance();
+				return ret;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private int advance() {
+				while (chunk < chunkCount) {
+					int low = from <= 0xFFFF ? chunks[chunk].nextValue(from) : -1;
+					if (low >= 0) {
+						from = low + 1;
+						return (keys[chunk] << 16) | low;
+					}
+					chunk++;
+					from = 0;
+				}
+				return -1;
+			}
+		};
+	}
+
+	private int indexOf(char key) {
+		return Arrays.binarySearch(keys, 0, chunkCount, key);
+	}
+
+	private void insertChunk(int i, char key, Chunk chunk) {
+		if (chunkCount == keys.length) {
+			keys = Arrays.copyOf(keys, chunkCount * 2);
+			chunks = Arrays.copyOf(chunks, chunkCount * 2);
+		}
+		System.arraycopy(keys, i, keys, i + 1, chunkCount - i);
+		System.arraycopy(chunks, i, chunks, i + 1, chunkCount - i);
+		keys[i] = key;
+		chunks[i] = chunk;
+		chunkCount++;
+	}
+
+	// adds a chunk after all the others, unless it's empty
+	private void appendChunk(char key, Chunk chunk) {
+		if (chunk.cardinality == 0)
+			return;
+		insertChunk(chunkCount, key, chunk);
+		size += chunk.cardinality;
+	}
+
+	/**
+	 * The low 16 bits of the ids that share their high 16 bits, as a sorted array or, once there are
+	 * more than {@link IdSet#MAX_ARRAY_SIZE} of them, as a bitmap
+	 */
+	private static class Chunk {
+
+		private char[] values = new char[4];
+
+		private long[] bitmap;
+
+		private int cardinality = 0;
+
+		boolean contains(char value) {
+			if (bitmap != null)
+				return (bitmap[value >>> 6] & (1L << value)) != 0;
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		boolean add(char value) {
+			if (bitmap != null) {
+				long bit = 1L << value;
+				if ((bitmap[value >>> 6] & bit) != 0)
+					return false;
+				bitmap[value >>> 6] |= bit;
+				cardinality++;
+				return true;
+			}
+			int i = cardinality > 0 && values[cardinality - 1] < value ? -cardinality - 1 : Arrays.binarySearch(values, 0,
+			    cardinality, value);
+			if (i >= 0)
+				return false;
+			if (cardinality == MAX_ARRAY_SIZE) {
+				toBitmap();
+				return add(value);
+			}
+			i = -i - 1;
+			if (cardinality == values.length)
+				values = Arrays.copyOf(values, Math.min(cardinality * 2, MAX_ARRAY_SIZE));
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = value;
+			cardinality++;
+			return true;
+		}
+
+		/**
+		 * @return the smallest value in the chunk that is at least from, or -1 if there is none
+		 */
+		int nextValue(int from) {
+			if (bitmap != null) {
+				int word = from >>> 6;
+				long bits = bitmap[word] & (-1L << from);
+				while (bits == 0) {
+					if (++word == BITMAP_WORDS)
+						return -1;
+					bits = bitmap[word];
+				}
+				return (word << 6) + Long.numberOfTrailingZeros(bits);
+			}
+			int i = Arrays.binarySearch(values, 0, cardinality, (char) from);
+			if (i < 0)
+				i = -i - 1;
+			return i < cardinality ? values[i] : -1;
+		}
+
+		Chunk copy() {
+			Chunk ret = new Chunk();
+			ret.cardinality = cardinality;
+			if (bitmap != null)
+				ret.bitmap = bitmap.clone();
+			else
+				ret.values = Arrays.copyOf(values, Math.max(cardinality, 1));
+			return ret;
+		}
+
+		Chunk and(Chunk other) {
+			if (bitmap != null && other.bitmap != null) {
+				Chunk ret = new Chunk();
+				ret.bitmap = new long[BITMAP_WORDS];
+				for (int w = 0; w < BITMAP_WORDS; w++) {
+					ret.bitmap[w] = bitmap[w] & other.bitmap[w];
+					ret.cardinality += Long.bitCount(ret.bitmap[w]);
+				}
+				return ret.compact();
+			}
+			// look up each value of the array in the other chunk
+			Chunk array = bitmap == null ? this : other;
+			Chunk lookup = array == this ? other : this;
+			Chunk ret = new Chunk();
+			ret.values = new char[Math.max(array.cardinality, 1)];
+			for (int i = 0; i < array.cardinality; i++) {
+				if (lookup.contains(array.values[i]))
+					ret.values[ret.cardinality++] = array.values[i];
+			}
+			return ret;
+		}
+
+		Chunk or(Chunk other) {
+			if (bitmap == null && other.bitmap == null && cardinality + other.cardinality <= MAX_ARRAY_SIZE) {
+				// merge the two sorted arrays
+				Chunk ret = new Chunk();
+				ret.values = new char[Math.max(cardinality + other.cardinality, 1)];
+				int i = 0, j = 0;
+				while (i < cardinality || j < other.cardinality) {
+					char value;
+					if (j == other.cardinality || (i < cardinality && values[i] < other.values[j]))
+						value = values[i++];
+					else if (i == cardinality || values[i] > other.values[j])
+						value = other.values[j++];
+					else {
+						value = values[i++];
+						j++;
+					}
+					ret.values[ret.cardinality++] = value;
+				}
+				return ret;
+			}
+			Chunk ret = new Chunk();
+			ret.bitmap = new long[BITMAP_WORDS];
+			ret.setBits(this);
+			ret.setBits(other);
+			return ret;
+		}
+
+		Chunk andNot(Chunk other) {
+			if (bitmap == null) {
+				Chunk ret = new Chunk();
+				ret.values = new char[Math.max(cardinality, 1)];
+				for (int i = 0; i < cardinality; i++) {
+					if (!other.contains(values[i]))
+						ret.values[ret.cardinality++] = values[i];
+				}
+				return ret;
+			}
+			Chunk ret = copy();
+			if (other.bitmap != null) {
+				ret.cardinality = 0;
+				for (int w = 0; w < BITMAP_WORDS; w++) {
+					ret.bitmap[w] &= ~other.bitmap[w];
+					ret.cardinality += Long.bitCount(ret.bitmap[w]);
+				}
+			} else {
+				for (int i = 0; i < other.cardinality; i++) {
+					char value = other.values[i];
+					long bit = 1L << value;
+					if ((ret.bitmap[value >>> 6] & bit) != 0) {
+						ret.bitmap[value >>> 6] &= ~bit;
+						ret.cardinality--;
+					}
+				}
+			}
+			return ret.compact();
+		}
+
+		// ors the values of another chunk into this bitmap chunk
+		private void setBits(Chunk other) {
+			if (other.bitmap != null) {
+				cardinality = 0;
+				for (int w = 0; w < BITMAP_WORDS; w++) {
+					bitmap[w] |= other.bitmap[w];
+					cardinality += Long.bitCount(bitmap[w]);
+				}
+			} else {
+				for (int i = 0; i < other.cardinality; i++) {
+					char value = other.values[i];
+					long bit = 1L << value;
+					if ((bitmap[value >>> 6] & bit) == 0) {
+						bitmap[value >>> 6] |= bit;
+						cardinality++;
+					}
+				}
+			}
+		}
+
+		private void toBitmap() {
+			bitmap = new long[BITMAP_WORDS];
+			for (int i = 0; i < cardinality; i++)
+				bitmap[values[i] >>> 6] |= 1L << values[i];
+			values = null;
+		}
+
+		// turns a bitmap chunk with few values back into an array
+		private Chunk compact() {
+			if (bitmap != null && cardinality <= MAX_ARRAY_SIZE) {
+				values = new char[Math.max(cardinality, 1)];
+				int n = 0;
+				for (int w = 0; w < BITMAP_WORDS; w++) {
+					long bits = bitmap[w];
+					while (bits != 0) {
+						values[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(bits));
+						bits &= bits - 1;
+					}
+				}
+				bitmap = null;
+			}
+			return this;
+		}
+	}
+}
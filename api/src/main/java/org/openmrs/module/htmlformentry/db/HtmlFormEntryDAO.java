@@ -1,12 +1,20 @@
 package org.openmrs.module.htmlformentry.db;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import org.openmrs.Encounter;
 import org.openmrs.Form;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.Program;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.htmlformentry.cohort.IdSet;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 
 /**
@@ -77,8 +85,70 @@ public interface HtmlFormEntryDAO {
 	public OpenmrsObject getItemByName(Class<? extends OpenmrsMetadata> type, String name);
 	
 	/**
-     * @see HtmlFormEntryService#getPersonIdsHavingAttributes(String attributeId, String attributeValue)
-     */      
-	public List<Integer> getPersonIdHavingAttributes(String attributeId, String attributeValue);
+	 * @see HtmlFormEntryService#getItemsByUuid(Class, Collection)
+	 */
+	public Map<String, OpenmrsObject> getItemsByUuid(Class<? extends OpenmrsObject> type, Collection<String> uuids);
+	
+	/**
+	 * @see HtmlFormEntryService#getItemsById(Class, Collection)
+	 */
+	public Map<Integer, OpenmrsObject> getItemsById(Class<? extends OpenmrsObject> type, Collection<Integer> ids);
+	
+	/**
+	 * @see HtmlFormEntryService#getItemsByName(Class, Collection)
+	 */
+	public Map<String, OpenmrsObject> getItemsByName(Class<? extends OpenmrsMetadata> type, Collection<String> names);
+	
+	/**
+	 * @see HtmlFormEntryService#getPersonIdSetHavingAttribute(String, String)
+	 */
+	public IdSet getPersonIdSetHavingAttribute(String attribute, String attributeValue);
+	
+	/**
+	 * @see HtmlFormEntryService#getPatientIdSetInProgram(Program)
+	 */
+	public IdSet getPatientIdSetInProgram(Program program);
+	
+	/**
+	 * Returns stubs for the people with all the given attributes who are in all the given programs,
+	 * sorted by family name, given name and middle name, with the name
+	 * {@link org.openmrs.Person#getPersonName()} would pick, in a single query
+	 * 
+	 * @param attributes the names of the person attribute types people must have, possibly empty
+	 * @param attributeValues optional values for each attribute; a missing or null value matches any
+	 * @param programs the programs people must be in, possibly empty
+	 * @param personIdsToExclude optional people to leave out
+	 * @param firstResult optional index of the first stub to return
+	 * @param maxResults optional maximum number of stubs to return
+	 */
+	public List<PersonStub> getPeopleAsPersonStubs(List<String> attributes, List<String> attributeValues,
+	                                               List<Program> programs, Collection<Integer> personIdsToExclude,
+	                                               Integer firstResult, Integer maxResults);
+
+	/**
+	 * @see HtmlFormEntryService#getEncountersForForm(Form, Date, Date, Integer, int)
+	 */
+	public List<Encounter> getEncountersForForm(Form form, Date fromDate, Date toDate, Integer afterEncounterId, int maxResults);
+
+	/**
+	 * @see HtmlFormEntryService#getEncounterIdsForForm(Form, Date, Date, Integer, int)
+	 */
+	public List<Integer> getEncounterIdsForForm(Form form, Date fromDate, Date toDate, Integer afterEncounterId, int maxResults);
+
+	/**
+	 * @see HtmlFormEntryService#hasEncounterForHtmlForm(Integer, Integer, Date)
+	 */
+	public boolean hasEncounter(Integer patientId, Form form, Date encounterDatetime);
+
+	/**
+	 * @return the non-voided program enrollments of all the given patients
+	 */
+	public List<PatientProgram> getPatientPrograms(Collection<Patient> patients);
+
+	/**
+	 * @return how many jdbc statements hibernate has prepared since statistics were switched on,
+	 *         across all sessions, or -1 if hibernate statistics are off
+	 */
+	public long getPreparedStatementCount();
 
 }
@@ -1,20 +1,37 @@
 package org.openmrs.module.htmlformentry.db.hibernate;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
 import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Expression;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.stat.Statistics;
 import org.hibernate.transform.Transformers;
+import org.openmrs.Encounter;
 import org.openmrs.Form;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.Program;
 import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.cohort.IdSet;
 import org.openmrs.module.htmlformentry.db.HtmlFormEntryDAO;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 
@@ -25,6 +42,9 @@ public class HibernateHtmlFormEntryDAO implements HtmlFormEntryDAO {
 
 	private static Log log = LogFactory.getLog(HibernateHtmlFormEntryDAO.class);
 	
+    // the most values to put in one IN clause
+    private static final int MAX_VALUES_PER_QUERY = 500;
+	
     private SessionFactory sessionFactory;
     
     public void setSessionFactory(SessionFactory sessionFactory) {
@@ -135,13 +155,257 @@ public class HibernateHtmlFormEntryDAO implements HtmlFormEntryDAO {
     }
     
     @Override
+    public Map<String, OpenmrsObject> getItemsByUuid(Class<? extends OpenmrsObject> type, Collection<String> uuids) {
+        Map<String, OpenmrsObject> ret = new HashMap<String, OpenmrsObject>();
+        try {
+            List<OpenmrsObject> found = getItemsByProperty(type, "uuid", uuids);
+            for (String uuid : uuids) {
+                List<OpenmrsObject> matches = new ArrayList<OpenmrsObject>();
+                for (OpenmrsObject item : found) {
+                    if (uuid.equalsIgnoreCase(item.getUuid()))
+                        matches.add(item);
+                }
+                if (matches.size() == 1)
+                    ret.put(uuid, matches.get(0));
+            }
+        }
+        catch(Exception e) {
+            log.error("Error fetching items by uuid:" + e);
+        }
+        return ret;
+    }
+    
+    @Override
+    public Map<Integer, OpenmrsObject> getItemsById(Class<? extends OpenmrsObject> type, Collection<Integer> ids) {
+        Map<Integer, OpenmrsObject> ret = new HashMap<Integer, OpenmrsObject>();
+        try {
+            String idProperty = sessionFactory.getClassMetadata(type).getIdentifierPropertyName();
+            for (OpenmrsObject item : getItemsByProperty(type, idProperty, ids)) {
+                ret.put(item.getId(), item);
+            }
+        }
+        catch(Exception e) {
+            log.error("Error fetching items by id:" + e);
+        }
+        return ret;
+    }
+    
+    @Override
+    public Map<String, OpenmrsObject> getItemsByName(Class<? extends OpenmrsMetadata> type, Collection<String> names) {
+        Map<String, OpenmrsObject> ret = new HashMap<String, OpenmrsObject>();
+        // we use a try/catch here to handle oddities like "Role" which don't have a directly-referenceable name property
+        try {
+            List<OpenmrsObject> found = getItemsByProperty(type, "name", names);
+            for (String name : names) {
+                // the database may or may not compare names case-sensitively, so prefer an exact match
+                List<OpenmrsObject> matches = new ArrayList<OpenmrsObject>();
+                for (OpenmrsObject item : found) {
+                    if (name.equals(((OpenmrsMetadata) item).getName()))
+                        matches.add(item);
+                }
+                if (matches.isEmpty()) {
+                    for (OpenmrsObject item : found) {
+                        if (name.equalsIgnoreCase(((OpenmrsMetadata) item).getName()))
+                            matches.add(item);
+                    }
+                }
+                // as with getItemByName, a name that more than one item has isn't found
+                if (matches.size() == 1)
+                    ret.put(name, matches.get(0));
+            }
+        }
+        catch(Exception e) {
+            log.error("Error fetching items by name:" + e);
+        }
+        return ret;
+    }
+    
+    /**
+     * Fetches the items of a type that have any of the given values of a property, with one query for
+     * each {@link #MAX_VALUES_PER_QUERY} values
+     */
     @SuppressWarnings("unchecked")
-	public List<Integer> getPersonIdHavingAttributes(String attribute, String attributeValue) {
-	    String query =  "select distinct(pa.person_id) from person_attribute pa, person_attribute_type pat where pa.person_attribute_type_id = pat.person_attribute_type_id and pat.name='" + attribute + "'";
-		if(attributeValue != null)
-		{
-			query = query + " and value='" + attributeValue + "'";
-		}
-	    return (List<Integer>)sessionFactory.getCurrentSession().createSQLQuery(query).list();
+    private List<OpenmrsObject> getItemsByProperty(Class<?> type, String property, Collection<?> values) {
+        List<OpenmrsObject> ret = new ArrayList<OpenmrsObject>();
+        List<Object> remaining = new ArrayList<Object>(values);
+        for (int from = 0; from < remaining.size(); from += MAX_VALUES_PER_QUERY) {
+            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(type);
+            criteria.add(Restrictions.in(property, remaining.subList(from, Math.min(from + MAX_VALUES_PER_QUERY, remaining.size()))));
+            criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+            ret.addAll(criteria.list());
+        }
+        return ret;
+    }
+    
+    @Override
+    public IdSet getPersonIdSetHavingAttribute(String attribute, String attributeValue) {
+        String query = "select pa.person_id from person_attribute pa, person_attribute_type pat"
+                + " where pa.person_attribute_type_id = pat.person_attribute_type_id and pat.name = :attribute";
+        if (attributeValue != null)
+            query += " and pa.value = :attributeValue";
+        query += " order by pa.person_id";
+        
+        SQLQuery sqlQuery = sessionFactory.getCurrentSession().createSQLQuery(query);
+        sqlQuery.setString("attribute", attribute);
+        if (attributeValue != null)
+            sqlQuery.setString("attributeValue", attributeValue);
+        return scrollIds(sqlQuery, "person_id");
+    }
+    
+    @Override
+    public IdSet getPatientIdSetInProgram(Program program) {
+        // the same patients as PatientSetService.getPatientsInProgram(program, null, null)
+        SQLQuery sqlQuery = sessionFactory.getCurrentSession().createSQLQuery(
+            "select pp.patient_id from patient_program pp inner join patient p on pp.patient_id = p.patient_id and p.voided = 0"
+                    + " where pp.voided = 0 and pp.program_id = :programId order by pp.patient_id");
+        sqlQuery.setInteger("programId", program.getProgramId());
+        return scrollIds(sqlQuery, "patient_id");
+    }
+    
+    /**
+     * Reads the ids a query returns into a set as they are streamed from the database, rather than
+     * as a list of them
+     */
+    private IdSet scrollIds(SQLQuery sqlQuery, String column) {
+        sqlQuery.addScalar(column, Hibernate.INTEGER);
+        IdSet ret = new IdSet();
+        ScrollableResults results = sqlQuery.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (results.next()) {
+                Integer id = results.getInteger(0);
+                if (id != null)
+                    ret.add(id.intValue());
+            }
+        }
+        finally {
+            results.close();
+        }
+        return ret;
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<PersonStub> getPeopleAsPersonStubs(List<String> attributes, List<String> attributeValues,
+                                                   List<Program> programs, Collection<Integer> personIdsToExclude,
+                                                   Integer firstResult, Integer maxResults) {
+        // join each person to their preferred non-voided name, or to their first non-voided name if none is preferred
+        StringBuilder query = new StringBuilder(
+                "select p.person_id as id, pn.given_name as givenName, pn.family_name as familyName, pn.middle_name as middleName, pn.family_name2 as familyName2"
+                + " from person p left join person_name pn on pn.person_id = p.person_id and pn.voided = 0"
+                + " and not exists (select better.person_name_id from person_name better where better.person_id = pn.person_id and better.voided = 0"
+                + " and (better.preferred > pn.preferred or (better.preferred = pn.preferred and better.person_name_id < pn.person_name_id)))");
+        
+        // the filters are applied in the query, rather than by binding the ids of everyone who matches them
+        String clause = " where ";
+        for (int i = 0; i < attributes.size(); i++) {
+            query.append(clause).append("exists (select pa.person_id from person_attribute pa inner join person_attribute_type pat")
+                .append(" on pa.person_attribute_type_id = pat.person_attribute_type_id")
+                .append(" where pa.person_id = p.person_id and pat.name = :attribute").append(i);
+            if (getAttributeValue(attributeValues, i) != null)
+                query.append(" and pa.value = :attributeValue").append(i);
+            query.append(")");
+            clause = " and ";
+        }
+        for (int i = 0; i < programs.size(); i++) {
+            // the same patients as PatientSetService.getPatientsInProgram(program, null, null)
+            query.append(clause).append("exists (select pp.patient_id from patient_program pp inner join patient pt")
+                .append(" on pp.patient_id = pt.patient_id and pt.voided = 0")
+                .append(" where pp.patient_id = p.person_id and pp.voided = 0 and pp.program_id = :programId").append(i)
+                .append(")");
+            clause = " and ";
+        }
+        if (personIdsToExclude != null && !personIdsToExclude.isEmpty())
+            query.append(clause).append("p.person_id not in (:personIdsToExclude)");
+        query.append(" order by pn.family_name, pn.given_name, pn.middle_name, p.person_id");
+        
+        SQLQuery sqlQuery = sessionFactory.getCurrentSession().createSQLQuery(query.toString());
+        sqlQuery.addScalar("id")
+            .addScalar("givenName")
+            .addScalar("familyName")
+            .addScalar("middleName")
+            .addScalar("familyName2")
+            .setResultTransformer(Transformers.aliasToBean(PersonStub.class));
+        for (int i = 0; i < attributes.size(); i++) {
+            sqlQuery.setString("attribute" + i, attributes.get(i));
+            if (getAttributeValue(attributeValues, i) != null)
+                sqlQuery.setString("attributeValue" + i, getAttributeValue(attributeValues, i));
+        }
+        for (int i = 0; i < programs.size(); i++) {
+            sqlQuery.setInteger("programId" + i, programs.get(i).getProgramId());
+        }
+        if (personIdsToExclude != null && !personIdsToExclude.isEmpty())
+            sqlQuery.setParameterList("personIdsToExclude", personIdsToExclude);
+        if (firstResult != null)
+            sqlQuery.setFirstResult(firstResult);
+        if (maxResults != null)
+            sqlQuery.setMaxResults(maxResults);
+        return (List<PersonStub>) sqlQuery.list();
+    }
+    
+    private static String getAttributeValue(List<String> attributeValues, int i) {
+        return attributeValues != null && attributeValues.size() > i ? attributeValues.get(i) : null;
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Encounter> getEncountersForForm(Form form, Date fromDate, Date toDate, Integer afterEncounterId, int maxResults) {
+        return (List<Encounter>) createEncountersForFormCriteria(form, fromDate, toDate, afterEncounterId, maxResults).list();
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Integer> getEncounterIdsForForm(Form form, Date fromDate, Date toDate, Integer afterEncounterId, int maxResults) {
+        Criteria crit = createEncountersForFormCriteria(form, fromDate, toDate, afterEncounterId, maxResults);
+        crit.setProjection(Projections.property("encounterId"));
+        return (List<Integer>) crit.list();
+    }
+    
+    @Override
+    public boolean hasEncounter(Integer patientId, Form form, Date encounterDatetime) {
+        // answered from the (patient_id, form_id, encounter_datetime) index, however many encounters the patient has
+        Criteria crit = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
+        crit.createAlias("patient", "p");
+        crit.add(Restrictions.eq("p.patientId", patientId));
+        crit.add(Restrictions.eq("form", form));
+        crit.add(Restrictions.eq("encounterDatetime", encounterDatetime));
+        crit.add(Restrictions.eq("voided", false));
+        crit.setProjection(Projections.property("encounterId"));
+        crit.setMaxResults(1);
+        return crit.uniqueResult() != null;
+    }
+    
+    private Criteria createEncountersForFormCriteria(Form form, Date fromDate, Date toDate, Integer afterEncounterId, int maxResults) {
+        Criteria crit = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
+        crit.add(Restrictions.eq("form", form));
+        crit.add(Restrictions.eq("voided", false));
+        if (fromDate != null)
+            crit.add(Restrictions.ge("encounterDatetime", fromDate));
+        if (toDate != null)
+            crit.add(Restrictions.le("encounterDatetime", toDate));
+        if (afterEncounterId != null)
+            crit.add(Restrictions.gt("encounterId", afterEncounterId));
+        crit.addOrder(Order.asc("encounterId"));
+        crit.setMaxResults(maxResults);
+        return crit;
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<PatientProgram> getPatientPrograms(Collection<Patient> patients) {
+        if (patients.isEmpty())
+            return Collections.emptyList();
+        Criteria crit = sessionFactory.getCurrentSession().createCriteria(PatientProgram.class);
+        crit.add(Restrictions.in("patient", patients));
+        crit.add(Restrictions.eq("voided", false));
+        return (List<PatientProgram>) crit.list();
+    }
+    
+    @Override
+    public long getPreparedStatementCount() {
+        // statistics are shared by every session, so they are only read, never switched on here
+        Statistics statistics = sessionFactory.getStatistics();
+        if (!statistics.isStatisticsEnabled())
+            return -1;
+        return statistics.getPrepareStatementCount();
     }
 }
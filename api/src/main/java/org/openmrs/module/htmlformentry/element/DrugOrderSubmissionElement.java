@@ -323,35 +323,28 @@ public class DrugOrderSubmissionElement implements HtmlGeneratorElement,
 	        context.registerErrorWidget(discontinuedReasonWidget, discontinuedReasonErrorWidget);
 		}
 		// populate values drug order from database (VIEW, EDIT)
-		if (context.getMode() != Mode.ENTER && context.getExistingOrders() != null) {		
-			for (Drug drug : drugsUsedAsKey) {
-	            if (context.getExistingOrders().containsKey(drug.getConcept())) {
-	            		//this will return null if Order is not a DrugOrder even if matched by Concept
-	    			    DrugOrder drugOrder = (DrugOrder) context.removeExistingDrugOrder(drug);
-	    			    if (drugOrder != null){
-    	    				existingOrder = drugOrder;
-    	    				if (drugWidget instanceof DropdownWidget){
-    	    				    drugWidget.setInitialValue(drugOrder.getDrug().getDrugId());
-    	    				} else {
-    	    				    if (((CheckboxWidget) drugWidget).getValue().equals(drugOrder.getDrug().getDrugId().toString()))
-    	    				        ((CheckboxWidget) drugWidget).setInitialValue("CHECKED");
-    	    				}
-    	    				startDateWidget.setInitialValue(drugOrder.getStartDate());
-    	    				if (!hideDoseAndFrequency){
-    	    				    doseWidget.setInitialValue(drugOrder.getDose());
-    	    				    frequencyWidget.setInitialValue(parseFrequencyDays(drugOrder.getFrequency()));
-    	    				    frequencyWeekWidget.setInitialValue(parseFrequencyWeek(drugOrder.getFrequency()));
-    	    				}
-    	    				if (!usingDurationField){
-    	    				    discontinuedDateWidget.setInitialValue(drugOrder.getDiscontinuedDate());
-    	    				    if (discontinuedReasonWidget != null && drugOrder.getDiscontinuedReason() != null)
-    	    				        discontinuedReasonWidget.setInitialValue(drugOrder.getDiscontinuedReason().getConceptId());
-    	    				}
-    	    				break;
-	    			    }
-	    				
-	            }
-            }	
+		if (context.getMode() != Mode.ENTER && context.getExistingOrders() != null) {
+			DrugOrder drugOrder = findExistingOrder(context);
+			if (drugOrder != null) {
+				existingOrder = drugOrder;
+				if (drugWidget instanceof DropdownWidget){
+				    drugWidget.setInitialValue(drugOrder.getDrug().getDrugId());
+				} else {
+				    if (((CheckboxWidget) drugWidget).getValue().equals(drugOrder.getDrug().getDrugId().toString()))
+				        ((CheckboxWidget) drugWidget).setInitialValue("CHECKED");
+				}
+				startDateWidget.setInitialValue(drugOrder.getStartDate());
+				if (!hideDoseAndFrequency){
+				    doseWidget.setInitialValue(drugOrder.getDose());
+				    frequencyWidget.setInitialValue(parseFrequencyDays(drugOrder.getFrequency()));
+				    frequencyWeekWidget.setInitialValue(parseFrequencyWeek(drugOrder.getFrequency()));
+				}
+				if (!usingDurationField){
+				    discontinuedDateWidget.setInitialValue(drugOrder.getDiscontinuedDate());
+				    if (discontinuedReasonWidget != null && drugOrder.getDiscontinuedReason() != null)
+				        discontinuedReasonWidget.setInitialValue(drugOrder.getDiscontinuedReason().getConceptId());
+				}
+			}
 		}
 		
         instructionsLabel = parameters.get(FIELD_INSTRUCTIONS_LABEL);
@@ -704,5 +697,25 @@ public class DrugOrderSubmissionElement implements HtmlGeneratorElement,
 		return existingOrder;
 	}
 	
+	/**
+	 * Finds the existing drug order that this element should display, among the orders of the
+	 * context's existing encounter that haven't already been claimed by another element, and
+	 * removes it from the context
+	 * 
+	 * @param context
+	 * @return the first order of one of this element's drugs, or null if there is none
+	 */
+	public DrugOrder findExistingOrder(FormEntryContext context) {
+		for (Drug drug : drugsUsedAsKey) {
+			if (context.getExistingOrders().containsKey(drug.getConcept())) {
+				//this will return null if Order is not a DrugOrder even if matched by Concept
+				DrugOrder drugOrder = (DrugOrder) context.removeExistingDrugOrder(drug);
+				if (drugOrder != null)
+					return drugOrder;
+			}
+		}
+		return null;
+	}
+	
 	
 }
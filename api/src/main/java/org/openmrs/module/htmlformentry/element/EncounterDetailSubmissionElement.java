@@ -1,6 +1,5 @@
 package org.openmrs.module.htmlformentry.element;
 
-import org.apache.commons.beanutils.PropertyUtils;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
 import org.openmrs.Location;
@@ -11,9 +10,10 @@ import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.FormSubmissionError;
-import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
+import org.openmrs.module.htmlformentry.cache.LocationCatalog;
+import org.openmrs.module.htmlformentry.cache.PersonStubDirectory;
 import org.openmrs.module.htmlformentry.comparator.OptionComparator;
 import org.openmrs.module.htmlformentry.widget.AutocompleteWidget;
 import org.openmrs.module.htmlformentry.widget.CheckboxWidget;
@@ -31,16 +31,13 @@ import org.openmrs.util.OpenmrsUtil;
 import org.springframework.util.StringUtils;
 
 import javax.servlet.http.HttpServletRequest;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Holds the widgets used to represent an Encounter details, and serves as both the
@@ -155,7 +152,7 @@ public class EncounterDetailSubmissionElement implements HtmlGeneratorElement, F
                     if (role == null) {
                         throw new RuntimeException("Cannot find role: " + parameters.get("role"));
                     } else {
-                        users = Context.getService(HtmlFormEntryService.class).getUsersAsPersonStubs(role.getRole());
+                        users = PersonStubDirectory.getInstance().getUsers(role.getRole(), Context.getLocale());
                     }
                 }
 
@@ -166,15 +163,15 @@ public class EncounterDetailSubmissionElement implements HtmlGeneratorElement, F
                         String defaultRole = OpenmrsConstants.PROVIDER_ROLE;
                         Role role = Context.getUserService().getRole(defaultRole);
                         if (role != null) {
-                            users = Context.getService(HtmlFormEntryService.class).getUsersAsPersonStubs(role.getRole());
+                            users = PersonStubDirectory.getInstance().getUsers(role.getRole(), Context.getLocale());
                         }
                         // If this role isn't used, default to all Users
                         if (users.isEmpty()) {
-                            users = Context.getService(HtmlFormEntryService.class).getUsersAsPersonStubs(null);
+                            users = PersonStubDirectory.getInstance().getUsers(null, Context.getLocale());
                         }
                     } else {
                         // in OpenMRS 1.9+, get all suitable providers
-                        users = getAllProvidersThatArePersonsAsPersonStubs();
+                        users = PersonStubDirectory.getInstance().getProviders(Context.getLocale());
                     }
                 }
 
@@ -193,7 +190,7 @@ public class EncounterDetailSubmissionElement implements HtmlGeneratorElement, F
             if (context.getExistingEncounter() != null) {
                 defaultProvider = context.getExistingEncounter().getProvider();
                 // this is done to avoid default provider being added twice due to that it can be added from the
-                // users = getAllProvidersThatArePersonsAsPersonStubs(); section with selected="false", therefore this can't be caught when
+                // users = PersonStubDirectory.getInstance().getProviders(...); section with selected="false", therefore this can't be caught when
                 // searching whether the options list contains the 'defaultProvider'
             boolean defaultOptionPresent = false;
               if(defaultProvider != null){
@@ -323,11 +320,6 @@ public class EncounterDetailSubmissionElement implements HtmlGeneratorElement, F
 
             }
 
-            // if no locations have been specified by the order attribute, use all non-retired locations
-            if (locations.isEmpty()) {
-                locations = Context.getLocationService().getAllLocations(false);
-            }
-
             // Set default values
             Location defaultLocation = null;
             if (context.getExistingEncounter() != null) {
@@ -341,21 +333,28 @@ public class EncounterDetailSubmissionElement implements HtmlGeneratorElement, F
             defaultLocation = defaultLocation == null ? context.getDefaultLocation() : defaultLocation;
             locationWidget.setInitialValue(defaultLocation);
 
-            // make sure that the default/selected location is one of the location options
-            if (defaultLocation != null) {
-               if (!locations.contains(defaultLocation)) {
-                   locations.add(defaultLocation);
-               }
-            }
+            // if no locations have been specified by the order attribute, use all non-retired locations
+            // (and the default/selected location), which are already sorted
+            if (locations.isEmpty()) {
+                locationOptions = LocationCatalog.getInstance().getLocations(false, Context.getLocale())
+                        .getOptions(defaultLocation);
+            } else {
+                // make sure that the default/selected location is one of the location options
+                if (defaultLocation != null) {
+                   if (!locations.contains(defaultLocation)) {
+                       locations.add(defaultLocation);
+                   }
+                }
 
-            // now create the actual location options and sort them
-            for (Location location : locations) {
-                String label = location.getName();
-                Option option = new Option(label, location.getId().toString(), location.equals(defaultLocation));
-                locationOptions.add(option);
-            }
+                // now create the actual location options and sort them
+                for (Location location : locations) {
+                    String label = location.getName();
+                    Option option = new Option(label, location.getId().toString(), location.equals(defaultLocation));
+                    locationOptions.add(option);
+                }
 
-            Collections.sort(locationOptions, new OptionComparator());
+                Collections.sort(locationOptions, new OptionComparator());
+            }
 
             if ("autocomplete".equals(parameters.get("type"))) {
                 locationWidget.addOption(new Option());
@@ -421,83 +420,14 @@ public class EncounterDetailSubmissionElement implements HtmlGeneratorElement, F
     private void removeNonProviders(List<Option> persons) {
         if (openmrsVersionDoesNotSupportProviders())
             return;
-        Set<Integer> legalPersonIds = getAllProviderPersonIds();
+        PersonStubDirectory providers = PersonStubDirectory.getInstance();
         for (Iterator<Option> i = persons.iterator(); i.hasNext(); ) {
             Option candidate = i.next();
-            if (!legalPersonIds.contains(Integer.parseInt(candidate.getValue())))
+            if (!providers.isProvider(Integer.parseInt(candidate.getValue())))
                 i.remove();
         }
     }
 
-    /**
-     * This method exists to allow us to quickly support providers as introduce in OpenMRS 1.9.x,
-     * without having to branch the module. We should remove this method when do a proper
-     * implementation.
-     *
-     * @return all providers that are attached to persons
-     */
-    private List<Object> getAllProvidersThatArePersons() {
-        if (openmrsVersionDoesNotSupportProviders())
-            throw new RuntimeException(
-                    "Programming error in HTML Form Entry module. This method should not be called before OpenMRS 1.9.");
-        try {
-            Object providerService = Context.getService(Context.loadClass("org.openmrs.api.ProviderService"));
-            Method getProvidersMethod = providerService.getClass().getMethod("getAllProviders");
-            @SuppressWarnings("rawtypes")
-            List allProviders = (List) getProvidersMethod.invoke(providerService);
-            List<Object> ret = new ArrayList<Object>();
-            for (Object provider : allProviders) {
-                Person person = (Person) PropertyUtils.getProperty(provider, "person");
-                if (person != null)
-                    ret.add(provider);
-            }
-            return ret;
-        } catch (Exception ex) {
-            throw new RuntimeException("Programming error in HTML Form Entry module. This method should be safe!", ex);
-        }
-    }
-
-    /**
-     * This method exists to allow us to quickly support providers as introduce in OpenMRS 1.9.x,
-     * without having to branch the module. We should remove this method when do a proper
-     * implementation.
-     *
-     * @return person stubs for all providers that are attached to persons
-     */
-    private List<PersonStub> getAllProvidersThatArePersonsAsPersonStubs() {
-        try {
-            List<PersonStub> ret = new ArrayList<PersonStub>();
-            for (Object provider : getAllProvidersThatArePersons()) {
-                Person person = (Person) PropertyUtils.getProperty(provider, "person");
-                ret.add(new PersonStub(person));
-            }
-            return ret;
-        } catch (Exception ex) {
-            throw new RuntimeException("Programming error in HTML Form Entry module. This method should be safe!", ex);
-        }
-    }
-
-    /**
-     * This method exists to allow us to quickly support providers as introduce in OpenMRS 1.9.x,
-     * without having to branch the module. We should remove this method when do a proper
-     * implementation.
-     *
-     * @return personIds of all providers that are attached to persons
-     */
-    private Set<Integer> getAllProviderPersonIds() {
-        try {
-            Set<Integer> ret = new HashSet<Integer>();
-            for (Object candidate : getAllProvidersThatArePersons()) {
-                Person person = (Person) PropertyUtils.getProperty(candidate, "person");
-                if (person != null)
-                    ret.add(person.getPersonId());
-            }
-            return ret;
-        } catch (Exception ex) {
-            throw new RuntimeException("Programming error in HTML Form Entry module. This method should be safe!", ex);
-        }
-    }
-
     /**
      * @see HtmlGeneratorElement#generateHtml(FormEntryContext)
      */
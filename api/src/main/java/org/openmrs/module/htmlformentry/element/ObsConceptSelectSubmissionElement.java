@@ -72,11 +72,7 @@ public class ObsConceptSelectSubmissionElement implements HtmlGeneratorElement,
     private void prepareWidgets(FormEntryContext context,Map<String, String> parameters) {
         String userLocaleStr = Context.getLocale().toString();
         //find existing obs, if necessary
-        if (context.getCurrentObsGroupConcepts() != null && context.getCurrentObsGroupConcepts().size() > 0) {
-            existingObs = context.getObsFromCurrentGroup(concept, answerConcept);
-        } else {
-            existingObs = context.removeExistingObs(concepts, answerConcept);
-        }
+        existingObs = findExistingObs(context);
         errorWidget = new ErrorWidget();
         context.registerWidget(errorWidget);
         //next, just setup all variables:
@@ -233,6 +229,21 @@ public class ObsConceptSelectSubmissionElement implements HtmlGeneratorElement,
     public Obs getExistingObs() {
         return existingObs;
     }
+    
+    /**
+     * Claims the existing obs this element should display from the context, like
+     * {@link ObsSubmissionElement#findExistingObs(FormEntryContext)}
+     * 
+     * @param context
+     * @return the matching obs, or null if there is none
+     */
+    public Obs findExistingObs(FormEntryContext context) {
+        if (context.getCurrentObsGroupConcepts() != null && context.getCurrentObsGroupConcepts().size() > 0) {
+            return context.getObsFromCurrentGroup(concept, answerConcept);
+        } else {
+            return context.removeExistingObs(concepts, answerConcept);
+        }
+    }
 
     public boolean isRequired() {
         return required;
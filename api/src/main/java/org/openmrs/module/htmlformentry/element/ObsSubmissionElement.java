@@ -15,10 +15,10 @@ import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.FormSubmissionError;
-import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
-import org.openmrs.module.htmlformentry.comparator.OptionComparator;
+import org.openmrs.module.htmlformentry.cache.LocationCatalog;
+import org.openmrs.module.htmlformentry.cache.PersonStubDirectory;
 import org.openmrs.module.htmlformentry.schema.ObsField;
 import org.openmrs.module.htmlformentry.schema.ObsFieldAnswer;
 import org.openmrs.module.htmlformentry.widget.CheckboxWidget;
@@ -96,6 +96,10 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 	
 	private Obs existingObs; // in edit mode, this allows submission to check whether the obs has been modified or not
 	
+	private boolean checkbox = false;
+	
+	private String checkboxValue; // the value (or numeric answer) that a checkbox-style obs stands for
+	
 	private boolean required;
 	
 	//these are for conceptSelects:
@@ -179,28 +183,12 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 				answerConcept = HtmlFormEntryUtil.getConcept(parameters.get("answerConceptId"));
 		}
 		catch (Exception ex) {}
-		if (context.getCurrentObsGroupConcepts() != null && context.getCurrentObsGroupConcepts().size() > 0) {
-			existingObs = context.getObsFromCurrentGroup(concept, answerConcept);
-		} else if (concept != null) {
-			if (concept.getDatatype().isBoolean() && "checkbox".equals(parameters.get("style"))) {
-				// since a checkbox has one value we need to look for an exact
-				// match for that value
-				if ("false".equals(parameters.get("value"))) {
-					existingObs = context.removeExistingObs(concept, false);
-				} else {
-					// if not 'false' we treat as 'true'
-					existingObs = context.removeExistingObs(concept, true);
-				}
-            // if we use 'checkbox' with numeric values, first find existing obs for each answer
-			}else if (concept.getDatatype().isNumeric() && "checkbox".equals(parameters.get("style"))){
-                String numericAns = parameters.get("answer");
-                existingObs = context.removeExistingObs(concept, numericAns);
-            } else {
-				existingObs = context.removeExistingObs(concept, answerConcept);
-			}
-		} else {
-			existingObs = context.removeExistingObs(concepts, answerConcept);
+		if ("checkbox".equals(parameters.get("style"))) {
+			checkbox = true;
+			checkboxValue = concept != null && concept.getDatatype().isNumeric() ? parameters.get("answer") : parameters
+			        .get("value");
 		}
+		existingObs = findExistingObs(context);
 		
 		errorWidget = new ErrorWidget();
 		context.registerWidget(errorWidget);
@@ -381,12 +369,8 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 
                     valueWidget = new DropdownWidget();
 
-                       for (Location location : Context.getLocationService().getAllLocations()) {
-                            String label = location.getName();
-                            Option option = new Option(label, location.getId().toString(), location.getId().toString().equals(initialValue));
-                            locationOptions.add(option);
-                       }
-                    Collections.sort(locationOptions, new OptionComparator());
+                    locationOptions.addAll(LocationCatalog.getInstance().getLocations(true, Context.getLocale())
+                            .getOptions(initialValue));
 
                 // if initialValueIsSet=false, no initial/default location, hence this shows the 'select input' field as first option
                 boolean initialValueIsSet = !(initialValue == null);
@@ -424,7 +408,7 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 							if (role == null) {
 								throw new RuntimeException("Cannot find role: " + parameters.get("role"));
 							} else {
-								users = Context.getService(HtmlFormEntryService.class).getUsersAsPersonStubs(role.getRole());
+								users = PersonStubDirectory.getInstance().getUsers(role.getRole(), Context.getLocale());
 							}
 						}
 
@@ -433,14 +417,15 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 							String defaultRole = OpenmrsConstants.PROVIDER_ROLE;
 							Role role = Context.getUserService().getRole(defaultRole);
 							if (role != null) {
-								users = Context.getService(HtmlFormEntryService.class).getUsersAsPersonStubs(role.getRole());
+								users = PersonStubDirectory.getInstance().getUsers(role.getRole(), Context.getLocale());
 							}
 							// If this role isn't used, default to all Users
 							if (users.isEmpty()) {
-								users = Context.getService(HtmlFormEntryService.class).getUsersAsPersonStubs(null);
+								users = PersonStubDirectory.getInstance().getUsers(null, Context.getLocale());
 							}
 						}
-						options.addAll(users);
+						// keep the directory's listing, so its rendered options can be reused
+						options = users;
 						//    					sortOptions = true;
 					}
 
@@ -1113,4 +1098,36 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 		return existingObs;
 	}
 	
+	/**
+	 * Finds the existing obs that this element should display, among the obs of the context's
+	 * existing encounter that haven't already been claimed by another element, and removes it from
+	 * the context
+	 * 
+	 * @param context
+	 * @return the matching obs, or null if there is none
+	 */
+	public Obs findExistingObs(FormEntryContext context) {
+		if (context.getCurrentObsGroupConcepts() != null && context.getCurrentObsGroupConcepts().size() > 0) {
+			return context.getObsFromCurrentGroup(concept, answerConcept);
+		} else if (concept != null) {
+			if (concept.getDatatype().isBoolean() && checkbox) {
+				// since a checkbox has one value we need to look for an exact
+				// match for that value
+				if ("false".equals(checkboxValue)) {
+					return context.removeExistingObs(concept, false);
+				} else {
+					// if not 'false' we treat as 'true'
+					return context.removeExistingObs(concept, true);
+				}
+            // if we use 'checkbox' with numeric values, first find existing obs for each answer
+			}else if (concept.getDatatype().isNumeric() && checkbox){
+                return context.removeExistingObs(concept, checkboxValue);
+            } else {
+				return context.removeExistingObs(concept, answerConcept);
+			}
+		} else {
+			return context.removeExistingObs(concepts, answerConcept);
+		}
+	}
+	
 }
@@ -35,7 +35,7 @@ import org.openmrs.module.htmlformentry.FormSubmissionError;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.ValidationException;
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
-import org.openmrs.module.htmlformentry.comparator.OptionComparator;
+import org.openmrs.module.htmlformentry.cache.LocationCatalog;
 import org.openmrs.module.htmlformentry.widget.AddressWidget;
 import org.openmrs.module.htmlformentry.widget.DateWidget;
 import org.openmrs.module.htmlformentry.widget.DropdownWidget;
@@ -178,12 +178,8 @@ public class PatientDetailSubmissionElement implements HtmlGeneratorElement, For
 			defaultLocation = defaultLocation == null ? context.getDefaultLocation() : defaultLocation;
             identifierLocationWidget.setInitialValue(defaultLocation);
 
-            List<Option> locationOptions = new ArrayList<Option>();
-            for(Location location:Context.getLocationService().getAllLocations()) {
-                Option option = new Option(location.getName(), location.getId().toString(), location.equals(defaultLocation));
-                locationOptions.add(option);
-            }
-            Collections.sort(locationOptions, new OptionComparator());
+            List<Option> locationOptions = LocationCatalog.getInstance().getLocations(true, Context.getLocale())
+                    .getOptions(defaultLocation == null ? null : String.valueOf(defaultLocation.getLocationId()));
 
             // if initialValueIsSet=false, no initial/default location, hence this shows the 'select input' field as first option
             boolean initialValueIsSet = !(defaultLocation == null);
@@ -179,13 +179,10 @@ public class StandardRegimenElement implements HtmlGeneratorElement, FormSubmiss
 		
 		//match standard regimen in existingOrders
 		if (context.getMode() != Mode.ENTER && context.getExistingOrders() != null) {	
-			Map<RegimenSuggestion, List<DrugOrder>> map =  RegimenUtil.findStrongestStandardRegimenInDrugOrders(possibleRegimens, context.getRemainingExistingOrders());
-			if (map.size() == 1){
-				existingStandardRegimen = map.keySet().iterator().next();
-				for (DrugOrder dor : map.get(existingStandardRegimen)){
-					regDrugOrders.add(context.removeExistingDrugOrder(dor.getDrug()));
+			existingStandardRegimen = findExistingRegimen(context, regDrugOrders);
+			if (existingStandardRegimen != null){
+				if (regDrugOrders.size() > 0)
 					regWidget.setInitialValue(existingStandardRegimen.getCodeName());
-				}
 				//TODO:  only set this if the discontinued dates are all the same...
 				 discontinuedDateWidget.setInitialValue(getCommonDiscontinueDate(regDrugOrders));
 				    if (discontinuedReasonWidget != null && regDrugOrders.get(0).getDiscontinuedReason() != null)
@@ -197,6 +194,24 @@ public class StandardRegimenElement implements HtmlGeneratorElement, FormSubmiss
         context.getSchema().addField(srf);
 	}
 	
+	/**
+	 * Finds the one standard regimen of this element that the existing encounter's unclaimed drug
+	 * orders make up (if any), and claims its drug orders from the context
+	 * 
+	 * @param context
+	 * @param drugOrders the regimen's drug orders are added to this
+	 * @return the regimen, or null if none (or more than one) was found
+	 */
+	public RegimenSuggestion findExistingRegimen(FormEntryContext context, List<DrugOrder> drugOrders) {
+		Map<RegimenSuggestion, List<DrugOrder>> map =  RegimenUtil.findStrongestStandardRegimenInDrugOrders(possibleRegimens, context.getRemainingExistingOrders());
+		if (map.size() != 1)
+			return null;
+		RegimenSuggestion ret = map.keySet().iterator().next();
+		for (DrugOrder dor : map.get(ret))
+			drugOrders.add(context.removeExistingDrugOrder(dor.getDrug()));
+		return ret;
+	}
+	
 	private Date getCommonDiscontinueDate(List<DrugOrder> orders){
 		Date candidate = null;
 		if (orders != null & orders.size() > 0)
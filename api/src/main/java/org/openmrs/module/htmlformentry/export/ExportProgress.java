@@ -0,0 +1,91 @@
+package org.openmrs.module.htmlformentry.export;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How far a {@link ParallelHtmlFormExport} has got. It is updated as the export runs, and may be
+ * read from any thread, e.g. to show progress on a page.
+ */
+public class ExportProgress {
+
+    private final AtomicInteger chunksQueued = new AtomicInteger();
+
+    private final AtomicInteger chunksWritten = new AtomicInteger();
+
+    private final AtomicInteger encountersQueued = new AtomicInteger();
+
+    private final AtomicInteger encountersWritten = new AtomicInteger();
+
+    private volatile long startTime;
+
+    private volatile long endTime;
+
+    void started() {
+        startTime = System.currentTimeMillis();
+    }
+
+    void queued(int encounters) {
+        chunksQueued.incrementAndGet();
+        encountersQueued.addAndGet(encounters);
+    }
+
+    void written(int encounters) {
+        chunksWritten.incrementAndGet();
+        encountersWritten.addAndGet(encounters);
+    }
+
+    void finished() {
+        endTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the number of chunks of encounters handed to the workers so far
+     */
+    public int getChunksQueued() {
+        return chunksQueued.get();
+    }
+
+    /**
+     * @return the number of chunks whose rows have been written to the output
+     */
+    public int getChunksWritten() {
+        return chunksWritten.get();
+    }
+
+    /**
+     * @return the number of encounters handed to the workers so far
+     */
+    public int getEncountersQueued() {
+        return encountersQueued.get();
+    }
+
+    /**
+     * @return the number of encounters whose rows have been written to the output
+     */
+    public int getEncountersWritten() {
+        return encountersWritten.get();
+    }
+
+    /**
+     * @return whether the export has finished (successfully or not)
+     */
+    public boolean isFinished() {
+        return endTime != 0;
+    }
+
+    /**
+     * @return the milliseconds since the export started, or that it took if it has finished
+     */
+    public long getElapsedMillis() {
+        if (startTime == 0)
+            return 0;
+        return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    @Override
+    public String toString() {
+        return encountersWritten.get() + " of " + encountersQueued.get() + " encounters queued so far written ("
+                + chunksWritten.get() + " of " + chunksQueued.get() + " chunks) in " + getElapsedMillis() + "ms"
+                + (isFinished() ? ", finished" : "");
+    }
+}
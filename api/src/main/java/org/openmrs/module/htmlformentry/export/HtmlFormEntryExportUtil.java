@@ -1,8 +1,14 @@
 package org.openmrs.module.htmlformentry.export;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
@@ -25,14 +31,12 @@ import org.openmrs.Obs;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext;
-import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.FormEntrySession;
-import org.openmrs.module.htmlformentry.FormSubmissionController;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.Translator;
-import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
 import org.openmrs.module.htmlformentry.element.ObsSubmissionElement;
+import org.openmrs.module.htmlformentry.matching.HtmlFormEncounterMatcher;
 import org.openmrs.module.htmlformentry.schema.HtmlFormField;
 import org.openmrs.module.htmlformentry.schema.HtmlFormSchema;
 import org.openmrs.module.htmlformentry.schema.ObsField;
@@ -47,7 +51,7 @@ public class HtmlFormEntryExportUtil {
     
     protected final static Log log = LogFactory.getLog(HtmlFormEntryExportUtil.class);
     
-    private static DateFormat DATE_FORMATTER = new SimpleDateFormat("dd-MMM-yyyy");
+    private static final String DATE_FORMAT = "dd-MMM-yyyy";
     
     private static final String DEFAULT_QUOTE = "\"";
 
@@ -57,6 +61,12 @@ public class HtmlFormEntryExportUtil {
     
     private static final String EMPTY = "";
     
+    /**
+     * The number of encounters loaded at a time by
+     * {@link #writeHtmlFormExport(HtmlForm, Date, Date, List, Writer, Locale, List)}
+     */
+    public static final int EXPORT_BATCH_SIZE = 100;
+    
     /**
      * returns a Map<Integer, String> of all form sections, in order, 
      * where the String value is either the specified name, or an arbitrary one if none was given.
@@ -238,8 +248,30 @@ public class HtmlFormEntryExportUtil {
      * @throws Exception
      */ 
     public static String generateColumnHeadersFromHtmlForm(HtmlForm form, List<String> extraCols, StringBuffer sb, List<PatientIdentifierType> pitList) throws Exception {
-        FormEntrySession session = new FormEntrySession(HtmlFormEntryUtil.getFakePerson(), form);
-        HtmlFormSchema hfs = session.getContext().getSchema();
+        appendColumnHeaders(form, extraCols, sb, pitList);
+        return sb.toString();
+    }
+    
+    /**
+     * 
+     * Writes the header row for the csv file.
+     * 
+     * @param form
+     * @param extraCols
+     * @param out
+     * @param pitList
+     * @throws Exception
+     */
+    public static void writeColumnHeaders(HtmlForm form, List<String> extraCols, Writer out, List<PatientIdentifierType> pitList) throws Exception {
+        appendColumnHeaders(form, extraCols, out, pitList);
+    }
+    
+    private static void appendColumnHeaders(HtmlForm form, List<String> extraCols, Appendable sb, List<PatientIdentifierType> pitList) throws Exception {
+        appendColumnHeaders(new HtmlFormExportPlan(form), extraCols, sb, pitList);
+    }
+    
+    static void appendColumnHeaders(HtmlFormExportPlan plan, List<String> extraCols, Appendable sb, List<PatientIdentifierType> pitList) throws Exception {
+        HtmlFormSchema hfs = plan.getSchema();
         
         sb.
         append(DEFAULT_QUOTE).append("ENCOUNTER_ID").append(DEFAULT_QUOTE).append(DEFAULT_COLUMN_SEPARATOR).
@@ -256,24 +288,21 @@ public class HtmlFormEntryExportUtil {
         }    
         
         for (HtmlFormField hfsec : hfs.getAllFields())
-                sb = generateColumnHeadersFromHtmlFormHelper(hfsec, extraCols, sb);
+                generateColumnHeadersFromHtmlFormHelper(hfsec, extraCols, sb);
 
-        session = null;
         sb.append(DEFAULT_LINE_SEPARATOR);
-        return sb.toString();
     }
     
-    private static StringBuffer generateColumnHeadersFromHtmlFormHelper(HtmlFormField hff, List<String> extraCols, StringBuffer sb){
+    private static void generateColumnHeadersFromHtmlFormHelper(HtmlFormField hff, List<String> extraCols, Appendable sb) throws IOException {
         if (hff instanceof ObsField){
             ObsField of = (ObsField) hff;      
-            sb = buildHeadersForObsField(of, extraCols, sb);
+            buildHeadersForObsField(of, extraCols, sb);
         } else if (hff instanceof ObsGroup){
                 ObsGroup og = (ObsGroup) hff;
                 for (HtmlFormField of : og.getChildren()){
-                    sb = generateColumnHeadersFromHtmlFormHelper(of, extraCols, sb);
+                    generateColumnHeadersFromHtmlFormHelper(of, extraCols, sb);
                 }
         }
-        return sb;
     }
     
     /**
@@ -304,9 +333,8 @@ public class HtmlFormEntryExportUtil {
      * @param of
      * @param extraCols
      * @param sb
-     * @return
      */
-    private static StringBuffer buildHeadersForObsField(ObsField of, List<String> extraCols, StringBuffer sb){
+    private static void buildHeadersForObsField(ObsField of, List<String> extraCols, Appendable sb) throws IOException {
         
         sb.append(DEFAULT_COLUMN_SEPARATOR);
         sb.append(DEFAULT_QUOTE);
@@ -345,8 +373,6 @@ public class HtmlFormEntryExportUtil {
                 }
             }
         }
-        
-        return sb;
     }
     
     /**
@@ -360,58 +386,76 @@ public class HtmlFormEntryExportUtil {
      * @throws Exception
      */
     public static String generateColumnDataFromHtmlForm(List<Encounter> encounters, HtmlForm form, List<String> extraCols, StringBuffer sb, Locale locale,List<PatientIdentifierType> pitList) throws Exception {
+        appendColumnData(encounters, form, extraCols, sb, locale, pitList);
+        return sb.toString();
+    }
+    
+    /**
+     * 
+     * Writes a data row for each of the given encounters
+     * 
+     * @param encounters
+     * @param form
+     * @param extraCols
+     * @param out
+     * @param locale
+     * @param pitList
+     * @throws Exception
+     */
+    public static void writeColumnData(List<Encounter> encounters, HtmlForm form, List<String> extraCols, Writer out, Locale locale, List<PatientIdentifierType> pitList) throws Exception {
+        appendColumnData(encounters, form, extraCols, out, locale, pitList);
+    }
+    
+    private static void appendColumnData(List<Encounter> encounters, HtmlForm form, List<String> extraCols, Appendable sb, Locale locale, List<PatientIdentifierType> pitList) throws Exception {
+        appendColumnData(encounters, new HtmlFormExportPlan(form), extraCols, sb, locale, pitList);
+    }
+    
+    static void appendColumnData(List<Encounter> encounters, HtmlFormExportPlan plan, List<String> extraCols, Appendable sb, Locale locale, List<PatientIdentifierType> pitList) throws Exception {
+        // SimpleDateFormat isn't thread-safe, and rows may be built on several threads at once
+        DateFormat dateFormatter = new SimpleDateFormat(DATE_FORMAT);
         for (Encounter e: encounters){
             
-            sb.append(DEFAULT_QUOTE).append(e.getEncounterId()).append(DEFAULT_QUOTE).append(DEFAULT_COLUMN_SEPARATOR);         
-            sb.append(DEFAULT_QUOTE).append(DATE_FORMATTER.format(e.getEncounterDatetime())).append(DEFAULT_QUOTE).append(DEFAULT_COLUMN_SEPARATOR);
+            sb.append(DEFAULT_QUOTE).append(e.getEncounterId().toString()).append(DEFAULT_QUOTE).append(DEFAULT_COLUMN_SEPARATOR);         
+            sb.append(DEFAULT_QUOTE).append(dateFormatter.format(e.getEncounterDatetime())).append(DEFAULT_QUOTE).append(DEFAULT_COLUMN_SEPARATOR);
             sb.append(DEFAULT_QUOTE).append(e.getLocation().getName()).append(DEFAULT_QUOTE).append(DEFAULT_COLUMN_SEPARATOR);
             sb.append(DEFAULT_QUOTE).append(e.getProvider().getGivenName()+ " " + e.getProvider().getFamilyName()).append(DEFAULT_QUOTE).append(DEFAULT_COLUMN_SEPARATOR);
-            sb.append(DEFAULT_QUOTE).append((e.getPatient() != null ? e.getPatient().getPatientId() : EMPTY)).append(DEFAULT_QUOTE).append(DEFAULT_COLUMN_SEPARATOR);       
+            sb.append(DEFAULT_QUOTE).append((e.getPatient() != null ? e.getPatient().getPatientId().toString() : EMPTY)).append(DEFAULT_QUOTE).append(DEFAULT_COLUMN_SEPARATOR);       
             int index = 1;
             for (PatientIdentifierType pit :  pitList){
-                sb.append(DEFAULT_QUOTE).append(e.getPatient().getPatientIdentifier(pit)).append(DEFAULT_QUOTE);
+                sb.append(DEFAULT_QUOTE).append(String.valueOf(e.getPatient().getPatientIdentifier(pit))).append(DEFAULT_QUOTE);
                 if (index < pitList.size())
                     sb.append(DEFAULT_COLUMN_SEPARATOR);
                 index ++;
             }
             
-            FormEntrySession session = new FormEntrySession(e.getPatient(), e, Mode.VIEW, form);
-            FormSubmissionController  fsa = session.getSubmissionController();
-            List<FormSubmissionControllerAction> actions = fsa.getActions();
-            for (FormSubmissionControllerAction fsca : actions){
-                if (fsca instanceof ObsSubmissionElement){
-                    ObsSubmissionElement ose = (ObsSubmissionElement) fsca;
-                    sb = appendObsToRow(ose, sb, extraCols, locale);   
-                } else {
-                    //TODO: add programs, orders, logic, etc...
-                    // just make sure these are in the headers too...
-                }
-            }
-            session = null;
+            //TODO: add programs, orders, logic, etc...
+            // just make sure these are in the headers too...
+            HtmlFormEncounterMatcher matcher = plan.getMatcher(e);
+            List<ObsSubmissionElement> obsElements = matcher.getObsElements();
+            List<Obs> obsForColumns = matcher.match(e).getObsForObsElements();
+            for (int i = 0; i < obsElements.size(); i++)
+                appendObsToRow(obsElements.get(i), obsForColumns.get(i), sb, extraCols, locale);
             sb.append(DEFAULT_LINE_SEPARATOR);
         }
-        return sb.toString();
     }
     
     /**
      * 
      * Writes the row entries for the Obs
      * 
-     * @param o
+     * @param ose
+     * @param o the obs of the encounter that matched ose, if any
      * @param sb
      * @param extraCols
-     * @param rowStarted
-     * @return
      */
-    private static StringBuffer appendObsToRow(ObsSubmissionElement ose, StringBuffer sb, List<String> extraCols, Locale locale){
-            Obs o = ose.getExistingObs();       
+    private static void appendObsToRow(ObsSubmissionElement ose, Obs o, Appendable sb, List<String> extraCols, Locale locale) throws IOException {
 
             sb.append(DEFAULT_COLUMN_SEPARATOR);
             sb.append(DEFAULT_QUOTE);
             if (ose.getConcept() != null)
                 sb.append((o != null) ? getObsValueAsString(Context.getLocale(), o):EMPTY);
             else 
-                sb.append((o != null) ? o.getConcept().getBestName(locale):EMPTY);
+                sb.append((o != null) ? String.valueOf(o.getConcept().getBestName(locale)):EMPTY);
             sb.append(DEFAULT_QUOTE);
             
             sb.append(DEFAULT_COLUMN_SEPARATOR);
@@ -444,7 +488,6 @@ public class HtmlFormEntryExportUtil {
                     }
                 }
             }
-        return sb;
     }
     
     public static String getObsGroupPath(Obs o){
@@ -479,6 +522,50 @@ public class HtmlFormEntryExportUtil {
         return sb;
     }
     
+    /**
+     * Exports an htmlform to a csv, writing each row out as soon as it is built. The form's encounters
+     * (optionally restricted to an encounter date range) are read from the database in batches of
+     * {@link #EXPORT_BATCH_SIZE}, and the hibernate session is cleared after each batch, so memory use
+     * doesn't grow with the number of encounters.
+     * 
+     * @param htmlForm
+     * @param fromDate optional earliest encounter date
+     * @param toDate optional latest encounter date
+     * @param extraCols
+     * @param out
+     * @param locale
+     * @param pitList
+     * @throws Exception
+     * @see ParallelHtmlFormExport
+     */
+    public static void writeHtmlFormExport(HtmlForm htmlForm, Date fromDate, Date toDate, List<String> extraCols, Writer out, Locale locale, List<PatientIdentifierType> pitList) throws Exception {
+        HtmlFormExportPlan plan = new HtmlFormExportPlan(htmlForm);
+        appendColumnHeaders(plan, extraCols, out, pitList);
+        Integer lastEncounterId = null;
+        while (true) {
+            List<Encounter> batch = HtmlFormEntryUtil.getService().getEncountersForForm(htmlForm.getForm(), fromDate, toDate, lastEncounterId, EXPORT_BATCH_SIZE);
+            if (batch.isEmpty())
+                break;
+            appendColumnData(batch, plan, extraCols, out, locale, pitList);
+            out.flush();
+            lastEncounterId = batch.get(batch.size() - 1).getEncounterId();
+            if (batch.size() < EXPORT_BATCH_SIZE)
+                break;
+            // the export only reads, so there is nothing to flush before the batch is cleared
+            Context.clearSession();
+        }
+    }
+    
+    /**
+     * Same as {@link #writeHtmlFormExport(HtmlForm, Date, Date, List, Writer, Locale, List)}, writing
+     * the csv as UTF-8 to the given stream
+     */
+    public static void writeHtmlFormExport(HtmlForm htmlForm, Date fromDate, Date toDate, List<String> extraCols, OutputStream out, Locale locale, List<PatientIdentifierType> pitList) throws Exception {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        writeHtmlFormExport(htmlForm, fromDate, toDate, extraCols, writer, locale, pitList);
+        writer.flush();
+    }
+    
     /**
      * 
      * format the obs value
@@ -0,0 +1,112 @@
+package org.openmrs.module.htmlformentry.export;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openmrs.Encounter;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.element.ObsSubmissionElement;
+import org.openmrs.module.htmlformentry.matching.HtmlFormEncounterMatcher;
+import org.openmrs.module.htmlformentry.schema.HtmlFormSchema;
+
+/**
+ * The obs columns of an html form export, worked out once from the form, along with a
+ * {@link HtmlFormEncounterMatcher} that finds which of an encounter's obs belongs in each column,
+ * following the same rules a VIEW-mode {@link FormEntrySession} uses to display it, but without
+ * rendering the form for every encounter.
+ * <p/>
+ * The columns come from a session for a fake person. If the form has includeIf/excludeIf tests that
+ * may depend on the patient or the encounter (a logicTest, or a velocityTest that uses anything but
+ * $locale and $user), its elements can differ from one encounter to the next, so they are worked out
+ * again for each encounter, and the row for an encounter follows its own elements, as it did when
+ * the export rendered a session for every encounter.
+ */
+public class HtmlFormExportPlan {
+
+    // the velocity variables of a session that are the same for every encounter
+    private static final Set<String> ENCOUNTER_INDEPENDENT_VARIABLES = new HashSet<String>(Arrays.asList("locale", "user"));
+
+    private static final Pattern CONDITIONAL_TAG = Pattern.compile("<(?:includeIf|excludeIf)\\b(?:[^>\"']|\"[^\"]*\"|'[^']*')*>");
+
+    private static final Pattern VARIABLE = Pattern.compile("\\$!?\\{?([a-zA-Z][a-zA-Z0-9_-]*)");
+
+    private HtmlForm htmlForm;
+
+    private HtmlFormSchema schema;
+
+    private HtmlFormEncounterMatcher matcher;
+
+    private boolean perEncounter;
+
+    /**
+     * Builds the plan for a form, by creating a single session for it
+     *
+     * @param htmlForm
+     * @throws Exception
+     */
+    public HtmlFormExportPlan(HtmlForm htmlForm) throws Exception {
+        FormEntrySession session = new FormEntrySession(HtmlFormEntryUtil.getFakePerson(), htmlForm);
+        this.htmlForm = htmlForm;
+        schema = session.getContext().getSchema();
+        matcher = new HtmlFormEncounterMatcher(session);
+        perEncounter = hasEncounterDependentConditionals(htmlForm.getXmlData());
+    }
+
+    /**
+     * @return the schema of the form, which gives the column headers
+     */
+    public HtmlFormSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return the obs elements of the form, in the order of their columns
+     */
+    public List<ObsSubmissionElement> getObsElements() {
+        return matcher.getObsElements();
+    }
+
+    /**
+     * @return whether the form's elements are worked out again for each encounter
+     */
+    public boolean isPerEncounter() {
+        return perEncounter;
+    }
+
+    /**
+     * @param encounter
+     * @return the matcher for the form's elements for an encounter, which is the same for every
+     *         encounter unless {@link #isPerEncounter()}
+     * @throws Exception
+     */
+    public HtmlFormEncounterMatcher getMatcher(Encounter encounter) throws Exception {
+        return perEncounter ? HtmlFormEntryUtil.getEncounterMatcher(encounter, htmlForm) : matcher;
+    }
+
+    /**
+     * @return whether the form has an includeIf or excludeIf test that may come out differently for
+     *         different patients or encounters
+     */
+    static boolean hasEncounterDependentConditionals(String xml) {
+        if (xml == null)
+            return false;
+        Matcher tags = CONDITIONAL_TAG.matcher(xml);
+        while (tags.find()) {
+            String tag = tags.group();
+            if (tag.contains("logicTest"))
+                return true;
+            Matcher variables = VARIABLE.matcher(tag);
+            while (variables.find()) {
+                if (!ENCOUNTER_INDEPENDENT_VARIABLES.contains(variables.group(1)))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,326 @@
+package org.openmrs.module.htmlformentry.export;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.FlushMode;
+import org.hibernate.SessionFactory;
+import org.openmrs.Encounter;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.User;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryGlobalProperties;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+
+/**
+ * Exports an htmlform to a csv like
+ * {@link HtmlFormEntryExportUtil#writeHtmlFormExport(HtmlForm, Date, Date, List, Writer, Locale, List)}
+ * (with identical output), but builds the rows on several threads at once.
+ * <p/>
+ * The calling thread pages through the ids of the form's encounters, and hands each chunk of
+ * {@link #getChunkSize()} consecutive encounters to a pool of {@link #getWorkers()} threads (even
+ * when there is only one). Each chunk is built in a database session of its own, which is only
+ * flushed by calls that are not read-only, and is cleared and closed when the chunk is done, so the
+ * caller's session never fills up with what the export loads. The calling thread writes the chunks
+ * out in encounter id order as they finish; only a couple of chunks per worker are held in memory
+ * at a time.
+ * <p/>
+ * Each chunk also gets a new user context. There is no way to log a user in without their password,
+ * so a worker logs in the way scheduled tasks do, as the user of the scheduler.username and
+ * scheduler.password global properties (which must be a superuser), and then becomes the user who
+ * started the export.
+ * <p/>
+ * The defaults come from the htmlformentry.export.workers and htmlformentry.export.chunkSize global
+ * properties. {@link #getProgress()} may be read from another thread while an export runs.
+ */
+public class ParallelHtmlFormExport {
+
+    protected final static Log log = LogFactory.getLog(ParallelHtmlFormExport.class);
+
+    public static final int DEFAULT_WORKERS = 4;
+
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    private int workers;
+
+    private int chunkSize;
+
+    private volatile ExportProgress progress = new ExportProgress();
+
+    /**
+     * Uses the number of workers and chunk size set by global properties
+     */
+    public ParallelHtmlFormExport() {
+        Integer workers = HtmlFormEntryGlobalProperties.EXPORT_WORKERS();
+        Integer chunkSize = HtmlFormEntryGlobalProperties.EXPORT_CHUNK_SIZE();
+        setWorkers(workers == null ? DEFAULT_WORKERS : workers);
+        setChunkSize(chunkSize == null ? DEFAULT_CHUNK_SIZE : chunkSize);
+    }
+
+    public ParallelHtmlFormExport(int workers, int chunkSize) {
+        setWorkers(workers);
+        setChunkSize(chunkSize);
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("workers must be at least 1");
+        this.workers = workers;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return the progress of the current (or last) export
+     */
+    public ExportProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Writes the csv export of an html form
+     *
+     * @param htmlForm
+     * @param fromDate optional earliest encounter date
+     * @param toDate optional latest encounter date
+     * @param extraCols
+     * @param out
+     * @param locale
+     * @param pitList
+     * @throws Exception
+     */
+    public void write(HtmlForm htmlForm, Date fromDate, Date toDate, List<String> extraCols, Writer out, Locale locale,
+                      List<PatientIdentifierType> pitList) throws Exception {
+        ExportProgress progress = new ExportProgress();
+        this.progress = progress;
+        progress.started();
+
+        HtmlFormEntryService service = HtmlFormEntryUtil.getService();
+        HtmlFormExportPlan plan = new HtmlFormExportPlan(htmlForm);
+        HtmlFormEntryExportUtil.appendColumnHeaders(plan, extraCols, out, pitList);
+        out.flush();
+
+        // the workers only get ids, so that they never touch objects from the caller's session
+        List<Integer> identifierTypeIds = new ArrayList<Integer>();
+        for (PatientIdentifierType pit : pitList)
+            identifierTypeIds.add(pit.getPatientIdentifierTypeId());
+        User user = Context.getAuthenticatedUser();
+        WorkerLogin login = user == null ? null : new WorkerLogin(user.getSystemId());
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new WorkerThreadFactory());
+        LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+        try {
+            Integer lastEncounterId = null;
+            while (true) {
+                List<Integer> ids = service.getEncounterIdsForForm(htmlForm.getForm(), fromDate, toDate, lastEncounterId,
+                    chunkSize);
+                if (ids.isEmpty())
+                    break;
+                Chunk chunk = new Chunk(htmlForm, fromDate, toDate, extraCols, locale, identifierTypeIds, lastEncounterId,
+                        ids.get(ids.size() - 1), ids.size());
+                progress.queued(ids.size());
+
+                pending.add(executor.submit(new ChunkTask(chunk, login)));
+                // keep the workers busy, without holding more than a couple of chunks per worker
+                while (pending.size() >= workers * 2)
+                    writeChunk(waitFor(pending.removeFirst()), out, progress);
+
+                lastEncounterId = chunk.lastEncounterId;
+                if (ids.size() < chunkSize)
+                    break;
+            }
+            while (!pending.isEmpty())
+                writeChunk(waitFor(pending.removeFirst()), out, progress);
+        }
+        finally {
+            for (Iterator<Future<Chunk>> i = pending.iterator(); i.hasNext();)
+                i.next().cancel(true);
+            executor.shutdownNow();
+            progress.finished();
+        }
+        if (log.isDebugEnabled())
+            log.debug("Exported html form " + htmlForm.getId() + ": " + progress);
+    }
+
+    private void writeChunk(Chunk chunk, Writer out, ExportProgress progress) throws Exception {
+        out.write(chunk.rows);
+        out.flush();
+        progress.written(chunk.encounterCount);
+    }
+
+    private Chunk waitFor(Future<Chunk> future) throws Exception {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+            throw ex;
+        }
+    }
+
+    /**
+     * The consecutive encounters (by id) after one encounter id up to and including another, and their
+     * rows once built
+     */
+    private static class Chunk {
+
+        private final HtmlForm htmlForm;
+
+        private final Date fromDate;
+
+        private final Date toDate;
+
+        private final List<String> extraCols;
+
+        private final Locale locale;
+
+        private final List<Integer> identifierTypeIds;
+
+        private final Integer afterEncounterId;
+
+        private final Integer lastEncounterId;
+
+        private final int size;
+
+        private String rows;
+
+        private int encounterCount;
+
+        Chunk(HtmlForm htmlForm, Date fromDate, Date toDate, List<String> extraCols, Locale locale,
+              List<Integer> identifierTypeIds, Integer afterEncounterId, Integer lastEncounterId, int size) {
+            this.htmlForm = htmlForm;
+            this.fromDate = fromDate;
+            this.toDate = toDate;
+            this.extraCols = extraCols;
+            this.locale = locale;
+            this.identifierTypeIds = identifierTypeIds;
+            this.afterEncounterId = afterEncounterId;
+            this.lastEncounterId = lastEncounterId;
+            this.size = size;
+        }
+
+        void buildRows(HtmlFormExportPlan plan) throws Exception {
+            List<Encounter> encounters = HtmlFormEntryUtil.getService().getEncountersForForm(htmlForm.getForm(), fromDate,
+                toDate, afterEncounterId, size);
+            // in case encounters have been voided since the ids were read, don't run into the next chunk
+            for (Iterator<Encounter> i = encounters.iterator(); i.hasNext();) {
+                if (i.next().getEncounterId() > lastEncounterId)
+                    i.remove();
+            }
+            List<PatientIdentifierType> pitList = new ArrayList<PatientIdentifierType>();
+            for (Integer id : identifierTypeIds)
+                pitList.add(Context.getPatientService().getPatientIdentifierType(id));
+            StringBuilder sb = new StringBuilder();
+            HtmlFormEntryExportUtil.appendColumnData(encounters, plan, extraCols, sb, locale, pitList);
+            rows = sb.toString();
+            encounterCount = encounters.size();
+        }
+    }
+
+    /**
+     * What a worker needs to act as the user who started the export: the scheduler's credentials, read
+     * by the calling thread (which is logged in), and the system id of the user to become
+     */
+    private static class WorkerLogin {
+
+        private final String username;
+
+        private final String password;
+
+        private final String systemId;
+
+        WorkerLogin(String systemId) {
+            AdministrationService as = Context.getAdministrationService();
+            this.username = as.getGlobalProperty("scheduler.username");
+            this.password = as.getGlobalProperty("scheduler.password");
+            this.systemId = systemId;
+        }
+
+        void logIn() {
+            Context.authenticate(username, password);
+            Context.becomeUser(systemId);
+        }
+    }
+
+    /**
+     * Builds a chunk on a worker thread, in a session and user context of its own
+     */
+    private static class ChunkTask implements Callable<Chunk> {
+
+        private final Chunk chunk;
+
+        private final WorkerLogin login;
+
+        ChunkTask(Chunk chunk, WorkerLogin login) {
+            this.chunk = chunk;
+            this.login = login;
+        }
+
+        public Chunk call() throws Exception {
+            Context.openSession();
+            try {
+                Context.setUserContext(new UserContext());
+                if (login != null)
+                    login.logIn();
+                // nothing here is meant to be saved, so only calls that are not read-only flush
+                for (SessionFactory sessionFactory : Context.getRegisteredComponents(SessionFactory.class))
+                    sessionFactory.getCurrentSession().setFlushMode(FlushMode.MANUAL);
+                // don't touch the calling thread's objects from this session, other than the form's id
+                HtmlForm htmlForm = chunk.htmlForm;
+                if (htmlForm.getId() != null)
+                    htmlForm = HtmlFormEntryUtil.getService().getHtmlForm(htmlForm.getId());
+                Chunk reloaded = new Chunk(htmlForm, chunk.fromDate, chunk.toDate, chunk.extraCols, chunk.locale,
+                        chunk.identifierTypeIds, chunk.afterEncounterId, chunk.lastEncounterId, chunk.size);
+                reloaded.buildRows(new HtmlFormExportPlan(htmlForm));
+                return reloaded;
+            }
+            finally {
+                Context.clearSession();
+                Context.closeSession();
+                Context.clearUserContext();
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "htmlformentry-export-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -9,9 +9,11 @@ import java.util.Map;
 
 import org.openmrs.Concept;
 import org.openmrs.Obs;
+import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.ObsGroupComponent;
+import org.openmrs.module.htmlformentry.TagOutputWriter;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.action.ObsGroupAction;
 import org.openmrs.module.htmlformentry.matching.ObsGroupEntity;
@@ -58,8 +60,16 @@ public class ObsGroupTagHandler extends AbstractTagHandler {
         groupingConcept.getDatatype().getHl7Abbreviation();
                
         String name = attributes.get("label");
+        
+        ObsGroupEntity obsGroupEntity = new ObsGroupEntity();
+        obsGroupEntity.setPath(ObsGroupComponent.getObsGroupPath(node));
+        obsGroupEntity.setQuestionsAndAnswers(ObsGroupComponent.findQuestionsAndAnswersForGroup(attributes.get("groupingConceptId"), node));
+        obsGroupEntity.setXmlObsGroupConcept(attributes.get("groupingConceptId"));
+        obsGroupEntity.setGroupingConcept(groupingConcept);
+        obsGroupEntity.setNode(node);
+        
         // find relevant obs group to display for this element
-        Obs thisGroup = findObsGroup(session, node, attributes.get("groupingConceptId"));
+        Obs thisGroup = findObsGroup(session, obsGroupEntity);
         
         boolean digDeeper = true;
         
@@ -67,14 +77,12 @@ public class ObsGroupTagHandler extends AbstractTagHandler {
         	if (!session.getContext().isUnmatchedMode()) {
             	unmatchedInd = true;
 
-            	ObsGroupEntity obsGroupEntity = new ObsGroupEntity();
-            	obsGroupEntity.setPath(ObsGroupComponent.getObsGroupPath(node));
-            	obsGroupEntity.setQuestionsAndAnswers(ObsGroupComponent.findQuestionsAndAnswersForGroup(attributes.get("groupingConceptId"), node));
-            	obsGroupEntity.setXmlObsGroupConcept(attributes.get("groupingConceptId"));
-            	obsGroupEntity.setGroupingConcept(groupingConcept);
-            	obsGroupEntity.setNode(node);
             	int unmatchedObsGroupId = session.getContext().addUnmatchedObsGroupEntities(obsGroupEntity);
-                out.print(String.format("<unmatched id=\"%s\" />", unmatchedObsGroupId));        	
+                String placeholder = String.format("<unmatched id=\"%s\" />", unmatchedObsGroupId);
+                if (out instanceof TagOutputWriter)
+                    ((TagOutputWriter) out).printPlaceholder(unmatchedObsGroupId, placeholder);
+                else
+                    out.print(placeholder);
                 digDeeper = false;
         	}
         } else {
@@ -85,20 +93,25 @@ public class ObsGroupTagHandler extends AbstractTagHandler {
         ObsGroup ogSchemaObj = new ObsGroup(groupingConcept, name);
         session.getContext().beginObsGroup(groupingConcept, thisGroup, ogSchemaObj);
         //adds the obsgroup action to the controller stack
-        session.getSubmissionController().addAction(ObsGroupAction.start(groupingConcept, thisGroup, ogSchemaObj));
+        ObsGroupAction action = ObsGroupAction.start(groupingConcept, thisGroup, ogSchemaObj);
+        action.setObsGroupEntity(obsGroupEntity);
+        session.getSubmissionController().addAction(action);
         return digDeeper;
     }
 
-    private Obs findObsGroup(FormEntrySession session, Node node, String parentGroupingConceptId) {
-        String path = ObsGroupComponent.getObsGroupPath(node);
-    	
-        if (session.getContext().isUnmatchedMode()) {
-            return session.getContext().getNextUnmatchedObsGroup(path);
+    /**
+     * Finds the existing obs group that best matches the given obsGroup tag, and removes it from the context
+     */
+    public static Obs findObsGroup(FormEntryContext context, ObsGroupEntity obsGroupEntity) {
+        if (context.isUnmatchedMode()) {
+            return context.getNextUnmatchedObsGroup(obsGroupEntity.getPath());
         } else {
-            List<ObsGroupComponent> questionsAndAnswers = ObsGroupComponent.findQuestionsAndAnswersForGroup(parentGroupingConceptId, node);
-            return session.getContext().findBestMatchingObsGroup(questionsAndAnswers, parentGroupingConceptId, path);
+            return context.findBestMatchingObsGroup(obsGroupEntity.getQuestionsAndAnswers(), obsGroupEntity.getXmlObsGroupConcept(), obsGroupEntity.getPath());
         }
-
+    }
+    
+    private Obs findObsGroup(FormEntrySession session, ObsGroupEntity obsGroupEntity) {
+        return findObsGroup(session.getContext(), obsGroupEntity);
     }
 
     @Override
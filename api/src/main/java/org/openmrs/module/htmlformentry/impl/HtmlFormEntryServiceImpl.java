@@ -2,33 +2,60 @@ package org.openmrs.module.htmlformentry.impl;
 
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
-import org.apache.velocity.runtime.RuntimeConstants;
-import org.apache.velocity.runtime.log.CommonsLogLogChute;
-import org.openmrs.Cohort;
+import org.openmrs.Encounter;
 import org.openmrs.Form;
+import org.openmrs.Obs;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
 import org.openmrs.Person;
 import org.openmrs.Program;
+import org.openmrs.Relationship;
+import org.openmrs.api.APIException;
+import org.openmrs.api.ObsService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.htmlformentry.BadFormDesignException;
+import org.openmrs.module.htmlformentry.CompiledHtmlForm;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.FormSubmissionActions;
+import org.openmrs.module.htmlformentry.FormSubmissionError;
 import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryGenerator;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.bulk.BulkSubmissionError;
+import org.openmrs.module.htmlformentry.bulk.HtmlFormBulkSubmitter;
+import org.openmrs.module.htmlformentry.bulk.SubmissionRequest;
+import org.openmrs.module.htmlformentry.cache.BoundedCache;
+import org.openmrs.module.htmlformentry.cohort.IdSet;
 import org.openmrs.module.htmlformentry.db.HtmlFormEntryDAO;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
+import org.openmrs.module.htmlformentry.metrics.FormEntryMetrics;
+import org.openmrs.module.htmlformentry.metrics.FormEntryMetrics.Category;
+import org.openmrs.module.htmlformentry.metrics.HtmlFormEntryMetrics;
+import org.openmrs.module.htmlformentry.metrics.StageTimer;
+import org.openmrs.module.htmlformentry.property.ExitFromCareProperty;
+import org.openmrs.module.htmlformentry.velocity.HtmlFormEntryVelocity;
+import org.openmrs.util.OpenmrsUtil;
 
 /**
  * Standard implementation of the HtmlFormEntryService
@@ -49,6 +76,17 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 	 * the system is restarted or the module is reloaded.
 	 */
     private boolean nameAndDescriptionMigrationDone = false;
+
+    /**
+     * Cache of compiled forms, keyed by "htmlFormId@dateChanged"
+     */
+    private BoundedCache<String, CompiledHtmlForm> compiledHtmlFormCache = new BoundedCache<String, CompiledHtmlForm>(50);
+
+    /**
+     * Cached in place of forms that {@link HtmlFormEntryGenerator#compile(String)} can't compile, so
+     * that we don't try again on every request
+     */
+    private static final CompiledHtmlForm NOT_COMPILABLE = new CompiledHtmlForm(null, null);
     
     @Override
     public void addHandler(String tagName, TagHandler handler) {
@@ -83,6 +121,15 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
         this.dao = dao;
     }
     
+    /**
+     * Sets the maximum number of compiled forms to keep in memory
+     * 
+     * @param compiledHtmlFormCacheSize
+     */
+    public void setCompiledHtmlFormCacheSize(int compiledHtmlFormCacheSize) {
+        compiledHtmlFormCache.setMaxSize(compiledHtmlFormCacheSize);
+    }
+    
     /**
      * @return the basicFormXmlTemplate
      */
@@ -113,13 +160,64 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
             htmlForm.setDateChanged(new Date());
         }
         Context.getFormService().saveForm(htmlForm.getForm());
+        evictCompiledHtmlForm(htmlForm.getId());
         return dao.saveHtmlForm(htmlForm);
     }
     
     @Override
     public void purgeHtmlForm(HtmlForm htmlForm) {
+        evictCompiledHtmlForm(htmlForm.getId());
         dao.deleteHtmlForm(htmlForm);
     }
+    
+    @Override
+    public CompiledHtmlForm getCompiledHtmlForm(HtmlForm htmlForm) {
+        if (htmlForm.getId() == null)
+            return compileHtmlForm(htmlForm);
+        
+        Date dateChanged = htmlForm.getDateChanged();
+        String key = htmlForm.getId() + "@" + (dateChanged == null ? "" : dateChanged.getTime());
+        CompiledHtmlForm compiled = compiledHtmlFormCache.get(key);
+        if (compiled == null) {
+            compiled = compileHtmlForm(htmlForm);
+            if (compiled == null) {
+                compiled = NOT_COMPILABLE;
+            } else {
+                compiled.setHtmlFormId(htmlForm.getId());
+                compiled.setDateChanged(dateChanged == null ? null : dateChanged.getTime());
+            }
+            evictCompiledHtmlForm(htmlForm.getId());
+            compiledHtmlFormCache.put(key, compiled);
+        }
+        return compiled == NOT_COMPILABLE ? null : compiled;
+    }
+    
+    @Override
+    public Map<String, Long> getCompiledHtmlFormCacheStatistics() {
+        return compiledHtmlFormCache.getStatistics();
+    }
+    
+    private CompiledHtmlForm compileHtmlForm(HtmlForm htmlForm) {
+        try {
+            return new HtmlFormEntryGenerator().compile(htmlForm.getXmlData());
+        }
+        catch (Exception ex) {
+            throw new APIException("Unable to compile html form " + htmlForm.getId(), ex);
+        }
+    }
+    
+    /**
+     * Removes all compiled versions of the given form from the cache
+     */
+    private void evictCompiledHtmlForm(Integer htmlFormId) {
+        if (htmlFormId == null)
+            return;
+        String prefix = htmlFormId + "@";
+        for (String key : compiledHtmlFormCache.keySet()) {
+            if (key.startsWith(prefix))
+                compiledHtmlFormCache.remove(key);
+        }
+    }
 
     @Override
     public List<HtmlForm> getAllHtmlForms() {
@@ -148,18 +246,6 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 	 */
 	@Override
     public String getStartingFormXml(HtmlForm form) {
-		VelocityEngine velocityEngine = new VelocityEngine();
-        velocityEngine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, 
-        		"org.apache.velocity.runtime.log.CommonsLogLogChute");
-        velocityEngine.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME,
-        		"htmlformentry_velocity");
-        try {
-            velocityEngine.init();
-        }
-        catch (Exception e) {
-            log.error("Error initializing Velocity engine", e);
-        }
-
         VelocityContext velocityContext = new VelocityContext();
         velocityContext.put("htmlForm", form);
         velocityContext.put("identifierTypes", Context.getPatientService().getAllPatientIdentifierTypes(false));
@@ -167,7 +253,7 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
         
         StringWriter writer = new StringWriter();
         try {
-            velocityEngine.evaluate(velocityContext, writer, "Basic HTML Form", getBasicFormXmlTemplate());
+            HtmlFormEntryVelocity.evaluate(velocityContext, writer, getBasicFormXmlTemplate());
             String result = writer.toString();
             return result;
         } catch (Exception ex) {
@@ -196,104 +282,405 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 	    return dao.getItemByName(type, name);
     }
     
+    @Override
+    public Map<String, OpenmrsObject> getItemsByUuid(Class<? extends OpenmrsObject> type, Collection<String> uuids) {
+        return dao.getItemsByUuid(type, uuids);
+    }
+    
+    @Override
+    public Map<Integer, OpenmrsObject> getItemsById(Class<? extends OpenmrsObject> type, Collection<Integer> ids) {
+        return dao.getItemsById(type, ids);
+    }
+    
+    @Override
+    public Map<String, OpenmrsObject> getItemsByName(Class<? extends OpenmrsMetadata> type, Collection<String> names) {
+        return dao.getItemsByName(type, names);
+    }
+    
     @Override
     public List<Integer> getPersonIdsHavingAttributes(String attribute, String attributeValue) {
-    		    
-    	return dao.getPersonIdHavingAttributes(attribute, attributeValue);
+    	return new ArrayList<Integer>(getPersonIdSetHavingAttribute(attribute, attributeValue));
+    }
+    
+    @Override
+    public IdSet getPersonIdSetHavingAttribute(String attribute, String attributeValue) {
+        return dao.getPersonIdSetHavingAttribute(attribute, attributeValue);
+    }
+    
+    @Override
+    public IdSet getPatientIdSetInProgram(Program program) {
+        return dao.getPatientIdSetInProgram(program);
+    }
+    
+    @Override
+    public List<Encounter> getEncountersForForm(Form form, Date fromDate, Date toDate, Integer afterEncounterId, int maxResults) {
+        return dao.getEncountersForForm(form, fromDate, toDate, afterEncounterId, maxResults);
+    }
+    
+    @Override
+    public List<Integer> getEncounterIdsForForm(Form form, Date fromDate, Date toDate, Integer afterEncounterId, int maxResults) {
+        return dao.getEncounterIdsForForm(form, fromDate, toDate, afterEncounterId, maxResults);
+    }
+    
+    @Override
+    public boolean hasEncounterForHtmlForm(Integer patientId, Integer htmlFormId, Date encounterDatetime) {
+        HtmlForm htmlForm = dao.getHtmlForm(htmlFormId);
+        if (htmlForm == null || htmlForm.getForm() == null)
+            return false;
+        return dao.hasEncounter(patientId, htmlForm.getForm(), encounterDatetime);
+    }
+    
+    @Override
+    public void applyActions(FormEntrySession session) {
+        FormEntryMetrics metrics = HtmlFormEntryMetrics.getMetrics();
+        long statementsBefore = metrics.isEnabled() ? dao.getPreparedStatementCount() : -1;
+        StageTimer timer = HtmlFormEntryMetrics.startTimer(Category.APPLY_ACTIONS);
+        FormSubmissionActions submissionActions = session.getSubmissionActions();
+        
+        // fetch existing enrollments before saving anything, since querying part way through would flush
+        Map<Integer, List<PatientProgram>> enrollments = getEnrollmentsByPatientId(submissionActions
+                .getPatientProgramsToCreate());
+        timer.lap("fetchEnrollments");
+        
+        if (submissionActions.getPersonsToCreate() != null) {
+            for (Person p : submissionActions.getPersonsToCreate()) {
+                Context.getPersonService().savePerson(p);
+            }
+        }
+        timer.lap("savePersons");
+        
+        if (submissionActions.getEncountersToCreate() != null) {
+            Form form = session.getForm();
+            for (Encounter e : submissionActions.getEncountersToCreate()) {
+                if (form != null) {
+                    e.setForm(form);
+                    if (form.getEncounterType() != null)
+                        e.setEncounterType(form.getEncounterType());
+                }
+                Context.getEncounterService().saveEncounter(e);
+            }
+        }
+        timer.lap("saveEncounters");
+        
+        //deal with relationships
+        if (submissionActions.getRelationshipsToCreate() != null) {
+            for (Relationship r : submissionActions.getRelationshipsToCreate()) {
+                if (log.isDebugEnabled()) {
+                    log.debug("creating relationships" + r.getRelationshipType().getDescription());
+                }
+                Context.getPersonService().saveRelationship(r);
+            }
+        }
+        
+        if (submissionActions.getRelationshipsToVoid() != null) {
+            for (Relationship r : submissionActions.getRelationshipsToVoid()) {
+                if (log.isDebugEnabled()) {
+                    log.debug("voiding relationships" + r.getId());
+                }
+                Context.getPersonService().voidRelationship(r, "htmlformentry");
+            }
+        }
+        
+        if (submissionActions.getRelationshipsToEdit() != null) {
+            for (Relationship r : submissionActions.getRelationshipsToCreate()) {
+                if (log.isDebugEnabled()) {
+                    log.debug("editing relationships" + r.getId());
+                }
+                Context.getPersonService().saveRelationship(r);
+            }
+        }
+        timer.lap("saveRelationships");
+        
+        // program enrollments are trickier since we need to make sure the patient isn't already enrolled
+        // 1. if the patient is already enrolled on the given date, just skip this
+        // 2. if the patient is enrolled *after* the given date, shift the existing enrollment to start earlier. (TODO decide if this is right)
+        // 3. otherwise just enroll them as requested
+        if (submissionActions.getPatientProgramsToCreate() != null) {
+            for (PatientProgram toCreate : submissionActions.getPatientProgramsToCreate()) {
+                boolean skip = false;
+                PatientProgram earliestAfter = null;
+                List<PatientProgram> already = enrollments.get(toCreate.getPatient().getPatientId());
+                if (already == null) {
+                    // a patient created by this form
+                    already = new ArrayList<PatientProgram>();
+                    enrollments.put(toCreate.getPatient().getPatientId(), already);
+                }
+                for (PatientProgram pp : already) {
+                    if (!pp.getProgram().getProgramId().equals(toCreate.getProgram().getProgramId()))
+                        continue;
+                    if (pp.getActive(toCreate.getDateEnrolled())) {
+                        skip = true;
+                        break;
+                    }
+                    // if the existing one starts after toCreate
+                    if (OpenmrsUtil.compare(pp.getDateEnrolled(), toCreate.getDateEnrolled()) > 0) {
+                        if (earliestAfter == null
+                                || OpenmrsUtil.compare(pp.getDateEnrolled(), earliestAfter.getDateEnrolled()) < 0) {
+                            earliestAfter = pp;
+                        }
+                    }
+                }
+                if (skip) {
+                    continue;
+                }
+                if (earliestAfter != null) {
+                    // edit this enrollment to move its start date earlier
+                    earliestAfter.setDateEnrolled(toCreate.getDateEnrolled());
+                    Context.getProgramWorkflowService().savePatientProgram(earliestAfter);
+                } else {
+                    // just enroll as requested
+                    Context.getProgramWorkflowService().savePatientProgram(toCreate);
+                    already.add(toCreate);
+                }
+            }
+        }
+        
+        //complete any necessary programs
+        if (submissionActions.getPatientProgramsToComplete() != null) {
+            for (PatientProgram toComplete : submissionActions.getPatientProgramsToComplete()) {
+                Context.getProgramWorkflowService().savePatientProgram(toComplete);
+            }
+        }
+        
+        if (submissionActions.getPatientProgramsToUpdate() != null) {
+            for (PatientProgram patientProgram : submissionActions.getPatientProgramsToUpdate()) {
+                Context.getProgramWorkflowService().savePatientProgram(patientProgram);
+            }
+        }
+        timer.lap("savePrograms");
+        
+        ObsService obsService = Context.getObsService();
+        
+        if (submissionActions.getObsToVoid() != null) {
+            for (Obs o : submissionActions.getObsToVoid()) {
+                if (log.isDebugEnabled())
+                    log.debug("voiding obs: " + o.getObsId());
+                obsService.voidObs(o, "htmlformentry");
+                // if o was in a group and it has no obs left, void the group
+                if (noObsLeftInGroup(o.getObsGroup())) {
+                    obsService.voidObs(o.getObsGroup(), "htmlformentry");
+                }
+            }
+        }
+        timer.lap("voidObs");
+        
+        // If we're in EDIT mode, we have to save the encounter so that any new obs are created.
+        // This feels a bit like a hack, but actually it's a good thing to update the encounter's dateChanged in this case. (PS- turns out there's no dateChanged on encounter up to 1.5.)
+        // If there is no encounter (impossible at the time of writing this comment) we save the obs manually
+        if (session.getContext().getMode() == Mode.EDIT) {
+            Encounter encounter = session.getEncounter();
+            if (encounter != null) {
+                if (session.isVoidEncounter()) {
+                    try {
+                        HtmlFormEntryUtil.voidEncounter(encounter, session.getHtmlForm(),
+                            "voided via htmlformentry form submission");
+                    }
+                    catch (Exception ex) {
+                        throw new RuntimeException("Unable to void encounter.", ex);
+                    }
+                }
+                Context.getEncounterService().saveEncounter(encounter);
+            } else if (submissionActions.getObsToCreate() != null) {
+                // this may not work right due to savehandlers (similar error to HTML-135) but this branch is
+                // unreachable until html forms are allowed to edit data without an encounter
+                for (Obs o : submissionActions.getObsToCreate())
+                    obsService.saveObs(o, null);
+            }
+        }
+        timer.lap("saveEditedEncounter");
+        
+        // save the patient
+        // TODO: we are having some issues here when updating a Patient and an Encounter via an HTML form due recently discovered problems with the way
+        // we are using Hibernate.  We rely on Spring AOP saveHandlers and the save methods themselves to set some key parameters like date created--and
+        // sometimes a flush can be called before these methods are called. This should be resolved once we move save handling out of Spring AOP and
+        // into a Hibernate Interceptor (which happens in 1.9)
+        Patient patient = session.getPatient();
+        if (patient != null && submissionActions.getPatientUpdateRequired()) {
+            Context.getPersonService().savePerson(patient);
+        }
+        timer.lap("savePatient");
+        
+        // exit the patient from care or process patient's death
+        if (submissionActions.getExitFromCareProperty() != null) {
+            ExitFromCareProperty exitFromCareProperty = submissionActions.getExitFromCareProperty();
+            if (exitFromCareProperty.getCauseOfDeathConcept() != null) {
+                Context.getPatientService().processDeath(patient, exitFromCareProperty.getDateOfExit(),
+                    exitFromCareProperty.getCauseOfDeathConcept(), exitFromCareProperty.getOtherReason());
+            } else {
+                Context.getPatientService().exitFromCare(patient, exitFromCareProperty.getDateOfExit(),
+                    exitFromCareProperty.getReasonExitConcept());
+            }
+            timer.lap("exitFromCare");
+        }
+        
+        long statementsBeforeFlush = statementsBefore >= 0 ? dao.getPreparedStatementCount() : -1;
+        Context.flushSession();
+        timer.lap("flush");
+        
+        // statements are only counted if hibernate statistics were already on
+        if (statementsBefore >= 0 && statementsBeforeFlush >= 0) {
+            long statementsAfter = Math.max(dao.getPreparedStatementCount(), statementsBeforeFlush);
+            metrics.recordStatements("saves", statementsBeforeFlush - statementsBefore);
+            metrics.recordStatements("flush", statementsAfter - statementsBeforeFlush);
+            metrics.recordStatements("total", statementsAfter - statementsBefore);
+        }
+    }
+    
+    /**
+     * @return the existing enrollments of the (already saved) patients that the given enrollments are
+     *         for, keyed by patient id
+     */
+    private Map<Integer, List<PatientProgram>> getEnrollmentsByPatientId(List<PatientProgram> toCreate) {
+        Map<Integer, List<PatientProgram>> ret = new HashMap<Integer, List<PatientProgram>>();
+        if (toCreate == null || toCreate.isEmpty())
+            return ret;
+        
+        Set<Patient> patients = new HashSet<Patient>();
+        for (PatientProgram pp : toCreate) {
+            if (pp.getPatient().getPatientId() != null)
+                patients.add(pp.getPatient());
+        }
+        for (Patient p : patients)
+            ret.put(p.getPatientId(), new ArrayList<PatientProgram>());
+        for (PatientProgram pp : dao.getPatientPrograms(patients))
+            ret.get(pp.getPatient().getPatientId()).add(pp);
+        return ret;
+    }
+    
+    /**
+     * Returns true if group is an obs group that has no unvoided members.
+     * 
+     * @param group
+     * @return
+     */
+    private boolean noObsLeftInGroup(Obs group) {
+        if (group == null)
+            return false;
+        for (Obs member : group.getGroupMembers()) {
+            if (!member.isVoided())
+                return false;
+        }
+        return true;
+    }
+    
+    @Override
+    public List<BulkSubmissionError> submitInBulk(HtmlForm form, List<Map<String, String>> rows, int firstRowNumber) {
+        // the form may have been loaded by a session that has since been cleared
+        if (form.getId() != null)
+            form = getHtmlForm(form.getId());
+        
+        List<BulkSubmissionError> errors = new ArrayList<BulkSubmissionError>();
+        int rowNumber = firstRowNumber;
+        for (Map<String, String> row : rows) {
+            String error = submitRow(form, row);
+            if (error != null)
+                errors.add(new BulkSubmissionError(rowNumber, error));
+            ++rowNumber;
+        }
+        Context.flushSession();
+        Context.clearSession();
+        return errors;
+    }
+    
+    /**
+     * Submits the form once, the way HtmlFormEntryController does for a browser
+     * 
+     * @return why the row was not submitted, or null if it was
+     * @throws APIException if saving the row fails, since the transaction can't be used after that
+     */
+    private String submitRow(HtmlForm form, Map<String, String> row) {
+        FormEntrySession session;
+        try {
+            Patient patient;
+            String patientId = row.get(HtmlFormBulkSubmitter.PATIENT_ID);
+            if (StringUtils.isNotBlank(patientId)) {
+                patient = Context.getPatientService().getPatient(Integer.valueOf(patientId.trim()));
+                if (patient == null)
+                    return "No patient with id " + patientId;
+            } else {
+                patient = new Patient();
+            }
+            
+            session = new FormEntrySession(patient, null, Mode.ENTER, form);
+            HttpServletRequest request = SubmissionRequest.forValues(row);
+            List<FormSubmissionError> validationErrors = session.getSubmissionController().validateSubmission(
+                session.getContext(), request);
+            if (validationErrors != null && validationErrors.size() > 0) {
+                StringBuilder sb = new StringBuilder();
+                for (FormSubmissionError e : validationErrors) {
+                    String field = e.getId();
+                    if (field == null && e.getSourceWidget() != null)
+                        field = session.getContext().getFieldNameIfRegistered(e.getSourceWidget());
+                    if (sb.length() > 0)
+                        sb.append("; ");
+                    sb.append(field == null ? e.getError() : field + ": " + e.getError());
+                }
+                return sb.toString();
+            }
+            
+            session.prepareForSubmit();
+            if (session.hasPatientTag() && session.getPatient() == null
+                    && (session.getSubmissionActions().getPersonsToCreate() == null || session.getSubmissionActions()
+                            .getPersonsToCreate().size() == 0))
+                return "This form is not going to create a patient";
+            if (session.hasEncouterTag()
+                    && (session.getSubmissionActions().getEncountersToCreate() == null || session.getSubmissionActions()
+                            .getEncountersToCreate().size() == 0))
+                return "This form is not going to create an encounter";
+            
+            session.getSubmissionController().handleFormSubmission(session, request);
+        }
+        catch (Exception ex) {
+            // nothing has been saved yet, so only this row is affected
+            log.debug("Unable to submit row", ex);
+            return ex.getMessage() == null ? ex.toString() : ex.getMessage();
+        }
+        
+        try {
+            session.applyActions();
+        }
+        catch (BadFormDesignException ex) {
+            throw new APIException(ex.getMessage(), ex);
+        }
+        return null;
     }
 	 	
 	@Override
     public List<PersonStub> getPeopleAsPersonStubs(List<String> attributes, List<String> attributeValues, List<String> programIds, List<Person> personsToExclude){
-		List<PersonStub> stubs = new ArrayList<PersonStub>();
-		
-		Set<Integer> attributeMatches = null;
-		Set<Integer> programMatches = null;
-		
-		if(attributes != null)
-		{
-			for(int i = 0; i < attributes.size(); i++)
-			{
-				String attr = attributes.get(i);
-				String val = null;
-				if(attributeValues != null && attributeValues.size() > i)
-				{
-					val = attributeValues.get(i);
-				}
-				
-				Set<Integer> setOfIds = new HashSet<Integer>();
-				setOfIds.addAll(getPersonIdsHavingAttributes(attr, val));
-					
-				if(attributeMatches != null)
-				{
-					attributeMatches.retainAll(setOfIds);
-				}
-				else
-				{
-					attributeMatches = setOfIds;
-				}
-			}
-		}
-		
-		if(programIds != null)
-		{
-			for(String prog: programIds)
-		{
-				if(prog != null && prog.trim().length() > 0)
-				{
+		return getPeopleAsPersonStubs(attributes, attributeValues, programIds, personsToExclude, null, null);
+	}
+	
+	@Override
+    public List<PersonStub> getPeopleAsPersonStubs(List<String> attributes, List<String> attributeValues, List<String> programIds, List<Person> personsToExclude, Integer firstResult, Integer maxResults){
+		List<Program> programs = new ArrayList<Program>();
+		if (programIds != null) {
+			for (String prog : programIds) {
+				if (prog != null && prog.trim().length() > 0) {
 					Program personProgram = HtmlFormEntryUtil.getProgram(prog);
-					
-					if(personProgram != null)
-					{
-						Cohort pp = Context.getPatientSetService().getPatientsInProgram(personProgram, null, null);
-						if(programMatches != null)
-						{
-							programMatches.retainAll(pp.getMemberIds());
-						}
-						else 
-						{
-							programMatches = pp.getMemberIds();
-						}
-					}
+					if (personProgram != null)
+						programs.add(personProgram);
 				}
 			}
 		}
 		
-		Set<Integer> results;
-		
-		// if no attributes specified, just use to the program matches
+		// if no attributes are specified, only the programs are matched; if no programs are specified, only the
+		// attributes are; nobody matches if programs are specified but none of them exist
 		if (attributes == null || attributes.isEmpty()) {
-			results = programMatches;
+			attributes = new ArrayList<String>();
+			if (programs.isEmpty())
+				return new ArrayList<PersonStub>();
+		} else if (programIds != null && !programIds.isEmpty() && programs.isEmpty()) {
+			return new ArrayList<PersonStub>();
 		}
-		// if no programs specified, just use the attribute matches
-		else if (programIds == null || programIds.isEmpty()) {
-			results = attributeMatches;
-		}
-		// otherwise, intersect the results
-		else {
-			results = programMatches;
-			if (results != null) {
-				results.retainAll(attributeMatches);
-			}
-		}
-		
 		
-		if(results != null)
-		{
-			//now iterate through the results, returning person stubs
-			for(Integer id : results)
-			{
-				Person person = Context.getPersonService().getPerson(id);
-				if(person != null && !personsToExclude.contains(person))
-				{
-					PersonStub pStub = new PersonStub();
-					pStub.setGivenName(person.getGivenName());
-					pStub.setFamilyName(person.getFamilyName());
-					pStub.setMiddleName(person.getMiddleName());
-				pStub.setId(id);
-					stubs.add(pStub);
+		Set<Integer> personIdsToExclude = new HashSet<Integer>();
+		if (personsToExclude != null) {
+			for (Person person : personsToExclude) {
+				if (person != null && person.getPersonId() != null) {
+					personIdsToExclude.add(person.getPersonId());
 				}
 			}
 		}
-		return stubs;
+		return dao.getPeopleAsPersonStubs(attributes, attributeValues, programs, personIdsToExclude, firstResult, maxResults);
 	}
 }
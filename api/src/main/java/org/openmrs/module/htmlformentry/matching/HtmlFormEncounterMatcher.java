@@ -0,0 +1,179 @@
+package org.openmrs.module.htmlformentry.matching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+
+import org.openmrs.Concept;
+import org.openmrs.DrugOrder;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Order;
+import org.openmrs.module.htmlformentry.FormEntryContext;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
+import org.openmrs.module.htmlformentry.action.ObsGroupAction;
+import org.openmrs.module.htmlformentry.element.DrugOrderSubmissionElement;
+import org.openmrs.module.htmlformentry.element.ObsConceptSelectSubmissionElement;
+import org.openmrs.module.htmlformentry.element.ObsSubmissionElement;
+import org.openmrs.module.htmlformentry.element.StandardRegimenElement;
+import org.openmrs.module.htmlformentry.handler.ObsGroupTagHandler;
+import org.openmrs.module.htmlformentry.schema.ObsGroup;
+
+/**
+ * Works out which of an encounter's obs and drug orders a VIEW-mode {@link FormEntrySession} for
+ * it would match to each element of a form, without building a session for the encounter. The
+ * form's elements are taken once from any session for the form; after that, matching an encounter
+ * only walks the obs, obs group, concept select, drug order and standard regimen elements in form
+ * order, letting each claim what it would claim while the session was being built. As in a
+ * session, obs groups are matched by path and best supporting rank, and groups that can't be
+ * matched by their contents are handed the leftover obs groups afterwards, in order.
+ */
+public class HtmlFormEncounterMatcher {
+
+	// the actions that claim obs or orders, in form order
+	private List<FormSubmissionControllerAction> steps = new ArrayList<FormSubmissionControllerAction>();
+
+	private List<ObsSubmissionElement> obsElements = new ArrayList<ObsSubmissionElement>();
+
+	// for each step, the index of its obs element, or of the step that ends the group it starts
+	private int[] stepTargets;
+
+	/**
+	 * @param session a session for the form, in any mode
+	 */
+	public HtmlFormEncounterMatcher(FormEntrySession session) {
+		for (FormSubmissionControllerAction action : session.getSubmissionController().getActions()) {
+			if (action instanceof ObsSubmissionElement || action instanceof ObsConceptSelectSubmissionElement
+			        || action instanceof ObsGroupAction || action instanceof DrugOrderSubmissionElement
+			        || action instanceof StandardRegimenElement)
+				steps.add(action);
+		}
+
+		stepTargets = new int[steps.size()];
+		Stack<Integer> openGroups = new Stack<Integer>();
+		for (int i = 0; i < steps.size(); i++) {
+			FormSubmissionControllerAction step = steps.get(i);
+			if (step instanceof ObsSubmissionElement) {
+				stepTargets[i] = obsElements.size();
+				obsElements.add((ObsSubmissionElement) step);
+			} else if (step instanceof ObsGroupAction) {
+				if (((ObsGroupAction) step).getObsGroupEntity() != null) {
+					openGroups.push(i);
+				} else {
+					stepTargets[openGroups.pop()] = i;
+					stepTargets[i] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the obs elements of the form, in form order
+	 */
+	public List<ObsSubmissionElement> getObsElements() {
+		return Collections.unmodifiableList(obsElements);
+	}
+
+	/**
+	 * Matches an encounter's obs and drug orders to the form. The encounter isn't changed.
+	 *
+	 * @param encounter
+	 * @return what matched
+	 */
+	public Match match(Encounter encounter) {
+		FormEntryContext context = new FormEntryContext(Mode.VIEW);
+		context.setupExistingData(encounter);
+		Match ret = new Match(obsElements.size());
+
+		List<Integer> unmatchedGroups = new ArrayList<Integer>();
+		match(context, 0, steps.size(), ret, unmatchedGroups);
+
+		// as in a session, groups that couldn't be matched by their contents get the leftover obs groups
+		if (unmatchedGroups.size() > 0) {
+			context.setUnmatchedMode(true);
+			for (Integer start : unmatchedGroups)
+				match(context, start, stepTargets[start] + 1, ret, null);
+		}
+		return ret;
+	}
+
+	private void match(FormEntryContext context, int from, int to, Match ret, List<Integer> unmatchedGroups) {
+		for (int i = from; i < to; i++) {
+			FormSubmissionControllerAction step = steps.get(i);
+			if (step instanceof ObsSubmissionElement) {
+				Obs obs = ((ObsSubmissionElement) step).findExistingObs(context);
+				ret.obsForElements[stepTargets[i]] = obs;
+				if (obs != null)
+					ret.matchedObs.add(obs);
+			} else if (step instanceof ObsConceptSelectSubmissionElement) {
+				((ObsConceptSelectSubmissionElement) step).findExistingObs(context);
+			} else if (step instanceof DrugOrderSubmissionElement) {
+				DrugOrder order = ((DrugOrderSubmissionElement) step).findExistingOrder(context);
+				if (order != null)
+					ret.matchedOrders.add(order);
+			} else if (step instanceof StandardRegimenElement) {
+				((StandardRegimenElement) step).findExistingRegimen(context, new ArrayList<DrugOrder>());
+			} else {
+				ObsGroupEntity entity = ((ObsGroupAction) step).getObsGroupEntity();
+				if (entity == null) {
+					context.endObsGroup();
+					continue;
+				}
+				Concept groupingConcept = entity.getGroupingConcept();
+				Obs group = ObsGroupTagHandler.findObsGroup(context, entity);
+				context.beginObsGroup(groupingConcept, group, new ObsGroup(groupingConcept));
+				if (group != null) {
+					ret.matchedObs.add(group);
+				} else if (!context.isUnmatchedMode()) {
+					// skip to the end of the group, and come back to it once everything else is matched
+					unmatchedGroups.add(i);
+					i = stepTargets[i] - 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The obs and drug orders of one encounter that matched the form
+	 */
+	public static class Match {
+
+		private final Obs[] obsForElements;
+
+		private final Set<Obs> matchedObs = new HashSet<Obs>();
+
+		private final Set<Order> matchedOrders = new HashSet<Order>();
+
+		Match(int obsElementCount) {
+			obsForElements = new Obs[obsElementCount];
+		}
+
+		/**
+		 * @return a list with an entry (null if there is no matching obs) for each of
+		 *         {@link HtmlFormEncounterMatcher#getObsElements()}, in the same order
+		 */
+		public List<Obs> getObsForObsElements() {
+			return Arrays.asList(obsForElements);
+		}
+
+		/**
+		 * @return the obs matched by obs elements, and the obs groups matched by obs group tags
+		 */
+		public Set<Obs> getMatchedObs() {
+			return matchedObs;
+		}
+
+		/**
+		 * @return the orders matched by drug order elements
+		 */
+		public Set<Order> getMatchedOrders() {
+			return matchedOrders;
+		}
+	}
+}
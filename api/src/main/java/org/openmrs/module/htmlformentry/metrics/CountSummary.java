@@ -0,0 +1,47 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe summary (count, total and maximum) of a number recorded once per submission, such
+ * as how many jdbc statements it took to save
+ */
+public class CountSummary {
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		count.incrementAndGet();
+		total.addAndGet(value);
+
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value))
+			m = max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotal() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return e.g. "count=12 mean=8.5 max=14 total=102"
+	 */
+	@Override
+	public String toString() {
+		long n = count.get();
+		double mean = n == 0 ? 0 : Math.round(total.get() * 10.0 / n) / 10.0;
+		return "count=" + n + " mean=" + mean + " max=" + max.get() + " total=" + total.get();
+	}
+}
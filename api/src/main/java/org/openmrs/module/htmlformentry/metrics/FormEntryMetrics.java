@@ -0,0 +1,53 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+/**
+ * Receives the timings of the steps of rendering and submitting html forms. The implementation in
+ * use is held by {@link HtmlFormEntryMetrics}; it does nothing unless metrics are switched on.
+ * Implementations are called from every request thread, so must be thread-safe and cheap.
+ */
+public interface FormEntryMetrics {
+
+	/**
+	 * The kinds of step that are timed
+	 */
+	public enum Category {
+		/**
+		 * The stages of generating a form (includes, macros, velocity, tags, ...) and of handling a
+		 * submission (validating, handling)
+		 */
+		STAGE,
+
+		/**
+		 * The time spent in the start and end of a tag's handler, not counting its children, by tag name
+		 */
+		TAG,
+
+		/**
+		 * The phases of saving a submission in FormEntrySession.applyActions
+		 */
+		APPLY_ACTIONS
+	}
+
+	/**
+	 * Records that a step took the given time
+	 *
+	 * @param category the kind of step
+	 * @param name the name of the step, e.g. "macros", "obs" or "saveEncounters"
+	 * @param nanos how long the step took, in nanoseconds
+	 */
+	public void record(Category category, String name, long nanos);
+
+	/**
+	 * Records how many jdbc statements a step of saving a submission prepared
+	 *
+	 * @param name the name of the step, e.g. "saves", "flush" or "total"
+	 * @param statements the number of statements
+	 */
+	public void recordStatements(String name, long statements);
+
+	/**
+	 * @return false if this ignores everything, so that callers can skip work done only to gather
+	 *         metrics (like counting statements)
+	 */
+	public boolean isEnabled();
+}
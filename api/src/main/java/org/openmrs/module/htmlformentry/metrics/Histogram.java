@@ -0,0 +1,89 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of durations, with buckets that double in size from 1 microsecond, so that
+ * percentiles are accurate to within a factor of two. Also keeps the count, total and maximum.
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 40;
+
+	// bucket i holds durations of less than 2^i microseconds (and at least 2^(i-1))
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		long micros = nanos / 1000;
+		int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+			max = maxNanos.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return the mean duration in nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getMeanNanos() {
+		long n = count.get();
+		return n == 0 ? 0 : totalNanos.get() / n;
+	}
+
+	/**
+	 * @param fraction e.g. 0.95 for the 95th percentile
+	 * @return an upper bound (the top of its bucket) for the given percentile of the durations, in
+	 *         nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getPercentileNanos(double fraction) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long wanted = (long) Math.ceil(n * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= wanted)
+				return Math.min((1L << i) * 1000, maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return e.g. "count=12 mean=1.204ms p50<=1.024ms p95<=2.048ms p99<=2.048ms max=1.9ms total=14.448ms"
+	 */
+	@Override
+	public String toString() {
+		return "count=" + getCount() + " mean=" + millis(getMeanNanos()) + " p50<=" + millis(getPercentileNanos(0.5))
+		        + " p95<=" + millis(getPercentileNanos(0.95)) + " p99<=" + millis(getPercentileNanos(0.99)) + " max="
+		        + millis(getMaxNanos()) + " total=" + millis(getTotalNanos());
+	}
+
+	private static String millis(long nanos) {
+		return (nanos / 1000) / 1000.0 + "ms";
+	}
+}
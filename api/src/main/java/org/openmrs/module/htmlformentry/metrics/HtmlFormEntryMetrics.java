@@ -0,0 +1,82 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.htmlformentry.HtmlFormEntryActivator;
+import org.openmrs.module.htmlformentry.metrics.FormEntryMetrics.Category;
+
+/**
+ * Holds the {@link FormEntryMetrics} that form rendering and submission report their timings to. This
+ * is a {@link NoOpFormEntryMetrics} unless the htmlformentry.metricsEnabled global property is true
+ * when the module starts (see {@link HtmlFormEntryActivator}), in which case timings are kept by an
+ * {@link InMemoryFormEntryMetrics} that can be read over JMX as {@link #OBJECT_NAME}. Other modules
+ * may plug in their own implementation with {@link #setMetrics(FormEntryMetrics)}.
+ */
+public class HtmlFormEntryMetrics {
+
+	public static final String OBJECT_NAME = "org.openmrs.module.htmlformentry:type=FormEntryMetrics";
+
+	private static Log log = LogFactory.getLog(HtmlFormEntryMetrics.class);
+
+	private static volatile FormEntryMetrics metrics = new NoOpFormEntryMetrics();
+
+	private HtmlFormEntryMetrics() {
+	}
+
+	public static FormEntryMetrics getMetrics() {
+		return metrics;
+	}
+
+	public static void setMetrics(FormEntryMetrics metrics) {
+		HtmlFormEntryMetrics.metrics = metrics == null ? new NoOpFormEntryMetrics() : metrics;
+	}
+
+	/**
+	 * @return a timer for a sequence of steps of the given kind
+	 */
+	public static StageTimer startTimer(Category category) {
+		return new StageTimer(metrics, category);
+	}
+
+	/**
+	 * Starts keeping timings in memory, and registers them with the platform MBean server
+	 *
+	 * @return the metrics now in use
+	 */
+	public static synchronized InMemoryFormEntryMetrics startInMemoryMetrics() {
+		InMemoryFormEntryMetrics inMemory = new InMemoryFormEntryMetrics();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(inMemory, name);
+		}
+		catch (Exception ex) {
+			log.warn("Unable to register html form entry metrics with JMX", ex);
+		}
+		setMetrics(inMemory);
+		return inMemory;
+	}
+
+	/**
+	 * Goes back to ignoring timings, and removes any in-memory metrics from the MBean server
+	 */
+	public static synchronized void stopMetrics() {
+		setMetrics(null);
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		}
+		catch (Exception ex) {
+			log.warn("Unable to unregister html form entry metrics from JMX", ex);
+		}
+	}
+}
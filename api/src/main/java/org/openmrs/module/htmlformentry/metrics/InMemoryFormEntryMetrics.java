@@ -0,0 +1,136 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps a {@link Histogram} in memory for every step that is timed, and exposes them over JMX (see
+ * {@link HtmlFormEntryMetrics#startInMemoryMetrics()})
+ */
+public class InMemoryFormEntryMetrics implements FormEntryMetrics, InMemoryFormEntryMetricsMBean {
+
+	private final Map<Category, ConcurrentMap<String, Histogram>> histograms = new EnumMap<Category, ConcurrentMap<String, Histogram>>(
+	        Category.class);
+
+	private final ConcurrentMap<String, CountSummary> statementCounts = new ConcurrentHashMap<String, CountSummary>();
+
+	public InMemoryFormEntryMetrics() {
+		for (Category category : Category.values())
+			histograms.put(category, new ConcurrentHashMap<String, Histogram>());
+	}
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.FormEntryMetrics#record(Category, String, long)
+	 */
+	public void record(Category category, String name, long nanos) {
+		ConcurrentMap<String, Histogram> map = histograms.get(category);
+		Histogram histogram = map.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = map.putIfAbsent(name, created);
+			if (histogram == null)
+				histogram = created;
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.FormEntryMetrics#recordStatements(String, long)
+	 */
+	public void recordStatements(String name, long statements) {
+		CountSummary summary = statementCounts.get(name);
+		if (summary == null) {
+			CountSummary created = new CountSummary();
+			summary = statementCounts.putIfAbsent(name, created);
+			if (summary == null)
+				summary = created;
+		}
+		summary.record(statements);
+	}
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.FormEntryMetrics#isEnabled()
+	 */
+	public boolean isEnabled() {
+		return true;
+	}
+
+	/**
+	 * @return the histograms recorded so far for the given category, by step name
+	 */
+	public Map<String, Histogram> getHistograms(Category category) {
+		return Collections.unmodifiableMap(histograms.get(category));
+	}
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.InMemoryFormEntryMetricsMBean#getStageTimings()
+	 */
+	public String[] getStageTimings() {
+		return describe(Category.STAGE);
+	}
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.InMemoryFormEntryMetricsMBean#getTagTimings()
+	 */
+	public String[] getTagTimings() {
+		return describe(Category.TAG);
+	}
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.InMemoryFormEntryMetricsMBean#getApplyActionsTimings()
+	 */
+	public String[] getApplyActionsTimings() {
+		return describe(Category.APPLY_ACTIONS);
+	}
+
+	/**
+	 * @return the statement counts recorded so far, by step name
+	 */
+	public Map<String, CountSummary> getStatementCounts() {
+		return Collections.unmodifiableMap(statementCounts);
+	}
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.InMemoryFormEntryMetricsMBean#getApplyActionsStatementCounts()
+	 */
+	public String[] getApplyActionsStatementCounts() {
+		List<String> names = new ArrayList<String>(statementCounts.keySet());
+		Collections.sort(names);
+		String[] ret = new String[names.size()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = names.get(i) + ": " + statementCounts.get(names.get(i));
+		return ret;
+	}
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.InMemoryFormEntryMetricsMBean#reset()
+	 */
+	public void reset() {
+		for (Map<String, Histogram> map : histograms.values())
+			map.clear();
+		statementCounts.clear();
+	}
+
+	private String[] describe(Category category) {
+		List<Map.Entry<String, Histogram>> entries = new ArrayList<Map.Entry<String, Histogram>>(histograms.get(category)
+		        .entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Histogram>>() {
+
+			public int compare(Map.Entry<String, Histogram> left, Map.Entry<String, Histogram> right) {
+				long l = left.getValue().getTotalNanos();
+				long r = right.getValue().getTotalNanos();
+				return l > r ? -1 : l < r ? 1 : 0;
+			}
+		});
+		String[] ret = new String[entries.size()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = entries.get(i).getKey() + ": " + entries.get(i).getValue();
+		return ret;
+	}
+}
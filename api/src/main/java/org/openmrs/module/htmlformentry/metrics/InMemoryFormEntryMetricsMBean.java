@@ -0,0 +1,26 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+/**
+ * The JMX view of {@link InMemoryFormEntryMetrics}. Each timing is a line like
+ * "obs: count=1200 mean=0.153ms p50<=0.128ms ...", slowest (by total time) first.
+ */
+public interface InMemoryFormEntryMetricsMBean {
+
+	public String[] getStageTimings();
+
+	public String[] getTagTimings();
+
+	public String[] getApplyActionsTimings();
+
+	/**
+	 * @return how many jdbc statements saving a submission took, as lines like
+	 *         "total: count=1200 mean=14.2 max=40 total=17040"; statements are only counted while
+	 *         hibernate statistics are switched on
+	 */
+	public String[] getApplyActionsStatementCounts();
+
+	/**
+	 * Forgets all timings recorded so far
+	 */
+	public void reset();
+}
@@ -0,0 +1,26 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+/**
+ * The default {@link FormEntryMetrics}, which ignores all timings
+ */
+public class NoOpFormEntryMetrics implements FormEntryMetrics {
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.FormEntryMetrics#record(Category, String, long)
+	 */
+	public void record(Category category, String name, long nanos) {
+	}
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.FormEntryMetrics#recordStatements(String, long)
+	 */
+	public void recordStatements(String name, long statements) {
+	}
+
+	/**
+	 * @see org.openmrs.module.htmlformentry.metrics.FormEntryMetrics#isEnabled()
+	 */
+	public boolean isEnabled() {
+		return false;
+	}
+}
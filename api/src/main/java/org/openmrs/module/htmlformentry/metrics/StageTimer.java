@@ -0,0 +1,32 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import org.openmrs.module.htmlformentry.metrics.FormEntryMetrics.Category;
+
+/**
+ * Times a sequence of steps: each call to {@link #lap(String)} records the time since the previous
+ * lap (or since the timer was started) under the given name
+ */
+public class StageTimer {
+
+	private final FormEntryMetrics metrics;
+
+	private final Category category;
+
+	private long last;
+
+	public StageTimer(FormEntryMetrics metrics, Category category) {
+		this.metrics = metrics;
+		this.category = category;
+		this.last = System.nanoTime();
+	}
+
+	/**
+	 * Records the time since the last lap as the step with the given name, and starts timing the
+	 * next step
+	 */
+	public void lap(String name) {
+		long now = System.nanoTime();
+		metrics.record(category, name, now - last);
+		last = now;
+	}
+}
@@ -1,8 +1,15 @@
 package org.openmrs.module.htmlformentry.substitution;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -11,12 +18,16 @@ import org.openmrs.OpenmrsObject;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
-import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.handler.AttributeDescriptor;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
 
 public class HtmlFormSubstitutionUtils {
 	
+	// pattern matches one or more characters of any type within curly braces
+	private static final Pattern REPEAT_KEY_PATTERN = Pattern.compile("\\{(.+)\\}");
+	
+	private static final Pattern MACRO_PATTERN = Pattern.compile("\\$(.+)");
+	
 	/**
 	 * Replaces all the ids in a form with uuids. This method operates using the AttributeDescriptors
 	 * property of TagHandlers; if you have have a new attribute that you want to configure for
@@ -26,7 +37,14 @@ public class HtmlFormSubstitutionUtils {
 	 * Drug
 	 */
 	public static void replaceIdsWithUuids(HtmlForm form) {
-		performSubstitution(form, new IdToUuidSubstituter(), null);
+		// if the form is has no content, nothing to do
+		if(StringUtils.isEmpty(form.getXmlData())) {
+			return;
+		}
+		
+		IdToUuidSubstituter substituter = new IdToUuidSubstituter();
+		substituter.prefetch(form.getXmlData());
+		performSubstitution(form, substituter, null);
 	}
 	
 	/**
@@ -50,6 +68,22 @@ public class HtmlFormSubstitutionUtils {
 		performSubstitution(form, new OpenmrsObjectSubstituter(), substitutionMap);
 	}
 	
+	/**
+	 * Passes each of the comma-separated values listed in any attributes defined in AttributeDescriptors to a Substituter,
+	 * in a single scan of the xml. Unlike the replace methods, this doesn't follow repeat keys or macros.
+	 * 
+	 * @param xmlData the form xml
+	 * @param substituter
+	 * @param substitutionMap passed to the substituter
+	 * @return the form xml with the values the substituter returned
+	 */
+	public static String substituteAttributeValues(String xmlData, Substituter substituter, Map<OpenmrsObject, OpenmrsObject> substitutionMap) {
+		if (StringUtils.isEmpty(xmlData)) {
+			return xmlData;
+		}
+		return substituteAttributeValues(xmlData, Context.getService(HtmlFormEntryService.class).getHandlers(), substituter,
+		    substitutionMap, new ArrayList<AttributeDescriptor>(), new ArrayList<Set<String>>(), new ArrayList<Set<String>>());
+	}
 	
 	/**
 	 * Reads through the content of a form and finds all values listed in any attributes defined in AttributeDescriptors
@@ -65,31 +99,160 @@ public class HtmlFormSubstitutionUtils {
 		// get the tag handlers so we can gain access to the attribute descriptors
 		Map<String, TagHandler> tagHandlers = Context.getService(HtmlFormEntryService.class).getHandlers();
 		
-		// loop through all the attribute descriptors for all the tags that have been registered
+		// lists to keep track of any "repeat" keys and macros we are going to have to substitute out as well, for each descriptor
+		List<AttributeDescriptor> descriptors = new ArrayList<AttributeDescriptor>();
+		List<Set<String>> repeatKeysToReplace = new ArrayList<Set<String>>();
+		List<Set<String>> macrosToReplace = new ArrayList<Set<String>>();
+		
+		String formXmlData = substituteAttributeValues(form.getXmlData(), tagHandlers, substituter, substitutionMap,
+		    descriptors, repeatKeysToReplace, macrosToReplace);
+		
+		// now handle any repeat keys and macros we have discovered during this substitution
+		for (int i = 0; i < descriptors.size(); i++) {
+			for (String key : repeatKeysToReplace.get(i)) {
+				formXmlData = performSubstitutionHelper(formXmlData, key, descriptors.get(i).getClazz(), substituter,
+				    substitutionMap, true);
+			}
+			for (String key : macrosToReplace.get(i)) {
+				formXmlData = performSubstitutionHelper(formXmlData, key, descriptors.get(i).getClazz(), substituter,
+				    substitutionMap, false);
+			}
+		}
+		
+		form.setXmlData(formXmlData);
+	}
+	
+	/**
+	 * Helper method used by performSubstitution to substitute the values of all the attributes defined in
+	 * AttributeDescriptors. The tag and attribute names of all the descriptors are looked up in a table, so the whole
+	 * form is scanned once rather than once for each descriptor. The scan matches exactly what the pattern
+	 * {@code <tagName(?:\s|\s[^>]*\s)attribute="(.*?)"} (case-insensitive) would match for each descriptor.
+	 * <p/>
+	 * Fills in the descriptors that have an associated class, in the order they used to be handled in, and the repeat keys
+	 * and macros found in the values of each.
+	 */
+	private static String substituteAttributeValues(String formXmlData, Map<String, TagHandler> tagHandlers,
+	                                                Substituter substituter,
+	                                                Map<OpenmrsObject, OpenmrsObject> substitutionMap,
+	                                                List<AttributeDescriptor> descriptors,
+	                                                List<Set<String>> repeatKeysToReplace, List<Set<String>> macrosToReplace) {
+		// a lookup table of the descriptors by lower-case tag name and then lower-case attribute name
+		Map<String, Map<String, SubstitutedAttribute>> lookup = new HashMap<String, Map<String, SubstitutedAttribute>>();
+		int longestTagName = 0;
 		for (String tagName : tagHandlers.keySet()) {
-			HtmlFormEntryUtil.log.debug("Handling substitutions for tag " + tagName);
-			
 			if (tagHandlers.get(tagName).getAttributeDescriptors() != null) {
 				for (AttributeDescriptor attributeDescriptor : tagHandlers.get(tagName).getAttributeDescriptors()) {
 					// we only need to deal with descriptors that have an associated class
 					if (attributeDescriptor.getClazz() != null) {
-						// build the attribute string we are searching for
-						// pattern matches <tagName .* attribute
-						// to break down the regex in detail, ?: simply means that we don't want include this grouping in the groups that we backreference
-						// the grouping itself is an "or", that matches either "\\s" (a single whitespace character) or
-						// "\\s[^>]*\\s" (a single whitespace character plus 0 to n characters of any type but a >, followed by another single whitespace character)
-						String pattern = "<" + tagName + "(?:\\s|\\s[^>]*\\s)" + attributeDescriptor.getName();
-						HtmlFormEntryUtil.log.debug("substitution pattern: " + pattern);
-						form.setXmlData(HtmlFormSubstitutionUtils.performSubstitutionHelper(form.getXmlData(), pattern,
-						    attributeDescriptor.getClazz(), substituter, substitutionMap, true));
+						Map<String, SubstitutedAttribute> attributes = lookup.get(tagName.toLowerCase(Locale.ENGLISH));
+						if (attributes == null) {
+							attributes = new HashMap<String, SubstitutedAttribute>();
+							lookup.put(tagName.toLowerCase(Locale.ENGLISH), attributes);
+							longestTagName = Math.max(longestTagName, tagName.length());
+						}
+						SubstitutedAttribute attribute = attributes.get(attributeDescriptor.getName().toLowerCase(Locale.ENGLISH));
+						if (attribute == null) {
+							attribute = new SubstitutedAttribute();
+							attributes.put(attributeDescriptor.getName().toLowerCase(Locale.ENGLISH), attribute);
+						}
+						attribute.descriptorIndexes.add(descriptors.size());
+						descriptors.add(attributeDescriptor);
 					}
 				}
 			}
 		}
+		
+		for (int i = 0; i < descriptors.size(); i++) {
+			repeatKeysToReplace.add(new HashSet<String>());
+			macrosToReplace.add(new HashSet<String>());
+		}
+		
+		StringBuilder buffer = new StringBuilder(formXmlData.length());
+		// the values to substitute, by the position they start at (every value starts right after a quote, and ends at the
+		// next one, so no two of them overlap)
+		SortedMap<Integer, Integer> valueEnds = new TreeMap<Integer, Integer>();
+		Map<Integer, String> newValues = new HashMap<Integer, String>();
+		
+		for (int tagStart = formXmlData.indexOf('<'); tagStart >= 0; tagStart = formXmlData.indexOf('<', tagStart + 1)) {
+			// the tag name runs up to the first whitespace character, which the pattern requires
+			int tagNameEnd = tagStart + 1;
+			while (tagNameEnd < formXmlData.length() && tagNameEnd - tagStart <= longestTagName
+			        && !isWhitespace(formXmlData.charAt(tagNameEnd))) {
+				tagNameEnd++;
+			}
+			if (tagNameEnd >= formXmlData.length() || !isWhitespace(formXmlData.charAt(tagNameEnd))) {
+				continue;
+			}
+			Map<String, SubstitutedAttribute> attributes = lookup.get(formXmlData.substring(tagStart + 1, tagNameEnd).toLowerCase(Locale.ENGLISH));
+			if (attributes == null) {
+				continue;
+			}
+			
+			// an attribute name can start after any whitespace before the first >; like the pattern, try the attribute right
+			// after the tag name first, and then the others from last to first
+			int tagEnd = formXmlData.indexOf('>', tagNameEnd);
+			if (tagEnd < 0) {
+				tagEnd = formXmlData.length();
+			}
+			Map<SubstitutedAttribute, LinkedList<Integer>> candidates = new HashMap<SubstitutedAttribute, LinkedList<Integer>>();
+			SubstitutedAttribute attributeAfterName = null;
+			for (int nameStart = tagNameEnd + 1; nameStart < tagEnd; nameStart++) {
+				if (!isWhitespace(formXmlData.charAt(nameStart - 1))) {
+					continue;
+				}
+				int nameEnd = formXmlData.indexOf("=\"", nameStart);
+				if (nameEnd < 0 || nameEnd >= tagEnd) {
+					break;
+				}
+				SubstitutedAttribute attribute = attributes.get(formXmlData.substring(nameStart, nameEnd).toLowerCase(Locale.ENGLISH));
+				if (attribute != null && tagStart >= attribute.searchFrom) {
+					if (!candidates.containsKey(attribute)) {
+						candidates.put(attribute, new LinkedList<Integer>());
+					}
+					if (nameStart == tagNameEnd + 1) {
+						attributeAfterName = attribute;
+					}
+					candidates.get(attribute).add(attribute == attributeAfterName && nameStart > tagNameEnd + 1 ? 1 : 0,
+					    nameEnd + 2);
+				}
+			}
+			
+			for (Map.Entry<SubstitutedAttribute, LinkedList<Integer>> candidate : candidates.entrySet()) {
+				for (Integer valueStart : candidate.getValue()) {
+					// the value runs up to the next quote, and can't span lines
+					int valueEnd = valueStart;
+					while (valueEnd < formXmlData.length() && formXmlData.charAt(valueEnd) != '"'
+					        && !isLineTerminator(formXmlData.charAt(valueEnd))) {
+						valueEnd++;
+					}
+					if (valueEnd < formXmlData.length() && formXmlData.charAt(valueEnd) == '"') {
+						String value = newValues.containsKey(valueStart) ? newValues.get(valueStart) : formXmlData.substring(
+						    valueStart, valueEnd);
+						for (Integer i : candidate.getKey().descriptorIndexes) {
+							value = substituteValues(value, descriptors.get(i).getClazz(), substituter, substitutionMap,
+							    repeatKeysToReplace.get(i), macrosToReplace.get(i));
+						}
+						valueEnds.put(valueStart, valueEnd);
+						newValues.put(valueStart, value);
+						candidate.getKey().searchFrom = valueEnd + 1;
+						break;
+					}
+				}
+			}
+		}
+		
+		// now do the replacements
+		int copiedUpTo = 0;
+		for (Map.Entry<Integer, Integer> value : valueEnds.entrySet()) {
+			buffer.append(formXmlData, copiedUpTo, value.getKey()).append(newValues.get(value.getKey()));
+			copiedUpTo = value.getValue();
+		}
+		buffer.append(formXmlData, copiedUpTo, formXmlData.length());
+		return buffer.toString();
 	}
 	
 	/**
-	 * Helper method used by performSubstitution
+	 * Helper method used by performSubstitution to substitute the values of repeat keys and macros
 	 */
 	private static String performSubstitutionHelper(String formXmlData, String tagAndAttribute,
 	                                                Class<?> clazz, Substituter substituter,
@@ -99,7 +262,6 @@ public class HtmlFormSubstitutionUtils {
 		if (includeQuotes) {
 			// pattern to find the specified attribute and pull out its values; regex matches any characters within quotes after an equals, i.e. ="a2-32" would match a232
 			// we use () to break the match into three groups: 1) the characters up to the including the first quotes; 2) the characters in the quotes; and 3) then the trailing quote
-			// (put a space before the attribute name so we don't get border= instead of order=)
 			substitutionPattern = Pattern.compile("(" + tagAndAttribute + "=\")(.*?)(\")", Pattern.CASE_INSENSITIVE);
 		} else {
 			// the same pattern as above, but without the quotes (to handle the macro assignments),
@@ -116,37 +278,10 @@ public class HtmlFormSubstitutionUtils {
 		StringBuffer buffer = new StringBuffer();
 		
 		while (matcher.find()) {
-			// split the group into the various ids
-			String[] ids = matcher.group(2).split(",");
-			
-			StringBuffer idBuffer = new StringBuffer();
-			// now loop through each id
-			for (String id : ids) {
-				
-				// make the id substitution by calling the substituter's substitute method
-				idBuffer.append(substituter.substitute(id, clazz, substitutionMap) + ",");
-				
-				// if this id is a repeat key (i.e., something in curly braces) we need to keep track of it so that we can perform key substitutions
-				// pattern matches one or more characters of any type within curly braces
-				Matcher repeatKeyMatcher = Pattern.compile("\\{(.+)\\}").matcher(id);
-				if (repeatKeyMatcher.find()) {
-					repeatKeysToReplace.add(repeatKeyMatcher.group(1));
-				}
-				
-				// if this id is a macro reference (i.e, something that starts with a $) we need to keep track of it so that we can perform macro substitution
-				Matcher macroMatcher = Pattern.compile("\\$(.+)").matcher(id);
-				if (macroMatcher.find()) {
-					macrosToReplace.add(macroMatcher.group(1));
-				}
-			}
-			
-			// trim off the trailing comma
-			idBuffer.deleteCharAt(idBuffer.length() - 1);
-			
-			// now do the replacement
-			
 			// create the replacement string from the matched sequence, substituting out group(2) with the updated ids
-			String replacementString = matcher.group(1) + idBuffer.toString() + matcher.group(3);
+			String replacementString = matcher.group(1)
+			        + substituteValues(matcher.group(2), clazz, substituter, substitutionMap, repeatKeysToReplace,
+			            macrosToReplace) + matcher.group(3);
 			
 			// we need to escape any $ characters in the buffer or we run into errors with the appendReplacement method since 
 			// the $ has a special meaning to that method
@@ -173,4 +308,65 @@ public class HtmlFormSubstitutionUtils {
 		
 		return formXmlData;
 	}
+	
+	/**
+	 * Substitutes each of the comma-separated ids in an attribute value, and keeps track of any repeat keys and macros
+	 * among them
+	 */
+	private static String substituteValues(String value, Class<?> clazz, Substituter substituter,
+	                                       Map<OpenmrsObject, OpenmrsObject> substitutionMap,
+	                                       Set<String> repeatKeysToReplace, Set<String> macrosToReplace) {
+		// split the group into the various ids
+		String[] ids = value.split(",");
+		
+		StringBuilder idBuffer = new StringBuilder();
+		// now loop through each id
+		for (String id : ids) {
+			
+			// make the id substitution by calling the substituter's substitute method
+			idBuffer.append(substituter.substitute(id, clazz, substitutionMap) + ",");
+			
+			// if this id is a repeat key (i.e., something in curly braces) we need to keep track of it so that we can perform key substitutions
+			Matcher repeatKeyMatcher = REPEAT_KEY_PATTERN.matcher(id);
+			if (repeatKeyMatcher.find()) {
+				repeatKeysToReplace.add(repeatKeyMatcher.group(1));
+			}
+			
+			// if this id is a macro reference (i.e, something that starts with a $) we need to keep track of it so that we can perform macro substitution
+			Matcher macroMatcher = MACRO_PATTERN.matcher(id);
+			if (macroMatcher.find()) {
+				macrosToReplace.add(macroMatcher.group(1));
+			}
+		}
+		
+		// trim off the trailing comma
+		idBuffer.deleteCharAt(idBuffer.length() - 1);
+		
+		return idBuffer.toString();
+	}
+	
+	/**
+	 * As matched by \s in a pattern
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+	
+	/**
+	 * As not matched by . in a pattern
+	 */
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+	
+	/**
+	 * An attribute of one tag, with the descriptors that are registered for it
+	 */
+	private static class SubstitutedAttribute {
+		
+		List<Integer> descriptorIndexes = new ArrayList<Integer>();
+		
+		// as in a pattern, a match starts after the end of the last one
+		int searchFrom = 0;
+	}
 }
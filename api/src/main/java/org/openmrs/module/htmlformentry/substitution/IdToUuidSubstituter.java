@@ -1,6 +1,9 @@
 package org.openmrs.module.htmlformentry.substitution;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.openmrs.OpenmrsObject;
 import org.openmrs.api.context.Context;
@@ -13,6 +16,49 @@ import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
  * returns the uuid of that object; otherwise, just returns the passed value.
  */
 public class IdToUuidSubstituter implements Substituter {
+	
+	// the objects (or null, if there isn't one) referenced by the ids that have been prefetched, by class and id
+	private Map<Class<?>, Map<Integer, OpenmrsObject>> prefetched = new HashMap<Class<?>, Map<Integer, OpenmrsObject>>();
+	
+	/**
+	 * Fetches the objects referenced by all the ids in the attributes of a form, with a query for each class rather than
+	 * one for each id. Ids that weren't prefetched (such as those only found through repeat keys) are still fetched
+	 * one at a time.
+	 * 
+	 * @param xmlData the form xml
+	 */
+	@SuppressWarnings("unchecked")
+	public void prefetch(String xmlData) {
+		final Map<Class<?>, Set<Integer>> idsByClass = new HashMap<Class<?>, Set<Integer>>();
+		HtmlFormSubstitutionUtils.substituteAttributeValues(xmlData, new Substituter() {
+			
+			@Override
+			public String substitute(String value, Class<?> clazz, Map<OpenmrsObject, OpenmrsObject> substitutionMap) {
+				if (OpenmrsObject.class.isAssignableFrom(clazz) && isId(value)) {
+					try {
+						if (!idsByClass.containsKey(clazz)) {
+							idsByClass.put(clazz, new HashSet<Integer>());
+						}
+						idsByClass.get(clazz).add(Integer.valueOf(value));
+					}
+					catch (NumberFormatException ex) {
+						// too big to be an id; substitute will fail on it as it always has
+					}
+				}
+				return value;
+			}
+		}, null);
+		
+		for (Map.Entry<Class<?>, Set<Integer>> ids : idsByClass.entrySet()) {
+			Map<Integer, OpenmrsObject> found = Context.getService(HtmlFormEntryService.class).getItemsById(
+			    (Class<? extends OpenmrsObject>) ids.getKey(), ids.getValue());
+			Map<Integer, OpenmrsObject> objects = new HashMap<Integer, OpenmrsObject>();
+			for (Integer id : ids.getValue()) {
+				objects.put(id, found.get(id));
+			}
+			prefetched.put(ids.getKey(), objects);
+		}
+	}
 
 	@Override
     @SuppressWarnings("unchecked")
@@ -26,8 +72,13 @@ public class IdToUuidSubstituter implements Substituter {
 		OpenmrsObject object = null;
     	
     	// if this appears to be an id, try to find the OpenmrsObject referenced by this id
-    	if (value.matches("^\\d+$") && !HtmlFormEntryUtil.isValidUuidFormat(value)) {
-    		object = Context.getService(HtmlFormEntryService.class).getItemById((Class<? extends OpenmrsObject>) clazz, Integer.valueOf(value));
+    	if (isId(value)) {
+    		Integer id = Integer.valueOf(value);
+    		if (prefetched.containsKey(clazz) && prefetched.get(clazz).containsKey(id)) {
+    			object = prefetched.get(clazz).get(id);
+    		} else {
+    			object = Context.getService(HtmlFormEntryService.class).getItemById((Class<? extends OpenmrsObject>) clazz, id);
+    		}
     	} 
     	
     	// if we have found an object, return the uuid and use it for substitution, otherwise don't do any substitution 
@@ -40,5 +91,9 @@ public class IdToUuidSubstituter implements Substituter {
 		
 		
 	}
+	
+	private static boolean isId(String value) {
+		return value.matches("^\\d+$") && !HtmlFormEntryUtil.isValidUuidFormat(value);
+	}
 
 }
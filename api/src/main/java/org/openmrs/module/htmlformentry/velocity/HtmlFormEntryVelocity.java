@@ -0,0 +1,115 @@
+package org.openmrs.module.htmlformentry.velocity;
+
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.Template;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.log.CommonsLogLogChute;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.openmrs.module.htmlformentry.HtmlFormEntryActivator;
+import org.openmrs.module.htmlformentry.cache.BoundedCache;
+
+/**
+ * Holds the single Velocity engine used by the module, which is created when the module starts (see
+ * {@link HtmlFormEntryActivator}) and shared by all form entry sessions. Expressions evaluated via
+ * {@link #evaluate(Context, Writer, String)} are parsed once and kept as compiled templates, keyed by
+ * their text.
+ */
+public class HtmlFormEntryVelocity {
+
+	private static Log log = LogFactory.getLog(HtmlFormEntryVelocity.class);
+
+	private static final int TEMPLATE_CACHE_SIZE = 1000;
+
+	private static volatile RuntimeInstance runtime;
+
+	private static final BoundedCache<String, Template> templateCache = new BoundedCache<String, Template>(
+	        TEMPLATE_CACHE_SIZE);
+
+	private HtmlFormEntryVelocity() {
+	}
+
+	/**
+	 * Creates and initializes the shared engine, if that hasn't been done yet
+	 */
+	public static synchronized void initialize() {
+		if (runtime != null)
+			return;
+
+		// #1953 - Velocity errors in HTML form entry
+		RuntimeInstance ri = new RuntimeInstance();
+		ri.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, "org.apache.velocity.runtime.log.CommonsLogLogChute");
+		ri.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME, "htmlformentry_velocity");
+		try {
+			ri.init();
+		}
+		catch (Exception e) {
+			log.error("Error initializing Velocity engine", e);
+		}
+		runtime = ri;
+	}
+
+	/**
+	 * Discards the shared engine and all cached templates
+	 */
+	public static synchronized void shutdown() {
+		templateCache.clear();
+		runtime = null;
+	}
+
+	/**
+	 * @return the shared engine, initializing it first if the module activator hasn't done so
+	 */
+	public static RuntimeServices getRuntimeServices() {
+		if (runtime == null)
+			initialize();
+		return runtime;
+	}
+
+	/**
+	 * Renders a velocity expression against the given context, reusing the compiled template from an
+	 * earlier call with the same expression text if there was one.
+	 *
+	 * @throws ParseErrorException if the expression is not valid velocity
+	 */
+	public static void evaluate(Context context, Writer writer, String expression) throws Exception {
+		Template template = templateCache.get(expression);
+		if (template == null) {
+			template = compile(getRuntimeServices(), expression);
+			templateCache.put(expression, template);
+		}
+		template.merge(context, writer);
+	}
+
+	/**
+	 * @return the size and hit, miss and eviction counts of the compiled expression cache
+	 */
+	public static Map<String, Long> getTemplateCacheStatistics() {
+		return templateCache.getStatistics();
+	}
+
+	private static Template compile(RuntimeServices rs, String expression) throws Exception {
+		SimpleNode nodeTree;
+		try {
+			nodeTree = rs.parse(new StringReader(expression), expression);
+		}
+		catch (ParseException ex) {
+			throw new ParseErrorException(ex);
+		}
+		Template template = new Template();
+		template.setName(expression);
+		template.setRuntimeServices(rs);
+		template.setData(nodeTree);
+		template.initDocument();
+		return template;
+	}
+}
@@ -0,0 +1,80 @@
+package org.openmrs.module.htmlformentry.velocity;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.velocity.VelocityContext;
+
+/**
+ * A {@link VelocityContext} whose entries may be registered as {@link LazyValue}s, which are only
+ * computed the first time a template (or anything else) asks for them. Keeps track of which lazy
+ * entries were actually computed.
+ */
+public class LazyVelocityContext extends VelocityContext {
+
+	/**
+	 * Computes the value of a lazy context entry
+	 */
+	public interface LazyValue {
+
+		Object getValue();
+	}
+
+	private Map<String, LazyValue> lazyValues = new LinkedHashMap<String, LazyValue>();
+
+	private Set<String> materialized = new LinkedHashSet<String>();
+
+	/**
+	 * Registers an entry that will be computed on first access, replacing any existing value for key
+	 */
+	public void putLazy(String key, LazyValue value) {
+		super.internalRemove(key);
+		lazyValues.put(key, value);
+	}
+
+	/**
+	 * @return the keys of the lazy entries that have been computed so far, in the order they were
+	 *         computed
+	 */
+	public Set<String> getMaterializedKeys() {
+		return Collections.unmodifiableSet(materialized);
+	}
+
+	@Override
+	public Object internalGet(String key) {
+		LazyValue lazy = lazyValues.remove(key);
+		if (lazy != null) {
+			super.internalPut(key, lazy.getValue());
+			materialized.add(key);
+		}
+		return super.internalGet(key);
+	}
+
+	@Override
+	public Object internalPut(String key, Object value) {
+		lazyValues.remove(key);
+		return super.internalPut(key, value);
+	}
+
+	@Override
+	public boolean internalContainsKey(Object key) {
+		return lazyValues.containsKey(key) || super.internalContainsKey(key);
+	}
+
+	@Override
+	public Object[] internalGetKeys() {
+		Set<Object> keys = new LinkedHashSet<Object>();
+		Collections.addAll(keys, super.internalGetKeys());
+		keys.addAll(lazyValues.keySet());
+		return keys.toArray();
+	}
+
+	@Override
+	public Object internalRemove(Object key) {
+		lazyValues.remove(key);
+		return super.internalRemove(key);
+	}
+}
@@ -1,8 +1,6 @@
 package org.openmrs.module.htmlformentry.widget;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -12,6 +10,8 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.cache.LocationCatalog;
+import org.openmrs.module.htmlformentry.cache.LocationCatalog.SortedLocations;
 import org.springframework.util.StringUtils;
 import org.springframework.web.util.HtmlUtils;
 import org.springframework.web.util.JavaScriptUtils;
@@ -40,68 +40,80 @@ public class LocationWidget implements Widget {
 				return "";
 		}
 		
-		List<Location> useLocations;
-		if (options != null) {
-			useLocations = options;
-		} else {
-			useLocations = Context.getLocationService().getAllLocations();
-			Collections.sort(useLocations, new Comparator<Location>() {
-				
-				@Override
-				public int compare(Location left, Location right) {
-					return left.getName().compareTo(right.getName());
-				}
-			});
+		if (options == null) {
+			// all locations, with their html and javascript already rendered
+			SortedLocations allLocations = LocationCatalog.getInstance().getLocations(true, Context.getLocale());
+			if ("autocomplete".equalsIgnoreCase(type))
+				return generateAutocompleteHtml(context, allLocations.getAutocompleteScript(),
+				    allLocations.getAutocompleteSource());
+			String optionsHtml = allLocations.getOptionsHtml();
+			if (location != null && location.getLocationId() != null)
+				optionsHtml = optionsHtml.replace("\n<option value=\"" + location.getLocationId() + "\">",
+				    "\n<option selected=\"true\" value=\"" + location.getLocationId() + "\">");
+			return generateDropdownHtml(context, optionsHtml);
 		}
 		
-		StringBuilder sb = new StringBuilder();
 		if ("autocomplete".equalsIgnoreCase(type)) {
-			sb.append("<input type=\"text\" id=\"display_" + context.getFieldName(this) + "\" value=\""
-			        + ((location != null) ? HtmlUtils.htmlEscape(location.getName()) : "")
-			        + "\" onblur=\"updateLocationFields(this)\" placeholder=\""
-			        + Context.getMessageSourceService().getMessage("htmlformentry.form.location.placeholder") + "\" />");
-			sb.append("\n<input type=\"hidden\" id=\"" + context.getFieldName(this) + "\" name=\""
-			        + context.getFieldName(this) + "\" value=\"" + ((location != null) ? location.getLocationId() : "")
-			        + "\" />");
-			sb.append("\n<script>");
-			sb.append("\nvar locationNameIdMap = new Object();");
-			ArrayList<String> escapedLocationNames = new ArrayList<String>(useLocations.size());
-			for (Location location : useLocations) {
+			StringBuilder script = new StringBuilder();
+			ArrayList<String> escapedLocationNames = new ArrayList<String>(options.size());
+			for (Location location : options) {
 				String escapeLocationName = JavaScriptUtils.javaScriptEscape(location.getName());
 				escapedLocationNames.add(escapeLocationName);
-				sb.append("\nlocationNameIdMap[\"" + escapeLocationName + "\"] = " + location.getLocationId() + ";");
+				script.append("\nlocationNameIdMap[\"" + escapeLocationName + "\"] = " + location.getLocationId() + ";");
 			}
-			sb.append("\n");
-			//clear the form field when user clears the field or if no valid selection is made
-			sb.append("\nfunction updateLocationFields(displayField){");
-			sb.append("\n	if(locationNameIdMap[$j.trim($j(displayField).val())] == undefined)");
-			sb.append("\n		$j(displayField).val('');");
-			sb.append("\n	if($j.trim($j(displayField).val()) == '')");
-			sb.append("\n		$j(\"#" + context.getFieldName(this) + "\").val('');");
-			sb.append("\n}");
-			sb.append("\n");
-			sb.append("\n$j('input#display_" + context.getFieldName(this) + "').autocomplete({");
-			sb.append("\n	source:[" + StringUtils.collectionToDelimitedString(escapedLocationNames, ",", "\"", "\"") + "],");
-			sb.append("\n	select: function(event, ui) {");
-			sb.append("\n				$j(\"#" + context.getFieldName(this) + "\").val(locationNameIdMap[ui.item.value]);");
-			sb.append("\n			}");
-			sb.append("\n});");
-			sb.append("</script>");
-			
+			return generateAutocompleteHtml(context, script.toString(),
+			    StringUtils.collectionToDelimitedString(escapedLocationNames, ",", "\"", "\""));
 		} else {
-			sb.append("<select id=\"" + context.getFieldName(this) + "\" name=\"" + context.getFieldName(this) + "\">");
-			sb.append("\n<option value=\"\">");
-			sb.append(Context.getMessageSourceService().getMessage("htmlformentry.chooseALocation"));
-			sb.append("</option>");
-			for (Location l : useLocations) {
+			StringBuilder sb = new StringBuilder();
+			for (Location l : options) {
 				sb.append("\n<option");
 				if (location != null && location.equals(l))
 					sb.append(" selected=\"true\"");
 				sb.append(" value=\"" + l.getLocationId() + "\">").append(l.getName()).append("</option>");
 			}
-			sb.append("</select>");
+			return generateDropdownHtml(context, sb.toString());
 		}
-		
+	}
+	
+	private String generateAutocompleteHtml(FormEntryContext context, String locationNameIdMapScript, String source) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<input type=\"text\" id=\"display_" + context.getFieldName(this) + "\" value=\""
+		        + ((location != null) ? HtmlUtils.htmlEscape(location.getName()) : "")
+		        + "\" onblur=\"updateLocationFields(this)\" placeholder=\""
+		        + Context.getMessageSourceService().getMessage("htmlformentry.form.location.placeholder") + "\" />");
+		sb.append("\n<input type=\"hidden\" id=\"" + context.getFieldName(this) + "\" name=\""
+		        + context.getFieldName(this) + "\" value=\"" + ((location != null) ? location.getLocationId() : "")
+		        + "\" />");
+		sb.append("\n<script>");
+		sb.append("\nvar locationNameIdMap = new Object();");
+		sb.append(locationNameIdMapScript);
+		sb.append("\n");
+		//clear the form field when user clears the field or if no valid selection is made
+		sb.append("\nfunction updateLocationFields(displayField){");
+		sb.append("\n	if(locationNameIdMap[$j.trim($j(displayField).val())] == undefined)");
+		sb.append("\n		$j(displayField).val('');");
+		sb.append("\n	if($j.trim($j(displayField).val()) == '')");
+		sb.append("\n		$j(\"#" + context.getFieldName(this) + "\").val('');");
+		sb.append("\n}");
+		sb.append("\n");
+		sb.append("\n$j('input#display_" + context.getFieldName(this) + "').autocomplete({");
+		sb.append("\n	source:[" + source + "],");
+		sb.append("\n	select: function(event, ui) {");
+		sb.append("\n				$j(\"#" + context.getFieldName(this) + "\").val(locationNameIdMap[ui.item.value]);");
+		sb.append("\n			}");
+		sb.append("\n});");
+		sb.append("</script>");
+		return sb.toString();
+	}
+	
+	private String generateDropdownHtml(FormEntryContext context, String optionsHtml) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<select id=\"" + context.getFieldName(this) + "\" name=\"" + context.getFieldName(this) + "\">");
+		sb.append("\n<option value=\"\">");
+		sb.append(Context.getMessageSourceService().getMessage("htmlformentry.chooseALocation"));
+		sb.append("</option>");
+		sb.append(optionsHtml);
+		sb.append("</select>");
 		return sb.toString();
 	}
 	
@@ -10,6 +10,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.cache.PersonStubDirectory.PersonStubList;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 import org.springframework.util.StringUtils;
 
@@ -44,6 +45,16 @@ public class PersonStubWidget implements Widget {
         sb.append("\n<option value=\"\">");
         sb.append(Context.getMessageSourceService().getMessage("general.choose") + "...");
         sb.append("</option>");
+        if (options instanceof PersonStubList) {
+            // the options are rendered once per listing; just mark the selected one
+            String optionsHtml = ((PersonStubList) options).getOptionsHtml();
+            if (person != null && person.getId() != null)
+                optionsHtml = optionsHtml.replace("\n<option value=\"" + person.getId() + "\">",
+                    "\n<option selected=\"true\" value=\"" + person.getId() + "\">");
+            sb.append(optionsHtml);
+            sb.append("</select>");
+            return sb.toString();
+        }
         List<PersonStub> personList;
         if (options != null) {
             personList = options;
@@ -0,0 +1,58 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class FormEntryContextTest extends BaseModuleContextSensitiveTest {
+
+	protected static final String XML_DATASET_PATH = "org/openmrs/module/htmlformentry/include/";
+
+	protected static final String XML_REGRESSION_TEST_DATASET = "regressionTestDataSet";
+
+	@Before
+	public void setupDatabase() throws Exception {
+		executeDataSet(XML_DATASET_PATH + new TestUtil().getTestDatasetFilename(XML_REGRESSION_TEST_DATASET));
+	}
+
+	/**
+	 * @see {@link FormEntryContext#findBestMatchingObsGroup(java.util.List, String, String)}
+	 */
+	@Test
+	@Verifies(value = "should only match obs groups at the given path, and each of them once", method = "findBestMatchingObsGroup(List<ObsGroupComponent>, String, String)")
+	public void findBestMatchingObsGroup_shouldOnlyMatchObsGroupsAtTheGivenPathAndEachOfThemOnce() throws Exception {
+		Date date = new Date();
+		Encounter e = new Encounter();
+		e.setPatient(Context.getPatientService().getPatient(2));
+		e.setDateCreated(date);
+		e.setEncounterDatetime(date);
+		e.setLocation(Context.getLocationService().getLocation(2));
+		e.setProvider(Context.getPersonService().getPerson(502));
+		Obs first = TestUtil.addObsGroup(e, 7, date, 1000, Context.getConceptService().getConcept(1001), date);
+		Obs second = TestUtil.addObsGroup(e, 7, date, 1000, Context.getConceptService().getConcept(1003), date);
+		// same members, but at another path
+		Obs other = TestUtil.addObsGroup(e, 1004, date, 1000, Context.getConceptService().getConcept(1003), date);
+		Context.getEncounterService().saveEncounter(e);
+
+		FormEntryContext context = new FormEntryContext(Mode.VIEW);
+		context.setupExistingData(e);
+		ObsGroupComponent component = new ObsGroupComponent(Context.getConceptService().getConcept(1000), Context
+		        .getConceptService().getConcept(1003));
+
+		Assert.assertEquals(second, context.findBestMatchingObsGroup(Collections.singletonList(component), "7", "/7"));
+		// the matched group is gone, and the group at the other path was never a contender
+		Assert.assertNull(context.findBestMatchingObsGroup(Collections.singletonList(component), "7", "/7"));
+		Assert.assertEquals(first, context.getNextUnmatchedObsGroup("/7"));
+		Assert.assertNull(context.getNextUnmatchedObsGroup("/7"));
+		Assert.assertEquals(other, context.getNextUnmatchedObsGroup("/1004"));
+	}
+}
@@ -13,6 +13,14 @@
  */
 package org.openmrs.module.htmlformentry;
 
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.Assert;
@@ -20,8 +28,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.metrics.FormEntryMetrics.Category;
+import org.openmrs.module.htmlformentry.metrics.HtmlFormEntryMetrics;
+import org.openmrs.module.htmlformentry.metrics.InMemoryFormEntryMetrics;
+import org.openmrs.module.htmlformentry.velocity.HtmlFormEntryVelocity;
+import org.openmrs.module.htmlformentry.widget.DateWidget;
+import org.openmrs.module.htmlformentry.widget.Widget;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.Verifies;
+import org.springframework.mock.web.MockHttpServletRequest;
 
 public class FormEntrySessionTest extends BaseModuleContextSensitiveTest {
 	
@@ -92,4 +107,108 @@ public class FormEntrySessionTest extends BaseModuleContextSensitiveTest {
 		FormEntrySession session = new FormEntrySession(patient, htmlform);
 		Assert.assertEquals("<div class=\"htmlform\"></div>", session.getHtmlToDisplay());
 	}
+	
+	/**
+	 * @see {@link FormEntrySession#evaluateVelocityExpression(String)}
+	 */
+	@Test
+	@Verifies(value = "should evaluate an expression seen before from its compiled template", method = "evaluateVelocityExpression(String)")
+	public void evaluateVelocityExpression_shouldEvaluateAnExpressionSeenBeforeFromItsCompiledTemplate() throws Exception {
+		String expression = "#if($patient.patientId == 2)two#{else}other#end";
+		FormEntrySession first = new FormEntrySession(patient, "<htmlform></htmlform>");
+		Assert.assertEquals("two", first.evaluateVelocityExpression(expression));
+		long hits = HtmlFormEntryVelocity.getTemplateCacheStatistics().get("hits");
+		
+		FormEntrySession second = new FormEntrySession(patient, "<htmlform></htmlform>");
+		Assert.assertEquals("two", second.evaluateVelocityExpression(expression));
+		Assert.assertEquals(hits + 1, HtmlFormEntryVelocity.getTemplateCacheStatistics().get("hits").longValue());
+	}
+	
+	/**
+	 * @see {@link FormEntrySession#getMaterializedVelocityContextEntries()}
+	 */
+	@Test
+	@Verifies(value = "should only compute the lazy velocity context entries that the form uses", method = "getMaterializedVelocityContextEntries()")
+	public void getMaterializedVelocityContextEntries_shouldOnlyComputeTheLazyVelocityContextEntriesThatTheFormUses() throws Exception {
+		FormEntrySession session = new FormEntrySession(patient, "<htmlform>Weight: <obs conceptId=\"5089\"/></htmlform>");
+		Assert.assertTrue(session.getMaterializedVelocityContextEntries().isEmpty());
+		
+		session = new FormEntrySession(patient, "<htmlform><includeIf velocityTest=\"$relationshipMap.size() >= 0\">"
+		        + "related</includeIf></htmlform>");
+		Assert.assertEquals("<div class=\"htmlform\">related</div>", session.getHtmlToDisplay());
+		Assert.assertTrue(session.getMaterializedVelocityContextEntries().contains("relationshipList"));
+		Assert.assertTrue(session.getMaterializedVelocityContextEntries().contains("relationshipMap"));
+		Assert.assertFalse(session.getMaterializedVelocityContextEntries().contains("personAttributes"));
+	}
+	
+	/**
+	 * @see {@link FormEntrySession#createForm(String)}
+	 */
+	@Test
+	@Verifies(value = "should report the time of each stage and tag to the metrics in use", method = "createForm(String)")
+	public void createForm_shouldReportTheTimeOfEachStageAndTagToTheMetricsInUse() throws Exception {
+		InMemoryFormEntryMetrics metrics = new InMemoryFormEntryMetrics();
+		HtmlFormEntryMetrics.setMetrics(metrics);
+		try {
+			new FormEntrySession(patient, "<htmlform>Weight: <obs conceptId=\"5089\"/> Weight: <obs conceptId=\"5089\"/></htmlform>");
+			Assert.assertEquals(1, metrics.getHistograms(Category.STAGE).get("tags").getCount());
+			Assert.assertEquals(2, metrics.getHistograms(Category.TAG).get("obs").getCount());
+			Assert.assertNull(metrics.getHistograms(Category.TAG).get("htmlform"));
+		}
+		finally {
+			HtmlFormEntryMetrics.setMetrics(null);
+		}
+	}
+	
+	/**
+	 * @see {@link FormEntrySession#createForm(CompiledHtmlForm, String)}
+	 */
+	@Test
+	@Verifies(value = "should give the same output for a compiled form as for its text", method = "createForm(CompiledHtmlForm, String)")
+	public void createForm_shouldGiveTheSameOutputForACompiledFormAsForItsText() throws Exception {
+		String htmlform = "<htmlform><macros>weight=5089</macros>"
+		        + "<translations defaultLocale=\"en\"><code name=\"weight\"><variant locale=\"en\" value=\"Weight\"/></code></translations>"
+		        + "<includeIf velocityTest=\"$patient.age >= 0\"><obs conceptId=\"$weight\" labelCode=\"weight\"/></includeIf>"
+		        + "<excludeIf velocityTest=\"$patient.age >= 0\">Hidden</excludeIf>"
+		        + "<repeat with=\"['a'],['b']\"><includeIf velocityTest=\"$patient.age >= 0\"><i>{0}</i></includeIf></repeat>"
+		        + "<repeat><template><excludeIf velocityTest=\"$patient.age < 0\"><span>$weight {x}</span></excludeIf></template>"
+		        + "<render x=\"1\"/><render x=\"2\"/></repeat></htmlform>";
+		Assert.assertNotNull(new HtmlFormEntryGenerator().compile(htmlform));
+		
+		String compiled = new FormEntrySession(patient, htmlform).getHtmlToDisplay();
+		String text = new FormEntrySession(patient, "<htmlform></htmlform>").createForm(null, htmlform);
+		Assert.assertEquals(text, compiled);
+		Assert.assertTrue(compiled.contains("Weight"));
+		Assert.assertFalse(compiled.contains("Hidden"));
+		Assert.assertTrue(compiled.contains("<i>a</i><i>b</i>"));
+		Assert.assertTrue(compiled.contains("<span>5089 1</span><span>5089 2</span>"));
+	}
+	
+	/**
+	 * @see {@link FormEntrySession#validateFields(HttpServletRequest, Collection)}
+	 */
+	@Test
+	@Verifies(value = "should only return the errors of the given fields", method = "validateFields(HttpServletRequest, Collection)")
+	public void validateFields_shouldOnlyReturnTheErrorsOfTheGivenFields() throws Exception {
+		FormEntrySession session = new FormEntrySession(patient, "<htmlform><encounterDate/><encounterLocation/></htmlform>");
+		FormEntryContext context = session.getContext();
+		String dateField = null;
+		for (Map.Entry<Widget, String> e : context.getFieldNames().entrySet()) {
+			if (e.getKey() instanceof DateWidget)
+				dateField = e.getValue();
+		}
+		String dateErrorField = context.getErrorFieldId(context.getWidgetByFieldName(dateField));
+		
+		// the location is missing too, but only the date is asked about
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		Map<String, String> errors = session.validateFields(request, Collections.singleton(dateField));
+		Assert.assertEquals(Collections.singleton(dateErrorField), errors.keySet());
+		Assert.assertTrue(errors.get(dateErrorField).length() > 0);
+		Assert.assertNull(session.getSubmissionController().getLastSubmissionErrors());
+		
+		request.addParameter(dateField, new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
+		errors = session.validateFields(request, Collections.singleton(dateField));
+		Assert.assertEquals("", errors.get(dateErrorField));
+		Assert.assertEquals(1, session.getSubmissionController().validateSubmission(context, request).size());
+	}
 }
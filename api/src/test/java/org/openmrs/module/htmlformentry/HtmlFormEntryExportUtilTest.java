@@ -1,8 +1,10 @@
 package org.openmrs.module.htmlformentry;
 
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -16,12 +18,17 @@ import org.junit.Test;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
 import org.openmrs.Form;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Obs;
 import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
 import org.openmrs.module.htmlformentry.export.HtmlFormEntryExportUtil;
+import org.openmrs.module.htmlformentry.export.ParallelHtmlFormExport;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.Verifies;
+import org.springframework.test.annotation.NotTransactional;
 
 public class HtmlFormEntryExportUtilTest extends BaseModuleContextSensitiveTest {
 
@@ -259,6 +266,33 @@ public class HtmlFormEntryExportUtilTest extends BaseModuleContextSensitiveTest
         
     }
     
+    @Test
+    @Verifies(value = "should evaluate includeIf tests for the patient of each encounter", method = "generateColumnDataFromHtmlForm(List<Encounter> encounters, HtmlForm form, List<String> extraCols, StringBuffer sb, Locale locale),List<PatientIdentifierType> pitList")
+    public void generateColumnDataFromHtmlForm_shouldEvaluateIncludeIfTestsForThePatientOfEachEncounter() throws Exception {
+        Form form = new Form();
+        HtmlForm htmlform = new HtmlForm();
+        htmlform.setForm(form);
+        form.setEncounterType(new EncounterType());
+        htmlform.setDateChanged(new Date());
+        htmlform.setXmlData("<htmlform><obs conceptId=\"1\"/><includeIf velocityTest=\"$patient.patientId == 2\"><obs conceptId=\"2\"/></includeIf></htmlform>");
+        
+        Encounter e = new Encounter();
+        e.setPatient(Context.getPatientService().getPatient(2));
+        Date date = Context.getDateFormat().parse("01/02/2003");
+        e.setDateCreated(new Date());
+        e.setEncounterDatetime(date);
+        e.setLocation(Context.getLocationService().getLocation(2));
+        e.setProvider(Context.getPersonService().getPerson(502));
+        TestUtil.addObs(e, 1, 5000, date);
+        TestUtil.addObs(e, 2, 1234, date);
+        Context.getEncounterService().saveEncounter(e);
+        
+        // the fake person the columns are worked out for doesn't get the second obs, but patient 2 does
+        String ret = HtmlFormEntryExportUtil.generateColumnDataFromHtmlForm(Collections.singletonList(e), htmlform, new ArrayList<String>(), new StringBuffer(""), new Locale("en"), new ArrayList<PatientIdentifierType>());
+        Assert.assertTrue(ret.contains("5000"));
+        Assert.assertTrue(ret.contains("1234"));
+    }
+    
     @Test
     @Verifies(value = "should handle multiple identifier types correctly", method = "buildHtmlFormExport(List<Encounter> encounters, HtmlForm htmlForm, List<String> extraCols, StringBuffer sb, Locale locale,List<PatientIdentifierType> pitList)")
     public void generateColumnDataFromHtmlForm_shouldReturnRowsCorrectlyWithMultipleIDTypes() throws Exception {
@@ -349,6 +383,119 @@ public class HtmlFormEntryExportUtilTest extends BaseModuleContextSensitiveTest
     }
     
     
+    @Test
+    @Verifies(value = "should write a row for each encounter of the form", method = "writeHtmlFormExport(HtmlForm, Date, Date, List<String>, Writer, Locale, List<PatientIdentifierType>)")
+    public void writeHtmlFormExport_shouldWriteARowForEachEncounterOfTheForm() throws Exception {
+        Form form = Context.getFormService().getForm(1);
+        HtmlForm htmlform = new HtmlForm();
+        htmlform.setForm(form);
+        htmlform.setDateChanged(new Date());
+        htmlform.setXmlData(new TestUtil().loadXmlFromFile(XML_DATASET_PATH + "obsGroupDataExportTest.xml"));
+        List<PatientIdentifierType> pitList = Collections.singletonList(Context.getPatientService().getPatientIdentifierType(2));
+        
+        List<Integer> encounterIds = new ArrayList<Integer>();
+        for (int i = 0; i < HtmlFormEntryExportUtil.EXPORT_BATCH_SIZE + 1; i++) {
+            Encounter e = new Encounter();
+            e.setPatient(Context.getPatientService().getPatient(2));
+            e.setDateCreated(new Date());
+            e.setEncounterDatetime(Context.getDateFormat().parse("01/02/2003"));
+            e.setLocation(Context.getLocationService().getLocation(2));
+            e.setProvider(Context.getPersonService().getPerson(502));
+            e.setForm(form);
+            Context.getEncounterService().saveEncounter(e);
+            encounterIds.add(e.getEncounterId());
+        }
+        
+        StringWriter writer = new StringWriter();
+        HtmlFormEntryExportUtil.writeHtmlFormExport(htmlform, null, null, new ArrayList<String>(), writer, new Locale("en"), pitList);
+        
+        String ret = writer.toString();
+        Assert.assertTrue(ret.startsWith("\"ENCOUNTER_ID\","));
+        for (Integer encounterId : encounterIds)
+            Assert.assertTrue(ret.contains("\n\"" + encounterId + "\",\"01-Feb-2003\","));
+    }
+    
+    @Test
+    @NotTransactional
+    @Verifies(value = "should write the same csv as the sequential export", method = "write(HtmlForm, Date, Date, List<String>, Writer, Locale, List<PatientIdentifierType>)")
+    public void parallelExport_shouldWriteTheSameCsvAsTheSequentialExport() throws Exception {
+        ParallelHtmlFormExport export = assertSameCsvAsSequentialExport(1, 3);
+        Assert.assertTrue(export.getProgress().isFinished());
+        Assert.assertEquals((export.getProgress().getEncountersWritten() + 2) / 3, export.getProgress().getChunksWritten());
+    }
+    
+    @Test
+    @NotTransactional
+    @Verifies(value = "should write the same csv with several workers", method = "write(HtmlForm, Date, Date, List<String>, Writer, Locale, List<PatientIdentifierType>)")
+    public void parallelExport_shouldWriteTheSameCsvWithSeveralWorkers() throws Exception {
+        assertSameCsvAsSequentialExport(3, 2);
+    }
+    
+    /**
+     * Exports encounters of form 1 both ways, and checks that the output is the same and that the
+     * caller's context is untouched
+     */
+    private ParallelHtmlFormExport assertSameCsvAsSequentialExport(int workers, int chunkSize) throws Exception {
+        Form form = Context.getFormService().getForm(1);
+        HtmlForm htmlform = new HtmlForm();
+        htmlform.setForm(form);
+        htmlform.setDateChanged(new Date());
+        htmlform.setXmlData(new TestUtil().loadXmlFromFile(XML_DATASET_PATH + "obsGroupDataExportTest.xml"));
+        List<PatientIdentifierType> pitList = Collections.singletonList(Context.getPatientService().getPatientIdentifierType(2));
+        
+        // the workers read in sessions of their own, so they only see committed encounters; outside a
+        // test transaction each save is committed, so everything is put back afterwards
+        AdministrationService as = Context.getAdministrationService();
+        Map<String, String> previousProperties = new HashMap<String, String>();
+        List<Encounter> encounters = new ArrayList<Encounter>();
+        try {
+            // the workers log in as the scheduler, then become the user who started the export
+            for (String[] property : new String[][] { { "scheduler.username", "admin" }, { "scheduler.password", "test" } }) {
+                previousProperties.put(property[0], as.getGlobalProperty(property[0]));
+                as.saveGlobalProperty(new GlobalProperty(property[0], property[1]));
+            }
+            for (int i = 0; i < 10; i++) {
+                Encounter e = new Encounter();
+                e.setPatient(Context.getPatientService().getPatient(2));
+                e.setDateCreated(new Date());
+                e.setEncounterDatetime(Context.getDateFormat().parse("01/02/2003"));
+                e.setLocation(Context.getLocationService().getLocation(2));
+                e.setProvider(Context.getPersonService().getPerson(502));
+                e.setForm(form);
+                Context.getEncounterService().saveEncounter(e);
+                encounters.add(e);
+            }
+            
+            StringWriter expected = new StringWriter();
+            HtmlFormEntryExportUtil.writeHtmlFormExport(htmlform, null, null, new ArrayList<String>(), expected, new Locale("en"), pitList);
+            
+            UserContext userContext = Context.getUserContext();
+            ParallelHtmlFormExport export = new ParallelHtmlFormExport(workers, chunkSize);
+            StringWriter actual = new StringWriter();
+            export.write(htmlform, null, null, new ArrayList<String>(), actual, new Locale("en"), pitList);
+            
+            Assert.assertEquals(expected.toString(), actual.toString());
+            Assert.assertEquals(export.getProgress().getEncountersQueued(), export.getProgress().getEncountersWritten());
+            Assert.assertTrue(export.getProgress().getEncountersWritten() >= 10);
+            // the workers had contexts of their own, and the caller's session is still usable
+            Assert.assertSame(userContext, Context.getUserContext());
+            Assert.assertTrue(Context.getAuthenticatedUser().isSuperUser());
+            Assert.assertNotNull(Context.getFormService().getForm(1).getName());
+            return export;
+        }
+        finally {
+            for (Encounter e : encounters)
+                Context.getEncounterService().purgeEncounter(e);
+            for (Map.Entry<String, String> property : previousProperties.entrySet()) {
+                if (property.getValue() == null)
+                    as.purgeGlobalProperty(as.getGlobalPropertyObject(property.getKey()));
+                else
+                    as.saveGlobalProperty(new GlobalProperty(property.getKey(), property.getValue()));
+            }
+        }
+    }
+    
+    
     /**
      * calls session.createForm on a form that has both conceptIds with labels, and conceptIds without labels in obs tags.
      * Verifies that the dropdown options for selecting a concept are correctly labeled.
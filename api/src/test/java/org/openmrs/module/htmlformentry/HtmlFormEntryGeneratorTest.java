@@ -11,6 +11,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.logic.util.LogicUtil;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.Verifies;
+import org.w3c.dom.Document;
 
 public class HtmlFormEntryGeneratorTest extends BaseModuleContextSensitiveTest {
 	
@@ -93,6 +94,34 @@ public class HtmlFormEntryGeneratorTest extends BaseModuleContextSensitiveTest {
 
     }
 
+    /**
+	 * @see {@link HtmlFormEntryGenerator#applyTemplates(Document)}
+	 */
+	@Test
+	@Verifies(value = "should leave braces that are not part of a key as they are", method = "applyTemplates(Document)")
+	public void applyTemplates_shouldLeaveBracesThatAreNotPartOfAKeyAsTheyAre() throws Exception {
+		String htmlform = "<htmlform><repeat><template><span title=\"{{name}}\">{name} costs {price} {{name}a}</span></template>"
+		        + "<render name=\"a\" price=\"{x}\"/><render name=\"b\" price=\"2\"/></repeat></htmlform>";
+		String html = new FormEntrySession(patient, htmlform).getHtmlToDisplay();
+		Assert.assertTrue(html.contains("title=\"{a}\">a costs {x} {aa}</span>"));
+		Assert.assertTrue(html.contains("title=\"{b}\">b costs 2 {ba}</span>"));
+	}
+
+	/**
+	 * @see {@link HtmlFormEntryGenerator#applyTemplates(Document)}
+	 * @throws Exception
+	 */
+	@Test
+	@Verifies(value = "should parse values that contain markup", method = "applyTemplates(Document)")
+	public void applyTemplates_shouldParseValuesThatContainMarkup() throws Exception {
+		String htmlform = "<htmlform><repeat><template><span class=\"{cls}\">{label}</span></template>"
+		        + "<render cls=\"a\" label=\"a &lt;b&gt;x&lt;/b&gt; b\"/><render cls=\"b\" label=\"plain\"/></repeat>"
+		        + "<repeat with=\"[664,'&lt;i&gt;No&lt;/i&gt;']\"><p title=\"{0}\">{1}</p></repeat></htmlform>";
+		String html = new FormEntrySession(patient, htmlform).getHtmlToDisplay();
+		Assert.assertTrue(html.contains("<span class=\"a\">a <b>x</b> b</span><span class=\"b\">plain</span>"));
+		Assert.assertTrue(html.contains("<p title=\"664\"><i>No</i></p>"));
+	}
+
     /**
 	 * @see {@link HtmlFormEntryGenerator#applyRoleRestrictions(String)}
      * @throws Exception
@@ -159,6 +188,68 @@ public class HtmlFormEntryGeneratorTest extends BaseModuleContextSensitiveTest {
 		Assert.assertEquals(true, HtmlFormEntryGenerator.processIncludeLogic(session, testStr));
 	}
 	
+	/**
+	 * @see {@link HtmlFormEntryGenerator#applyTemplates(Document)}
+	 */
+	@Test
+	@Verifies(value = "should expand macros and repeats in a single parsed document", method = "applyTemplates(Document)")
+	public void applyTemplates_shouldExpandMacrosAndRepeatsInASingleParsedDocument() throws Exception {
+		String htmlform = "<htmlform><macros>label=Effect</macros><repeat><template><span class=\"{cls}\">$label {effect}</span></template>"
+		        + "<render cls=\"a\" effect=\"Stroke\"/><render cls=\"b\" effect=\"Other\"/></repeat>"
+		        + "<repeat with=\"[1,'One'],[2,'Two']\"><i title=\"{0}\">{1}</i></repeat></htmlform>";
+		HtmlFormEntryGenerator generator = new HtmlFormEntryGenerator();
+		Document doc = HtmlFormEntryUtil.stringToDocument(htmlform);
+		generator.applyMacros(doc);
+		generator.applyTemplates(doc);
+		FormEntrySession session = new FormEntrySession(patient, "<htmlform></htmlform>");
+		Assert.assertEquals("<htmlform><span class=\"a\">Effect Stroke</span><span class=\"b\">Effect Other</span>"
+		        + "<i title=\"1\">One</i><i title=\"2\">Two</i></htmlform>", generator.applyTags(session, doc));
+	}
+	
+	/**
+	 * @see {@link HtmlFormEntryGenerator#compile(String)}
+	 */
+	@Test
+	@Verifies(value = "should compile a form with includeIf and excludeIf tests that are not valid xml", method = "compile(String)")
+	public void compile_shouldCompileAFormWithIncludeIfAndExcludeIfTestsThatAreNotValidXml() throws Exception {
+		String htmlform = "<htmlform><macros>text=Patient age is valid</macros>"
+		        + "<includeIf velocityTest=\"$patient.age >= 1 && $patient.age <= 120 \">$text</includeIf>"
+		        + "<excludeIf velocityTest=\"$patient.age >= 1 && $patient.age <= 120 \">Hidden</excludeIf></htmlform>";
+		HtmlFormEntryGenerator generator = new HtmlFormEntryGenerator();
+		CompiledHtmlForm compiled = generator.compile(htmlform);
+		Assert.assertNotNull(compiled);
+		
+		FormEntrySession session = new FormEntrySession(patient, "<htmlform></htmlform>");
+		Document doc = compiled.newDocument();
+		generator.applyConditionals(session, doc);
+		Assert.assertEquals("<htmlform>Patient age is valid</htmlform>", generator.applyTags(session, doc));
+	}
+	
+	/**
+	 * @see {@link HtmlFormEntryGenerator#compile(String)}
+	 */
+	@Test
+	@Verifies(value = "should return null if a conditional tag wraps the render tags of a repeat", method = "compile(String)")
+	public void compile_shouldReturnNullIfAConditionalTagWrapsTheRenderTagsOfARepeat() throws Exception {
+		String htmlform = "<htmlform><repeat><template>{label}</template><render label=\"A\"/>"
+		        + "<includeIf velocityTest=\"$patient.gender == 'F'\"><render label=\"B\"/></includeIf></repeat></htmlform>";
+		Assert.assertNull(new HtmlFormEntryGenerator().compile(htmlform));
+	}
+	
+	/**
+	 * @see {@link HtmlFormEntryGenerator#compile(String)}
+	 */
+	@Test
+	@Verifies(value = "should return null if the form only parses once conditionals are applied", method = "compile(String)")
+	public void compile_shouldReturnNullIfTheFormOnlyParsesOnceConditionalsAreApplied() throws Exception {
+		String htmlform = "<htmlform>Shown<excludeIf velocityTest=\"true\"><br>Hidden</excludeIf></htmlform>";
+		Assert.assertNull(new HtmlFormEntryGenerator().compile(htmlform));
+		
+		// the form is still rendered, through the text pipeline
+		FormEntrySession session = new FormEntrySession(patient, htmlform);
+		Assert.assertEquals("<div class=\"htmlform\">Shown</div>", session.getHtmlToDisplay());
+	}
+	
 	/**
 	 * @see HtmlFormEntryGenerator#wrapInDiv(String)
 	 * @verifies remove htmlform tag and wrap form in div
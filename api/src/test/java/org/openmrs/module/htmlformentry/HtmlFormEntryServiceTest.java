@@ -1,12 +1,22 @@
 package org.openmrs.module.htmlformentry;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import junit.framework.Assert;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Location;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.Person;
+import org.openmrs.Program;
 import org.openmrs.Role;
 import org.openmrs.User;
 import org.openmrs.api.context.Context;
@@ -75,4 +85,154 @@ public class HtmlFormEntryServiceTest extends BaseModuleContextSensitiveTest {
  
     }
 	
-}
\ No newline at end of file
+
+	/**
+	 * @see {@link HtmlFormEntryService#getCompiledHtmlForm(HtmlForm)}
+	 */
+	@Test
+	@Verifies(value = "should cache compiled forms until the form is saved", method = "getCompiledHtmlForm(HtmlForm)")
+	public void getCompiledHtmlForm_shouldCacheCompiledFormsUntilTheFormIsSaved() throws Exception {
+		HtmlForm htmlForm = service.getHtmlForm(1);
+		htmlForm.setXmlData("<htmlform><macros>x=1</macros>$x</htmlform>");
+		
+		long misses = service.getCompiledHtmlFormCacheStatistics().get("misses");
+		long hits = service.getCompiledHtmlFormCacheStatistics().get("hits");
+		CompiledHtmlForm compiled = service.getCompiledHtmlForm(htmlForm);
+		Assert.assertNotNull(compiled);
+		Assert.assertSame(compiled, service.getCompiledHtmlForm(htmlForm));
+		Assert.assertEquals(misses + 1, service.getCompiledHtmlFormCacheStatistics().get("misses").longValue());
+		Assert.assertEquals(hits + 1, service.getCompiledHtmlFormCacheStatistics().get("hits").longValue());
+		
+		service.saveHtmlForm(htmlForm);
+		Assert.assertNotSame(compiled, service.getCompiledHtmlForm(htmlForm));
+	}
+	
+	/**
+	 * @see {@link HtmlFormEntryService#getCompiledHtmlForm(HtmlForm)}
+	 */
+	@Test
+	@Verifies(value = "should return null for forms that only parse once conditionals are applied", method = "getCompiledHtmlForm(HtmlForm)")
+	public void getCompiledHtmlForm_shouldReturnNullForFormsThatOnlyParseOnceConditionalsAreApplied() throws Exception {
+		HtmlForm htmlForm = service.getHtmlForm(1);
+		htmlForm.setXmlData("<htmlform>Shown<excludeIf velocityTest=\"true\"><br>Hidden</excludeIf></htmlform>");
+		htmlForm = service.saveHtmlForm(htmlForm);
+		
+		Assert.assertNull(service.getCompiledHtmlForm(htmlForm));
+		long hits = service.getCompiledHtmlFormCacheStatistics().get("hits");
+		Assert.assertNull(service.getCompiledHtmlForm(htmlForm));
+		Assert.assertEquals(hits + 1, service.getCompiledHtmlFormCacheStatistics().get("hits").longValue());
+		
+		FormEntrySession session = new FormEntrySession(Context.getPatientService().getPatient(2), htmlForm);
+		Assert.assertEquals("<div class=\"htmlform\">Shown</div>", session.getHtmlToDisplay());
+	}
+
+	/**
+	 * @see {@link HtmlFormEntryService#hasEncounterForHtmlForm(Integer, Integer, Date)}
+	 */
+	@Test
+	@Verifies(value = "should return true if the patient has an encounter of the form at the given datetime", method = "hasEncounterForHtmlForm(Integer, Integer, Date)")
+	public void hasEncounterForHtmlForm_shouldReturnTrueIfThePatientHasAnEncounterOfTheFormAtTheGivenDatetime() throws Exception {
+		Encounter encounter = Context.getEncounterService().getEncounter(3);
+		encounter.setForm(service.getHtmlForm(1).getForm());
+		Context.getEncounterService().saveEncounter(encounter);
+		
+		Integer patientId = encounter.getPatient().getPatientId();
+		Assert.assertTrue(service.hasEncounterForHtmlForm(patientId, 1, encounter.getEncounterDatetime()));
+		Assert.assertFalse(service.hasEncounterForHtmlForm(patientId, 2, encounter.getEncounterDatetime()));
+		Assert.assertFalse(service.hasEncounterForHtmlForm(patientId + 1, 1, encounter.getEncounterDatetime()));
+	}
+	
+	/**
+	 * @see {@link HtmlFormEntryService#hasEncounterForHtmlForm(Integer, Integer, Date)}
+	 */
+	@Test
+	@Verifies(value = "should return false if the encounter is at a different datetime", method = "hasEncounterForHtmlForm(Integer, Integer, Date)")
+	public void hasEncounterForHtmlForm_shouldReturnFalseIfTheEncounterIsAtADifferentDatetime() throws Exception {
+		Encounter encounter = Context.getEncounterService().getEncounter(3);
+		encounter.setForm(service.getHtmlForm(1).getForm());
+		Context.getEncounterService().saveEncounter(encounter);
+		
+		Date otherDatetime = new Date(encounter.getEncounterDatetime().getTime() + 60 * 1000);
+		Assert.assertFalse(service.hasEncounterForHtmlForm(encounter.getPatient().getPatientId(), 1, otherDatetime));
+	}
+	
+	/**
+	 * @see {@link HtmlFormEntryService#getItemsByUuid(Class, java.util.Collection)}
+	 */
+	@Test
+	@Verifies(value = "should return the items found by the uuid they were asked for with", method = "getItemsByUuid(Class, Collection)")
+	public void getItemsByUuid_shouldReturnTheItemsFoundByTheUuidTheyWereAskedForWith() throws Exception {
+		Location location = Context.getLocationService().getLocation(1);
+		Map<String, OpenmrsObject> items = service.getItemsByUuid(Location.class, Arrays.asList(location.getUuid(),
+		    "ffffffff-ffff-ffff-ffff-ffffffffffff"));
+		Assert.assertEquals(1, items.size());
+		Assert.assertEquals(location, items.get(location.getUuid()));
+	}
+	
+	/**
+	 * @see {@link HtmlFormEntryService#getItemsById(Class, java.util.Collection)}
+	 */
+	@Test
+	@Verifies(value = "should return the items found by id", method = "getItemsById(Class, Collection)")
+	public void getItemsById_shouldReturnTheItemsFoundById() throws Exception {
+		Map<Integer, OpenmrsObject> items = service.getItemsById(Location.class, Arrays.asList(1, 2, 9999));
+		Assert.assertEquals(2, items.size());
+		Assert.assertEquals(Context.getLocationService().getLocation(2), items.get(2));
+		Assert.assertNull(items.get(9999));
+	}
+	
+	/**
+	 * @see {@link HtmlFormEntryService#getItemsByName(Class, java.util.Collection)}
+	 */
+	@Test
+	@Verifies(value = "should return the items found by the name they were asked for with", method = "getItemsByName(Class, Collection)")
+	public void getItemsByName_shouldReturnTheItemsFoundByTheNameTheyWereAskedForWith() throws Exception {
+		Location location = Context.getLocationService().getLocation(1);
+		Map<String, OpenmrsObject> items = service.getItemsByName(Location.class, Arrays.asList(location.getName(),
+		    "Nowhere In Particular"));
+		Assert.assertEquals(1, items.size());
+		Assert.assertEquals(location, items.get(location.getName()));
+	}
+	
+	/**
+	 * @see {@link HtmlFormEntryService#getPeopleAsPersonStubs(List, List, List, List, Integer, Integer)}
+	 */
+	@Test
+	@Verifies(value = "should return the people in the program sorted by name one page at a time", method = "getPeopleAsPersonStubs(List, List, List, List, Integer, Integer)")
+	public void getPeopleAsPersonStubs_shouldReturnThePeopleInTheProgramSortedByNameOnePageAtATime() throws Exception {
+		List<String> programIds = Arrays.asList("1");
+		Set<Integer> inProgram = Context.getPatientSetService().getPatientsInProgram(
+		    Context.getProgramWorkflowService().getProgram(1), null, null).getMemberIds();
+		
+		List<PersonStub> all = service.getPeopleAsPersonStubs(null, null, programIds, new ArrayList<Person>(), null, null);
+		Assert.assertEquals(inProgram.size(), all.size());
+		for (int i = 0; i < all.size(); i++) {
+			Person person = Context.getPersonService().getPerson(all.get(i).getId());
+			Assert.assertTrue(inProgram.contains(person.getPersonId()));
+			Assert.assertEquals(person.getFamilyName(), all.get(i).getFamilyName());
+			if (i > 0 && all.get(i - 1).getFamilyName() != null && all.get(i).getFamilyName() != null)
+				Assert.assertTrue(all.get(i - 1).getFamilyName().compareTo(all.get(i).getFamilyName()) <= 0);
+		}
+		
+		if (all.size() > 1) {
+			List<PersonStub> secondPage = service.getPeopleAsPersonStubs(null, null, programIds, new ArrayList<Person>(), 1, 1);
+			Assert.assertEquals(1, secondPage.size());
+			Assert.assertEquals(all.get(1).getId(), secondPage.get(0).getId());
+			
+			List<Person> excluded = Arrays.asList(Context.getPersonService().getPerson(all.get(0).getId()));
+			Assert.assertEquals(all.get(1).getId(), service.getPeopleAsPersonStubs(null, null, programIds, excluded).get(0)
+			        .getId());
+		}
+	}
+	
+	/**
+	 * @see {@link HtmlFormEntryService#getPatientIdSetInProgram(Program)}
+	 */
+	@Test
+	@Verifies(value = "should return the same patients as the patient set service", method = "getPatientIdSetInProgram(Program)")
+	public void getPatientIdSetInProgram_shouldReturnTheSamePatientsAsThePatientSetService() throws Exception {
+		Program program = Context.getProgramWorkflowService().getProgram(1);
+		Set<Integer> inProgram = Context.getPatientSetService().getPatientsInProgram(program, null, null).getMemberIds();
+		Assert.assertEquals(inProgram, service.getPatientIdSetInProgram(program));
+	}
+}
@@ -19,8 +19,11 @@ import org.openmrs.Order;
 import org.openmrs.Patient;
 import org.openmrs.PatientProgram;
 import org.openmrs.Program;
+import org.openmrs.api.ConceptService;
 import org.openmrs.api.ProgramWorkflowService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.cache.MetadataChangeAdvice;
+import org.openmrs.module.htmlformentry.cache.MetadataResolutionCache;
 import org.openmrs.obs.ComplexData;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.Verifies;
@@ -618,6 +621,70 @@ public class HtmlFormEntryUtilTest extends BaseModuleContextSensitiveTest {
 		Assert.assertTrue(e.isVoided());
 	}
 	
+	@Test
+	@Verifies(value = "should void obs in sections that are only included for the encounter", method = "voidEncounterByHtmlFormSchema")
+	public void testVoidEncounterByHtmlFormSchema_shouldVoidObsInSectionsThatAreOnlyIncludedForTheEncounter() throws Exception {
+		executeDataSet(XML_DATASET_PATH + new TestUtil().getTestDatasetFilename(XML_REGRESSION_TEST_DATASET));
+		Encounter e = new Encounter();
+		e.setPatient(Context.getPatientService().getPatient(2));
+		Date date = Context.getDateFormat().parse("01/02/2003");
+		e.setDateCreated(new Date());
+		e.setEncounterDatetime(date);
+		e.setLocation(Context.getLocationService().getLocation(2));
+		e.setProvider(Context.getPersonService().getPerson(502));
+		TestUtil.addObs(e, 2474, Context.getConceptService().getConcept(656), date); //matches, but only with the encounter
+		TestUtil.addObs(e, 6, "blah blah", date); //excluded for the encounter
+		Context.getEncounterService().saveEncounter(e);
+		
+		Form form = new Form();
+		HtmlForm htmlform = new HtmlForm();
+		htmlform.setForm(form);
+		form.setEncounterType(new EncounterType());
+		htmlform.setDateChanged(new Date());
+		htmlform.setXmlData("<htmlform><includeIf velocityTest=\"$encounter.location.locationId == 2\"><obs conceptId=\"2474\"/></includeIf>"
+		        + "<excludeIf velocityTest=\"$encounter.location.locationId == 2\"><obs conceptId=\"6\"/></excludeIf></htmlform>");
+		HtmlFormEntryUtil.voidEncounterByHtmlFormSchema(e, htmlform, null);
+		
+		Assert.assertTrue(!e.isVoided());
+		for (Obs o : e.getAllObs(true)) {
+			if (o.getConcept().getConceptId().equals(2474))
+				Assert.assertTrue(o.isVoided());
+			if (o.getConcept().getConceptId().equals(6))
+				Assert.assertTrue(!o.isVoided()); //not in the form for this encounter
+		}
+	}
+	
+	@Test
+	@Verifies(value = "should void the members of obs groups that only match in unmatched mode", method = "voidEncounterByHtmlFormSchema")
+	public void testVoidEncounterByHtmlFormSchema_shouldVoidTheMembersOfObsGroupsThatOnlyMatchInUnmatchedMode() throws Exception {
+		executeDataSet(XML_DATASET_PATH + new TestUtil().getTestDatasetFilename(XML_REGRESSION_TEST_DATASET));
+		Encounter e = new Encounter();
+		e.setPatient(Context.getPatientService().getPatient(2));
+		Date date = Context.getDateFormat().parse("01/02/2003");
+		e.setDateCreated(new Date());
+		e.setEncounterDatetime(date);
+		e.setLocation(Context.getLocationService().getLocation(2));
+		e.setProvider(Context.getPersonService().getPerson(502));
+		//7 IS ALLERGY CONSTRUCT, 1000 IS ALLERGY CODED, 1003 IS OPENMRS
+		TestUtil.addObsGroup(e, 7, new Date(), 1000, Context.getConceptService().getConcept(1003), new Date());
+		Context.getEncounterService().saveEncounter(e);
+		
+		Form form = new Form();
+		HtmlForm htmlform = new HtmlForm();
+		htmlform.setForm(form);
+		form.setEncounterType(new EncounterType());
+		htmlform.setDateChanged(new Date());
+		// the obsgroup tag names no answers, so no existing group supports it better than another, and
+		// the group is only handed to it once everything else has been matched
+		htmlform.setXmlData("<htmlform><obsgroup groupingConceptId=\"7\"><obs conceptId=\"1000\"/></obsgroup></htmlform>");
+		HtmlFormEntryUtil.voidEncounterByHtmlFormSchema(e, htmlform, null);
+		
+		Assert.assertTrue(e.isVoided());
+		for (Obs o : e.getAllObs(true)) {
+			Assert.assertTrue(o.isVoided());
+		}
+	}
+	
 	/**
 	 * @see {@link HtmlFormEntryUtil#translateDatetimeParam(String,String)}
 	 */
@@ -951,4 +1018,56 @@ public class HtmlFormEntryUtilTest extends BaseModuleContextSensitiveTest {
 		
 	}
 
+	/**
+	 * @see {@link HtmlFormEntryUtil#getConcept(String)}
+	 */
+	@Test
+	@Verifies(value = "should resolve a mapping seen before from the metadata cache", method = "getConcept(String)")
+	public void getConcept_shouldResolveAMappingSeenBeforeFromTheMetadataCache() throws Exception {
+		MetadataResolutionCache cache = MetadataResolutionCache.getInstance();
+		cache.setEnabled(true);
+		try {
+			Concept cpt = HtmlFormEntryUtil.getConcept("XYZ:HT");
+			Assert.assertNull(HtmlFormEntryUtil.getConcept("XYZ:NOT-A-CODE"));
+			long hits = cache.getStatistics().get("hits");
+			
+			Assert.assertEquals(cpt, HtmlFormEntryUtil.getConcept("XYZ:HT"));
+			Assert.assertNull(HtmlFormEntryUtil.getConcept("XYZ:NOT-A-CODE"));
+			Assert.assertEquals(hits + 2, cache.getStatistics().get("hits").longValue());
+			
+			cache.invalidate(Concept.class);
+			Assert.assertEquals(cpt, HtmlFormEntryUtil.getConcept("XYZ:HT"));
+			Assert.assertEquals(hits + 2, cache.getStatistics().get("hits").longValue());
+		}
+		finally {
+			cache.setEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link MetadataChangeAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)}
+	 */
+	@Test
+	@Verifies(value = "should only forget what refers to a saved concept", method = "afterReturning(Object, Method, Object[], Object)")
+	public void afterReturning_shouldOnlyForgetWhatRefersToASavedConcept() throws Exception {
+		MetadataResolutionCache cache = MetadataResolutionCache.getInstance();
+		cache.setEnabled(true);
+		try {
+			Concept cpt = HtmlFormEntryUtil.getConcept("XYZ:HT");
+			Concept other = HtmlFormEntryUtil.getConcept("3");
+			Assert.assertFalse(cpt.equals(other));
+			
+			new MetadataChangeAdvice().afterReturning(cpt, ConceptService.class.getMethod("saveConcept", Concept.class),
+			    new Object[] { cpt }, Context.getConceptService());
+			long hits = cache.getStatistics().get("hits");
+			Assert.assertEquals(other, HtmlFormEntryUtil.getConcept("3"));
+			Assert.assertEquals(hits + 1, cache.getStatistics().get("hits").longValue());
+			Assert.assertEquals(cpt, HtmlFormEntryUtil.getConcept("XYZ:HT"));
+			Assert.assertEquals(hits + 1, cache.getStatistics().get("hits").longValue());
+		}
+		finally {
+			cache.setEnabled(false);
+		}
+	}
+	
 }
@@ -13,6 +13,9 @@ import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
 import org.openmrs.logic.util.LogicUtil;
+import org.openmrs.module.htmlformentry.metrics.FormEntryMetrics.Category;
+import org.openmrs.module.htmlformentry.metrics.HtmlFormEntryMetrics;
+import org.openmrs.module.htmlformentry.metrics.InMemoryFormEntryMetrics;
 import org.openmrs.module.htmlformentry.schema.HtmlFormField;
 import org.openmrs.module.htmlformentry.schema.HtmlFormSchema;
 import org.openmrs.module.htmlformentry.schema.HtmlFormSection;
@@ -1829,4 +1832,45 @@ public class RegressionTest extends BaseModuleContextSensitiveTest {
 
 		}.run();
 	}
+
+	@Test
+	public void testSingleObsFormRecordsStatementCounts() throws Exception {
+		final Date date = new Date();
+		final InMemoryFormEntryMetrics metrics = new InMemoryFormEntryMetrics();
+		HtmlFormEntryMetrics.setMetrics(metrics);
+		try {
+			new RegressionTestHelper() {
+
+				@Override
+				public String getFormName() {
+					return "singleObsForm";
+				}
+
+				@Override
+				public String[] widgetLabels() {
+					return new String[] { "Date:", "Location:", "Provider:", "Weight:" };
+				}
+
+				@Override
+				public void setupRequest(MockHttpServletRequest request, Map<String, String> widgets) {
+					request.addParameter(widgets.get("Date:"), dateAsString(date));
+					request.addParameter(widgets.get("Location:"), "2");
+					request.addParameter(widgets.get("Provider:"), "502");
+					request.addParameter(widgets.get("Weight:"), "70");
+				}
+
+				@Override
+				public void testResults(SubmissionResults results) {
+					results.assertNoErrors();
+					results.assertEncounterCreated();
+					Assert.assertEquals(1, metrics.getStatementCounts().get("total").getCount());
+					Assert.assertTrue(metrics.getStatementCounts().get("total").getTotal() > 0);
+					Assert.assertEquals(1, metrics.getHistograms(Category.APPLY_ACTIONS).get("flush").getCount());
+				}
+			}.run();
+		}
+		finally {
+			HtmlFormEntryMetrics.setMetrics(null);
+		}
+	}
 }
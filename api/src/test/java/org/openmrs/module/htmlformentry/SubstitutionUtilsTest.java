@@ -2,6 +2,7 @@ package org.openmrs.module.htmlformentry;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.module.htmlformentry.substitution.HtmlFormSubstitutionUtils;
@@ -114,6 +115,25 @@ public class SubstitutionUtilsTest extends BaseModuleContextSensitiveTest {
 	
 	}
 	
+	/**
+	 * see {@link HtmlFormSubstitutionUtils#replaceIdsWithUuids(HtmlForm)}
+	 * @throws Exception 
+	 */
+	@Test
+	@Verifies(value = "should only convert ids in the attributes of registered tags", method = "replaceConceptIdsWithUuids(HtmlForm)")
+	public void replaceConceptIdsWithUuids_shouldOnlyConvertIdsInTheAttributesOfRegisteredTags() throws Exception {
+		executeDataSet(XML_DATASET_PATH + new TestUtil().getTestDatasetFilename(XML_REGRESSION_TEST_DATASET));
+		
+		HtmlForm form = new HtmlForm();
+		form.setXmlData("<htmlform><obsgroup labelText=\"7\" groupingConceptId=\"7\"><obs\n conceptId=\"7\"/></obsgroup>"
+		        + "<span conceptId=\"7\"/><obsgroups groupingConceptId=\"7\"/></htmlform>");
+		HtmlFormSubstitutionUtils.replaceIdsWithUuids(form);
+		
+		Assert.assertEquals("<htmlform><obsgroup labelText=\"7\" groupingConceptId=\"32296060-03aa-102d-b0e3-001ec94a0cc1\">"
+		        + "<obs\n conceptId=\"32296060-03aa-102d-b0e3-001ec94a0cc1\"/></obsgroup><span conceptId=\"7\"/>"
+		        + "<obsgroups groupingConceptId=\"7\"/></htmlform>", form.getXmlData());
+	}
+	
 	 /**
 	 * see {@link HtmlFormSubstitutionUtils#replaceProgramNamesWithUuids(HtmlForm)}
 	 * @throws Exception 
@@ -0,0 +1,34 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TagOutputWriterTest {
+
+    @Test
+    public void replacePlaceholders_shouldPutEachContentInPlaceOfItsPlaceholder() throws Exception {
+        TagOutputWriter out = new TagOutputWriter();
+        out.print("<p>");
+        out.printPlaceholder(0, "<unmatched id=\"0\" />");
+        out.print("</p><p>");
+        out.printPlaceholder(1, "<unmatched id=\"1\" />");
+        out.print("</p>");
+        Assert.assertEquals("<p><unmatched id=\"0\" /></p><p><unmatched id=\"1\" /></p>", out.toString());
+        Assert.assertEquals(2, out.getPlaceholderCount());
+
+        // contents are taken literally, unlike replacement strings in String.replaceAll
+        Assert.assertEquals("<p>costs $1 \\ day</p><p></p>", out.replacePlaceholders(Arrays.asList("costs $1 \\ day", "")));
+    }
+
+    @Test
+    public void replacePlaceholders_shouldLeavePlaceholdersWithNoContentAsTheyAre() throws Exception {
+        TagOutputWriter out = new TagOutputWriter();
+        out.printPlaceholder(0, "[0]");
+        out.print(" and ");
+        out.printPlaceholder(1, "[1]");
+        Assert.assertEquals("zero and [1]", out.replacePlaceholders(Arrays.asList("zero")));
+        Assert.assertEquals("[0] and one", out.replacePlaceholders(Arrays.asList(null, "one")));
+    }
+}
@@ -0,0 +1,101 @@
+package org.openmrs.module.htmlformentry.bulk;
+
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Form;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.TestUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class HtmlFormBulkSubmitterTest extends BaseModuleContextSensitiveTest {
+
+	protected static final String XML_DATASET_PATH = "org/openmrs/module/htmlformentry/include/";
+
+	protected static final String XML_REGRESSION_TEST_DATASET = "regressionTestDataSet";
+
+	/**
+	 * Date is w1, Location is w3, Provider is w5 and Weight is w7
+	 */
+	private static final String FORM_XML = "<htmlform>Date: <encounterDate/> Location: <encounterLocation/>"
+	        + " Provider: <encounterProvider role=\"Provider\"/> Weight: <obs conceptId=\"2\"/></htmlform>";
+
+	@Before
+	public void before() throws Exception {
+		executeDataSet(XML_DATASET_PATH + new TestUtil().getTestDatasetFilename(XML_REGRESSION_TEST_DATASET));
+	}
+
+	/**
+	 * @see {@link BulkSubmissionReader#readCsv(java.io.Reader)}
+	 */
+	@Test
+	@Verifies(value = "should read quoted values and leave out empty ones", method = "readCsv(Reader)")
+	public void readCsv_shouldReadQuotedValuesAndLeaveOutEmptyOnes() throws Exception {
+		String csv = "patientId,w1,w7\n2,\"2012-05-01\",\n7,2012-06-01,\"7\"\"2\"\n";
+		Iterator<Map<String, String>> rows = BulkSubmissionReader.readCsv(new StringReader(csv));
+
+		Map<String, String> row = rows.next();
+		Assert.assertEquals("2", row.get("patientId"));
+		Assert.assertEquals("2012-05-01", row.get("w1"));
+		Assert.assertFalse(row.containsKey("w7"));
+
+		row = rows.next();
+		Assert.assertEquals("7\"2", row.get("w7"));
+		Assert.assertFalse(rows.hasNext());
+	}
+
+	/**
+	 * @see {@link BulkSubmissionReader#readJsonLines(java.io.Reader)}
+	 */
+	@Test
+	@Verifies(value = "should read one flat object per line", method = "readJsonLines(Reader)")
+	public void readJsonLines_shouldReadOneFlatObjectPerLine() throws Exception {
+		String json = "{\"patientId\": 2, \"w1\": \"2012-05-01\", \"w7\": null}\n\n{\"w3\":\"a \\\"b\\\"\"}\n";
+		Iterator<Map<String, String>> rows = BulkSubmissionReader.readJsonLines(new StringReader(json));
+
+		Map<String, String> row = rows.next();
+		Assert.assertEquals("2", row.get("patientId"));
+		Assert.assertEquals("2012-05-01", row.get("w1"));
+		Assert.assertFalse(row.containsKey("w7"));
+
+		Assert.assertEquals("a \"b\"", rows.next().get("w3"));
+		Assert.assertFalse(rows.hasNext());
+	}
+
+	/**
+	 * @see {@link HtmlFormBulkSubmitter#submit(HtmlForm, Iterator)}
+	 */
+	@Test
+	@Verifies(value = "should save valid rows and report the others", method = "submit(HtmlForm, Iterator)")
+	public void submit_shouldSaveValidRowsAndReportTheOthers() throws Exception {
+		HtmlForm htmlForm = new HtmlForm();
+		htmlForm.setXmlData(FORM_XML);
+		htmlForm.setForm(new Form(1));
+
+		Patient patient = Context.getPatientService().getPatient(2);
+		int encountersBefore = Context.getEncounterService().getEncountersByPatient(patient).size();
+
+		String csv = "patientId,w1,w3,w5,w7\n" + "2,2012-05-01,2,502,70\n" + "2,,2,502,71\n"
+		        + "9999,2012-05-01,2,502,72\n" + "2,2012-05-02,2,502,73\n";
+		BulkSubmissionReport report = new HtmlFormBulkSubmitter(2).submit(htmlForm, BulkSubmissionReader
+		        .readCsv(new StringReader(csv)));
+
+		Assert.assertEquals(4, report.getRowsRead());
+		Assert.assertEquals(2, report.getRowsSubmitted());
+		Assert.assertEquals(2, report.getErrors().size());
+		Assert.assertEquals(2, report.getErrors().get(0).getRowNumber());
+		Assert.assertEquals(3, report.getErrors().get(1).getRowNumber());
+
+		List<Encounter> encounters = Context.getEncounterService().getEncountersByPatient(patient);
+		Assert.assertEquals(encountersBefore + 2, encounters.size());
+	}
+}
@@ -0,0 +1,104 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.TestUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class ConceptSearchIndexTest extends BaseModuleContextSensitiveTest {
+
+	protected static final String XML_DATASET_PATH = "org/openmrs/module/htmlformentry/include/";
+
+	protected static final String XML_REGRESSION_TEST_DATASET = "regressionTestDataSet";
+
+	private ConceptSearchIndexes indexes;
+
+	@Before
+	public void before() throws Exception {
+		executeDataSet(XML_DATASET_PATH + new TestUtil().getTestDatasetFilename(XML_REGRESSION_TEST_DATASET));
+		indexes = new ConceptSearchIndexes(10);
+	}
+
+	/**
+	 * @see {@link ConceptSearchIndex#search(String, int)}
+	 */
+	@Test
+	@Verifies(value = "should find allowed concepts with a word starting with each search word", method = "search(String, int)")
+	public void search_shouldFindAllowedConceptsWithAWordStartingWithEachSearchWord() throws Exception {
+		ConceptSearchIndex index = indexes.getIndex(Locale.ENGLISH, "2,3", null);
+
+		List<ConceptSearchIndex.Result> results = index.search("wei", 10);
+		Assert.assertEquals(1, results.size());
+		Assert.assertEquals(2, results.get(0).getConceptId().intValue());
+		Assert.assertEquals("WEIGHT (KG)", results.get(0).getName());
+
+		Assert.assertEquals(1, index.search("(kg", 10).size());
+		Assert.assertEquals(3, index.search("cm", 10).get(0).getConceptId().intValue());
+		Assert.assertEquals(1, index.search("kg weig", 10).size());
+		Assert.assertEquals(0, index.search("weight cm", 10).size());
+		// CD4 COUNT isn't one of the answers
+		Assert.assertEquals(0, index.search("cd4", 10).size());
+		Assert.assertEquals(0, index.search("(", 10).size());
+		Assert.assertEquals(0, index.search("", 10).size());
+	}
+
+	/**
+	 * @see {@link ConceptSearchIndex#search(String, int)}
+	 */
+	@Test
+	@Verifies(value = "should show names in the index locale whatever the user locale", method = "search(String, int)")
+	public void search_shouldShowNamesInTheIndexLocaleWhateverTheUserLocale() throws Exception {
+		Locale userLocale = Context.getLocale();
+		try {
+			Context.setLocale(Locale.FRENCH);
+			ConceptSearchIndex index = indexes.getIndex(Locale.ENGLISH, "2,3", null);
+			Assert.assertEquals("WEIGHT (KG)", index.search("wei", 10).get(0).getName());
+
+			Context.setLocale(Locale.ENGLISH);
+			index = indexes.getIndex(Locale.FRENCH, "2,3", null);
+			Assert.assertEquals("POIDS (KG)", index.search("poi", 10).get(0).getName());
+		}
+		finally {
+			Context.setLocale(userLocale);
+		}
+	}
+
+	/**
+	 * @see {@link ConceptSearchIndexes#getIndex(Locale, String, String)}
+	 */
+	@Test
+	@Verifies(value = "should build each index once", method = "getIndex(Locale, String, String)")
+	public void getIndex_shouldBuildEachIndexOnce() throws Exception {
+		ConceptSearchIndex index = indexes.getIndex(Locale.ENGLISH, "2,3", null);
+		Assert.assertSame(index, indexes.getIndex(Locale.ENGLISH, "2,3", null));
+		Assert.assertNotSame(index, indexes.getIndex(Locale.FRENCH, "2,3", null));
+		Assert.assertEquals("POIDS (KG)", indexes.getIndex(Locale.FRENCH, "2,3", null).search("poi", 10).get(0).getName());
+	}
+
+	/**
+	 * @see {@link ConceptSearchIndexes#conceptSaved(Concept)}
+	 */
+	@Test
+	@Verifies(value = "should reindex saved concepts and drop retired ones", method = "conceptSaved(Concept)")
+	public void conceptSaved_shouldReindexSavedConceptsAndDropRetiredOnes() throws Exception {
+		ConceptSearchIndex index = indexes.getIndex(Locale.ENGLISH, "2,3", null);
+		Concept weight = Context.getConceptService().getConcept(2);
+
+		weight.getName(Locale.ENGLISH).setName("BODY WEIGHT (KG)");
+		indexes.conceptSaved(weight);
+		Assert.assertEquals(1, index.search("body", 10).size());
+
+		weight.setRetired(true);
+		indexes.conceptSaved(weight);
+		Assert.assertEquals(0, index.search("body", 10).size());
+		Assert.assertFalse(index.contains(2));
+		Assert.assertTrue(index.contains(3));
+	}
+}
@@ -0,0 +1,99 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.text.Collator;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.TestUtil;
+import org.openmrs.module.htmlformentry.cache.LocationCatalog.SortedLocations;
+import org.openmrs.module.htmlformentry.widget.Option;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class LocationCatalogTest extends BaseModuleContextSensitiveTest {
+
+	protected static final String XML_DATASET_PATH = "org/openmrs/module/htmlformentry/include/";
+
+	protected static final String XML_REGRESSION_TEST_DATASET = "regressionTestDataSet";
+
+	private LocationCatalog catalog;
+
+	@Before
+	public void before() throws Exception {
+		executeDataSet(XML_DATASET_PATH + new TestUtil().getTestDatasetFilename(XML_REGRESSION_TEST_DATASET));
+		catalog = LocationCatalog.getInstance();
+		catalog.setEnabled(true);
+	}
+
+	@After
+	public void after() throws Exception {
+		catalog.setEnabled(false);
+	}
+
+	/**
+	 * @see {@link LocationCatalog#getLocations(boolean, Locale)}
+	 */
+	@Test
+	@Verifies(value = "should return all locations sorted by name until invalidated", method = "getLocations(boolean, Locale)")
+	public void getLocations_shouldReturnAllLocationsSortedByNameUntilInvalidated() throws Exception {
+		SortedLocations locations = catalog.getLocations(true, Locale.ENGLISH);
+		Assert.assertEquals(Context.getLocationService().getAllLocations().size(), locations.size());
+
+		Collator collator = Collator.getInstance(Locale.ENGLISH);
+		List<Option> options = locations.getOptions((String) null);
+		for (int i = 1; i < options.size(); ++i)
+			Assert.assertTrue(collator.compare(options.get(i - 1).getLabel(), options.get(i).getLabel()) <= 0);
+		Assert.assertSame(locations, catalog.getLocations(true, Locale.ENGLISH));
+
+		catalog.invalidate();
+		Assert.assertNotSame(locations, catalog.getLocations(true, Locale.ENGLISH));
+	}
+
+	/**
+	 * @see {@link SortedLocations#getOptions(Location)}
+	 */
+	@Test
+	@Verifies(value = "should mark the selected location and add it if missing", method = "getOptions(Location)")
+	public void getOptions_shouldMarkTheSelectedLocationAndAddItIfMissing() throws Exception {
+		Location location = Context.getLocationService().getAllLocations().get(0);
+		SortedLocations locations = catalog.getLocations(true, Locale.ENGLISH);
+		int selected = 0;
+		for (Option option : locations.getOptions(location)) {
+			if (option.isSelected()) {
+				Assert.assertEquals(location.getLocationId().toString(), option.getValue());
+				++selected;
+			}
+		}
+		Assert.assertEquals(1, selected);
+		Assert.assertEquals(locations.size(), locations.getOptions(location).size());
+
+		Location missing = new Location(12345);
+		missing.setName("Zzz");
+		List<Option> options = locations.getOptions(missing);
+		Assert.assertEquals(locations.size() + 1, options.size());
+		Assert.assertEquals("12345", options.get(options.size() - 1).getValue());
+		Assert.assertTrue(options.get(options.size() - 1).isSelected());
+	}
+
+	/**
+	 * @see {@link SortedLocations#getOptionsHtml()}
+	 */
+	@Test
+	@Verifies(value = "should render an escaped option for each location", method = "getOptionsHtml()")
+	public void getOptionsHtml_shouldRenderAnEscapedOptionForEachLocation() throws Exception {
+		Location location = Context.getLocationService().getAllLocations().get(0);
+		location.setName("Tom & Jerry's");
+		Context.getLocationService().saveLocation(location);
+		catalog.invalidate();
+
+		String html = catalog.getLocations(true, Locale.ENGLISH).getOptionsHtml();
+		Assert.assertTrue(html.contains("\n<option value=\"" + location.getLocationId() + "\">Tom &amp; Jerry&#39;s</option>"));
+		Assert.assertTrue(catalog.getLocations(true, Locale.ENGLISH).getAutocompleteSource().contains("\"Tom & Jerry\\'s\""));
+	}
+}
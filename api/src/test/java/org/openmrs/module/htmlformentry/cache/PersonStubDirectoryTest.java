@@ -0,0 +1,77 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.htmlformentry.TestUtil;
+import org.openmrs.module.htmlformentry.cache.PersonStubDirectory.PersonStubList;
+import org.openmrs.module.htmlformentry.element.PersonStub;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class PersonStubDirectoryTest extends BaseModuleContextSensitiveTest {
+
+	protected static final String XML_DATASET_PATH = "org/openmrs/module/htmlformentry/include/";
+
+	protected static final String XML_HTML_FORM_ENTRY_SERVICE_DATASET = "htmlFormEntryServiceDataSet";
+
+	private PersonStubDirectory directory;
+
+	@Before
+	public void before() throws Exception {
+		executeDataSet(XML_DATASET_PATH + new TestUtil().getTestDatasetFilename(XML_HTML_FORM_ENTRY_SERVICE_DATASET));
+		directory = PersonStubDirectory.getInstance();
+		directory.setEnabled(true);
+	}
+
+	@After
+	public void after() throws Exception {
+		directory.setEnabled(false);
+	}
+
+	/**
+	 * @see {@link PersonStubDirectory#getUsers(String, Locale)}
+	 */
+	@Test
+	@Verifies(value = "should return the users with the role until the directory is invalidated", method = "getUsers(String, Locale)")
+	public void getUsers_shouldReturnTheUsersWithTheRoleUntilTheDirectoryIsInvalidated() throws Exception {
+		PersonStubList providers = directory.getUsers("Provider", Locale.ENGLISH);
+		Assert.assertEquals(Context.getService(HtmlFormEntryService.class).getUsersAsPersonStubs("Provider"), providers);
+		Assert.assertEquals("Hippocrates of Cos", providers.get(0).getDisplayValue());
+		Assert.assertSame(providers, directory.getUsers("Provider", Locale.ENGLISH));
+
+		directory.invalidate();
+		Assert.assertNotSame(providers, directory.getUsers("Provider", Locale.ENGLISH));
+		Assert.assertEquals(providers, directory.getUsers("Provider", Locale.ENGLISH));
+	}
+
+	/**
+	 * @see {@link PersonStubList#getOptionsHtml()}
+	 */
+	@Test
+	@Verifies(value = "should render an option for each person", method = "getOptionsHtml()")
+	public void getOptionsHtml_shouldRenderAnOptionForEachPerson() throws Exception {
+		PersonStubList providers = directory.getUsers("Provider", Locale.ENGLISH);
+		PersonStub hippocrates = providers.get(0);
+		Assert.assertEquals("\n<option value=\"" + hippocrates.getId() + "\">Hippocrates of Cos</option>",
+		    providers.getOptionsHtml());
+		Assert.assertSame(providers.getOptionsHtml(), providers.getOptionsHtml());
+	}
+
+	/**
+	 * @see {@link PersonStubDirectory#getUsers(String, Locale)}
+	 */
+	@Test
+	@Verifies(value = "should fetch the users every time when disabled", method = "getUsers(String, Locale)")
+	public void getUsers_shouldFetchTheUsersEveryTimeWhenDisabled() throws Exception {
+		directory.setEnabled(false);
+		PersonStubList providers = directory.getUsers("Provider", Locale.ENGLISH);
+		Assert.assertNotSame(providers, directory.getUsers("Provider", Locale.ENGLISH));
+		Assert.assertEquals(providers, directory.getUsers("Provider", Locale.ENGLISH));
+	}
+}
@@ -0,0 +1,109 @@
+package org.openmrs.module.htmlformentry.cohort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdSetTest {
+
+	/**
+	 * @return a set of every step-th id from start (inclusive) to end (exclusive)
+	 */
+	private static IdSet range(int start, int end, int step) {
+		IdSet ret = new IdSet();
+		for (int id = start; id < end; id += step)
+			ret.add(id);
+		return ret;
+	}
+
+	private static TreeSet<Integer> treeRange(int start, int end, int step) {
+		TreeSet<Integer> ret = new TreeSet<Integer>();
+		for (int id = start; id < end; id += step)
+			ret.add(id);
+		return ret;
+	}
+
+	@Test
+	public void add_shouldKeepIdsInAscendingOrderWithoutDuplicates() throws Exception {
+		IdSet set = new IdSet();
+		Assert.assertTrue(set.add(70000));
+		Assert.assertTrue(set.add(3));
+		Assert.assertTrue(set.add(1));
+		Assert.assertFalse(set.add(3));
+		Assert.assertEquals(3, set.size());
+		Assert.assertEquals(Arrays.asList(1, 3, 70000), new ArrayList<Integer>(set));
+		Assert.assertTrue(set.contains(70000));
+		Assert.assertFalse(set.contains(2));
+		Assert.assertFalse(set.contains(-1));
+		Assert.assertFalse(set.contains("3"));
+	}
+
+	@Test
+	public void add_shouldHoldManyIdsThatShareTheirHighBits() throws Exception {
+		// more than fit in a sorted array, added out of order
+		IdSet set = new IdSet();
+		for (int id = 9999; id >= 0; --id)
+			set.add(id * 3);
+		Assert.assertEquals(treeRange(0, 30000, 3), set);
+		Assert.assertFalse(set.add(300));
+		Assert.assertFalse(set.contains(301));
+	}
+
+	@Test
+	public void and_shouldReturnTheIdsInBothSets() throws Exception {
+		IdSet sparse = range(0, 200000, 7);
+		IdSet dense = range(50000, 150000, 2);
+		TreeSet<Integer> expected = treeRange(0, 200000, 7);
+		expected.retainAll(treeRange(50000, 150000, 2));
+		Assert.assertEquals(expected, sparse.and(dense));
+		Assert.assertEquals(expected, dense.and(sparse));
+		Assert.assertEquals(dense, dense.and(dense));
+		Assert.assertTrue(sparse.and(new IdSet()).isEmpty());
+	}
+
+	@Test
+	public void or_shouldReturnTheIdsInEitherSet() throws Exception {
+		IdSet sparse = range(0, 200000, 7);
+		IdSet dense = range(50000, 150000, 2);
+		TreeSet<Integer> expected = treeRange(0, 200000, 7);
+		expected.addAll(treeRange(50000, 150000, 2));
+		IdSet union = sparse.or(dense);
+		Assert.assertEquals(expected, union);
+		Assert.assertEquals(expected.size(), union.size());
+		Assert.assertEquals(union, dense.or(sparse));
+	}
+
+	@Test
+	public void andNot_shouldReturnTheIdsOnlyInTheFirstSet() throws Exception {
+		IdSet sparse = range(0, 200000, 7);
+		IdSet dense = range(50000, 150000, 2);
+		TreeSet<Integer> expected = treeRange(50000, 150000, 2);
+		expected.removeAll(treeRange(0, 200000, 7));
+		Assert.assertEquals(expected, dense.andNot(sparse));
+		expected = treeRange(0, 200000, 7);
+		expected.removeAll(treeRange(50000, 150000, 2));
+		Assert.assertEquals(expected, sparse.andNot(dense));
+		Assert.assertTrue(dense.andNot(dense).isEmpty());
+	}
+
+	@Test
+	public void and_shouldNotChangeEitherSet() throws Exception {
+		IdSet left = range(0, 10000, 1);
+		IdSet right = range(5000, 6000, 1);
+		IdSet both = left.and(right);
+		both.add(20000);
+		Assert.assertEquals(10000, left.size());
+		Assert.assertEquals(1000, right.size());
+		Assert.assertEquals(1001, both.size());
+	}
+
+	@Test
+	public void of_shouldIgnoreNulls() throws Exception {
+		List<Integer> ids = new ArrayList<Integer>(Arrays.asList(5, null, 2, 5));
+		Assert.assertEquals(Arrays.asList(2, 5), new ArrayList<Integer>(IdSet.of(ids)));
+	}
+}
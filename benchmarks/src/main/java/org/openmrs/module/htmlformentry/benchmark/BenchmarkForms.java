@@ -0,0 +1,135 @@
+package org.openmrs.module.htmlformentry.benchmark;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+
+import org.openmrs.Form;
+import org.openmrs.module.htmlformentry.FormEntryContext;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.TestUtil;
+import org.openmrs.module.htmlformentry.widget.CheckboxWidget;
+import org.openmrs.module.htmlformentry.widget.DateWidget;
+import org.openmrs.module.htmlformentry.widget.NumberFieldWidget;
+import org.openmrs.module.htmlformentry.widget.TextFieldWidget;
+import org.openmrs.module.htmlformentry.widget.Widget;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * The forms that benchmarks run against: either one of the regression test forms (by file name,
+ * e.g. "multipleObsGroupForm"), or a synthetic form built from the concepts of the regression test
+ * dataset (e.g. "synthetic-2000" for a form with about 2000 obs tags)
+ */
+public class BenchmarkForms {
+
+	public static final String SYNTHETIC_PREFIX = "synthetic-";
+
+	private static final int OBS_PER_SECTION = 50;
+
+	private static final int REPEAT_ANSWER_CONCEPTS = 5;
+
+	/**
+	 * @param name the name of a regression test form or of a synthetic form
+	 * @return an unsaved html form for form 1 with that form's xml
+	 * @throws Exception
+	 */
+	public static HtmlForm getForm(String name) throws Exception {
+		String xml;
+		if (name.startsWith(SYNTHETIC_PREFIX))
+			xml = buildSyntheticForm(Integer.parseInt(name.substring(SYNTHETIC_PREFIX.length())));
+		else
+			xml = new TestUtil().loadXmlFromFile(FormEntryDatabase.XML_DATASET_PATH + name + ".xml");
+
+		HtmlForm htmlForm = new HtmlForm();
+		htmlForm.setXmlData(xml);
+		htmlForm.setForm(new Form(1));
+		return htmlForm;
+	}
+
+	/**
+	 * Builds a form with about obsCount obs tags: a third of them are numeric obs in sections, a third
+	 * are in obs groups, and a third are in obs groups rendered by a repeat
+	 *
+	 * @param obsCount
+	 * @return the xml of the form
+	 */
+	public static String buildSyntheticForm(int obsCount) {
+		int perKind = Math.max(1, obsCount / 3);
+		StringBuilder sb = new StringBuilder();
+		sb.append("<htmlform>\n");
+		sb.append("Date: <encounterDate/> Location: <encounterLocation/> Provider: <encounterProvider role=\"Provider\"/>\n");
+
+		for (int i = 0; i < perKind; i++) {
+			if (i % OBS_PER_SECTION == 0) {
+				if (i > 0)
+					sb.append("</section>\n");
+				sb.append("<section headerLabel=\"Weights ").append(i / OBS_PER_SECTION).append("\">\n");
+			}
+			sb.append("Weight ").append(i).append(": <obs conceptId=\"2\"/>\n");
+		}
+		sb.append("</section>\n");
+
+		for (int i = 0; i < perKind / 2; i++) {
+			sb.append("<obsgroup groupingConceptId=\"7\">\n");
+			sb.append("Allergy ").append(i).append(": <obs conceptId=\"8\"/>\n");
+			sb.append("Allergy Date ").append(i).append(": <obs conceptId=\"1119\"/>\n");
+			sb.append("</obsgroup>\n");
+		}
+
+		sb.append("<repeat>\n<template>\n");
+		sb.append("<obsgroup groupingConceptId=\"7\">\n");
+		sb.append("<obs conceptId=\"1000\" answerConceptId=\"{concept}\" answerLabel=\"{effect}\" labelText=\"\"/>\n");
+		sb.append("<obs conceptId=\"8\"/>\n");
+		sb.append("</obsgroup>\n");
+		sb.append("</template>\n");
+		for (int i = 0; i < perKind / 2; i++) {
+			sb.append("<render concept=\"").append(1001 + i % REPEAT_ANSWER_CONCEPTS).append("\" effect=\"effect ")
+			        .append(i).append("\"/>\n");
+		}
+		sb.append("</repeat>\n");
+
+		sb.append("<submit/>\n</htmlform>");
+		return sb.toString();
+	}
+
+	/**
+	 * Builds a submission for a form that has been rendered in the given context, which fills in the
+	 * encounter details and a value for every obs that has a date, number, text or checkbox widget
+	 *
+	 * @param context the context of the session the form was rendered in
+	 * @param html the rendered form, used to find the encounter location and provider by their labels
+	 * @return the request
+	 */
+	public static MockHttpServletRequest buildSubmission(FormEntryContext context, String html) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		String today = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+		for (Map.Entry<Widget, String> e : context.getFieldNames().entrySet()) {
+			Widget widget = e.getKey();
+			if (widget instanceof DateWidget)
+				request.addParameter(e.getValue(), today);
+			else if (widget instanceof NumberFieldWidget)
+				request.addParameter(e.getValue(), "70");
+			else if (widget instanceof TextFieldWidget)
+				request.addParameter(e.getValue(), "benchmark");
+			else if (widget instanceof CheckboxWidget)
+				request.addParameter(e.getValue(), ((CheckboxWidget) widget).getValue());
+		}
+		addLabeledParameter(request, html, "Location:", "2");
+		addLabeledParameter(request, html, "Provider:", "502");
+		return request;
+	}
+
+	/**
+	 * Sets the value of the first widget after label in the html, if there is one
+	 */
+	private static void addLabeledParameter(MockHttpServletRequest request, String html, String label, String value) {
+		int index = html.indexOf(label);
+		if (index < 0)
+			return;
+		index = html.indexOf("name=\"w", index);
+		if (index < 0)
+			return;
+		index = html.indexOf('"', index) + 1;
+		request.addParameter(html.substring(index, html.indexOf('"', index)), value);
+	}
+}
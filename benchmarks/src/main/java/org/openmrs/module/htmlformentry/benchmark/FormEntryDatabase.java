@@ -0,0 +1,85 @@
+package org.openmrs.module.htmlformentry.benchmark;
+
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryActivator;
+import org.openmrs.module.htmlformentry.TestUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestContextManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+/**
+ * The in-memory database and spring context that the module's unit tests run against (see
+ * {@link BaseModuleContextSensitiveTest}), loaded with the standard and regression test datasets.
+ * <p/>
+ * Every benchmark invocation runs in its own transaction, which is rolled back afterwards, so that
+ * submissions don't pile up in the database between invocations. Sessions and authentication are
+ * bound to the thread, so benchmarks using this state must run single-threaded.
+ */
+@State(Scope.Benchmark)
+public class FormEntryDatabase extends BaseModuleContextSensitiveTest {
+
+	public static final String XML_DATASET_PATH = "org/openmrs/module/htmlformentry/include/";
+
+	public static final String XML_REGRESSION_TEST_DATASET = "regressionTestDataSet";
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private TransactionStatus transaction;
+
+	private HtmlFormEntryActivator activator = new HtmlFormEntryActivator();
+
+	@Setup(Level.Trial)
+	public void startDatabase() throws Exception {
+		// let spring wire this up the way its junit runner would do for a test
+		new TestContextManager(FormEntryDatabase.class).prepareTestInstance(this);
+		Context.openSession();
+
+		beginTransaction();
+		baseSetupWithStandardDataAndAuthentication();
+		executeDataSet(XML_DATASET_PATH + new TestUtil().getTestDatasetFilename(XML_REGRESSION_TEST_DATASET));
+		commitTransaction();
+
+		activator.startup();
+	}
+
+	@TearDown(Level.Trial)
+	public void stopDatabase() {
+		activator.shutdown();
+		Context.closeSession();
+	}
+
+	@Setup(Level.Invocation)
+	public void beginTransaction() {
+		transaction = transactionManager.getTransaction(new DefaultTransactionDefinition());
+	}
+
+	@TearDown(Level.Invocation)
+	public void rollbackTransaction() {
+		transactionManager.rollback(transaction);
+		transaction = null;
+		Context.clearSession();
+	}
+
+	public void commitTransaction() {
+		transactionManager.commit(transaction);
+		transaction = null;
+		Context.clearSession();
+	}
+
+	/**
+	 * @return the patient that forms are rendered and submitted for
+	 */
+	public Patient getPatient() {
+		return Context.getPatientService().getPatient(2);
+	}
+}
@@ -0,0 +1,77 @@
+package org.openmrs.module.htmlformentry.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.CompiledHtmlForm;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Render latency of html forms: compiling the xml with the {@link HtmlFormEntryGenerator}, and
+ * creating the html for a new encounter and for viewing a saved one
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@Threads(1)
+public class RenderBenchmark {
+
+	@Param( { "singleObsForm", "multipleObsGroupForm", "obsGroupRepeatTestForm", "synthetic-500", "synthetic-2000" })
+	public String form;
+
+	private HtmlForm htmlForm;
+
+	private Integer encounterId;
+
+	@Setup(Level.Trial)
+	public void setUp(FormEntryDatabase db) throws Exception {
+		htmlForm = BenchmarkForms.getForm(form);
+
+		// save an encounter from the form to view
+		db.beginTransaction();
+		Patient patient = db.getPatient();
+		FormEntrySession session = new FormEntrySession(patient, htmlForm, Mode.ENTER);
+		String html = session.getHtmlToDisplay();
+		session.prepareForSubmit();
+		session.getSubmissionController().handleFormSubmission(session,
+		    BenchmarkForms.buildSubmission(session.getContext(), html));
+		session.applyActions();
+		encounterId = session.getEncounter().getEncounterId();
+		db.commitTransaction();
+	}
+
+	@Benchmark
+	public CompiledHtmlForm compile() throws Exception {
+		return new HtmlFormEntryGenerator().compile(htmlForm.getXmlData());
+	}
+
+	@Benchmark
+	public String enter(FormEntryDatabase db) throws Exception {
+		return new FormEntrySession(db.getPatient(), htmlForm, Mode.ENTER).getHtmlToDisplay();
+	}
+
+	@Benchmark
+	public String view(FormEntryDatabase db) throws Exception {
+		return new FormEntrySession(db.getPatient(), Context.getEncounterService().getEncounter(encounterId), Mode.VIEW,
+		        htmlForm).getHtmlToDisplay();
+	}
+}
@@ -0,0 +1,97 @@
+package org.openmrs.module.htmlformentry.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openmrs.Encounter;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.FormSubmissionController;
+import org.openmrs.module.htmlformentry.FormSubmissionError;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Submit latency of html forms: validating and handling a submission with the
+ * {@link FormSubmissionController}, and applying the resulting actions with
+ * {@link FormEntrySession#applyActions()}. Each submission is rolled back afterwards (see
+ * {@link FormEntryDatabase}).
+ */
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@Threads(1)
+public class SubmitBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class SubmittedForm {
+
+		@Param( { "singleObsForm", "multipleObsGroupForm", "obsGroupRepeatTestForm", "synthetic-500", "synthetic-2000" })
+		public String form;
+
+		private HtmlForm htmlForm;
+
+		FormEntrySession session;
+
+		MockHttpServletRequest request;
+
+		@Setup(Level.Trial)
+		public void loadForm() throws Exception {
+			htmlForm = BenchmarkForms.getForm(form);
+		}
+
+		/**
+		 * Renders the form afresh and fills in a submission for it
+		 */
+		@Setup(Level.Invocation)
+		public void renderForm(FormEntryDatabase db) throws Exception {
+			session = new FormEntrySession(db.getPatient(), htmlForm, Mode.ENTER);
+			request = BenchmarkForms.buildSubmission(session.getContext(), session.getHtmlToDisplay());
+			session.prepareForSubmit();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class HandledForm {
+
+		FormEntrySession session;
+
+		/**
+		 * Handles the submission of a freshly rendered form, leaving its actions to be applied
+		 */
+		@Setup(Level.Invocation)
+		public void handleSubmission(SubmittedForm submitted) throws Exception {
+			session = submitted.session;
+			session.getSubmissionController().handleFormSubmission(session, submitted.request);
+		}
+	}
+
+	@Benchmark
+	public List<FormSubmissionError> validateAndHandle(SubmittedForm submitted) throws Exception {
+		FormEntrySession session = submitted.session;
+		List<FormSubmissionError> errors = session.getSubmissionController().validateSubmission(session.getContext(),
+		    submitted.request);
+		session.getSubmissionController().handleFormSubmission(session, submitted.request);
+		return errors;
+	}
+
+	@Benchmark
+	public Encounter applyActions(HandledForm handled) throws Exception {
+		handled.session.applyActions();
+		return handled.session.getEncounter();
+	}
+}
@@ -2,19 +2,18 @@ package org.openmrs.module.htmlformentry.web.controller;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
-import java.util.Locale;
-import java.util.Vector;
+import java.util.Iterator;
+import java.util.Map;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.openmrs.Encounter;
-import org.openmrs.Form;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
@@ -52,10 +51,6 @@ public class HtmlFormAjaxValidationController {
 
 		response.setContentType("text/html");
 		ServletOutputStream out = response.getOutputStream();
-		List<Locale> l = new Vector<Locale>();
-		l.add(Context.getLocale());
-
-		List<Encounter> encounters = Context.getEncounterService().getEncountersByPatientId(patientId);
 		
 		// if the AJAX call has passed a date format, use that, otherwise use the standard date format to parse the date
 		SimpleDateFormat dateFormatter;
@@ -67,20 +62,7 @@ public class HtmlFormAjaxValidationController {
 		}
 		Date dateToCheck = dateFormatter.parse(date);
 		
-		boolean duplicate = false;
-		
-		for(Encounter enc: encounters)
-		{
-			if(enc.getForm() != null)
-			{
-				Form encForm = enc.getForm();
-				HtmlForm htmlForm = HtmlFormEntryUtil.getService().getHtmlFormByForm(encForm);
-				if(htmlForm != null && htmlForm.getId().equals(formId) && dateToCheck.compareTo(enc.getEncounterDatetime()) == 0)
-				{
-					duplicate = true;
-				}
-			}
-		}
+		boolean duplicate = HtmlFormEntryUtil.getService().hasEncounterForHtmlForm(patientId, formId, dateToCheck);
 		
 		if(duplicate)
 		{
@@ -91,4 +73,64 @@ public class HtmlFormAjaxValidationController {
 			out.print("false");
 		}
 	}
+	
+	/**
+	 * Validates some fields (e.g. one widget, or the widgets of one section) of the form the user has
+	 * open, against the elements of its session, and prints their errors as a JSON object from error
+	 * div id to message, with an empty message for each field that is valid. The whole form is only
+	 * posted back and re-rendered on the final submit.
+	 * <p/>
+	 * Responds with 409 Conflict if the user has opened another form since, or the form has been
+	 * changed, in which case the fields can only be checked by submitting the form.
+	 */
+	@RequestMapping("/module/htmlformentry/validateFields")
+	public void validateFields(
+			HttpServletRequest request,
+			HttpServletResponse response,
+			@RequestParam(required = true, value = "fields") String fields,
+			@RequestParam(required = true, value = "htmlFormId") Integer htmlFormId,
+			@RequestParam(required = false, value = "formModifiedTimestamp") Long formModifiedTimestamp)
+			throws IOException {
+		
+		FormEntrySession session = (FormEntrySession) Context.getVolatileUserData(HtmlFormEntryController.FORM_IN_PROGRESS_KEY);
+		if (session == null || session.getContext().getMode() == Mode.VIEW || !htmlFormId.equals(session.getHtmlFormId())
+				|| (formModifiedTimestamp != null && formModifiedTimestamp != session.getFormModifiedTimestamp())) {
+			response.sendError(HttpServletResponse.SC_CONFLICT);
+			return;
+		}
+		
+		Map<String, String> errors;
+		// a session isn't thread-safe, and fields may be checked while others are still being checked
+		synchronized (session) {
+			errors = session.validateFields(request, Arrays.asList(fields.split(",")));
+		}
+		
+		response.setContentType("application/json");
+		ServletOutputStream out = response.getOutputStream();
+		out.print("{");
+		for (Iterator<Map.Entry<String, String>> i = errors.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, String> e = i.next();
+			out.print("\"" + toJsonString(e.getKey()) + "\":\"" + toJsonString(e.getValue()) + "\"");
+			if (i.hasNext())
+				out.print(",");
+		}
+		out.print("}");
+	}
+	
+	/**
+	 * Escapes a string to go between double quotes in JSON, leaving only printable ASCII characters
+	 */
+	private static String toJsonString(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < ' ' || c > '~' || c == '<' || c == '>')
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.toString();
+	}
 }
@@ -20,6 +20,8 @@ import org.openmrs.module.htmlformentry.FormSubmissionError;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.ValidationException;
+import org.openmrs.module.htmlformentry.metrics.FormEntryMetrics.Category;
+import org.openmrs.module.htmlformentry.metrics.HtmlFormEntryMetrics;
 import org.openmrs.util.OpenmrsUtil;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -186,7 +188,9 @@ public class HtmlFormEntryController {
 
         Context.setVolatileUserData(FORM_IN_PROGRESS_KEY, session);
        
-        log.info("Took " + (System.currentTimeMillis() - ts) + " ms");
+        long took = System.currentTimeMillis() - ts;
+        HtmlFormEntryMetrics.getMetrics().record(Category.STAGE, "getFormEntrySession", took * 1000000);
+        log.info("Took " + took + " ms");
         
         return session;
     }
@@ -1,11 +1,8 @@
 package org.openmrs.module.htmlformentry.web.controller;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
-import org.openmrs.Cohort;
 import org.openmrs.Patient;
 import org.openmrs.Person;
 import org.openmrs.Program;
@@ -13,6 +10,7 @@ import org.openmrs.api.PatientService;
 import org.openmrs.api.PersonService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.htmlformentry.cohort.IdSet;
 import org.openmrs.web.dwr.PersonListItem;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
@@ -66,7 +64,8 @@ public class PopupWidgetController {
 			}
 		}
 		
-		Cohort cohort = null;
+		HtmlFormEntryService service = Context.getService(HtmlFormEntryService.class);
+		IdSet cohort = null;
 		if(searchAttribute != null)
 		{
 			String[] attributes = searchAttribute.split(",");
@@ -86,21 +85,8 @@ public class PopupWidgetController {
 				}
 				if(attr != null && attr.trim().length() > 0)
 				{
-					List<Integer> ids = Context.getService(HtmlFormEntryService.class).getPersonIdsHavingAttributes(attr, val);
-					Set<Integer> setOfIds = new HashSet<Integer>();
-					setOfIds.addAll(ids);
-					
-					Cohort pp = new Cohort();
-					pp.setMemberIds(setOfIds);
-				
-					if(cohort != null)
-					{
-						cohort = Cohort.intersect(cohort, pp);
-					}
-					else
-					{
-						cohort = pp;
-					}
+					IdSet pp = service.getPersonIdSetHavingAttribute(attr, val);
+					cohort = cohort == null ? pp : cohort.and(pp);
 				}
 			}
 		}
@@ -121,15 +107,8 @@ public class PopupWidgetController {
 					}
 					if(personProgram != null)
 					{
-						Cohort pp = Context.getPatientSetService().getPatientsInProgram(personProgram, null, null);
-						if(cohort != null)
-						{
-							cohort = Cohort.intersect(cohort, pp);
-						}
-						else
-						{
-							cohort = pp;
-						}
+						IdSet pp = service.getPatientIdSetInProgram(personProgram);
+						cohort = cohort == null ? pp : cohort.and(pp);
 					}
 				}
 			}
@@ -142,7 +121,7 @@ public class PopupWidgetController {
 			{
 				PersonListItem pli = (PersonListItem)o;
 				
-				if(cohort.getMemberIds().contains(pli.getPersonId()))
+				if(pli.getPersonId() != null && cohort.contains(pli.getPersonId().intValue()))
 				{
 					filteredList.add(o);
 				}
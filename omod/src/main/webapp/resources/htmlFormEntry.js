@@ -33,6 +33,36 @@ function clearError(errorDivId) {
 	}
 }
 
+// checks the given widgets (e.g. the one that just changed) on the server without submitting the form, and
+// shows or clears their errors. The callback, if any, is passed whether there were errors.
+function validateFields(fieldNames, callback) {
+	var data = $j('#htmlform').serializeArray();
+	data.push({ name: 'fields', value: fieldNames.join(',') });
+	$j.post("validateFields.form", data, function(errors) {
+		var anyErrors = false;
+		for (var errorDivId in errors) {
+			clearError(errorDivId);
+			if (errors[errorDivId] != '') {
+				showError(errorDivId, errors[errorDivId]);
+				anyErrors = true;
+			}
+		}
+		if (callback)
+			callback(anyErrors);
+	}, "json");
+}
+
+// like validateFields, for every widget inside the elements matching a selector (e.g. one section)
+function validateSection(selector, callback) {
+	var fieldNames = [];
+	$j(selector).find(':input[name]').each(function() {
+		var name = $j(this).attr('name');
+		if (/^w\d+$/.test(name) && $j.inArray(name, fieldNames) < 0)
+			fieldNames.push(name);
+	});
+	validateFields(fieldNames, callback);
+}
+
 function checkNumber(el, errorDivId, floatOkay, absoluteMin, absoluteMax) {
 	clearError(errorDivId);
 